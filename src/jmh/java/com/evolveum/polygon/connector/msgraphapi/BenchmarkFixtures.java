@@ -0,0 +1,164 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.identityconnectors.framework.common.objects.AttributeDeltaBuilder;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fixtures of the benchmarks, shaped like the users, filters and deltas of a production tenant.
+ */
+final class BenchmarkFixtures {
+
+    // Attributes of a user selected from the Graph API when no attributes to get are requested
+    static final String[] USER_ATTRIBUTES = {
+            "accountEnabled", "displayName", "onPremisesImmutableId", "mailNickname", "userPrincipalName", "aboutMe",
+            "birthday", "businessPhones", "city", "companyName", "country", "department", "givenName", "hireDate",
+            "imAddresses", "id", "interests", "jobTitle", "mail", "mobilePhone", "mySite", "officeLocation",
+            "onPremisesLastSyncDateTime", "onPremisesSecurityIdentifier", "onPremisesSyncEnabled", "passwordPolicies",
+            "pastProjects", "postalCode", "preferredLanguage", "preferredName", "proxyAddresses", "responsibilities",
+            "schools", "skills", "state", "streetAddress", "surname", "usageLocation", "userType", "assignedLicenses",
+            "externalUserState", "externalUserStateChangeDateTime", "manager", "employeeHireDate",
+            "employeeLeaveDateTime", "employeeType", "faxNumber", "employeeId", "onPremisesExtensionAttributes"
+    };
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * User with about 60 attributes, as returned by the Graph API with the manager expanded.
+     */
+    static JSONObject user(int index) {
+        String name = "user" + index;
+        JSONObject user = new JSONObject();
+        user.put("id", String.format("%08x-4d5e-4f60-8a7b-%012d", index, index));
+        user.put("userPrincipalName", name + "@contoso.onmicrosoft.com");
+        user.put("accountEnabled", true);
+        user.put("displayName", "User " + index + " Lastname");
+        user.put("givenName", "User " + index);
+        user.put("surname", "Lastname");
+        user.put("mail", name + "@contoso.com");
+        user.put("mailNickname", name);
+        user.put("onPremisesImmutableId", "Zm9vYmFyYmF6cXV4" + index);
+        user.put("onPremisesSecurityIdentifier", "S-1-5-21-1180699209-877415012-3182924384-" + (1000 + index));
+        user.put("onPremisesSyncEnabled", true);
+        user.put("onPremisesLastSyncDateTime", "2023-09-14T06:12:44Z");
+        user.put("passwordPolicies", "DisablePasswordExpiration");
+        user.put("city", "Redmond");
+        user.put("companyName", "Contoso");
+        user.put("country", "United States");
+        user.put("department", "Engineering " + (index % 20));
+        user.put("jobTitle", "Software Engineer");
+        user.put("mobilePhone", "+1 425 555 " + String.format("%04d", index % 10000));
+        user.put("officeLocation", "18/" + (2000 + index % 500));
+        user.put("postalCode", "98052");
+        user.put("preferredLanguage", "en-US");
+        user.put("state", "WA");
+        user.put("streetAddress", "9256 Towne Center Dr., Suite 400");
+        user.put("usageLocation", "US");
+        user.put("userType", "Member");
+        user.put("externalUserState", JSONObject.NULL);
+        user.put("externalUserStateChangeDateTime", JSONObject.NULL);
+        user.put("employeeHireDate", "2019-03-01T00:00:00Z");
+        user.put("employeeLeaveDateTime", JSONObject.NULL);
+        user.put("employeeType", "Employee");
+        user.put("employeeId", String.valueOf(100000 + index));
+        user.put("faxNumber", JSONObject.NULL);
+        user.put("businessPhones", new JSONArray().put("+1 425 555 0109"));
+        user.put("imAddresses", new JSONArray().put("sip:" + name + "@contoso.com"));
+        user.put("proxyAddresses", new JSONArray()
+                .put("SMTP:" + name + "@contoso.com")
+                .put("smtp:" + name + "@contoso.onmicrosoft.com")
+                .put("smtp:" + name + "@contoso.mail.onmicrosoft.com"));
+
+        JSONObject extensionAttributes = new JSONObject();
+        for (int i = 1; i <= 15; i++) {
+            extensionAttributes.put("extensionAttribute" + i, i <= 5 ? "value" + i + "-" + index : JSONObject.NULL);
+        }
+        user.put("onPremisesExtensionAttributes", extensionAttributes);
+
+        JSONArray licenses = new JSONArray();
+        licenses.put(new JSONObject().put("skuId", "c7df2760-2c81-4ef7-b578-5b5392b571df")
+                .put("disabledPlans", new JSONArray().put("efb87545-963c-4e0d-99df-69c6916d9eb0")));
+        licenses.put(new JSONObject().put("skuId", "f30db892-07e9-47e9-837c-80727f46fd3d")
+                .put("disabledPlans", new JSONArray()));
+        user.put("assignedLicenses", licenses);
+
+        user.put("manager", new JSONObject()
+                .put("@odata.type", "#microsoft.graph.user")
+                .put("id", String.format("%08x-4d5e-4f60-8a7b-%012d", index / 10, index / 10)));
+        return user;
+    }
+
+    /**
+     * AND of equality, prefix and negated filters, as sent by the reconciliation of a department.
+     */
+    static Filter andFilter() {
+        return FilterBuilder.and(
+                FilterBuilder.or(
+                        FilterBuilder.not(FilterBuilder.equalTo(AttributeBuilder.build("department", "Support"))),
+                        FilterBuilder.startsWith(AttributeBuilder.build("jobTitle", "Software"))),
+                FilterBuilder.and(
+                        FilterBuilder.equalTo(AttributeBuilder.build("accountEnabled", true)),
+                        FilterBuilder.startsWith(AttributeBuilder.build("userPrincipalName", "user1"))));
+    }
+
+    /**
+     * OR of the equality filters of a correlation by several identifiers.
+     */
+    static Filter orFilter() {
+        return FilterBuilder.or(
+                FilterBuilder.or(
+                        FilterBuilder.equalTo(AttributeBuilder.build("mail", "user1@contoso.com")),
+                        FilterBuilder.equalTo(AttributeBuilder.build("mailNickname", "user1"))),
+                FilterBuilder.and(
+                        FilterBuilder.equalTo(AttributeBuilder.build("employeeId", "100001")),
+                        FilterBuilder.not(FilterBuilder.equalTo(AttributeBuilder.build("userType", "Guest")))));
+    }
+
+    /**
+     * Deltas replacing the values of the multi-valued attributes of {@link #multiValuedUser(int)}.
+     */
+    static Set<AttributeDelta> multiValuedDeltas(int values) {
+        Set<AttributeDelta> deltas = new HashSet<>();
+        deltas.add(AttributeDeltaBuilder.build("businessPhones",
+                values("+1 425 555 1", values), values("+1 425 555 0", values)));
+        deltas.add(AttributeDeltaBuilder.build("proxyAddresses",
+                values("smtp:alias-new", values), values("smtp:alias-old", values)));
+        deltas.add(AttributeDeltaBuilder.build("imAddresses", values("sip:new", values), null));
+        deltas.add(AttributeDeltaBuilder.build("officeLocation", "18/2111"));
+        // SharePoint Online attributes, updated by a separate request
+        deltas.add(AttributeDeltaBuilder.build("skills", values("skill-new", values), values("skill-old", values)));
+        deltas.add(AttributeDeltaBuilder.build("schools", values("school-new", values), null));
+        return deltas;
+    }
+
+    /**
+     * User read before an update, the multi-valued attributes of the deltas have the given number of values.
+     */
+    static JSONObject multiValuedUser(int values) {
+        JSONObject user = new JSONObject();
+        user.put("businessPhones", new JSONArray(values("+1 425 555 0", values)));
+        user.put("proxyAddresses", new JSONArray(values("smtp:alias-old", values)));
+        user.put("imAddresses", new JSONArray(values("sip:old", values)));
+        user.put("skills", new JSONArray(values("skill-old", values)));
+        user.put("schools", new JSONArray(values("school-old", values)));
+        return user;
+    }
+
+    private static List<Object> values(String prefix, int count) {
+        List<Object> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(prefix + i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,65 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.util.FilterHandler;
+import com.evolveum.polygon.connector.msgraphapi.util.ResourceQuery;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translation of the ConnId filters of a search to the $filter and $search query of the Graph API.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterHandlerBenchmark {
+
+    private Filter equalsFilter;
+    private Filter andFilter;
+    private Filter orFilter;
+
+    @Setup
+    public void setup() {
+        equalsFilter = FilterBuilder.equalTo(AttributeBuilder.build("userPrincipalName", "user1@contoso.onmicrosoft.com"));
+        andFilter = BenchmarkFixtures.andFilter();
+        orFilter = BenchmarkFixtures.orFilter();
+    }
+
+    @Benchmark
+    public String equalsFilter() {
+        return translate(equalsFilter);
+    }
+
+    @Benchmark
+    public String nestedAndFilter() {
+        return translate(andFilter);
+    }
+
+    @Benchmark
+    public String nestedOrFilter() {
+        return translate(orFilter);
+    }
+
+    private static String translate(Filter filter) {
+        // the handler keeps the state of the translation, so a new one is used for every query
+        ResourceQuery query = filter.accept(new FilterHandler(),
+                new ResourceQuery(ObjectClass.ACCOUNT, "id", "userPrincipalName"));
+        return query.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.evolveum.polygon.connector.msgraphapi.UserProcessing.EXCLUDE_ATTRS_OF_USER;
+import static com.evolveum.polygon.connector.msgraphapi.UserProcessing.SPO_ATTRS;
+
+/**
+ * Building of the PATCH payloads of a user update from the deltas of its multi-valued attributes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LayeredAttributeBenchmark {
+
+    // values added and removed by every delta
+    @Param({"2", "20", "200"})
+    public int values;
+
+    private UserProcessing userProcessing;
+    private Set<AttributeDelta> deltas;
+    private JSONObject oldUser;
+
+    @Setup
+    public void setup() {
+        MockGraphEndpoint endpoint = new MockGraphEndpoint(null);
+        userProcessing = new UserProcessing(endpoint, endpoint.getSchemaTranslator());
+        deltas = BenchmarkFixtures.multiValuedDeltas(values);
+        oldUser = BenchmarkFixtures.multiValuedUser(values);
+    }
+
+    @Benchmark
+    public List<JSONObject> buildLayeredAttribute() {
+        return userProcessing.buildLayeredAttribute(oldUser, deltas, EXCLUDE_ATTRS_OF_USER, SPO_ATTRS);
+    }
+}
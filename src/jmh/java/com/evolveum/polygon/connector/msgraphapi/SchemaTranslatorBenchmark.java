@@ -0,0 +1,64 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selection of the attributes queried from the Graph API by the attributes to get of an operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchemaTranslatorBenchmark {
+
+    private SchemaTranslator schemaTranslator;
+    private UserProcessing userProcessing;
+    private OperationOptions defaultAttributes;
+    private OperationOptions attributesToGet;
+
+    @Setup
+    public void setup() {
+        MockGraphEndpoint endpoint = new MockGraphEndpoint(null);
+        schemaTranslator = endpoint.getSchemaTranslator();
+        userProcessing = new UserProcessing(endpoint, schemaTranslator);
+        defaultAttributes = new OperationOptionsBuilder().setReturnDefaultAttributes(true).build();
+        attributesToGet = new OperationOptionsBuilder().setReturnDefaultAttributes(true)
+                .setAttributesToGet("manager.id", "assignedLicenses.skuId", "memberOfGroup", "aboutMe").build();
+    }
+
+    @Benchmark
+    public String[] filterDefaultAttributes() {
+        return schemaTranslator.filter(ObjectClass.ACCOUNT_NAME, defaultAttributes, BenchmarkFixtures.USER_ATTRIBUTES);
+    }
+
+    @Benchmark
+    public String[] filterAttributesToGet() {
+        return schemaTranslator.filter(ObjectClass.ACCOUNT_NAME, attributesToGet, BenchmarkFixtures.USER_ATTRIBUTES);
+    }
+
+    @Benchmark
+    public AttributePlan attributePlan() {
+        return schemaTranslator.getAttributePlan(ObjectClass.ACCOUNT_NAME, attributesToGet);
+    }
+
+    @Benchmark
+    public String userSelector() {
+        return userProcessing.getSelectorSingle(attributesToGet);
+    }
+}
@@ -0,0 +1,149 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of the users returned by the Graph API to connector objects, done for every user of a search or sync.
+ * The legacy benchmark runs the conversion which looked every attribute up by a separate call, before the mapping
+ * of the user properties was compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserConversionBenchmark {
+
+    private static final int USERS = 64;
+
+    private UserProcessing userProcessing;
+    private AttributePlan selectedAttributes;
+    private JSONObject[] users;
+    private int next;
+
+    @Setup
+    public void setup() {
+        MockGraphEndpoint endpoint = new MockGraphEndpoint(null);
+        userProcessing = new UserProcessing(endpoint, endpoint.getSchemaTranslator());
+        selectedAttributes = endpoint.getSchemaTranslator().getAttributePlan(ObjectClass.ACCOUNT_NAME,
+                new OperationOptionsBuilder().setAttributesToGet("displayName", "mail", "accountEnabled").build());
+        users = new JSONObject[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = BenchmarkFixtures.user(i);
+        }
+    }
+
+    @Benchmark
+    public ConnectorObject convertUser() {
+        JSONObject user = users[next++ % USERS];
+        return userProcessing.convertUserJSONObjectToConnectorObject(user).build();
+    }
+
+    @Benchmark
+    public ConnectorObject parseAndConvertUser() {
+        // the users of a page are parsed from the response before the conversion
+        JSONObject user = new JSONObject(users[next++ % USERS].toString());
+        return userProcessing.convertUserJSONObjectToConnectorObject(user).build();
+    }
+
+    @Benchmark
+    public ConnectorObject convertUserLegacy() {
+        JSONObject user = users[next++ % USERS];
+        return convertLegacy(userProcessing, user).build();
+    }
+
+    @Benchmark
+    public ConnectorObject convertSelectedAttributes() {
+        JSONObject user = users[next++ % USERS];
+        return userProcessing.convertUserJSONObjectToConnectorObject(user, selectedAttributes).build();
+    }
+
+    private static ConnectorObjectBuilder convertLegacy(UserProcessing processing, JSONObject user) {
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setObjectClass(ObjectClass.ACCOUNT);
+
+        processing.getUIDIfExists(user, "id", builder);
+        processing.getNAMEIfExists(user, "userPrincipalName", builder);
+        processing.getAndRenameIfExists(user, "accountEnabled", Boolean.class, "__ENABLE__", builder);
+
+        processing.getIfExists(user, "accountEnabled", Boolean.class, builder);
+        processing.getIfExists(user, "id", String.class, builder);
+        processing.getIfExists(user, "userPrincipalName", String.class, builder);
+        processing.getIfExists(user, "accountEnabled", Boolean.class, builder);
+        processing.getIfExists(user, "displayName", String.class, builder);
+        processing.getIfExists(user, "onPremisesImmutableId", String.class, builder);
+        processing.getIfExists(user, "mailNickname", String.class, builder);
+        processing.getIfExists(user, "aboutMe", String.class, builder);
+        processing.getMultiIfExists(user, "memberOfGroup", builder);
+        processing.getMultiIfExists(user, "ownerOfGroup", builder);
+        processing.getMultiIfExists(user, "memberOfRole", builder);
+        processing.getIfExists(user, "birthday", String.class, builder);
+        processing.getIfExists(user, "city", String.class, builder);
+        processing.getIfExists(user, "companyName", String.class, builder);
+        processing.getIfExists(user, "country", String.class, builder);
+        processing.getIfExists(user, "department", String.class, builder);
+        processing.getIfExists(user, "givenName", String.class, builder);
+        processing.getIfExists(user, "hireDate", String.class, builder);
+        processing.getMultiIfExists(user, "imAddresses", builder);
+        processing.getIfExists(user, "id", String.class, builder);
+        processing.getMultiIfExists(user, "businessPhones", builder);
+        processing.getMultiIfExists(user, "interests", builder);
+        processing.getIfExists(user, "jobTitle", String.class, builder);
+        processing.getIfExists(user, "mail", String.class, builder);
+        processing.getIfExists(user, "mobilePhone", String.class, builder);
+        processing.getIfExists(user, "mySite", String.class, builder);
+        processing.getIfExists(user, "officeLocation", String.class, builder);
+        processing.getIfExists(user, "onPremisesLastSyncDateTime", String.class, builder);
+        processing.getIfExists(user, "onPremisesSecurityIdentifier", String.class, builder);
+        processing.getIfExists(user, "onPremisesSyncEnabled", Boolean.class, builder);
+        processing.getIfExists(user, "passwordPolicies", String.class, builder);
+        processing.getMultiIfExists(user, "pastProjects", builder);
+        processing.getIfExists(user, "postalCode", String.class, builder);
+        processing.getIfExists(user, "preferredLanguage", String.class, builder);
+        processing.getIfExists(user, "preferredName", String.class, builder);
+        processing.getMultiIfExists(user, "responsibilities", builder);
+        processing.getMultiIfExists(user, "schools", builder);
+        processing.getMultiIfExists(user, "skills", builder);
+        processing.getIfExists(user, "state", String.class, builder);
+        processing.getIfExists(user, "streetAddress", String.class, builder);
+        processing.getIfExists(user, "surname", String.class, builder);
+        processing.getIfExists(user, "usageLocation", String.class, builder);
+        processing.getIfExists(user, "userType", String.class, builder);
+        processing.getIfExists(user, "lastSignIn", String.class, builder);
+        processing.getIfExists(user, "externalUserState", String.class, builder);
+        processing.getIfExists(user, "externalUserStateChangeDateTime", String.class, builder);
+        processing.getIfExists(user, "employeeHireDate", String.class, builder);
+        processing.getIfExists(user, "employeeLeaveDateTime", String.class, builder);
+        processing.getIfExists(user, "employeeType", String.class, builder);
+        processing.getIfExists(user, "faxNumber", String.class, builder);
+        processing.getIfExists(user, "employeeId", String.class, builder);
+        processing.getIfExists(user, "photo", byte[].class, builder);
+
+        for (int i = 1; i <= 15; i++) {
+            processing.getFromItemIfExists(user, "onPremisesExtensionAttributes", "extensionAttribute" + i,
+                    String.class, builder);
+        }
+
+        processing.getMultiIfExists(user, "proxyAddresses", builder);
+        processing.getFromArrayIfExists(user, "assignedLicenses", "skuId", String.class, builder);
+        processing.getJSONObjectItemIfExists(user, "manager", "id", String.class, builder);
+        return builder;
+    }
+}
@@ -0,0 +1,119 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import org.identityconnectors.framework.common.objects.OperationOptions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Attributes to get of an object class resolved from the operation options: the attributes requested explicitly
+ * or returned by default, whether the attributes fetched by separate requests are saturated or reported incomplete,
+ * and the $select clause of the Graph API query. The plan is immutable, it is resolved once per search by
+ * {@link SchemaTranslator#getAttributePlan(String, OperationOptions)} and shared by the searches with the same
+ * attributes to get, so that the checks done for every object are mere lookups.
+ */
+public final class AttributePlan {
+
+    private final String type;
+    private final Set<String> attributesToGet;
+    // Attributes holding the requested sub-attributes, e.g. "manager" of "manager.id"
+    private final Set<String> containerAttributes;
+    private final Set<String> returnedByDefault;
+    private final boolean allowPartialAttributeValues;
+    private final String[] selectedAttributes;
+    private final String selector;
+
+    AttributePlan(String type, OperationOptions options, Set<String> returnedByDefault, String[] selectableAttributes) {
+        this.type = type;
+        this.returnedByDefault = returnedByDefault;
+        this.allowPartialAttributeValues = Boolean.TRUE.equals(options.getAllowPartialAttributeValues());
+
+        Set<String> attributes = new HashSet<>();
+        if (Boolean.TRUE.equals(options.getReturnDefaultAttributes())) {
+            attributes.addAll(returnedByDefault);
+        }
+        if (options.getAttributesToGet() != null) {
+            attributes.addAll(Arrays.asList(options.getAttributesToGet()));
+        }
+        this.attributesToGet = Collections.unmodifiableSet(attributes);
+
+        Set<String> containers = new HashSet<>();
+        for (String attr : attributes) {
+            if (attr.contains(".")) {
+                containers.add(attr.substring(0, attr.indexOf(".")));
+            }
+        }
+        this.containerAttributes = Collections.unmodifiableSet(containers);
+
+        if (selectableAttributes == null) {
+            this.selectedAttributes = null;
+            this.selector = null;
+        } else {
+            this.selectedAttributes = filter(selectableAttributes);
+            this.selector = selectedAttributes.length == 0 ? null : ObjectProcessing.selector(selectedAttributes);
+        }
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Attributes requested explicitly or returned by default, empty when the options do not restrict the attributes.
+     */
+    public Set<String> getAttributesToGet() {
+        return attributesToGet;
+    }
+
+    public Set<String> getReturnedByDefault() {
+        return returnedByDefault;
+    }
+
+    public boolean isAllowPartialAttributeValues() {
+        return allowPartialAttributeValues;
+    }
+
+    public boolean contains(String attr) {
+        return attributesToGet.contains(attr);
+    }
+
+    /**
+     * Whether the values of the attribute, which are fetched by separate requests, are fetched for every object.
+     */
+    public boolean shouldSaturate(String attr) {
+        return !allowPartialAttributeValues && attributesToGet.contains(attr);
+    }
+
+    /**
+     * Whether the attribute is reported as incomplete instead of being fetched for every object.
+     */
+    public boolean isIncomplete(String attr) {
+        return allowPartialAttributeValues && attributesToGet.contains(attr);
+    }
+
+    /**
+     * The given attributes which are to be got, all of them when the options do not restrict the attributes.
+     */
+    public String[] filter(String... attrs) {
+        if (attributesToGet.isEmpty()) {
+            return attrs;
+        }
+
+        return Arrays.stream(attrs)
+                .filter(attr -> attributesToGet.contains(attr) || containerAttributes.contains(attr))
+                .toArray(String[]::new);
+    }
+
+    /**
+     * The $select clause of the attributes of the object class which are to be got.
+     */
+    public String getSelector() {
+        if (selector == null) {
+            // Fails the same way as an empty selector always did
+            return ObjectProcessing.selector(selectedAttributes);
+        }
+        return selector;
+    }
+}
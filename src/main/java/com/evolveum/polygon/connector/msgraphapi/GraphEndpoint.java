@@ -1,7 +1,17 @@
 package com.evolveum.polygon.connector.msgraphapi;
 
 import com.evolveum.polygon.common.GuardedStringAccessor;
+import com.evolveum.polygon.connector.msgraphapi.util.AdaptiveRateLimiter;
+import com.evolveum.polygon.connector.msgraphapi.util.AttributeValueCache;
+import com.evolveum.polygon.connector.msgraphapi.util.JsonCollectionReader;
+import com.evolveum.polygon.connector.msgraphapi.util.MetricsExporter;
+import com.evolveum.polygon.connector.msgraphapi.util.MonitoredConnectionManager;
+import com.evolveum.polygon.connector.msgraphapi.util.PayloadLog;
 import com.evolveum.polygon.connector.msgraphapi.util.PolyTrustManager;
+import com.evolveum.polygon.connector.msgraphapi.util.RequestLog;
+import com.evolveum.polygon.connector.msgraphapi.util.RequestMetrics;
+import com.evolveum.polygon.connector.msgraphapi.util.RoleAssignmentIndex;
+import com.evolveum.polygon.connector.msgraphapi.util.TokenRefresher;
 import com.microsoft.aad.adal4j.AsymmetricKeyCredential;
 import com.microsoft.aad.adal4j.AuthenticationContext;
 import com.microsoft.aad.adal4j.AuthenticationResult;
@@ -12,11 +22,19 @@ import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.ServiceUnavailableRetryStrategy;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
@@ -28,12 +46,16 @@ import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.net.ssl.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.Proxy;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.*;
 import java.security.cert.CertificateException;
@@ -42,11 +64,15 @@ import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import static com.evolveum.polygon.connector.msgraphapi.ObjectProcessing.LOG;
 import static com.evolveum.polygon.connector.msgraphapi.ObjectProcessing.TOP;
@@ -56,17 +82,43 @@ import static com.evolveum.polygon.connector.msgraphapi.ObjectProcessing.TOP;
  * Facilitates HTTP access to Microsoft services.
  */
 public class GraphEndpoint {
-    private final static String API_ENDPOINT = "graph.microsoft.com/v1.0";
-    private final static String AUTHORITY = "https://login.microsoftonline.com/";
-    private final static String RESOURCE = "https://graph.microsoft.com";
+    private final static String BATCH = "/$batch";
+    // Maximum number of sub-requests accepted by the JSON batching endpoint
+    public final static int BATCH_REQUEST_LIMIT = 20;
     //private static final int MAX_THROTTLING_RETRY_COUNT = 3;
 
     private final MSGraphConfiguration configuration;
+    // The API URL without the trailing slash, e.g. https://graph.microsoft.com/v1.0
+    private final URI apiUrl;
     private final URIBuilder uriBuilder;
-    private AuthenticationResult authenticateResult;
+    private TokenRefresher<AuthenticationResult> tokenRefresher;
+    private ExecutorService authenticationExecutor;
+    private AuthenticationContext authenticationContext;
     private SchemaTranslator schemaTranslator;
     private CloseableHttpClient httpClient;
-    private Boolean throttling = false;
+    private MonitoredConnectionManager connectionManager;
+    private AdaptiveRateLimiter rateLimiter;
+    private ExecutorService requestExecutor;
+    private final RequestMetrics metrics = new RequestMetrics();
+    private ObjectName metricsName;
+    private MetricsExporter metricsExporter;
+    private ScheduledExecutorService metricsExecutor;
+    private final PayloadLog payloadLog;
+    private final AttributeValueCache attributeValueCache;
+    // Maximum number of the objects whose attribute values are cached
+    private static final int ATTRIBUTE_VALUE_CACHE_SIZE = 10000;
+    // Marks the end of the pages fetched in the background
+    private static final Object LAST_PAGE = new Object();
+    // Objects of the concurrently listed partitions waiting for the handler
+    private static final int PARTITIONED_LIST_QUEUE_SIZE = 1000;
+    private static final String METRICS_DOMAIN = "com.evolveum.polygon.connector.msgraphapi";
+    private static final AtomicInteger METRICS_IDS = new AtomicInteger();
+    // Attribute of the HTTP context holding the metrics of the route of the request
+    private static final String ROUTE_METRICS = "msgraph.routeMetrics";
+    private static final String ROLE_ASSIGNMENTS = "/roleManagement/directory/roleAssignments";
+    private final Object roleAssignmentIndexLock = new Object();
+    private RoleAssignmentIndex roleAssignmentIndex;
+    private CompletableFuture<RoleAssignmentIndex> roleAssignmentIndexLoading;
     //private final long MAX_THROTTLING_REPLY_TIME = TimeUnit.SECONDS.toMillis(10);
 
     private final long SKEW = TimeUnit.MINUTES.toMillis(5);
@@ -80,12 +132,16 @@ public class GraphEndpoint {
 
     GraphEndpoint(MSGraphConfiguration configuration, boolean validateWithCustomAndDefaultTrust) {
         this.configuration = configuration;
+        this.apiUrl = parseApiUrl(configuration == null ? null : configuration.getApiUrl());
         this.uriBuilder = createURIBuilder();
         this.validateWithCustomAndDefaultTrust = validateWithCustomAndDefaultTrust;
+        this.payloadLog = createPayloadLog(configuration == null ? new MSGraphConfiguration() : configuration);
+        this.attributeValueCache = createAttributeValueCache(configuration == null ? new MSGraphConfiguration() : configuration);
 
         authenticate();
         initSchema();
         initHttpClient();
+        initMetrics();
     }
 
 
@@ -97,30 +153,20 @@ public class GraphEndpoint {
         return schemaTranslator;
     }
 
+    /**
+     * Acquires the access token and starts its renewal in the background, ahead of the expiration.
+     */
     protected void authenticate() {
+        tokenRefresher = new TokenRefresher<>(this::acquireToken, result -> result.getExpiresOnDate().getTime(), SKEW);
+        tokenRefresher.start();
+    }
+
+    private AuthenticationResult acquireToken() {
         AuthenticationResult result = null;
-        ExecutorService service = null;
         LOG.ok("Processing through authenticate method");
 
         try {
-            service = Executors.newFixedThreadPool(1);
-
-            LOG.ok("Loading authentication context");
-
-            AuthenticationContext context = new AuthenticationContext(AUTHORITY + configuration.getTenantId()
-                    + "/oauth2/authorize", false, service);
-
-            if(getConfiguration().isValidateWithFailoverTrust() || validateWithCustomAndDefaultTrust){
-
-                context.setSslSocketFactory(createCustomSSLSocketFactory());
-            }
-
-
-            if (configuration.hasProxy()) {
-
-                LOG.info("Authenticating through proxy[{0}]", configuration.getProxyAddress());
-                context.setProxy(createProxy());
-            }
+            AuthenticationContext context = getAuthenticationContext();
             Future<AuthenticationResult> future;
             if (configuration.isCertificateBasedAuthentication()) {
 
@@ -135,7 +181,7 @@ public class GraphEndpoint {
                 }
 
                 AsymmetricKeyCredential asymmetricKeyCredential = AsymmetricKeyCredential.create(configuration.getClientId(), privateKey, certificate);
-                future = context.acquireToken(RESOURCE, asymmetricKeyCredential, null);
+                future = context.acquireToken(getResource(), asymmetricKeyCredential, null);
             } else {
                 GuardedString clientSecret = configuration.getClientSecret();
                 GuardedStringAccessor accessorSecret = new GuardedStringAccessor();
@@ -143,7 +189,7 @@ public class GraphEndpoint {
                 ClientCredential credential = new ClientCredential(configuration.getClientId(), accessorSecret.getClearString());
 
                 LOG.ok("About to acquire security token from the authority");
-                future = context.acquireToken(RESOURCE, credential, null);
+                future = context.acquireToken(getResource(), credential, null);
             }
             LOG.ok("Fetching authentication result");
 
@@ -164,15 +210,44 @@ public class GraphEndpoint {
             throw new ConnectionFailedException("Exception while authenticating to the service provider: "+ e.getLocalizedMessage());
         } catch (IOException e) {
             LOG.error(e, e.toString());
-        } finally {
-            service.shutdown();
         }
 
         if (result == null) {
             throw new ConnectionFailedException("Failed to authenticate");
         }
 
-        this.authenticateResult = result;
+        return result;
+    }
+
+    /**
+     * The authentication context and its executor are created once and reused by all renewals of the token.
+     */
+    private synchronized AuthenticationContext getAuthenticationContext() throws IOException, GeneralSecurityException {
+        if (authenticationContext == null) {
+            LOG.ok("Loading authentication context");
+
+            authenticationExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "msgraph-authentication");
+                thread.setDaemon(true);
+                return thread;
+            });
+            AuthenticationContext context = new AuthenticationContext(getAuthority() + "/" + configuration.getTenantId()
+                    + "/oauth2/authorize", false, authenticationExecutor);
+
+            if(getConfiguration().isValidateWithFailoverTrust() || validateWithCustomAndDefaultTrust){
+
+                context.setSslSocketFactory(createCustomSSLSocketFactory());
+            }
+
+
+            if (configuration.hasProxy()) {
+
+                LOG.info("Authenticating through proxy[{0}]", configuration.getProxyAddress());
+                context.setProxy(createProxy());
+            }
+            authenticationContext = context;
+        }
+        return authenticationContext;
     }
 
 
@@ -229,7 +304,12 @@ public class GraphEndpoint {
         clientBuilder.setServiceUnavailableRetryStrategy(new ServiceUnavailableRetryStrategy() {
             @Override
             public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
-                return executionCount <= 7 && response.getStatusLine().getStatusCode() >= 500 && response.getStatusLine().getStatusCode() < 600;
+                boolean retry = executionCount <= 7 && response.getStatusLine().getStatusCode() >= 500 && response.getStatusLine().getStatusCode() < 600;
+                Object routeMetrics = context.getAttribute(ROUTE_METRICS);
+                if (retry && routeMetrics instanceof RequestMetrics.RouteMetrics) {
+                    ((RequestMetrics.RouteMetrics) routeMetrics).retried(response.getStatusLine().getStatusCode(), getRetryInterval());
+                }
+                return retry;
             }
 
             @Override
@@ -244,30 +324,239 @@ public class GraphEndpoint {
             );
         }
 
+        // The connection manager owns the socket factories, an SSL socket factory set directly on the builder would be ignored
+        SSLConnectionSocketFactory sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
         if(configuration.isValidateWithFailoverTrust()){
 
-        clientBuilder.setSSLSocketFactory(new SSLConnectionSocketFactory(createCustomSSLSocketFactory(),
+        sslSocketFactory = new SSLConnectionSocketFactory(createCustomSSLSocketFactory(),
                 new HostnameVerifier() {
                     @Override
                     public boolean verify(String hostname, SSLSession session) {
                         return hostname!=null ? hostname.equals(session.getPeerHost()) : false;
                     }
-                }));
+                });
+        }
+
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslSocketFactory)
+                .build();
+
+        connectionManager = new MonitoredConnectionManager(socketFactoryRegistry);
+        connectionManager.setMaxTotal(configuration.getMaxConnectionsTotal());
+        connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+        connectionManager.setValidateAfterInactivity(configuration.getConnectionValidateAfterInactivity());
+        LOG.ok("Initialized connection pool, max total: {0}, max per route: {1}",
+                configuration.getMaxConnectionsTotal(), configuration.getMaxConnectionsPerRoute());
+
+        clientBuilder.setConnectionManager(connectionManager);
+        clientBuilder.evictExpiredConnections();
+        if (configuration.getConnectionIdleTimeout() > 0) {
+            clientBuilder.evictIdleConnections(configuration.getConnectionIdleTimeout(), TimeUnit.SECONDS);
         }
 
+        final long keepAlive = TimeUnit.SECONDS.toMillis(configuration.getConnectionKeepAlive());
+        clientBuilder.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                // Honour a shorter timeout announced by the server in the 'Keep-Alive' header
+                long announced = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                if (keepAlive <= 0) {
+                    return announced;
+                }
+                return announced > 0 ? Math.min(announced, keepAlive) : keepAlive;
+            }
+        });
+
         httpClient = clientBuilder.build();
+        if (configuration.isAdaptiveRateLimiting()) {
+            rateLimiter = new AdaptiveRateLimiter();
+        }
+    }
+
+    /**
+     * Registers the request metrics as an MBean and starts their periodic export, when configured.
+     */
+    private void initMetrics() {
+        if (configuration == null) {
+            return;
+        }
+
+        // An invalid exporter fails the creation of the endpoint before anything is registered
+        if (StringUtil.isNotBlank(configuration.getMetricsExporter())) {
+            metricsExporter = createMetricsExporter(configuration.getMetricsExporter().trim());
+            final int interval = configuration.getMetricsExportInterval() == null ? 0 : configuration.getMetricsExportInterval();
+            if (interval > 0) {
+                metricsExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "msgraph-metrics-export");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                metricsExecutor.scheduleAtFixedRate(this::exportMetrics, interval, interval, TimeUnit.SECONDS);
+            }
+        }
+
+        if (configuration.isMetricsJmx()) {
+            try {
+                metricsName = new ObjectName(METRICS_DOMAIN + ":type=RequestMetrics,tenant="
+                        + ObjectName.quote(String.valueOf(configuration.getTenantId())) + ",id=" + METRICS_IDS.incrementAndGet());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+                LOG.info("Request metrics registered as MBean {0}", metricsName);
+            } catch (JMException e) {
+                LOG.warn(e, "Request metrics could not be registered as an MBean");
+                metricsName = null;
+            }
+        }
+    }
+
+    private static MetricsExporter createMetricsExporter(String className) {
+        try {
+            Class<?> exporterClass;
+            try {
+                exporterClass = Class.forName(className, true, GraphEndpoint.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                // The exporter may be provided by the application hosting the connector
+                exporterClass = Class.forName(className, true, Thread.currentThread().getContextClassLoader());
+            }
+            if (!MetricsExporter.class.isAssignableFrom(exporterClass)) {
+                throw new ConfigurationException("The metrics exporter " + className + " does not implement "
+                        + MetricsExporter.class.getName());
+            }
+            return (MetricsExporter) exporterClass.getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new ConfigurationException("The metrics exporter " + className + " could not be created: " + e, e);
+        }
+    }
+
+    private void exportMetrics() {
+        try {
+            metricsExporter.export(configuration.getTenantId(), metrics.getRoutes());
+        } catch (RuntimeException e) {
+            // The next export is attempted anyway
+            LOG.warn(e, "Export of the request metrics failed");
+        }
+    }
+
+    private void closeMetrics() {
+        LOG.info("Request statistics: {0}", metrics.getStatistics());
+        synchronized (this) {
+            if (metricsExecutor != null) {
+                metricsExecutor.shutdownNow();
+                metricsExecutor = null;
+            }
+        }
+        if (metricsExporter != null) {
+            exportMetrics();
+            metricsExporter.close();
+            metricsExporter = null;
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                LOG.warn(e, "Request metrics MBean {0} could not be unregistered", metricsName);
+            }
+            metricsName = null;
+        }
+    }
+
+    private static PayloadLog createPayloadLog(MSGraphConfiguration configuration) {
+        Integer sampling = configuration.getPayloadLogSampling();
+        Integer maxLength = configuration.getPayloadLogMaxLength();
+        return new PayloadLog(sampling == null ? 0 : sampling, maxLength == null ? 0 : maxLength);
+    }
+
+    /**
+     * Guard of the payloads written to the log, shared by the processing of all object classes.
+     */
+    public PayloadLog getPayloadLog() {
+        return payloadLog;
+    }
+
+    private static AttributeValueCache createAttributeValueCache(MSGraphConfiguration configuration) {
+        Integer ttl = configuration.getAttributeValueCacheTtl();
+        return new AttributeValueCache(ttl == null ? 0 : TimeUnit.SECONDS.toMillis(ttl), ATTRIBUTE_VALUE_CACHE_SIZE);
+    }
+
+    /**
+     * Values of the multi-valued attributes recently read, see {@link MSGraphConfiguration#getAttributeValueCacheTtl()}.
+     */
+    public AttributeValueCache getAttributeValueCache() {
+        return attributeValueCache;
+    }
+
+    /**
+     * Metrics of the requests sent by the endpoint.
+     */
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Lease and wait statistics of the HTTP connection pool, null if the pool was not initialized.
+     */
+    public String getConnectionPoolStatistics() {
+        return connectionManager == null ? null : connectionManager.getStatistics();
     }
 
     private AuthenticationResult getAccessToken() {
-        if (authenticateResult.getExpiresOnDate().getTime() - SKEW < new Date().getTime()) {
-            // Expired, re-authenticate
-            authenticate();
+        return tokenRefresher.get();
+    }
+
+    /**
+     * Value of the "Authorization" header of the requests.
+     */
+    protected String getAuthorization() {
+        return getAccessToken().getAccessToken();
+    }
+
+    /**
+     * Statistics of the access token renewals, null when the endpoint does not authenticate.
+     */
+    public String getTokenRefreshStatistics() {
+        return tokenRefresher == null ? null : tokenRefresher.getStatistics();
+    }
+
+    private static URI parseApiUrl(String apiUrl) {
+        String url = apiUrl == null ? MSGraphConfiguration.DEFAULT_API_URL : apiUrl.trim();
+        while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+        }
+        try {
+            return new URI(url);
+        } catch (URISyntaxException e) {
+            throw new ConfigurationException("The Graph API URL is not a valid URL: " + apiUrl, e);
+        }
+    }
+
+    // Authority of the cloud of the tenant, e.g. https://login.microsoftonline.com, without the trailing slash
+    private String getAuthority() {
+        String url = configuration.getAuthorityUrl() == null
+                ? MSGraphConfiguration.DEFAULT_AUTHORITY_URL : configuration.getAuthorityUrl().trim();
+        while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
         }
-        return authenticateResult;
+        return url;
+    }
+
+    // The token is issued for the host of the API, e.g. https://graph.microsoft.com
+    private String getResource() {
+        return apiUrl.getScheme() + "://" + apiUrl.getRawAuthority();
     }
 
+    /**
+     * Base URL of the API, e.g. https://graph.microsoft.com/v1.0, for the references to the directory objects.
+     */
+    public String getApiUrl() {
+        return apiUrl.toString();
+    }
+
+    /**
+     * The builder of the URIs of the API, the path set to the builder is relative to the API URL.
+     */
     public URIBuilder createURIBuilder() {
-        return new URIBuilder().setScheme("https").setHost(API_ENDPOINT);
+        // The path of the API URL is a part of the "host", so that setPath() sets the path below it
+        return new URIBuilder().setScheme(apiUrl.getScheme()).setHost(apiUrl.getRawAuthority() + apiUrl.getRawPath());
     }
 
     public URI getUri(URIBuilder uriBuilder) {
@@ -329,7 +618,20 @@ public class GraphEndpoint {
         if (request == null) {
             throw new InvalidAttributeValueException("Request not provided");
         }
-        request.setHeader("Authorization", getAccessToken().getAccessToken());
+        RequestLog summary = new RequestLog(request.getMethod());
+        try {
+            return executeRequest(request, summary);
+        } finally {
+            summary.log();
+        }
+    }
+
+    /**
+     * Executes the request, retrying it when throttled. The route, the final status and the retries are recorded
+     * in the summary, which is logged by the caller.
+     */
+    private CloseableHttpResponse executeRequest(HttpUriRequest request, RequestLog summary) {
+        request.setHeader("Authorization", getAuthorization());
         if (request.getURI().toString().contains("photo")) {
             request.setHeader("Content-Type", "image/jpg");
         }
@@ -340,43 +642,41 @@ public class GraphEndpoint {
         request.setHeader("ConsistencyLevel", "eventual");
         LOG.ok("Request execution -> HttpUriRequest: {0}", request);
         CloseableHttpResponse response;
+        // The retry state belongs to the request, the endpoint is shared by concurrently executed requests
         int retryCount = 0;
+        final String route = RequestMetrics.getRoute(request.getURI().getRawPath(), apiUrl.getRawPath());
+        final RequestMetrics.RouteMetrics routeMetrics = metrics.getRouteMetrics(request.getMethod(), route);
+        summary.setRoute(route);
         try {
-            response = httpClient.execute(request);
-            LOG.info("response {0}", response);
-            throttling = false;
-            processResponseErrors(response);
-            while (throttling) {
-                throttling = false;
+            response = execute(request, routeMetrics);
+            summary.setStatus(response.getStatusLine().getStatusCode());
+            if (LOG.isOk() && connectionManager != null) {
+                LOG.ok("Connection pool statistics: {0}", connectionManager.getStatistics());
+            }
+            while (processResponseErrors(response)) {
                 LOG.ok("Current retry count: {0}", retryCount);
                 if (retryCount >= configuration.getThrottlingRetryCount()) {
-
+                    response.close();
                     throw new ConnectorException("Max retry count for request throttling exceeded! Request was not successful");
                 }
                 retryCount++;
-                Header[] callHeaders = response.getAllHeaders();
-                if (callHeaders != null) {
-                    for (Header header : callHeaders) {
-                        if (header.getName().equals("Retry-After")) {
-                            String tmpRaHeadValue = header.getValue();
-                            if (tmpRaHeadValue != null || !tmpRaHeadValue.isEmpty()) {
-                                long retryAfter = (long) (Float.parseFloat(tmpRaHeadValue) * 1000);
-                                long maxWail = (long) (Float.parseFloat(configuration.getThrottlingRetryWait()) * 1000);
-                                LOG.ok("Max retry time in ms: {0}", maxWail);
-                                LOG.ok("Returned retry time in ms: {0}", retryAfter);
-                                if (retryAfter > maxWail) {
-
-                                    throw new ConnectorException("Max time for request throttling exceeded! Request was not successful");
-                                }
-                                Thread.sleep(retryAfter);
-                                LOG.ok("Throttling retry");
-
-                                response = httpClient.execute(request);
-                                processResponseErrors(response);
-                            }
-                        }
-                    }
+                summary.setRetries(retryCount);
+
+                long retryAfter = getRetryAfter(response);
+                long maxWail = (long) (Float.parseFloat(configuration.getThrottlingRetryWait()) * 1000);
+                LOG.ok("Max retry time in ms: {0}", maxWail);
+                LOG.ok("Returned retry time in ms: {0}", retryAfter);
+                if (retryAfter > maxWail) {
+                    response.close();
+                    throw new ConnectorException("Max time for request throttling exceeded! Request was not successful");
                 }
+                response.close();
+                routeMetrics.waited(retryAfter);
+                Thread.sleep(retryAfter);
+                LOG.ok("Throttling retry");
+
+                response = execute(request, routeMetrics);
+                summary.setStatus(response.getStatusLine().getStatusCode());
             }
 
             return response;
@@ -396,13 +696,117 @@ public class GraphEndpoint {
     }
 
 
-    public void processResponseErrors(CloseableHttpResponse response) {
+    /**
+     * Sends the request through the rate limiter, when enabled, and lets the limiter learn from the response.
+     * The response and the retries of the HTTP client are recorded in the metrics of the route.
+     */
+    private CloseableHttpResponse execute(HttpUriRequest request, RequestMetrics.RouteMetrics routeMetrics)
+            throws IOException, InterruptedException {
+        final String resource = AdaptiveRateLimiter.getResource(request.getURI().getPath());
+        if (rateLimiter != null) {
+            rateLimiter.acquire(resource);
+        }
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(ROUTE_METRICS, routeMetrics);
+        final long start = System.nanoTime();
+        CloseableHttpResponse response;
+        try {
+            response = httpClient.execute(request, context);
+        } catch (IOException e) {
+            routeMetrics.failed(System.nanoTime() - start);
+            throw e;
+        }
+        final int statusCode = response.getStatusLine().getStatusCode();
+        routeMetrics.responded(statusCode, System.nanoTime() - start, getContentLength(request));
+        if (statusCode == 429) {
+            routeMetrics.throttled();
+        }
+        response.setEntity(routeMetrics.countReceived(response.getEntity()));
+
+        if (rateLimiter == null) {
+            return response;
+        }
+        if (statusCode == 429) {
+            rateLimiter.throttled(resource, getRetryAfter(response));
+        } else {
+            rateLimiter.succeeded(resource, getLimitPercentage(response));
+        }
+        return response;
+    }
+
+    private static long getContentLength(HttpUriRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null ? 0 : entity.getContentLength();
+        }
+        return 0;
+    }
+
+    /**
+     * Value of the "x-ms-throttle-limit-percentage" header, null when missing or not a number.
+     */
+    private static Double getLimitPercentage(HttpResponse response) {
+        Header limitPercentage = response.getFirstHeader("x-ms-throttle-limit-percentage");
+        if (limitPercentage == null || StringUtil.isBlank(limitPercentage.getValue())) {
+            return null;
+        }
+        try {
+            return Double.valueOf(limitPercentage.getValue().trim());
+        } catch (NumberFormatException e) {
+            LOG.ok("Ignoring invalid x-ms-throttle-limit-percentage header: {0}", limitPercentage.getValue());
+            return null;
+        }
+    }
+
+    /**
+     * Value of the "Retry-After" header of a throttled response in milliseconds, one second when missing.
+     */
+    private static long getRetryAfter(HttpResponse response) {
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        return parseRetryAfter(retryAfter == null ? null : retryAfter.getValue());
+    }
+
+    /**
+     * Parses the "Retry-After" header, either the delay in seconds or the HTTP-date to retry after, in milliseconds.
+     * One second when missing or not valid.
+     */
+    static long parseRetryAfter(String value) {
+        if (StringUtil.isBlank(value)) {
+            return TimeUnit.SECONDS.toMillis(1);
+        }
+        try {
+            return Math.max(0, (long) (Float.parseFloat(value.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            // Not seconds, may be the HTTP-date
+        }
+        Date date = DateUtils.parseDate(value.trim());
+        if (date == null) {
+            LOG.ok("Ignoring invalid Retry-After header: {0}, retrying after one second", value);
+            return TimeUnit.SECONDS.toMillis(1);
+        }
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+
+    /**
+     * Statistics of the rate limiter, null when the adaptive rate limiting is disabled.
+     */
+    public String getRateLimiterStatistics() {
+        return rateLimiter == null ? null : rateLimiter.getStatistics();
+    }
+
+    /**
+     * Throws the exception corresponding to the error status of the response.
+     *
+     * @return true when the request was throttled and should be retried
+     */
+    public boolean processResponseErrors(CloseableHttpResponse response) {
         if (response == null) {
             throw new InvalidAttributeValueException("Response not provided ");
         }
         int statusCode = response.getStatusLine().getStatusCode();
         if (statusCode >= 200 && statusCode <= 299) {
-            return;
+            return false;
         }
         /*if (statusCode == 404) {
             //throw new UnknownUidException(message);
@@ -418,59 +822,241 @@ public class GraphEndpoint {
         String message = "HTTP error " + statusCode + " " + response.getStatusLine().getReasonPhrase() + " : "
                 + responseBody;
         //LOG.error("{0}", message);
+        if ((statusCode == 404 || statusCode == 410) && message.contains("ImageNotFound")) {
+            return false;
+        }
+        if (statusCode == 429) {
+            LOG.warn("Request returned with status code 429 which means an api call limit was reached.");
+            return true;
+        }
+
+        throw createResponseException(statusCode, message);
+    }
+
+    private RuntimeException createResponseException(int statusCode, String message) {
         if (statusCode == 400 && message.contains("The client credentials are invalid")) {
-            throw new InvalidCredentialException(message);
+            return new InvalidCredentialException(message);
         }
         if (statusCode == 400 && message.contains("Another object with the same value for property userPrincipalName already exists.")) {
-            throw new AlreadyExistsException(message);
+            return new AlreadyExistsException(message);
         }
 
         if ((statusCode == 400 || statusCode == 404) && message.contains("Property netId is invalid") && this.configuration.getTreatNetIdAsAlreadyExists()){
             LOG.info("Treating 'Property netId is invalid' as alreadyExists");
-            throw new AlreadyExistsException(message);
+            return new AlreadyExistsException(message);
         }
         if (statusCode == 400 && message.contains("The specified password does not comply with password complexity requirements.")) {
-            throw new InvalidPasswordException(message);
+            return new InvalidPasswordException(message);
         }
         if (statusCode == 400 && message.contains("Invalid object identifier")) {
-            throw new UnknownUidException(message);
+            return new UnknownUidException(message);
         }
         if (statusCode == 400 || statusCode == 405 || statusCode == 406) {
-            throw new InvalidAttributeValueException(message);
+            return new InvalidAttributeValueException(message);
         }
         if (statusCode == 401 && message.contains("Access token has expired")) {
-            throw new ConnectionFailedException(message);
+            return new ConnectionFailedException(message);
         }
         if (statusCode == 401 || statusCode == 402 || statusCode == 403 || statusCode == 407) {
-            throw new PermissionDeniedException(message);
+            return new PermissionDeniedException(message);
         }
         if (statusCode == 404 || statusCode == 410) {
-            if (message.contains("ImageNotFound"))
-                return;
-            else {
-                LOG.info("Status code 404 or 410 caught in processResponseErrors {0}", message);
-                throw new UnknownUidException(message);
-            }
+            LOG.info("Status code 404 or 410 caught in processResponseErrors {0}", message);
+            return new UnknownUidException(message);
         }
         if (statusCode == 408) {
-            throw new OperationTimeoutException(message);
+            return new OperationTimeoutException(message);
         }
         if (statusCode == 409) {
-            throw new AlreadyExistsException(message);
+            return new AlreadyExistsException(message);
         }
         if (statusCode == 412) {
-            throw new PreconditionFailedException(message);
+            return new PreconditionFailedException(message);
         }
         if (statusCode == 418) {
-            throw new UnsupportedOperationException("Sorry, no cofee: " + message);
+            return new UnsupportedOperationException("Sorry, no cofee: " + message);
         }
-        if (statusCode == 429) {
-            LOG.warn("Request returned with status code 429 which means an api call limit was reached.");
-            throttling = true;
-            return;
+
+        return new ConnectorException(message);
+    }
+
+    /**
+     * Creates a sub-request of a JSON batch. The id of the sub-request is assigned by {@link #executeBatchRequest(List)}.
+     *
+     * @param method HTTP method of the sub-request
+     * @param path   path relative to the API version, e.g. "/groups/{id}/members/$ref"
+     * @param body   JSON body of the sub-request, null if the request has no body
+     */
+    public static JSONObject createBatchRequest(String method, String path, JSONObject body) {
+        JSONObject request = new JSONObject();
+        request.put("method", method);
+        request.put("url", path);
+        if (body != null) {
+            request.put("body", body);
+            request.put("headers", new JSONObject().put("Content-Type", "application/json"));
+        }
+        return request;
+    }
+
+    /**
+     * Creates a sub-request of a JSON batch with a binary body, e.g. a photo. The body is passed Base64 encoded
+     * as the JSON batching requires for the content types other than JSON.
+     *
+     * @param method      HTTP method of the sub-request
+     * @param path        path relative to the API version, e.g. "/users/{id}/photo/$value"
+     * @param body        body of the sub-request
+     * @param contentType content type of the body, e.g. "image/jpeg"
+     */
+    public static JSONObject createBatchRequest(String method, String path, byte[] body, String contentType) {
+        JSONObject request = new JSONObject();
+        request.put("method", method);
+        request.put("url", path);
+        request.put("body", Base64.encodeBase64String(body));
+        request.put("headers", new JSONObject().put("Content-Type", contentType));
+        return request;
+    }
+
+    /**
+     * Executes the requests through the JSON batching endpoint, at most {@value #BATCH_REQUEST_LIMIT} sub-requests per
+     * HTTP round trip. Sub-requests rejected with 429 are retried in line with the throttling configuration.
+     * A failure of a sub-request is not turned into an exception here, see {@link #processBatchResponseErrors(List, List)}.
+     *
+     * @param requests sub-requests created by {@link #createBatchRequest(String, String, JSONObject)}
+     * @return sub-responses in the order of the requests
+     */
+    protected List<JSONObject> executeBatchRequest(List<JSONObject> requests) {
+        final JSONObject[] responses = new JSONObject[requests.size()];
+        for (int i = 0; i < requests.size(); i++) {
+            requests.get(i).put("id", String.valueOf(i));
         }
 
-        throw new ConnectorException(message);
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            pending.add(i);
+        }
+
+        int retryCount = 0;
+        while (!pending.isEmpty()) {
+            List<Integer> throttled = new ArrayList<>();
+            long retryAfter = 0;
+
+            for (int from = 0; from < pending.size(); from += BATCH_REQUEST_LIMIT) {
+                List<Integer> chunk = pending.subList(from, Math.min(from + BATCH_REQUEST_LIMIT, pending.size()));
+                JSONArray batch = new JSONArray();
+                for (Integer index : chunk) {
+                    batch.put(requests.get(index));
+                    responses[index] = null;
+                }
+
+                final URI uri = getUri(createURIBuilder().setPath(BATCH));
+                LOG.ok("Executing batch of {0} requests", chunk.size());
+                JSONObject batchResponse = callRequest(new HttpPost(uri), new JSONObject().put("requests", batch), true);
+
+                JSONArray subResponses = batchResponse.has("responses") ? batchResponse.getJSONArray("responses") : new JSONArray();
+                for (int i = 0; i < subResponses.length(); i++) {
+                    JSONObject subResponse = subResponses.getJSONObject(i);
+                    int index = Integer.parseInt(subResponse.getString("id"));
+                    responses[index] = subResponse;
+
+                    if (subResponse.getInt("status") == 429) {
+                        JSONObject request = requests.get(index);
+                        metrics.getRouteMetrics(request.getString("method"),
+                                RequestMetrics.getRoute(request.getString("url").split("\\?")[0], null)).throttled();
+                        throttled.add(index);
+                        retryAfter = Math.max(retryAfter, getBatchRetryAfter(subResponse));
+                    }
+                }
+            }
+
+            if (throttled.isEmpty()) {
+                break;
+            }
+            if (rateLimiter != null) {
+                rateLimiter.throttled(AdaptiveRateLimiter.getResource(BATCH), retryAfter);
+            }
+
+            long maxWait = (long) (Float.parseFloat(configuration.getThrottlingRetryWait()) * 1000);
+            if (retryCount >= configuration.getThrottlingRetryCount() || retryAfter > maxWait) {
+                LOG.warn("Throttling limits exceeded, {0} batch sub-requests were not successful", throttled.size());
+                break;
+            }
+            retryCount++;
+            LOG.ok("{0} batch sub-requests throttled, retry {1} in {2} ms", throttled.size(), retryCount, retryAfter);
+            metrics.getRouteMetrics(HttpPost.METHOD_NAME, BATCH).waited(retryAfter);
+            try {
+                Thread.sleep(retryAfter);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConnectorException("Interrupted while waiting for throttled batch requests", e);
+            }
+            pending = throttled;
+        }
+
+        List<JSONObject> result = new ArrayList<>(responses.length);
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i] == null) {
+                JSONObject missing = new JSONObject().put("id", String.valueOf(i)).put("status", 500)
+                        .put("body", new JSONObject().put("error", new JSONObject().put("message", "No response returned for the batch request")));
+                result.add(missing);
+            } else {
+                result.add(responses[i]);
+            }
+        }
+        return result;
+    }
+
+    private long getBatchRetryAfter(JSONObject response) {
+        if (response.has("headers")) {
+            JSONObject headers = response.getJSONObject("headers");
+            for (String name : headers.keySet()) {
+                if (name.equalsIgnoreCase("Retry-After")) {
+                    return parseRetryAfter(headers.get(name).toString());
+                }
+            }
+        }
+        return TimeUnit.SECONDS.toMillis(1);
+    }
+
+    public static boolean isBatchResponseSuccessful(JSONObject response) {
+        int status = response.getInt("status");
+        return status >= 200 && status <= 299;
+    }
+
+    /**
+     * Goes through all sub-responses of a batch and throws one exception describing every failed sub-request.
+     * The type of the exception is derived from the first failure, in the same way as for a single request.
+     *
+     * @param requests  sub-requests passed to {@link #executeBatchRequest(List)}
+     * @param responses sub-responses in the order of the requests
+     */
+    public void processBatchResponseErrors(List<JSONObject> requests, List<JSONObject> responses) {
+        StringBuilder messages = new StringBuilder();
+        int firstStatus = 0;
+        int failed = 0;
+
+        for (int i = 0; i < responses.size(); i++) {
+            JSONObject response = responses.get(i);
+            if (isBatchResponseSuccessful(response)) {
+                continue;
+            }
+            JSONObject request = requests.get(i);
+            int status = response.getInt("status");
+            String message = "HTTP error " + status + " " + request.getString("method") + " " + request.getString("url")
+                    + " : " + (response.has("body") ? response.get("body") : "");
+            LOG.error("Batch request failed: {0}", message);
+
+            if (failed == 0) {
+                firstStatus = status;
+            } else {
+                messages.append("; ");
+            }
+            messages.append(message);
+            failed++;
+        }
+
+        if (failed > 0) {
+            throw createResponseException(firstStatus, failed + " batch request(s) failed: " + messages);
+        }
     }
 
 
@@ -486,7 +1072,9 @@ public class GraphEndpoint {
             LOG.ok("URL in request: {0}", request.getRequestLine().getUri());
             LOG.ok("Enumerating headers");
             for (Header header : request.getAllHeaders()) {
-                LOG.info("Headers.. name,value:{0},{1}", header.getName(), header.getValue());
+                // The value of the access token is not logged
+                LOG.ok("Headers.. name,value:{0},{1}", header.getName(),
+                        "Authorization".equalsIgnoreCase(header.getName()) ? "***" : header.getValue());
             }
         }
         if (request.getURI().toString().contains("photo")){
@@ -503,12 +1091,13 @@ public class GraphEndpoint {
                 return null;
             }
 
-             LOG.ok("Response before evaluation: {0}", response.getEntity());
-
             result = EntityUtils.toString(response.getEntity());
             if (!parseResult) {
                 return null;
             }
+            if (payloadLog.sample(LOG)) {
+                LOG.ok("Response of {0}: {1}", request.getURI(), payloadLog.format(result));
+            }
             return new JSONObject(result);
         } catch (IOException e) {
             throw new ConnectorIOException();
@@ -534,8 +1123,10 @@ public class GraphEndpoint {
     }
 
     public JSONObject callRequest(HttpEntityEnclosingRequestBase request, JSONObject json, Boolean parseResult) {
-        LOG.info("request URI: {0}", request.getURI());
-        LOG.info("json {0}", json);
+        LOG.ok("request URI: {0}", request.getURI());
+        if (payloadLog.sample(LOG)) {
+            LOG.ok("json {0}", payloadLog.format(json));
+        }
 
         HttpEntity entity;
         byte[] jsonByte;
@@ -550,10 +1141,8 @@ public class GraphEndpoint {
         entity = new ByteArrayEntity(jsonByte);
 
         request.setEntity(entity);
-        LOG.info("request {0}", request);
         // execute request
         CloseableHttpResponse response = executeRequest(request);
-        LOG.info("response: {0}", response);
 
         processResponseErrors(response);
         int statusCode = response.getStatusLine().getStatusCode();
@@ -562,7 +1151,7 @@ public class GraphEndpoint {
         } else if (statusCode == 204) {
             LOG.ok("204 - no content");
         } else {
-            LOG.info("statuscode - {0}", statusCode);
+            LOG.ok("statuscode - {0}", statusCode);
         }
 
 
@@ -577,7 +1166,9 @@ public class GraphEndpoint {
             byte[] byteResult = EntityUtils.toByteArray(responseEntity);
             String result = new String(byteResult, "ISO-8859-2");
             responseClose(response);
-            LOG.info("result: {0}", result);
+            if (payloadLog.sample(LOG)) {
+                LOG.ok("result: {0}", payloadLog.format(result));
+            }
             return new JSONObject(result);
         } catch (IOException e) {
             StringBuilder sb = new StringBuilder();
@@ -600,7 +1191,7 @@ public class GraphEndpoint {
     }
 
     protected JSONObject executeGetRequest(String path, String customQuery, OperationOptions options) {
-        LOG.info("executeGetRequest path {0}, customQuery {1}, options: {2}", path, customQuery, options);
+        LOG.ok("executeGetRequest path {0}, customQuery {1}, options: {2}", path, customQuery, options);
         final URIBuilder uribuilder = createURIBuilder().setPath(path);
 
         if (customQuery != null) {
@@ -610,7 +1201,7 @@ public class GraphEndpoint {
 
         try {
             URI uri = uribuilder.build();
-            LOG.info("uri {0}", uri);
+            LOG.ok("uri {0}", uri);
             HttpRequestBase request = new HttpGet(uri);
             return callRequest(request, true);
 
@@ -635,7 +1226,12 @@ public class GraphEndpoint {
     // If the resource indicated by the "path" argument does not support paging, the "paging" argument must be false
     protected void executeListRequest(String path, String customQuery, OperationOptions options,
                                       boolean paging, ObjectProcessing.JSONObjectHandler handler) {
-        LOG.info("executeGetRequest path {0}, customQuery {1}, options: {2}", path, customQuery, options);
+        LOG.ok("executeListRequest path {0}, customQuery {1}, options: {2}", path, customQuery, options);
+        executeListRequest(getListUri(path, customQuery, paging), options, handler);
+    }
+
+    // URI of the first page of the list, with the page size when paging
+    private URI getListUri(String path, String customQuery, boolean paging) {
         final URIBuilder uribuilder = createURIBuilder().setPath(path);
 
         StringBuilder query = new StringBuilder();
@@ -660,43 +1256,253 @@ public class GraphEndpoint {
             LOG.ok("setCustomQuery {0}", uribuilder);
         }
 
-        URI uri;
         try {
-            uri = uribuilder.build();
+            return uribuilder.build();
         } catch (URISyntaxException e) {
             StringBuilder sb = new StringBuilder();
             sb.append("It was not possible create URI from UriBuilder:").append(uriBuilder).append(";")
                     .append(e.getLocalizedMessage());
             throw new ConnectorException(sb.toString(), e);
         }
+    }
+
+    // Continues a list request with the remaining pages, starting with the page referenced by "@odata.nextLink"
+    protected void continueListRequest(String nextLink, OperationOptions options, ObjectProcessing.JSONObjectHandler handler) {
+        LOG.ok("continueListRequest nextLink {0}", nextLink);
+        executeListRequest(URI.create(nextLink), options, handler);
+    }
+
+    private void executeListRequest(URI uri, OperationOptions options, ObjectProcessing.JSONObjectHandler handler) {
+        Integer prefetchPages = configuration.getPrefetchPages();
+        if (prefetchPages != null && prefetchPages > 0) {
+            executeListRequestPrefetching(uri, options, handler, prefetchPages);
+            return;
+        }
 
         // Handle paging if the response contains @odata.nextLink
         do {
             HttpRequestBase request = new HttpGet(uri);
-            LOG.info("request {0}", request);
+            LOG.ok("request {0}", request);
 
-            final JSONObject response = callRequest(request, true);
+            // The objects are handled as they are read from the response, the page is never held in memory as a whole
+            final JSONObject response = callListRequest(request, object -> handler.handle(options, object));
+            if (response == null) {
+                return;
+            }
 
             if (hasNextLink(response)) {
                 String nextLink = getNextLink(response);
-                LOG.info("nextLink: {0}", nextLink);
+                LOG.ok("nextLink: {0}", nextLink);
                 uri = URI.create(nextLink);
             } else {
-                LOG.info("No nextLink defined, final page");
+                LOG.ok("No nextLink defined, final page");
                 uri = null;
             }
-            if (hasJSONArray(response)) {
-                LOG.info("response: {0} ", response);
-                JSONArray jsonArray = getJSONArray(response);
-                for (int i = 0; i < jsonArray.length(); i++) {
-                    if (!handler.handle(options, jsonArray.getJSONObject(i))) {
-                        return;
+        } while (uri != null);
+    }
+
+    /**
+     * Executes the request of a collection and passes the objects of its "value" array to the consumer
+     * while the response is being read.
+     *
+     * @param consumer returns false to stop reading the response
+     * @return the other properties of the response, e.g. "@odata.nextLink"; null when the consumer stopped reading
+     */
+    protected JSONObject callListRequest(HttpRequestBase request, Predicate<JSONObject> consumer) {
+        // The summary of the request is logged with the number of the objects read from the response and the time
+        // of reading them
+        final RequestLog summary = new RequestLog(request.getMethod());
+        summary.setItems(0);
+        try (CloseableHttpResponse response = executeRequest(request, summary)) {
+            // The objects are processed by the consumer while the response is read, that is not the time of the request
+            summary.responded();
+            processResponseErrors(response);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return new JSONObject();
+            }
+
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            Reader reader = new InputStreamReader(entity.getContent(), charset == null ? StandardCharsets.UTF_8 : charset);
+            JSONObject properties = JsonCollectionReader.read(reader, object -> {
+                summary.countItem();
+                if (payloadLog.sample(LOG)) {
+                    LOG.ok("Object of {0}: {1}", request.getURI(), payloadLog.format(object));
+                }
+                return consumer.test(object);
+            });
+            if (properties != null) {
+                // Release the connection for reuse
+                EntityUtils.consume(entity);
+            }
+            // Otherwise the unread rest of the response is discarded together with the connection by closing the response
+            return properties;
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        } finally {
+            summary.log();
+        }
+    }
+
+    /**
+     * Pages through the list like {@link #executeListRequest(URI, OperationOptions, ObjectProcessing.JSONObjectHandler)},
+     * but the following pages are fetched by a background task while the handler processes the current page.
+     * At most "prefetchPages" pages are fetched ahead of the page being processed. The background task is cancelled
+     * when the handler stops the search or fails, a failure of the background task is rethrown to the caller.
+     */
+    private void executeListRequestPrefetching(URI uri, OperationOptions options,
+                                               ObjectProcessing.JSONObjectHandler handler, int prefetchPages) {
+        final BlockingQueue<Object> pages = new LinkedBlockingQueue<>();
+        final Semaphore lookAhead = new Semaphore(prefetchPages);
+
+        Future<?> fetcher = getRequestExecutor().submit(RequestMetrics.propagate(() -> {
+            URI next = uri;
+            try {
+                while (next != null) {
+                    lookAhead.acquire();
+                    HttpRequestBase request = new HttpGet(next);
+                    LOG.ok("prefetch request {0}", request);
+
+                    JSONObject response = callRequest(request, true);
+                    next = hasNextLink(response) ? URI.create(getNextLink(response)) : null;
+                    pages.put(response);
+                }
+                pages.put(LAST_PAGE);
+            } catch (InterruptedException e) {
+                // Cancelled, nobody waits for the pages anymore
+            } catch (Throwable e) {
+                // Whatever is thrown, the caller waiting for the next page has to be woken up
+                pages.add(e);
+            }
+        }));
+
+        try {
+            while (true) {
+                Object page = pages.take();
+                // The next page may be fetched while this one is processed
+                lookAhead.release();
+                if (page == LAST_PAGE) {
+                    LOG.ok("No nextLink defined, final page");
+                    return;
+                }
+                if (page instanceof Throwable) {
+                    throw rethrow((Throwable) page);
+                }
+
+                JSONObject response = (JSONObject) page;
+                if (hasJSONArray(response)) {
+                    JSONArray jsonArray = getJSONArray(response);
+                    for (int i = 0; i < jsonArray.length(); i++) {
+                        if (!handler.handle(options, jsonArray.getJSONObject(i))) {
+                            return;
+                        }
                     }
+                } else {
+                    LOG.ok("nextLinkJson contained no value object or the object was null");
                 }
-            } else {
-                LOG.info("nextLinkJson contained no value object or the object was null");
             }
-        } while (uri != null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for the next page", e);
+        } finally {
+            fetcher.cancel(true);
+        }
+    }
+
+    /**
+     * Lists the objects of the path for every one of the queries, which are expected to select disjoint parts
+     * of the objects, e.g. ranges of their names. The pages of the queries are requested concurrently, each request
+     * holds one of the permits while it is in flight, so the permits shared with the other tasks of the operation,
+     * e.g. the saturation of the objects, limit the number of all the requests in flight. The pages are read whole,
+     * the connection is released before the objects of the page are queued.
+     * <p>
+     * The objects are passed to the handler by the calling thread in the order in which they arrive, at most
+     * {@value #PARTITIONED_LIST_QUEUE_SIZE} of them wait for it. The listing of all the queries is cancelled
+     * when the handler stops the search or fails, a failure of a query is rethrown.
+     *
+     * @param permits permits of the requests in flight, shared with the other concurrent tasks of the operation
+     */
+    protected void executeListRequestPartitioned(String path, List<String> customQueries, OperationOptions options,
+                                                 ObjectProcessing.JSONObjectHandler handler, Semaphore permits) {
+        final BlockingQueue<Object> objects = new LinkedBlockingQueue<>();
+        final Semaphore queued = new Semaphore(PARTITIONED_LIST_QUEUE_SIZE);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final List<Future<?>> partitions = new ArrayList<>(customQueries.size());
+
+        try {
+            for (String customQuery : customQueries) {
+                final URI first = getListUri(path, customQuery, true);
+                partitions.add(getRequestExecutor().submit(RequestMetrics.propagate(() -> {
+                    try {
+                        URI next = first;
+                        while (next != null && !stopped.get()) {
+                            JSONObject response;
+                            permits.acquire();
+                            try {
+                                response = callRequest(new HttpGet(next), true);
+                            } finally {
+                                permits.release();
+                            }
+                            next = hasNextLink(response) ? URI.create(getNextLink(response)) : null;
+
+                            if (hasJSONArray(response)) {
+                                JSONArray jsonArray = getJSONArray(response);
+                                for (int i = 0; i < jsonArray.length(); i++) {
+                                    // Neither a permit nor a connection is held while waiting for the handler
+                                    queued.acquire();
+                                    objects.add(jsonArray.getJSONObject(i));
+                                }
+                            }
+                        }
+                        objects.add(LAST_PAGE);
+                    } catch (InterruptedException e) {
+                        // Cancelled, nobody waits for the objects anymore
+                    } catch (Throwable e) {
+                        // Whatever is thrown, the caller waiting for the objects has to be woken up
+                        objects.add(e);
+                    }
+                })));
+            }
+
+            int remaining = partitions.size();
+            while (remaining > 0) {
+                Object object = objects.take();
+                if (object == LAST_PAGE) {
+                    remaining--;
+                    LOG.ok("Final page of a partition of {0}, {1} partitions remaining", path, remaining);
+                    continue;
+                }
+                if (object instanceof Throwable) {
+                    throw rethrow((Throwable) object);
+                }
+
+                queued.release();
+                if (!handler.handle(options, (JSONObject) object)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for the objects of the partitions", e);
+        } finally {
+            stopped.set(true);
+            for (Future<?> partition : partitions) {
+                partition.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Failure of a background task to be thrown on the calling thread, the checked exceptions are wrapped.
+     */
+    private static RuntimeException rethrow(Throwable failure) {
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            return (RuntimeException) failure;
+        }
+        return new ConnectorException(failure.getMessage(), failure);
     }
 
     private boolean hasJSONArray(JSONObject object) {
@@ -716,8 +1522,7 @@ public class GraphEndpoint {
     }
 
     protected void callRequestNoContent(HttpEntityEnclosingRequestBase request, Set<Attribute> attributes, JSONObject jsonObject) {
-        LOG.info("Request {0} ", request);
-        LOG.info("Attributes {0} ", attributes);
+        LOG.ok("Request {0} ", request);
 
         if (request == null) {
             throw new InvalidAttributeValueException("Request not provided or empty");
@@ -725,10 +1530,10 @@ public class GraphEndpoint {
 
 
         HttpEntity entity = null;
-        JSONObject json = new JSONObject();
 
-        LOG.info("Translated to JSON");
-        LOG.info("JSON {0}", jsonObject);
+        if (payloadLog.sample(LOG)) {
+            LOG.ok("JSON {0}", payloadLog.format(jsonObject));
+        }
         try {
             entity = new ByteArrayEntity(jsonObject.toString().getBytes("UTF-8"));
         } catch (UnsupportedEncodingException e) {
@@ -737,13 +1542,10 @@ public class GraphEndpoint {
             throw new ConnectorException(sb.toString(), e);
         }
 
-        LOG.info("SetEntity {0} to request", entity);
         request.setEntity(entity);
-        LOG.info("SetEntity  to request");
 
         try (CloseableHttpResponse response = executeRequest(request)) {
             processResponseErrors(response);
-            LOG.info("response {0}", response);
             int statusCode = response.getStatusLine().getStatusCode();
             if (statusCode == 204) {
                 LOG.ok("204 - No content, Update was successful");
@@ -758,8 +1560,7 @@ public class GraphEndpoint {
     }
 
     protected void callRequestNoContentNoJson(HttpEntityEnclosingRequestBase request, List<JSONObject> jsonObjects) {
-        LOG.info("Request {0} ", request);
-        LOG.info("Attributes {0} ", jsonObjects);
+        LOG.ok("Request {0} ", request);
 
         if (request == null) {
             throw new InvalidAttributeValueException("Request not provided or empty");
@@ -775,11 +1576,13 @@ public class GraphEndpoint {
             } catch (UnsupportedEncodingException e) {
                 throw new ConnectorIOException(e);
             }
+            if (payloadLog.sample(LOG)) {
+                LOG.ok("JSON {0}", payloadLog.format(jsonObject));
+            }
             request.setEntity(entity);
 
             try (CloseableHttpResponse response = executeRequest(request)) {
                 processResponseErrors(response);
-                LOG.info("response {0}", response);
                 int statusCode = response.getStatusLine().getStatusCode();
                 if (statusCode == 204) {
                     LOG.ok("204 - No content, Update was successful");
@@ -867,7 +1670,225 @@ public class GraphEndpoint {
         return customManager;
     }
 
+    /**
+     * Executes the tasks with at most {@link MSGraphConfiguration#getMaxConcurrentRequests()} of them in flight
+     * and waits for all of them. After a failure no more tasks are started, the first failure is rethrown once
+     * the tasks which were already started finished.
+     *
+     * @return results of the tasks in the order of the tasks
+     */
+    protected <T> List<T> executeConcurrently(List<Callable<T>> tasks) {
+        final int limit = configuration.getMaxConcurrentRequests();
+        List<T> results = new ArrayList<>(tasks.size());
+
+        if (tasks.size() <= 1 || limit <= 1) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new ConnectorException(e);
+                }
+            }
+            return results;
+        }
+
+        final Semaphore inFlight = new Semaphore(limit);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final List<Future<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                inFlight.acquire();
+                if (failed.get()) {
+                    // No need to start the rest, the failure is going to be rethrown anyway
+                    inFlight.release();
+                    break;
+                }
+                futures.add(getRequestExecutor().submit(RequestMetrics.propagate(() -> {
+                    try {
+                        return task.call();
+                    } catch (Exception e) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        inFlight.release();
+                    }
+                })));
+            }
+
+            RuntimeException failure = null;
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                                : new ConnectorException(e.getCause());
+                    }
+                    results.add(null);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return results;
+        } catch (InterruptedException e) {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for concurrent requests", e);
+        }
+    }
+
+    /**
+     * Index of the tenant-wide role assignments. The assignments are listed again when the index is older than
+     * {@link MSGraphConfiguration#getRoleAssignmentIndexTtl()}. Only one caller lists them, outside the lock,
+     * the other callers keep using the previous index meanwhile, or wait for the listing when there is none.
+     *
+     * @return null when the index is disabled
+     */
+    public RoleAssignmentIndex getRoleAssignmentIndex() {
+        final Integer ttl = configuration.getRoleAssignmentIndexTtl();
+        if (ttl == null || ttl <= 0) {
+            return null;
+        }
+
+        final RoleAssignmentIndex current;
+        final CompletableFuture<RoleAssignmentIndex> loading;
+        final boolean loader;
+        synchronized (roleAssignmentIndexLock) {
+            current = roleAssignmentIndex;
+            if (current != null && !current.isExpired(System.currentTimeMillis(), TimeUnit.SECONDS.toMillis(ttl))) {
+                return current;
+            }
+            loader = roleAssignmentIndexLoading == null;
+            if (loader) {
+                roleAssignmentIndexLoading = new CompletableFuture<>();
+            }
+            loading = roleAssignmentIndexLoading;
+        }
+
+        if (loader) {
+            loadRoleAssignmentIndex(loading);
+        } else if (current != null) {
+            LOG.ok("Role assignment index is being listed again, using the previous one");
+            return current;
+        }
+        try {
+            return loading.join();
+        } catch (CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private void loadRoleAssignmentIndex(CompletableFuture<RoleAssignmentIndex> loading) {
+        try {
+            final RoleAssignmentIndex index = new RoleAssignmentIndex(System.currentTimeMillis());
+            executeListRequest(ROLE_ASSIGNMENTS, "$select=principalId,roleDefinitionId&$filter="
+                    + RoleProcessing.TENANT_SCOPE_FILTER, null, true, (op, assignment) -> {
+                index.add(assignment.getString("principalId"), assignment.getString("roleDefinitionId"));
+                return true;
+            });
+            LOG.info("Role assignment index loaded, {0} assignments", index.size());
+            synchronized (roleAssignmentIndexLock) {
+                // Not kept when the assignments were modified meanwhile
+                if (roleAssignmentIndexLoading == loading) {
+                    roleAssignmentIndex = index;
+                    roleAssignmentIndexLoading = null;
+                }
+            }
+            loading.complete(index);
+        } catch (Throwable e) {
+            synchronized (roleAssignmentIndexLock) {
+                if (roleAssignmentIndexLoading == loading) {
+                    roleAssignmentIndexLoading = null;
+                }
+            }
+            loading.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Role assignments were modified, the index is listed again when used next time.
+     */
+    public void invalidateRoleAssignmentIndex() {
+        synchronized (roleAssignmentIndexLock) {
+            roleAssignmentIndex = null;
+            roleAssignmentIndexLoading = null;
+        }
+    }
+
+    /**
+     * Starts the task in the background as soon as one of the permits is available, the permit is released
+     * when the task finishes. Sharing the permits among the tasks limits the number of them in flight.
+     */
+    protected <T> Future<T> submit(Callable<T> task, Semaphore permits) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for concurrent requests", e);
+        }
+        try {
+            return getRequestExecutor().submit(RequestMetrics.propagate(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    permits.release();
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw new ConnectorException("Concurrent request rejected, the endpoint was closed", e);
+        }
+    }
+
+    private synchronized ExecutorService getRequestExecutor() {
+        if (requestExecutor == null) {
+            // The number of tasks in flight is limited by the callers, nested calls must not wait for a free thread
+            requestExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = delegate.newThread(r);
+                    thread.setName("msgraph-request-" + thread.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return requestExecutor;
+    }
+
     public void close() {
+        synchronized (this) {
+            if (requestExecutor != null) {
+                requestExecutor.shutdownNow();
+                requestExecutor = null;
+            }
+        }
+        if (tokenRefresher != null) {
+            LOG.info("Access token renewal statistics: {0}", tokenRefresher.getStatistics());
+            tokenRefresher.close();
+        }
+        synchronized (this) {
+            if (authenticationExecutor != null) {
+                authenticationExecutor.shutdownNow();
+                authenticationExecutor = null;
+                authenticationContext = null;
+            }
+        }
+        if (connectionManager != null) {
+            LOG.info("Connection pool statistics: {0}", connectionManager.getStatistics());
+        }
+        if (rateLimiter != null) {
+            LOG.info("Rate limiter statistics: {0}", rateLimiter.getStatistics());
+        }
+        closeMetrics();
         try {
             httpClient.close();
         } catch (IOException e) {
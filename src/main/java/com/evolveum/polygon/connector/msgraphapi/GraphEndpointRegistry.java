@@ -0,0 +1,202 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.common.GuardedStringAccessor;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.spi.ConfigurationProperty;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Process-wide registry of graph endpoints. Connector instances with identical configuration share one endpoint,
+ * i.e. one access token, schema and HTTP connection pool. The endpoint is closed when the last connector
+ * instance using it releases it.
+ */
+public class GraphEndpointRegistry {
+
+    private static final Log LOG = Log.getLog(GraphEndpointRegistry.class);
+
+    private static final GraphEndpointRegistry INSTANCE = new GraphEndpointRegistry(GraphEndpoint::new);
+
+    private final Function<MSGraphConfiguration, GraphEndpoint> factory;
+    private final Map<List<Object>, Entry> entries = new HashMap<>();
+    private final Map<GraphEndpoint, Entry> entriesByEndpoint = new IdentityHashMap<>();
+
+    GraphEndpointRegistry(Function<MSGraphConfiguration, GraphEndpoint> factory) {
+        this.factory = factory;
+    }
+
+    public static GraphEndpointRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the endpoint for the configuration, creating it when no other connector instance uses the same
+     * configuration. Every acquired endpoint has to be given back by {@link #release(GraphEndpoint)}.
+     * <p>
+     * The endpoint is created outside the lock of the registry, as it authenticates, so the other configurations
+     * are not blocked by a slow authority. The connector instances with the same configuration wait for it.
+     * When the creation fails, the next connector instance tries again.
+     */
+    public GraphEndpoint acquire(MSGraphConfiguration configuration) {
+        final List<Object> key = createKey(configuration);
+
+        final Entry entry;
+        final boolean creator;
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            creator = existing == null;
+            entry = creator ? new Entry(key) : existing;
+            if (creator) {
+                entries.put(key, entry);
+            }
+            entry.references++;
+            LOG.ok("Graph endpoint acquired, references: {0}", entry.references);
+        }
+
+        if (creator) {
+            create(entry, configuration);
+        }
+        try {
+            return entry.endpoint.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void create(Entry entry, MSGraphConfiguration configuration) {
+        LOG.info("Creating shared graph endpoint for tenant {0} and client {1}",
+                configuration.getTenantId(), configuration.getClientId());
+        try {
+            // The endpoint outlives the connector instance, and with it the configuration which could be released
+            GraphEndpoint endpoint = factory.apply(copy(configuration));
+            synchronized (this) {
+                entriesByEndpoint.put(endpoint, entry);
+            }
+            entry.endpoint.complete(endpoint);
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                entries.remove(entry.key, entry);
+            }
+            entry.endpoint.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back the endpoint, the endpoint is closed when it is not used by any connector instance anymore.
+     * Endpoints which were not acquired from the registry are closed right away.
+     */
+    public void release(GraphEndpoint endpoint) {
+        synchronized (this) {
+            Entry entry = entriesByEndpoint.get(endpoint);
+            if (entry != null) {
+                entry.references--;
+                LOG.ok("Graph endpoint released, references: {0}", entry.references);
+                if (entry.references > 0) {
+                    return;
+                }
+                entries.remove(entry.key, entry);
+                entriesByEndpoint.remove(endpoint);
+            }
+        }
+
+        LOG.info("Closing graph endpoint");
+        endpoint.close();
+    }
+
+    synchronized int getReferences(GraphEndpoint endpoint) {
+        Entry entry = entriesByEndpoint.get(endpoint);
+        return entry == null ? 0 : entry.references;
+    }
+
+    private static List<Method> getConfigurationProperties() {
+        List<Method> properties = new ArrayList<>();
+        for (Method method : MSGraphConfiguration.class.getMethods()) {
+            if (method.isAnnotationPresent(ConfigurationProperty.class)) {
+                properties.add(method);
+            }
+        }
+        properties.sort(Comparator.comparing(Method::getName));
+        return properties;
+    }
+
+    /**
+     * Values of all configuration properties, the client secret is represented by its hash.
+     */
+    static List<Object> createKey(MSGraphConfiguration configuration) {
+        List<Object> key = new ArrayList<>();
+        for (Method getter : getConfigurationProperties()) {
+            Object value = invoke(getter, configuration);
+            if (value instanceof GuardedString) {
+                GuardedStringAccessor accessor = new GuardedStringAccessor();
+                ((GuardedString) value).access(accessor);
+                value = DigestUtils.sha256Hex(accessor.getClearString());
+            } else if (value instanceof Object[]) {
+                value = Arrays.asList((Object[]) value);
+            }
+            key.add(getter.getName());
+            key.add(value);
+        }
+        return key;
+    }
+
+    private static MSGraphConfiguration copy(MSGraphConfiguration configuration) {
+        MSGraphConfiguration copy = new MSGraphConfiguration();
+        for (Method getter : getConfigurationProperties()) {
+            String property = getter.getName().replaceFirst("^(get|is)", "");
+            Object value = invoke(getter, configuration);
+            if (value instanceof GuardedString) {
+                value = ((GuardedString) value).copy();
+            } else if (value instanceof Object[]) {
+                value = ((Object[]) value).clone();
+            }
+            try {
+                Method setter = MSGraphConfiguration.class.getMethod("set" + property, getter.getReturnType());
+                setter.invoke(copy, value);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                throw new ConnectorException("Unable to copy configuration property " + property + ": " + e.getMessage(), e);
+            }
+        }
+        return copy;
+    }
+
+    private static Object invoke(Method getter, MSGraphConfiguration configuration) {
+        try {
+            return getter.invoke(configuration);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new ConnectorException("Unable to read configuration property " + getter.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static class Entry {
+
+        private final List<Object> key;
+        // Completed by the connector instance which creates the endpoint
+        private final CompletableFuture<GraphEndpoint> endpoint = new CompletableFuture<>();
+        private int references;
+
+        Entry(List<Object> key) {
+            this.key = key;
+        }
+    }
+}
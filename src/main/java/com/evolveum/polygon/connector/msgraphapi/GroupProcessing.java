@@ -1,8 +1,10 @@
 package com.evolveum.polygon.connector.msgraphapi;
 
+import com.evolveum.polygon.connector.msgraphapi.util.GroupMembershipIndex;
 import com.evolveum.polygon.connector.msgraphapi.util.ResourceQuery;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.utils.URIBuilder;
+import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.objects.*;
@@ -11,9 +13,12 @@ import org.json.JSONObject;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -21,6 +26,9 @@ public class GroupProcessing extends ObjectProcessing {
 
     private final static String GROUPS = "/groups";
     private final static String USERS = "/users";
+    private final static String DIRECTORY_OBJECTS = "/directoryObjects/";
+    // Maximum number of members which can be added by a single "members@odata.bind" request
+    private final static int MEMBERS_BIND_LIMIT = 20;
 
     private static final String ATTR_ALLOWEXTERNALSENDERS = "allowExternalSenders";
     private static final String ATTR_AUTOSUBSCRIBENEWMEMBERS = "autoSubscribeNewMembers";
@@ -46,6 +54,13 @@ public class GroupProcessing extends ObjectProcessing {
     private static final String ATTR_MEMBERS = "members";
     private static final String ATTR_OWNERS = "owners";
 
+    // Maximum number of objects returned by $expand of a directory object relationship
+    private final static int EXPAND_LIMIT = 20;
+    private final static String EXPAND_MEMBERS = "$expand=" + ATTR_MEMBERS + "($select=id)";
+    private final static String REFERENCE_QUERY = "$select=id&$top=999";
+    // Just the number of the objects, the list itself is not needed
+    private final static String COUNT_QUERY = "$count=true&$top=1&$select=id";
+
     protected static final Set<String> EXCLUDE_ATTRS_OF_GROUP = Stream.of(
             ATTR_MEMBERS,
             ATTR_OWNERS
@@ -55,6 +70,39 @@ public class GroupProcessing extends ObjectProcessing {
             ATTR_GROUPTYPES
     ).collect(Collectors.toSet());
 
+    // Attributes which may be selected by the delta query, filtered by the attributes to get
+    private static final String[] DELTA_SELECTABLE_ATTRS = {
+            ATTR_ID, ATTR_DISPLAYNAME, ATTR_DESCRIPTION, ATTR_GROUPTYPES, ATTR_MEMBERSHIPRULE,
+            ATTR_MEMBERSHIPRULEPROCESSINGSTATE, ATTR_MAIL, ATTR_MAILENABLED, ATTR_MAILNICKNAME,
+            ATTR_ONPREMISESLASTSYNCDATETIME, ATTR_ONPREMISESSECURITYIDENTIFIER, ATTR_ONPREMISESSYNCENABLED,
+            ATTR_PROXYADDRESSES, ATTR_SECURITYENABLED, ATTR_VISIBILITY, ATTR_CREATEDDATETIME, ATTR_CLASSIFICATION
+    };
+
+    private static final ObjectMapping GROUP_MAPPING = ObjectMapping.builder()
+            .single(ATTR_DISPLAYNAME, String.class)
+            .single(ATTR_DESCRIPTION, String.class)
+            .multi(ATTR_GROUPTYPES)
+            .single(ATTR_MEMBERSHIPRULE, String.class)
+            .single(ATTR_MEMBERSHIPRULEPROCESSINGSTATE, String.class)
+            .single(ATTR_MAIL, String.class)
+            .single(ATTR_MAILENABLED, Boolean.class)
+            .single(ATTR_MAILNICKNAME, String.class)
+            .single(ATTR_ONPREMISESLASTSYNCDATETIME, String.class)
+            .single(ATTR_ONPREMISESSECURITYIDENTIFIER, String.class)
+            .single(ATTR_ONPREMISESSYNCENABLED, Boolean.class)
+            .multi(ATTR_PROXYADDRESSES)
+            .single(ATTR_SECURITYENABLED, Boolean.class)
+            .single(ATTR_VISIBILITY, String.class)
+            .single(ATTR_CREATEDDATETIME, String.class)
+            .single(ATTR_CLASSIFICATION, String.class)
+            .single(ATTR_ALLOWEXTERNALSENDERS, Boolean.class)
+            .single(ATTR_AUTOSUBSCRIBENEWMEMBERS, Boolean.class)
+            .single(ATTR_ISSUBSCRIBEDBYMAIL, Boolean.class)
+            .single(ATTR_UNSEENCOUNT, Integer.class)
+            .multi(ATTR_MEMBERS)
+            .multi(ATTR_OWNERS)
+            .build();
+
     public GroupProcessing(GraphEndpoint graphEndpoint) {
         super(graphEndpoint, ICFPostMapper.builder().build());
     }
@@ -191,7 +239,10 @@ public class GroupProcessing extends ObjectProcessing {
     }
 
     protected Uid createGroup(Set<Attribute> attributes) {
-        LOG.info("Start createGroup, attributes: {0}", attributes);
+        LOG.info("Start createGroup");
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("createGroup attributes: {0}", getPayloadLog().format(attributes));
+        }
         final GraphEndpoint endpoint = getGraphEndpoint();
         final URIBuilder uriBuilder = endpoint.createURIBuilder();
 
@@ -226,8 +277,10 @@ public class GroupProcessing extends ObjectProcessing {
     }
 
     protected Set<AttributeDelta> updateGroup(Uid uid, Set<AttributeDelta> attrsDelta, OperationOptions options) {
-        LOG.info("Start updateGroup, Uid: {0}, attrsDelta: {1}", uid, attrsDelta);
-        final GraphEndpoint endpoint = getGraphEndpoint();
+        LOG.info("Start updateGroup, Uid: {0}", uid);
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("updateGroup attrsDelta: {0}", getPayloadLog().format(attrsDelta));
+        }
 
         List<String> oldSelectors = new ArrayList<>();
         AttributeDelta members = null;
@@ -247,30 +300,9 @@ public class GroupProcessing extends ObjectProcessing {
             }
         }
 
-        // When updating multiple value of the group entity, we need to fetch the current JSON array and merge it with requested delta
-        // since Microsoft Graph API doesn't provide a way to patch the JSON array
-        JSONObject oldJson = null;
-        if (!oldSelectors.isEmpty()) {
-            final String select = "$select=" + String.join(",", oldSelectors);
-
-            oldJson = endpoint.executeGetRequest(GROUPS + "/" + uid.getUidValue() + "/", select, options);
-
-            // Remove unrelated keys
-            for (String key : oldJson.keySet()) {
-                if (!UPDATABLE_MULTIPLE_VALUE_ATTRS_OF_GROUP.contains(key)) {
-                    oldJson.remove(key);
-                }
-            }
-        }
-
-        // Update group resource
-        final URIBuilder uriBuilder = endpoint.createURIBuilder();
-        uriBuilder.setPath(GROUPS + "/" + uid.getUidValue());
-        URI uri = endpoint.getUri(uriBuilder);
-        LOG.info("Path: {0}", uri);
-        HttpEntityEnclosingRequestBase request = new HttpPatch(uri);
-        List<JSONObject> attributeList = buildLayeredAttribute(oldJson, attrsDelta, EXCLUDE_ATTRS_OF_GROUP, Collections.emptySet());
-        endpoint.callRequestNoContentNoJson(request, attributeList);
+        // Update group resource, the values of the multi-valued attributes are merged with the current ones
+        patchMerged(GROUPS + "/" + uid.getUidValue(), uid, attrsDelta, oldSelectors, EXCLUDE_ATTRS_OF_GROUP,
+                Collections.emptySet(), options);
 
         // Update other resources if necessary
         addOrRemoveMember(uid, members, GROUPS);
@@ -314,6 +346,7 @@ public class GroupProcessing extends ObjectProcessing {
         uri = endpoint.getUri(uriBuilder);
         LOG.info("Path: {0}", uri);
         request = new HttpDelete(uri);
+        endpoint.getAttributeValueCache().invalidate(uid.getUidValue());
         if (endpoint.callRequest(request, false) == null) {
             LOG.info("Deleted group with Uid {0}", uid.getUidValue());
         }
@@ -325,33 +358,48 @@ public class GroupProcessing extends ObjectProcessing {
             return;
         }
 
-        LOG.info("addOrRemoveMember {0} , {1} , {2}", uid, attrDelta, path);
-        StringBuilder sbPath = new StringBuilder();
-        sbPath.append(path).append("/").append(uid.getUidValue()).append("/" + ATTR_MEMBERS);
+        LOG.ok("addOrRemoveMember {0} , {1} , {2}", uid, attrDelta.getName(), path);
+        final String membersPath = path + "/" + uid.getUidValue() + "/" + ATTR_MEMBERS;
 
-        LOG.info("path: {0}", sbPath);
+        LOG.info("path: {0}", membersPath);
 
-        List<Object> removeValues = attrDelta.getValuesToRemove();
-        groupProcessRemove(sbPath, removeValues);
-
-        List<Object> addValues = attrDelta.getValuesToAdd();
-        if (addValues != null && !addValues.isEmpty()) {
-            sbPath.append("/").append("$ref");
-            for (Object addValue : addValues) {
-                if (addValue != null) {
-
-                    JSONObject json = new JSONObject();
-                    String userID = (String) addValue;
-
-                    String addToJson = "https://graph.microsoft.com/v1.0/directoryObjects/" + userID;
-                    //POST https://graph.microsoft.com/v1.0/groups/{id}/members/$ref
-                    //json.put(ATTR_ID, userID);
-                    json.put("@odata.id", addToJson);
-                    LOG.ok("json: {0}", json);
-                    postRequestNoContent(sbPath.toString(), json);
-                }
+        groupProcessRemove(membersPath, uid.getUidValue(), attrDelta.getValuesToRemove());
+
+        List<String> addValues = toIds(attrDelta.getValuesToAdd());
+        if (addValues.isEmpty()) {
+            return;
+        }
+
+        // Up to 20 members can be added by one PATCH of the group, the PATCH requests are batched as well.
+        //PATCH https://graph.microsoft.com/v1.0/groups/{id}
+        //{"members@odata.bind": ["https://graph.microsoft.com/v1.0/directoryObjects/{id}", ...]}
+        List<List<String>> chunks = new ArrayList<>();
+        List<JSONObject> requests = new ArrayList<>();
+        for (int from = 0; from < addValues.size(); from += MEMBERS_BIND_LIMIT) {
+            List<String> chunk = addValues.subList(from, Math.min(from + MEMBERS_BIND_LIMIT, addValues.size()));
+            JSONArray binds = new JSONArray();
+            for (String memberId : chunk) {
+                binds.put(getGraphEndpoint().getApiUrl() + DIRECTORY_OBJECTS + memberId);
             }
+            JSONObject json = new JSONObject();
+            json.put(ATTR_MEMBERS + "@odata.bind", binds);
+            LOG.ok("json: {0}", json);
+
+            chunks.add(chunk);
+            requests.add(GraphEndpoint.createBatchRequest("PATCH", path + "/" + uid.getUidValue(), json));
         }
+        List<JSONObject> responses = getGraphEndpoint().executeBatchRequest(requests);
+
+        // The PATCH fails as a whole when any of its members can't be added, e.g. when one of them is already a member.
+        // Members of a failed PATCH are added one by one, so that the failure can be tied to the particular member.
+        List<String> fallback = new ArrayList<>();
+        for (int i = 0; i < responses.size(); i++) {
+            if (!GraphEndpoint.isBatchResponseSuccessful(responses.get(i))) {
+                LOG.ok("Adding of members {0} in one request failed, adding them one by one", chunks.get(i));
+                fallback.addAll(chunks.get(i));
+            }
+        }
+        groupProcessAdd(membersPath, getGraphEndpoint().getApiUrl() + DIRECTORY_OBJECTS, fallback);
     }
 
     public void addOrRemoveOwner(Uid uid, AttributeDelta attrDelta, String path) {
@@ -360,76 +408,55 @@ public class GroupProcessing extends ObjectProcessing {
         }
 
         LOG.info("add owner to group or remove ");
-        StringBuilder sbPath = new StringBuilder();
-        sbPath.append(path).append("/").append(uid.getUidValue()).append("/" + ATTR_OWNERS);
-
+        final String ownersPath = path + "/" + uid.getUidValue() + "/" + ATTR_OWNERS;
 
-        List<Object> addValues = attrDelta.getValuesToAdd();
         List<Object> removeValues = attrDelta.getValuesToRemove();
 
-        if (addValues != null && !addValues.isEmpty()) {
-            sbPath.append("/").append("$ref");
-            for (Object addValue : addValues) {
-                if (addValue != null) {
-
-                    JSONObject json = new JSONObject();
-                    String userID = (String) addValue;
-                    //"@odata.id": "https://graph.microsoft.com/v1.0/users/{id}"
-                    String addToJson = "https://graph.microsoft.com/v1.0/users/" + userID;
-                    //POST https://graph.microsoft.com/v1.0/groups/{id}/owners/$ref
-                    //json.put(ATTR_ID, userID);
-                    json.put("@odata.id", addToJson);
-                    LOG.ok("json: {0}", json);
-                    postRequestNoContent(sbPath.toString(), json);
-                }
-            }
-        }
-        LOG.info("sbPath : {0} ; removeValues {1}", sbPath, removeValues);
-        groupProcessRemove(sbPath, removeValues);
-    }
-
-    private void postRequestNoContent(String path, JSONObject json) {
-        LOG.info("path: {0} , json {1}, ", path, json);
-        final GraphEndpoint endpoint = getGraphEndpoint();
-        final URIBuilder uriBuilder = endpoint.createURIBuilder().setPath(path);
-        final URI uri = endpoint.getUri(uriBuilder);
-        LOG.info("uri {0}", uri);
-
-
-        HttpEntityEnclosingRequestBase request;
-        LOG.info("HttpEntityEnclosingRequestBase request");
+        //POST https://graph.microsoft.com/v1.0/groups/{id}/owners/$ref
+        //"@odata.id": "https://graph.microsoft.com/v1.0/users/{id}"
+        groupProcessAdd(ownersPath, getGraphEndpoint().getApiUrl() + USERS + "/", toIds(attrDelta.getValuesToAdd()));
 
-        request = new HttpPost(uri);
-        LOG.info("create true - HTTP POST {0}", uri);
-        endpoint.callRequestNoContent(request, null, json);
+        LOG.ok("path : {0} ; removeValues {1}", ownersPath, removeValues);
+        groupProcessRemove(ownersPath, uid.getUidValue(), removeValues);
     }
 
+    /**
+     * Adds the references one by one, batched. A reference which already exists is not considered a failure.
+     */
+    private void groupProcessAdd(String path, String referencePrefix, List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
 
-    private void groupProcessRemove(StringBuilder sbPath, List<Object> removeValues) {
-        if (removeValues != null && !removeValues.isEmpty()) {
-            for (Object removeValue : removeValues) {
-                if (removeValue != null) {
-
-                    String userID = (String) removeValue;
-                    LOG.info("executeDeleteOperation userId: {0} , sbPath: {1} ", userID, sbPath);
-                    executeDeleteOperation(new Uid(userID), sbPath.toString());
-                }
-            }
+        List<JSONObject> requests = new ArrayList<>();
+        for (String id : ids) {
+            JSONObject json = new JSONObject();
+            json.put("@odata.id", referencePrefix + id);
+            LOG.ok("json: {0}", json);
+            requests.add(GraphEndpoint.createBatchRequest("POST", path + "/$ref", json));
         }
-    }
 
-    private void executeDeleteOperation(Uid uid, String path) {
-        LOG.info("Delete object, Uid: {0}, Path: {1}", uid, path);
+        processBatch(requests, response -> response.getInt("status") == 400
+                && response.toString().contains("One or more added object references already exist"));
+    }
 
-        final GraphEndpoint endpoint = getGraphEndpoint();
-        final URIBuilder uriBuilder = endpoint.createURIBuilder();
-        uriBuilder.setPath(path + "/" + uid.getUidValue() + "/$ref");
+    /**
+     * Removes the references one by one, batched. A reference which does not exist is not considered a failure,
+     * the group which does not exist is.
+     */
+    private void groupProcessRemove(String path, String groupId, List<Object> removeValues) {
+        List<String> ids = toIds(removeValues);
+        if (ids.isEmpty()) {
+            return;
+        }
 
-        LOG.info("Uri for delete: {0}", uriBuilder);
+        List<JSONObject> requests = new ArrayList<>();
+        for (String id : ids) {
+            LOG.info("Delete reference, id: {0}, path: {1} ", id, path);
+            requests.add(GraphEndpoint.createBatchRequest("DELETE", path + "/" + id + "/$ref", null));
+        }
 
-        final URI uri = endpoint.getUri(uriBuilder);
-        final HttpRequestBase request = new HttpDelete(uri);
-        endpoint.callRequest(request, false);
+        processBatch(requests, referenceNotFound(GROUPS + "/" + groupId));
     }
 
 
@@ -477,13 +504,12 @@ public class GroupProcessing extends ObjectProcessing {
                 if (translatedQuery.hasIdOrMembershipExpression()) {
 
                     LOG.ok("The constructed filter to be used: {0}", query);
-                    endpoint.executeListRequest(translatedQuery.getIdOrMembershipExpression(), query, options, true,
-                            createJSONObjectHandler(handler));
+                    executeListRequest(translatedQuery.getIdOrMembershipExpression(), query, options, handler);
 
                 } else {
 
                     LOG.ok("The constructed filter about to being used: {0}", query);
-                    endpoint.executeListRequest(GROUPS, query, options, true, createJSONObjectHandler(handler));
+                    executeListRequest(GROUPS, query, options, handler);
                 }
             }
 
@@ -491,10 +517,200 @@ public class GroupProcessing extends ObjectProcessing {
 
             LOG.info("Empty query, returning full list of objects for the {0} object class", ObjectClass.GROUP_NAME);
 
-            endpoint.executeListRequest(GROUPS, null, options, true, createJSONObjectHandler(handler));
+            executeListRequest(GROUPS, null, options, handler);
         }
     }
 
+    /**
+     * Lists groups. When members or owners are requested, the groups are saturated in bulk, one search page at a time,
+     * instead of listing the members and owners of every group separately.
+     */
+    private void executeListRequest(String path, String query, OperationOptions options, ResultsHandler handler) {
+        final GraphEndpoint endpoint = getGraphEndpoint();
+        final AttributePlan plan = getAttributePlan(options);
+        final boolean members = plan.shouldSaturate(ATTR_MEMBERS);
+        final boolean owners = plan.shouldSaturate(ATTR_OWNERS);
+
+        if (!members && !owners) {
+            endpoint.executeListRequest(path, query, options, true, createJSONObjectHandler(options, handler));
+            return;
+        }
+
+        // $expand can't be used together with advanced queries ($search, $count)
+        final boolean expand = members && GROUPS.equals(path)
+                && (query == null || !(query.contains("$search") || query.contains("$count")));
+        if (expand) {
+            query = query == null || query.isEmpty() ? EXPAND_MEMBERS : query + "&" + EXPAND_MEMBERS;
+        }
+
+        final int bulkSize = getBulkSize();
+        final List<JSONObject> groups = new ArrayList<>();
+        final AtomicBoolean proceed = new AtomicBoolean(true);
+
+        endpoint.executeListRequest(path, query, options, true, (op, group) -> {
+            groups.add(group);
+            if (groups.size() < bulkSize) {
+                return true;
+            }
+            proceed.set(handleGroups(plan, groups, handler, members, owners, expand));
+            return proceed.get();
+        });
+
+        if (proceed.get() && !groups.isEmpty()) {
+            handleGroups(plan, groups, handler, members, owners, expand);
+        }
+    }
+
+    /**
+     * Inverts the members of all the groups of the tenant into the groups of every member. The groups are listed once,
+     * with their members expanded, and saturated in bulk like in the group search.
+     */
+    public GroupMembershipIndex buildMembershipIndex() {
+        final GraphEndpoint endpoint = getGraphEndpoint();
+        final long groupCount = endpoint.executeGetRequest(GROUPS, COUNT_QUERY, null).optLong("@odata.count", -1);
+        final long userCount = endpoint.executeGetRequest(USERS, COUNT_QUERY, null).optLong("@odata.count", -1);
+        LOG.info("Building the group membership index of {0} groups for {1} users, estimated size {2} kB "
+                        + "and {3} bytes per membership", groupCount, userCount,
+                GroupMembershipIndex.estimateBytes(Math.max(userCount, 0), Math.max(groupCount, 0), 0) / 1024,
+                GroupMembershipIndex.estimateBytes(0, 0, 1));
+
+        final GroupMembershipIndex index = new GroupMembershipIndex();
+        final int bulkSize = getBulkSize();
+        final List<JSONObject> groups = new ArrayList<>();
+        endpoint.executeListRequest(GROUPS, "$select=" + ATTR_ID + "&" + EXPAND_MEMBERS, null, true, (op, group) -> {
+            groups.add(group);
+            if (groups.size() >= bulkSize) {
+                indexGroups(groups, index);
+            }
+            return true;
+        });
+        indexGroups(groups, index);
+
+        LOG.info("Group membership index built, {0} groups, {1} members, {2} memberships, about {3} kB",
+                index.getGroupCount(), index.getMemberCount(), index.getMembershipCount(), index.estimateBytes() / 1024);
+        return index;
+    }
+
+    private void indexGroups(List<JSONObject> groups, GroupMembershipIndex index) {
+        saturateGroups(groups, true, false, true);
+        for (JSONObject group : groups) {
+            final int ordinal = index.addGroup(group.getString(ATTR_ID));
+            final JSONArray members = group.optJSONArray(ATTR_MEMBERS);
+            for (int i = 0; members != null && i < members.length(); i++) {
+                index.addMember(members.getString(i), ordinal);
+            }
+        }
+        groups.clear();
+    }
+
+    private int getBulkSize() {
+        String pageSize = getConfiguration().getPageSize();
+        try {
+            return StringUtil.isBlank(pageSize) ? 100 : Math.max(1, Integer.parseInt(pageSize.trim()));
+        } catch (NumberFormatException e) {
+            return 100;
+        }
+    }
+
+    private boolean handleGroups(AttributePlan plan, List<JSONObject> groups, ResultsHandler handler,
+                                 boolean members, boolean owners, boolean expanded) {
+        saturateGroups(groups, members, owners, expanded);
+        try {
+            for (JSONObject group : groups) {
+                if (!handleSaturatedJSONObject(plan, group, handler)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            groups.clear();
+        }
+    }
+
+    /**
+     * Add members and/or owners to all the groups. The expanded members are used as they are, unless there are
+     * {@value #EXPAND_LIMIT} of them, which is the most $expand returns. The rest is fetched in batches. The lists
+     * which don't fit into one batch response or which failed in the batch are fetched concurrently.
+     *
+     * @param groups   groups to saturate (JSON objects resulting from previous API call)
+     * @param expanded whether the groups were listed with their members expanded
+     */
+    void saturateGroups(List<JSONObject> groups, boolean members, boolean owners, boolean expanded) {
+        final GraphEndpoint endpoint = getGraphEndpoint();
+
+        List<JSONObject> requests = new ArrayList<>();
+        List<JSONObject> requestGroups = new ArrayList<>();
+        List<String> requestAttrs = new ArrayList<>();
+        for (JSONObject group : groups) {
+            final String uid = group.getString(ATTR_ID);
+            if (members) {
+                if (expanded && group.has(ATTR_MEMBERS) && group.getJSONArray(ATTR_MEMBERS).length() < EXPAND_LIMIT) {
+                    group.put(ATTR_MEMBERS, getJSONArray(group.getJSONArray(ATTR_MEMBERS), ATTR_ID));
+                } else {
+                    requests.add(GraphEndpoint.createBatchRequest("GET", GROUPS + "/" + uid + "/" + ATTR_MEMBERS + "?" + REFERENCE_QUERY, null));
+                    requestGroups.add(group);
+                    requestAttrs.add(ATTR_MEMBERS);
+                }
+            }
+            if (owners) {
+                requests.add(GraphEndpoint.createBatchRequest("GET", GROUPS + "/" + uid + "/" + ATTR_OWNERS + "?" + REFERENCE_QUERY, null));
+                requestGroups.add(group);
+                requestAttrs.add(ATTR_OWNERS);
+            }
+        }
+        LOG.ok("Saturating {0} groups, {1} lists to fetch", groups.size(), requests.size());
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        List<JSONObject> responses = endpoint.executeBatchRequest(requests);
+
+        List<Callable<JSONArray>> remaining = new ArrayList<>();
+        List<Integer> remainingIndexes = new ArrayList<>();
+        for (int i = 0; i < responses.size(); i++) {
+            final JSONObject response = responses.get(i);
+            final String uid = requestGroups.get(i).getString(ATTR_ID);
+            final String attr = requestAttrs.get(i);
+
+            if (!GraphEndpoint.isBatchResponseSuccessful(response)) {
+                LOG.ok("Fetching {0} of group {1} in batch failed, listing them separately: {2}", attr, uid, response);
+                remaining.add(() -> listGroupReferences(uid, attr));
+                remainingIndexes.add(i);
+                continue;
+            }
+
+            final JSONObject body = response.getJSONObject("body");
+            final JSONArray ids = getJSONArray(body.getJSONArray("value"), ATTR_ID);
+            if (body.has("@odata.nextLink")) {
+                final String nextLink = body.getString("@odata.nextLink");
+                remaining.add(() -> {
+                    endpoint.continueListRequest(nextLink, null, (op, object) -> {
+                        ids.put(object.get(ATTR_ID));
+                        return true;
+                    });
+                    return ids;
+                });
+                remainingIndexes.add(i);
+            } else {
+                requestGroups.get(i).put(attr, ids);
+            }
+        }
+
+        List<JSONArray> results = endpoint.executeConcurrently(remaining);
+        for (int i = 0; i < results.size(); i++) {
+            int index = remainingIndexes.get(i);
+            requestGroups.get(index).put(requestAttrs.get(index), results.get(i));
+        }
+    }
+
+    private JSONArray listGroupReferences(String uid, String attr) {
+        final String query = new StringBuilder()
+                .append(GROUPS).append("/").append(uid).append("/")
+                .append(attr).toString();
+        final JSONArray references = getGraphEndpoint().executeListRequest(query, "$select=id,userPrincipalName", null, true);
+        return getJSONArray(references, ATTR_ID);
+    }
+
     /**
      * Query a group's members, add them to the group's JSON attributes (multivalue)
      *
@@ -502,15 +718,10 @@ public class GroupProcessing extends ObjectProcessing {
      * @return Original JSON, enriched with member information
      */
     private JSONObject saturateGroupMembership(JSONObject group) {
-        final GraphEndpoint endpoint = getGraphEndpoint();
         final String uid = group.getString(ATTR_ID);
 
         //get list of group members
-        final String memberQuery = new StringBuilder()
-                .append(GROUPS).append("/").append(uid).append("/")
-                .append(ATTR_MEMBERS).toString();
-        final JSONArray groupMembers = endpoint.executeListRequest(memberQuery, "$select=id,userPrincipalName", null, true);
-        group.put(ATTR_MEMBERS, getJSONArray(groupMembers, "id"));
+        group.put(ATTR_MEMBERS, listGroupReferences(uid, ATTR_MEMBERS));
 
         return group;
     }
@@ -522,41 +733,143 @@ public class GroupProcessing extends ObjectProcessing {
      * @return Original JSON, enriched with owner information
      */
     private JSONObject saturateGroupOwnership(JSONObject group) {
-        final GraphEndpoint endpoint = getGraphEndpoint();
         final String uid = group.getString(ATTR_ID);
 
         //get list of group owners
-        final String ownerQuery = new StringBuilder()
-                .append(GROUPS).append("/").append(uid).append("/")
-                .append(ATTR_OWNERS).toString();
-        final JSONArray groupOwners = endpoint.executeListRequest(ownerQuery, "$select=id,userPrincipalName", null, true);
-        group.put(ATTR_OWNERS, getJSONArray(groupOwners, "id"));
+        group.put(ATTR_OWNERS, listGroupReferences(uid, ATTR_OWNERS));
 
         return group;
     }
 
     @Override
-    protected boolean handleJSONObject(OperationOptions options, JSONObject group, ResultsHandler handler) {
+    protected boolean handleJSONObject(OperationOptions options, AttributePlan plan, JSONObject group, ResultsHandler handler) {
         LOG.ok("handleJSONObject");
-        if (shouldSaturate(options, ObjectClass.GROUP_NAME, ATTR_MEMBERS)) {
+        if (plan.shouldSaturate(ATTR_MEMBERS)) {
             group = saturateGroupMembership(group);
         }
 
-        if (shouldSaturate(options, ObjectClass.GROUP_NAME, ATTR_OWNERS)) {
+        if (plan.shouldSaturate(ATTR_OWNERS)) {
             group = saturateGroupOwnership(group);
         }
 
-        ConnectorObjectBuilder builder = convertGroupJSONObjectToConnectorObject(group);
+        return handleSaturatedJSONObject(plan, group, handler);
+    }
+
+    private boolean handleSaturatedJSONObject(AttributePlan plan, JSONObject group, ResultsHandler handler) {
+        getGraphEndpoint().getAttributeValueCache().put(group.optString(ATTR_ID, null), group,
+                UPDATABLE_MULTIPLE_VALUE_ATTRS_OF_GROUP);
+        ConnectorObjectBuilder builder = convertGroupJSONObjectToConnectorObject(group, plan);
 
-        incompleteIfNecessary(options, ObjectClass.GROUP_NAME, ATTR_MEMBERS, builder);
-        incompleteIfNecessary(options, ObjectClass.GROUP_NAME, ATTR_OWNERS, builder);
+        incompleteIfNecessary(plan, ATTR_MEMBERS, builder);
+        incompleteIfNecessary(plan, ATTR_OWNERS, builder);
 
         final ConnectorObject connectorObject = builder.build();
-        LOG.ok("handleJSONObject, group: {0}, \n\tconnectorObject: {1}", group.get("id"), connectorObject);
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("handleJSONObject, group: {0}, \n\tconnectorObject: {1}", group.get("id"),
+                    getPayloadLog().format(connectorObject));
+        }
         return handler.handle(connectorObject);
     }
 
-    private ConnectorObjectBuilder convertGroupJSONObjectToConnectorObject(JSONObject group) {
+    /**
+     * Selector of the group delta query, of the attributes to get. The id is always selected. Members are selected
+     * only when requested, otherwise the delta does not report membership changes at all.
+     */
+    public String getDeltaSelector(OperationOptions options) {
+        if (options == null) {
+            return selector(DELTA_SELECTABLE_ATTRS);
+        }
+
+        final AttributePlan plan = getAttributePlan(options);
+        List<String> fields = new ArrayList<>(Arrays.asList(plan.filter(DELTA_SELECTABLE_ATTRS)));
+        if (!fields.contains(ATTR_ID)) {
+            fields.add(0, ATTR_ID);
+        }
+        if (plan.contains(ATTR_MEMBERS)) {
+            fields.add(ATTR_MEMBERS);
+        }
+        return selector(fields.toArray(new String[0]));
+    }
+
+    /**
+     * Converts one entry of the group delta query to a sync delta, null if there is nothing to report.
+     * <p>
+     * The changes of the membership come in "members@delta". Added members are reported as values of the members
+     * attribute marked as incomplete, so the membership is not listed again when a single member is added.
+     * Only when a member was removed, the complete membership of the group is listed, as there is no way
+     * to report a removed value in a sync delta.
+     */
+    public SyncDeltaBuilder createSyncDelta(JSONObject group, OperationOptions options) {
+        return createSyncDelta(group, options == null ? null : getAttributePlan(options));
+    }
+
+    /**
+     * Converts one entry of the group delta query like {@link #createSyncDelta(JSONObject, OperationOptions)},
+     * the attributes to get are resolved once for the whole sync.
+     *
+     * @param plan attributes to get, null when not restricted by the options
+     */
+    public SyncDeltaBuilder createSyncDelta(JSONObject group, AttributePlan plan) {
+        final String uid = group.getString(ATTR_ID);
+
+        SyncDeltaBuilder builder = new SyncDeltaBuilder();
+        builder.setObjectClass(ObjectClass.GROUP);
+
+        if (group.has(O_REMOVED)) {
+            LOG.ok("Sync operation: Processing Delete delta for the Group: {0} ", uid);
+
+            builder.setDeltaType(SyncDeltaType.DELETE);
+            builder.setUid(new Uid(uid));
+            getGraphEndpoint().getAttributeValueCache().invalidate(uid);
+            return builder;
+        }
+
+        getGraphEndpoint().getAttributeValueCache().put(uid, group, UPDATABLE_MULTIPLE_VALUE_ATTRS_OF_GROUP);
+
+        LOG.ok("Sync operation: Processing Create or Update delta for the Group: {0} ", uid);
+
+        JSONArray added = new JSONArray();
+        boolean removed = false;
+        if (group.has(ATTR_MEMBERS + O_DELTA)) {
+            JSONArray membersDelta = group.getJSONArray(ATTR_MEMBERS + O_DELTA);
+            for (int i = 0; i < membersDelta.length(); i++) {
+                JSONObject member = membersDelta.getJSONObject(i);
+                if (member.has(O_REMOVED)) {
+                    removed = true;
+                } else {
+                    added.put(member.getString(ATTR_ID));
+                }
+            }
+            group.remove(ATTR_MEMBERS + O_DELTA);
+        }
+
+        final boolean members = plan != null && plan.contains(ATTR_MEMBERS);
+        if (members && removed) {
+            LOG.ok("Member removed from the group {0}, listing its complete membership", uid);
+            group.put(ATTR_MEMBERS, listGroupReferences(uid, ATTR_MEMBERS));
+        }
+
+        ConnectorObjectBuilder objectBuilder = convertGroupJSONObjectToConnectorObject(group, plan);
+        if (members && !removed) {
+            AttributeBuilder attrBuilder = new AttributeBuilder();
+            attrBuilder.setName(ATTR_MEMBERS).setAttributeValueCompleteness(AttributeValueCompleteness.INCOMPLETE);
+            attrBuilder.addValue(added.toList());
+            objectBuilder.addAttribute(attrBuilder.build());
+        }
+        if (plan != null && plan.contains(ATTR_OWNERS)) {
+            // owners are not part of the group delta
+            AttributeBuilder attrBuilder = new AttributeBuilder();
+            attrBuilder.setName(ATTR_OWNERS).setAttributeValueCompleteness(AttributeValueCompleteness.INCOMPLETE);
+            attrBuilder.addValue(Collections.EMPTY_LIST);
+            objectBuilder.addAttribute(attrBuilder.build());
+        }
+
+        builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+        builder.setObject(objectBuilder.build());
+        return builder;
+    }
+
+    private ConnectorObjectBuilder convertGroupJSONObjectToConnectorObject(JSONObject group, AttributePlan plan) {
         LOG.ok("convertGroupJSONObjectToConnectorObject execution");
         ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
         builder.setObjectClass(ObjectClass.GROUP);
@@ -564,31 +877,7 @@ public class GroupProcessing extends ObjectProcessing {
         getUIDIfExists(group, ATTR_ID, builder);
         getNAMEIfExists(group, ATTR_ID, builder);
 
-        getIfExists(group, ATTR_DISPLAYNAME, String.class, builder);
-        getIfExists(group, ATTR_DESCRIPTION, String.class, builder);
-        getMultiIfExists(group, ATTR_GROUPTYPES, builder);
-        getIfExists(group, ATTR_MEMBERSHIPRULE, String.class, builder);
-        getIfExists(group, ATTR_MEMBERSHIPRULEPROCESSINGSTATE, String.class, builder);
-        getIfExists(group, ATTR_MAIL, String.class, builder);
-        getIfExists(group, ATTR_MAILENABLED, Boolean.class, builder);
-        getIfExists(group, ATTR_MAILNICKNAME, String.class, builder);
-        getIfExists(group, ATTR_ONPREMISESLASTSYNCDATETIME, String.class, builder);
-        getIfExists(group, ATTR_ONPREMISESSECURITYIDENTIFIER, String.class, builder);
-        getIfExists(group, ATTR_ONPREMISESSYNCENABLED, Boolean.class, builder);
-        getMultiIfExists(group, ATTR_PROXYADDRESSES, builder);
-        getIfExists(group, ATTR_SECURITYENABLED, Boolean.class, builder);
-        getIfExists(group, ATTR_VISIBILITY, String.class, builder);
-        getIfExists(group, ATTR_CREATEDDATETIME, String.class, builder);
-        getIfExists(group, ATTR_CLASSIFICATION, String.class, builder);
-
-        getIfExists(group, ATTR_ALLOWEXTERNALSENDERS, Boolean.class, builder);
-        getIfExists(group, ATTR_AUTOSUBSCRIBENEWMEMBERS, Boolean.class, builder);
-        getIfExists(group, ATTR_ISSUBSCRIBEDBYMAIL, Boolean.class, builder);
-        getIfExists(group, ATTR_UNSEENCOUNT, Integer.class, builder);
-
-        getMultiIfExists(group, ATTR_MEMBERS, builder);
-        getMultiIfExists(group, ATTR_OWNERS, builder);
-
+        GROUP_MAPPING.convert(group, plan, builder);
         return builder;
     }
 
@@ -125,7 +125,9 @@ public class LicenseProcessing extends ObjectProcessing {
     private void get(ResultsHandler handler, String skuId, OperationOptions options) {
         final GraphEndpoint endpoint = getGraphEndpoint();
         JSONObject json = endpoint.executeGetRequest(GRAPH_SUBSCRIBEDSKUS + "/" + skuId, SELECTOR_FULL, options);
-        LOG.info("JSONObject license {0}", json);
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("JSONObject license {0}", getPayloadLog().format(json));
+        }
         handleJSONObject(options, json, handler);
     }
 
@@ -135,14 +137,16 @@ public class LicenseProcessing extends ObjectProcessing {
         if (options != null && options.getAllowPartialAttributeValues() != null && options.getAllowPartialAttributeValues())
             selector = SELECTOR_PARTIAL;
         // Paging is not supported
-        endpoint.executeListRequest(GRAPH_SUBSCRIBEDSKUS, selector, options, false, createJSONObjectHandler(handler));
+        endpoint.executeListRequest(GRAPH_SUBSCRIBEDSKUS, selector, options, false, createJSONObjectHandler(options, handler));
     }
 
     public List<JSONObject> list() {
         final GraphEndpoint endpoint = getGraphEndpoint();
         // Paging is not supported
         JSONArray json = endpoint.executeListRequest(GRAPH_SUBSCRIBEDSKUS, SELECTOR_FULL, null, false);
-        LOG.info("JSONObject license {0}", json);
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("JSONObject licenses {0}", getPayloadLog().format(json));
+        }
         return handleJSONArray(json);
     }
 
@@ -168,7 +172,7 @@ public class LicenseProcessing extends ObjectProcessing {
     }
 
     @Override
-    protected boolean handleJSONObject(OperationOptions options, JSONObject json, ResultsHandler handler) {
+    protected boolean handleJSONObject(OperationOptions options, AttributePlan plan, JSONObject json, ResultsHandler handler) {
         ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
         builder.setObjectClass(OBJECT_CLASS);
 
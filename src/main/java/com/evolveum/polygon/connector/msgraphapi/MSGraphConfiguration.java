@@ -11,12 +11,20 @@ import org.identityconnectors.framework.spi.ConfigurationProperty;
 import org.identityconnectors.framework.spi.StatefulConfiguration;
 
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
 
 
 public class MSGraphConfiguration extends AbstractConfiguration
         implements StatefulConfiguration {
 
     private static final Log LOG = Log.getLog(MSGraphConfiguration.class);
+    // Pages of a list request fetched ahead of the page being processed, every one of them is held in memory
+    static final int MAX_PREFETCH_PAGES = 2;
+    // Partitions of the full list of users are ranges of userPrincipalName split at digits and letters
+    static final int MAX_USER_LIST_PARTITIONS = 36;
+    static final String DEFAULT_API_URL = "https://graph.microsoft.com/v1.0";
+    static final String DEFAULT_AUTHORITY_URL = "https://login.microsoftonline.com";
     private String clientId;
     private GuardedString clientSecret = null;
     private String tenantId = null;
@@ -40,6 +48,27 @@ public class MSGraphConfiguration extends AbstractConfiguration
     private String privateKeyPath;
 
     private boolean treatNetIdAsAlreadyExists;
+
+    //connection pool
+    private Integer maxConnectionsTotal = 20;
+    private Integer maxConnectionsPerRoute = 20;
+    private Integer connectionIdleTimeout = 30;
+    private Integer connectionValidateAfterInactivity = 2000;
+    private Integer connectionKeepAlive = 60;
+    private Integer maxConcurrentRequests = 4;
+    private boolean adaptiveRateLimiting = true;
+    private Integer prefetchPages = 0;
+    private Integer roleAssignmentIndexTtl = 60;
+    private boolean groupMembershipIndex = false;
+    private String apiUrl = DEFAULT_API_URL;
+    private String authorityUrl = DEFAULT_AUTHORITY_URL;
+    private boolean metricsJmx = false;
+    private String metricsExporter;
+    private Integer metricsExportInterval = 60;
+    private Integer payloadLogSampling = 10;
+    private Integer payloadLogMaxLength = 2000;
+    private Integer attributeValueCacheTtl = 0;
+    private Integer userListPartitions = 0;
     private boolean validateWithFailoverTrust = true;
     private GraphConfigurationHandler configHandler = new GraphConfigurationHandler();
 
@@ -220,6 +249,120 @@ public class MSGraphConfiguration extends AbstractConfiguration
 
     public void setTreatNetIdAsAlreadyExists(boolean treatNetIdAsAlreadyExists) { this.treatNetIdAsAlreadyExists = treatNetIdAsAlreadyExists; }
 
+    @ConfigurationProperty(order = 160, displayMessageKey = "MaxConnectionsTotal.display", helpMessageKey = "MaxConnectionsTotal.help")
+
+    public Integer getMaxConnectionsTotal() { return maxConnectionsTotal; }
+
+    public void setMaxConnectionsTotal(Integer maxConnectionsTotal) { this.maxConnectionsTotal = maxConnectionsTotal; }
+
+    @ConfigurationProperty(order = 170, displayMessageKey = "MaxConnectionsPerRoute.display", helpMessageKey = "MaxConnectionsPerRoute.help")
+
+    public Integer getMaxConnectionsPerRoute() { return maxConnectionsPerRoute; }
+
+    public void setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) { this.maxConnectionsPerRoute = maxConnectionsPerRoute; }
+
+    @ConfigurationProperty(order = 180, displayMessageKey = "ConnectionIdleTimeout.display", helpMessageKey = "ConnectionIdleTimeout.help")
+
+    public Integer getConnectionIdleTimeout() { return connectionIdleTimeout; }
+
+    public void setConnectionIdleTimeout(Integer connectionIdleTimeout) { this.connectionIdleTimeout = connectionIdleTimeout; }
+
+    @ConfigurationProperty(order = 190, displayMessageKey = "ConnectionValidateAfterInactivity.display", helpMessageKey = "ConnectionValidateAfterInactivity.help")
+
+    public Integer getConnectionValidateAfterInactivity() { return connectionValidateAfterInactivity; }
+
+    public void setConnectionValidateAfterInactivity(Integer connectionValidateAfterInactivity) { this.connectionValidateAfterInactivity = connectionValidateAfterInactivity; }
+
+    @ConfigurationProperty(order = 200, displayMessageKey = "ConnectionKeepAlive.display", helpMessageKey = "ConnectionKeepAlive.help")
+
+    public Integer getConnectionKeepAlive() { return connectionKeepAlive; }
+
+    public void setConnectionKeepAlive(Integer connectionKeepAlive) { this.connectionKeepAlive = connectionKeepAlive; }
+
+    @ConfigurationProperty(order = 210, displayMessageKey = "MaxConcurrentRequests.display", helpMessageKey = "MaxConcurrentRequests.help")
+
+    public Integer getMaxConcurrentRequests() { return maxConcurrentRequests; }
+
+    public void setMaxConcurrentRequests(Integer maxConcurrentRequests) { this.maxConcurrentRequests = maxConcurrentRequests; }
+
+    @ConfigurationProperty(order = 220, displayMessageKey = "AdaptiveRateLimiting.display", helpMessageKey = "AdaptiveRateLimiting.help")
+
+    public boolean isAdaptiveRateLimiting() { return adaptiveRateLimiting; }
+
+    public void setAdaptiveRateLimiting(boolean adaptiveRateLimiting) { this.adaptiveRateLimiting = adaptiveRateLimiting; }
+
+    @ConfigurationProperty(order = 230, displayMessageKey = "PrefetchPages.display", helpMessageKey = "PrefetchPages.help")
+
+    public Integer getPrefetchPages() { return prefetchPages; }
+
+    public void setPrefetchPages(Integer prefetchPages) { this.prefetchPages = prefetchPages; }
+
+    @ConfigurationProperty(order = 240, displayMessageKey = "RoleAssignmentIndexTtl.display", helpMessageKey = "RoleAssignmentIndexTtl.help")
+
+    public Integer getRoleAssignmentIndexTtl() { return roleAssignmentIndexTtl; }
+
+    public void setRoleAssignmentIndexTtl(Integer roleAssignmentIndexTtl) { this.roleAssignmentIndexTtl = roleAssignmentIndexTtl; }
+
+    @ConfigurationProperty(order = 250, displayMessageKey = "GroupMembershipIndex.display", helpMessageKey = "GroupMembershipIndex.help")
+
+    public boolean isGroupMembershipIndex() { return groupMembershipIndex; }
+
+    public void setGroupMembershipIndex(boolean groupMembershipIndex) { this.groupMembershipIndex = groupMembershipIndex; }
+
+    @ConfigurationProperty(order = 260, displayMessageKey = "ApiUrl.display", helpMessageKey = "ApiUrl.help")
+
+    public String getApiUrl() { return apiUrl; }
+
+    public void setApiUrl(String apiUrl) { this.apiUrl = apiUrl; }
+
+    @ConfigurationProperty(order = 265, displayMessageKey = "AuthorityUrl.display", helpMessageKey = "AuthorityUrl.help")
+
+    public String getAuthorityUrl() { return authorityUrl; }
+
+    public void setAuthorityUrl(String authorityUrl) { this.authorityUrl = authorityUrl; }
+
+    @ConfigurationProperty(order = 270, displayMessageKey = "MetricsJmx.display", helpMessageKey = "MetricsJmx.help")
+
+    public boolean isMetricsJmx() { return metricsJmx; }
+
+    public void setMetricsJmx(boolean metricsJmx) { this.metricsJmx = metricsJmx; }
+
+    @ConfigurationProperty(order = 280, displayMessageKey = "MetricsExporter.display", helpMessageKey = "MetricsExporter.help")
+
+    public String getMetricsExporter() { return metricsExporter; }
+
+    public void setMetricsExporter(String metricsExporter) { this.metricsExporter = metricsExporter; }
+
+    @ConfigurationProperty(order = 290, displayMessageKey = "MetricsExportInterval.display", helpMessageKey = "MetricsExportInterval.help")
+
+    public Integer getMetricsExportInterval() { return metricsExportInterval; }
+
+    public void setMetricsExportInterval(Integer metricsExportInterval) { this.metricsExportInterval = metricsExportInterval; }
+
+    @ConfigurationProperty(order = 300, displayMessageKey = "PayloadLogSampling.display", helpMessageKey = "PayloadLogSampling.help")
+
+    public Integer getPayloadLogSampling() { return payloadLogSampling; }
+
+    public void setPayloadLogSampling(Integer payloadLogSampling) { this.payloadLogSampling = payloadLogSampling; }
+
+    @ConfigurationProperty(order = 310, displayMessageKey = "PayloadLogMaxLength.display", helpMessageKey = "PayloadLogMaxLength.help")
+
+    public Integer getPayloadLogMaxLength() { return payloadLogMaxLength; }
+
+    public void setPayloadLogMaxLength(Integer payloadLogMaxLength) { this.payloadLogMaxLength = payloadLogMaxLength; }
+
+    @ConfigurationProperty(order = 320, displayMessageKey = "AttributeValueCacheTtl.display", helpMessageKey = "AttributeValueCacheTtl.help")
+
+    public Integer getAttributeValueCacheTtl() { return attributeValueCacheTtl; }
+
+    public void setAttributeValueCacheTtl(Integer attributeValueCacheTtl) { this.attributeValueCacheTtl = attributeValueCacheTtl; }
+
+    @ConfigurationProperty(order = 330, displayMessageKey = "UserListPartitions.display", helpMessageKey = "UserListPartitions.help")
+
+    public Integer getUserListPartitions() { return userListPartitions; }
+
+    public void setUserListPartitions(Integer userListPartitions) { this.userListPartitions = userListPartitions; }
+
     @Override
     public void validate() {
         LOG.info("Processing trough configuration validation procedure.");
@@ -278,9 +421,107 @@ public class MSGraphConfiguration extends AbstractConfiguration
                     "a non negative number!");
         }
 
+        if (maxConnectionsTotal == null || maxConnectionsTotal <= 0) {
+
+            throw new ConfigurationException("The maximum number of pooled connections has to be a positive number!");
+        }
+
+        if (maxConnectionsPerRoute == null || maxConnectionsPerRoute <= 0) {
+
+            throw new ConfigurationException("The maximum number of pooled connections per route has to be a positive number!");
+        }
+
+        if (maxConnectionsPerRoute > maxConnectionsTotal) {
+
+            throw new ConfigurationException("The maximum number of pooled connections per route cannot exceed the " +
+                    "maximum number of pooled connections!");
+        }
+
+        if (connectionIdleTimeout == null || connectionIdleTimeout < 0) {
+
+            throw new ConfigurationException("The idle connection timeout has to be a non negative number!");
+        }
+
+        if (connectionValidateAfterInactivity == null || connectionValidateAfterInactivity < 0) {
+
+            throw new ConfigurationException("The connection validation period after inactivity has to be a non negative number!");
+        }
+
+        if (connectionKeepAlive == null || connectionKeepAlive < 0) {
+
+            throw new ConfigurationException("The connection keep-alive duration has to be a non negative number!");
+        }
+
+        if (maxConcurrentRequests == null || maxConcurrentRequests <= 0) {
+
+            throw new ConfigurationException("The maximum number of concurrent requests has to be a positive number!");
+        }
+
+        if (maxConcurrentRequests > maxConnectionsPerRoute) {
+
+            throw new ConfigurationException("The maximum number of concurrent requests cannot exceed the " +
+                    "maximum number of pooled connections per route!");
+        }
+
+        if (prefetchPages == null || prefetchPages < 0 || prefetchPages > MAX_PREFETCH_PAGES) {
+
+            throw new ConfigurationException("The number of prefetched pages has to be a number between 0 and "
+                    + MAX_PREFETCH_PAGES + "!");
+        }
+
+        if (roleAssignmentIndexTtl == null || roleAssignmentIndexTtl < 0) {
+
+            throw new ConfigurationException("The time to live of the role assignment index has to be a non negative number!");
+        }
+
+        validateUrl(apiUrl, "The Graph API URL");
+        validateUrl(authorityUrl, "The authority URL");
+
+        if (metricsExportInterval == null || metricsExportInterval < 0) {
+
+            throw new ConfigurationException("The metrics export interval has to be a non negative number!");
+        }
+
+        if (payloadLogSampling == null || payloadLogSampling < 0) {
+
+            throw new ConfigurationException("The payload log sampling has to be a non negative number!");
+        }
+
+        if (payloadLogMaxLength == null || payloadLogMaxLength < 0) {
+
+            throw new ConfigurationException("The payload log max length has to be a non negative number!");
+        }
+
+        if (attributeValueCacheTtl == null || attributeValueCacheTtl < 0) {
+
+            throw new ConfigurationException("The time to live of the attribute value cache has to be a non negative number!");
+        }
+
+        if (userListPartitions == null || userListPartitions < 0 || userListPartitions > MAX_USER_LIST_PARTITIONS) {
+
+            throw new ConfigurationException("The number of user list partitions has to be a number between 0 and "
+                    + MAX_USER_LIST_PARTITIONS + "!");
+        }
+
         LOG.info("Configuration valid");
     }
 
+    private static void validateUrl(String url, String name) {
+        if (StringUtil.isBlank(url)) {
+
+            throw new ConfigurationException(name + " cannot be empty!");
+        }
+        try {
+            URI uri = new URI(url);
+            if (!"https".equalsIgnoreCase(uri.getScheme()) && !"http".equalsIgnoreCase(uri.getScheme())
+                    || StringUtil.isBlank(uri.getHost()) || uri.getQuery() != null || uri.getFragment() != null) {
+                throw new ConfigurationException(name + " has to be an absolute http or https URL without a query!");
+            }
+        } catch (URISyntaxException e) {
+            throw new ConfigurationException(name + " is not a valid URL!", e);
+        }
+    }
+
     @Override
     public void release() {
         LOG.info("The release of configuration resources is being performed");
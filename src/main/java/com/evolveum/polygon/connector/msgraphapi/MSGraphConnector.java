@@ -3,6 +3,8 @@
 package com.evolveum.polygon.connector.msgraphapi;
 
 import com.evolveum.polygon.connector.msgraphapi.util.FilterHandler;
+import com.evolveum.polygon.connector.msgraphapi.util.PayloadLog;
+import com.evolveum.polygon.connector.msgraphapi.util.RequestMetrics;
 import com.evolveum.polygon.connector.msgraphapi.util.ResourceQuery;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
@@ -20,6 +22,7 @@ import org.identityconnectors.framework.spi.Configuration;
 import org.identityconnectors.framework.spi.Connector;
 import org.identityconnectors.framework.spi.ConnectorClass;
 import org.identityconnectors.framework.spi.PoolableConnector;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
 import org.identityconnectors.framework.spi.operations.*;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -29,6 +32,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 
 @ConnectorClass(displayNameKey = "msgraphconnector.connector.display", configurationClass = MSGraphConfiguration.class)
@@ -50,16 +54,31 @@ public class MSGraphConnector implements Connector,
     private static final String USERS = "/users";
     private static final String GROUPS = "/groups";
 
+    // Connector operations the requests are tagged with in the request metrics
+    private static final String OPERATION_CREATE = "create";
+    private static final String OPERATION_UPDATE = "update";
+    private static final String OPERATION_DELETE = "delete";
+    private static final String OPERATION_SEARCH = "search";
+    private static final String OPERATION_SYNC = "sync";
+    private static final String OPERATION_TEST = "test";
+
     private GraphEndpoint graphEndpoint = null;
 
     public GraphEndpoint getGraphEndpoint() {
         if (graphEndpoint == null) {
-            // Cache
-            graphEndpoint = new GraphEndpoint(configuration);
+            // Shared with the other connector instances of the same configuration
+            graphEndpoint = GraphEndpointRegistry.getInstance().acquire(configuration);
         }
         return graphEndpoint;
     }
 
+    private void releaseGraphEndpoint() {
+        if (graphEndpoint != null) {
+            GraphEndpointRegistry.getInstance().release(graphEndpoint);
+            graphEndpoint = null;
+        }
+    }
+
     @Override
     public Configuration getConfiguration() {
         return configuration;
@@ -79,14 +98,17 @@ public class MSGraphConnector implements Connector,
 
         configuration = null;
 
-        if (graphEndpoint != null) {
-            graphEndpoint.close();
-            graphEndpoint = null;
-        }
+        releaseGraphEndpoint();
     }
 
     @Override
     public Uid create(ObjectClass objectClass, Set<Attribute> attributes, OperationOptions operationOptions) {
+        try (RequestMetrics.Operation ignored = RequestMetrics.startOperation(OPERATION_CREATE)) {
+            return doCreate(objectClass, attributes, operationOptions);
+        }
+    }
+
+    private Uid doCreate(ObjectClass objectClass, Set<Attribute> attributes, OperationOptions operationOptions) {
         validateObjectClass(objectClass);
         if (attributes == null || attributes.isEmpty()) {
             LOG.error("Attribute of type Set<Attribute> not provided or empty.");
@@ -113,6 +135,12 @@ public class MSGraphConnector implements Connector,
 
     @Override
     public void delete(ObjectClass objectClass, Uid uid, OperationOptions operationOptions) {
+        try (RequestMetrics.Operation ignored = RequestMetrics.startOperation(OPERATION_DELETE)) {
+            doDelete(objectClass, uid, operationOptions);
+        }
+    }
+
+    private void doDelete(ObjectClass objectClass, Uid uid, OperationOptions operationOptions) {
 
         if (uid.getUidValue() == null) {
             StringBuilder sb = new StringBuilder();
@@ -161,46 +189,60 @@ public class MSGraphConnector implements Connector,
         };
     }
     public SyncToken getLatestSyncToken(ObjectClass objectClass, OperationOptions oo) {
+        try (RequestMetrics.Operation ignored = RequestMetrics.startOperation(OPERATION_SYNC)) {
+            return doGetLatestSyncToken(objectClass, oo);
+        }
+    }
+
+    private SyncToken doGetLatestSyncToken(ObjectClass objectClass, OperationOptions oo) {
 
         LOG.ok("Evaluation of getLatestSyncToken method with operation options set to: {0}", oo);
         if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
 
-            String getPath = USERS + "/microsoft.graph.delta";
-            String customQuery = "$deltaToken=latest";
-            GraphEndpoint endpoint = getGraphEndpoint();
-            UserProcessing up = new UserProcessing(endpoint, getSchemaTranslator());
-
-            String selector = up.getSelectorSingle(oo);
+            return requestLatestSyncToken(USERS + "/microsoft.graph.delta", null);
 
-           // LOG.ok("Fetching latest token with following selector: {0}", selector);
+        } else if (objectClass.is(ObjectClass.GROUP_NAME)) {
 
-            URIBuilder uriBuilder = endpoint.createURIBuilder().clearParameters();
-            uriBuilder.setCustomQuery(customQuery + "&" + selector);
-            uriBuilder.setCustomQuery(customQuery);
-            uriBuilder.setPath(getPath);
-            LOG.info("Get latest sync token uri is {0} ", uriBuilder);
-            try {
-                URI uri = uriBuilder.build();
-                HttpGet syncTokenRequest = new HttpGet(uri);
-                JSONObject syncTokenJson = endpoint.callRequest(syncTokenRequest, true);
-                LOG.info("SyncToken JSON content {0}", syncTokenJson);
-                String deltaLink = syncTokenJson.getString("@odata.deltaLink");
-                return new SyncToken(deltaLink);
-            } catch (URISyntaxException e) {
-                StringBuilder sb = new StringBuilder();
-                sb.append("It was not possible create URI from UriBuider:").append(uriBuilder).append(";")
-                        .append(e.getLocalizedMessage());
-                throw new ConnectorException(sb.toString(), e);
-            }
+            GroupProcessing groupProcessor = new GroupProcessing(getGraphEndpoint());
+            return requestLatestSyncToken(GROUPS + "/microsoft.graph.delta", groupProcessor.getDeltaSelector(oo));
 
         } else {
-            LOG.error("Attribute of type ObjectClass is not supported. Only Account objectclass is supported for getLatestSyncToken currently.");
-            throw new UnsupportedOperationException("Attribute of type ObjectClass is not supported. Only Account objectclass is supported for getLatestSyncToken currently.");
+            LOG.error("Attribute of type ObjectClass is not supported. Only Account and Group objectclasses are supported for getLatestSyncToken currently.");
+            throw new UnsupportedOperationException("Attribute of type ObjectClass is not supported. Only Account and Group objectclasses are supported for getLatestSyncToken currently.");
+        }
+    }
+
+    private SyncToken requestLatestSyncToken(String getPath, String selector) {
+        String customQuery = "$deltaToken=latest";
+        GraphEndpoint endpoint = getGraphEndpoint();
+
+        URIBuilder uriBuilder = endpoint.createURIBuilder().clearParameters();
+        uriBuilder.setCustomQuery(selector == null ? customQuery : customQuery + "&" + selector);
+        uriBuilder.setPath(getPath);
+        LOG.info("Get latest sync token uri is {0} ", uriBuilder);
+        try {
+            URI uri = uriBuilder.build();
+            HttpGet syncTokenRequest = new HttpGet(uri);
+            JSONObject syncTokenJson = endpoint.callRequest(syncTokenRequest, true);
+            LOG.ok("SyncToken JSON content {0}", syncTokenJson);
+            String deltaLink = syncTokenJson.getString("@odata.deltaLink");
+            return new SyncToken(deltaLink);
+        } catch (URISyntaxException e) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("It was not possible create URI from UriBuider:").append(uriBuilder).append(";")
+                    .append(e.getLocalizedMessage());
+            throw new ConnectorException(sb.toString(), e);
         }
     }
 
     @Override
     public void sync(ObjectClass objectClass, SyncToken fromToken, SyncResultsHandler handler, OperationOptions oo) {
+        try (RequestMetrics.Operation ignored = RequestMetrics.startOperation(OPERATION_SYNC)) {
+            doSync(objectClass, fromToken, handler, oo);
+        }
+    }
+
+    private void doSync(ObjectClass objectClass, SyncToken fromToken, SyncResultsHandler handler, OperationOptions oo) {
 
         LOG.ok("Evaluation of SYNC op method regarding the object class {0} with the following options: {1}",objectClass
                 , oo);
@@ -215,135 +257,163 @@ public class MSGraphConnector implements Connector,
             LOG.info("sync ObjectClass is " + objectClass.getObjectClassValue() + "--");
             LOG.ok("fromToken value is " + fromToken);
 
-            GraphEndpoint endpoint = getGraphEndpoint();
             UserProcessing userProcessor = new UserProcessing(getGraphEndpoint(), getSchemaTranslator());
             String selector = userProcessor.getSelectorSingle(oo);
-            String nextDeltaLink = new String();
             String tokenValue = (String) fromToken.getValue();
             LOG.ok("Selector value: " +selector);
 
             LOG.ok("Token and selector pair:" + tokenValue+"&"+selector);
 
-            HttpRequestBase request = new HttpGet(tokenValue+"&"+selector);
-            //request.setRetryHandler(new StandardHttpRequestRetryHandler(5, true));
-            JSONObject firstCall = endpoint.callRequest(request, true);
-            JSONArray value = new JSONArray();
-            String nextLink = new String();
-            //JSONObject values = new JSONObject();
-            boolean morePages = false;
-            if (firstCall.has("@odata.nextLink") && firstCall.getString("@odata.nextLink") != null && !firstCall.getString("@odata.nextLink").isEmpty()) {
-                morePages = true;
-                nextLink = firstCall.getString("@odata.nextLink");
-                LOG.ok("nextLink: {0} ; firstCall: {1} ", nextLink, firstCall);
-            } else {
-                morePages = false;
-                LOG.info("No nextLink defined, final page was firstCall");
-                nextDeltaLink = firstCall.getString("@odata.deltaLink");
+            // Resolved once for the whole sync
+            boolean hasToGetManager = userProcessor.getAttributesToGet(oo).contains("manager.id");
+            syncDeltaPages(tokenValue, selector, handler,
+                    user -> createUserSyncDelta(userProcessor, user, oo, hasToGetManager));
+
+        } else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+            if (fromToken == null) {
+
+                LOG.ok("Empty token, fetching latest sync token");
+                fromToken = getLatestSyncToken(objectClass, oo);
             }
-            if (firstCall.has("value") && firstCall.get("value") != null) {
-                //value.addAll(firstCall.getJSONArray("value"));
-                for (int i = 0; i < firstCall.getJSONArray("value").length(); i++) {
-                    value.put(firstCall.getJSONArray("value").get(i));
-                }
-                LOG.ok("firstCall: {0} ", firstCall);
+            LOG.info("Starting sync operation of groups from token {0}", fromToken);
+
+            GroupProcessing groupProcessor = new GroupProcessing(getGraphEndpoint());
+            String selector = groupProcessor.getDeltaSelector(oo);
+            AttributePlan plan = oo == null ? null : groupProcessor.getAttributePlan(oo);
+
+            syncDeltaPages((String) fromToken.getValue(), selector, handler,
+                    group -> groupProcessor.createSyncDelta(group, plan));
+
+        } else {
+            LOG.error("Attribute of type ObjectClass is not supported. Only Account and Group objectclasses are supported for SyncOp currently.");
+            throw new UnsupportedOperationException("Attribute of type ObjectClass is not supported. Only Account and Group objectclasses are supported for SyncOp currently.");
+        }
+
+    }
+
+    /**
+     * Reads the delta query page by page and hands the deltas of each page to the handler before the next page is
+     * requested. The deltas of a page carry the link of that page as their token, except the last one, which carries
+     * the link of the next page, or the final delta link. A sync interrupted in the middle of a page is therefore
+     * resumed from the beginning of that page.
+     *
+     * @param link      delta link or next link to start with
+     * @param selector  query parameters added to every page request
+     * @param converter creates the delta builder of one changed object, null if the object is to be skipped
+     */
+    private void syncDeltaPages(String link, String selector, SyncResultsHandler handler,
+                                Function<JSONObject, SyncDeltaBuilder> converter) {
+        GraphEndpoint endpoint = getGraphEndpoint();
+        String deltaLink = null;
+
+        while (link != null) {
+            HttpRequestBase request = new HttpGet(link + "&" + selector);
+            LOG.ok("Delta page request {0}", request);
+            JSONObject page = endpoint.callRequest(request, true);
+
+            String nextLink = null;
+            if (page.has("@odata.nextLink") && page.getString("@odata.nextLink") != null
+                    && !page.getString("@odata.nextLink").isEmpty()) {
+                nextLink = page.getString("@odata.nextLink");
+                LOG.ok("nextLink: {0}", nextLink);
             } else {
-                LOG.info("firstCall contained no value object or the object was null");
+                LOG.ok("No nextLink defined, final page");
+                deltaLink = page.getString("@odata.deltaLink");
             }
-            while (morePages == true) {
-                JSONObject nextLinkJson = new JSONObject();
-                HttpRequestBase nextLinkUriRequest = new HttpGet(nextLink+"&"+selector);
-                LOG.ok("nextLinkUriRequest {0}", nextLinkUriRequest);
-                nextLinkJson = endpoint.callRequest(nextLinkUriRequest, true);
-                if (nextLinkJson.has("@odata.nextLink") && nextLinkJson.getString("@odata.nextLink") != null &&
-                        !nextLinkJson.getString("@odata.nextLink").isEmpty()) {
-
-                    morePages = true;
-                    nextLink = nextLinkJson.getString("@odata.nextLink");
-                    LOG.ok("nextLink: {0} ; nextLinkJson: {1} ", nextLink, nextLinkJson);
-                } else {
-                    morePages = false;
-                    LOG.info("No nextLink defined, final page");
-                    nextDeltaLink = nextLinkJson.getString("@odata.deltaLink");
-                }
-                if (nextLinkJson.has("value") && nextLinkJson.get("value") != null) {
-                    //value.addAll(nextLinkJson.getJSONArray("value"));
-                    for (int i = 0; i < nextLinkJson.getJSONArray("value").length(); i++) {
-                        value.put(nextLinkJson.getJSONArray("value").get(i));
+
+            List<SyncDeltaBuilder> deltas = new ArrayList<>();
+            if (page.has("value") && page.get("value") != null) {
+                JSONArray value = page.getJSONArray("value");
+                LOG.ok("JSONArray length of the delta page: {0}", value.length());
+                for (int i = 0; i < value.length(); i++) {
+                    SyncDeltaBuilder delta = converter.apply(value.getJSONObject(i));
+                    if (delta != null) {
+                        deltas.add(delta);
                     }
-                    LOG.ok("nextLinkJson: {0} ", nextLinkJson);
-                } else {
-                    LOG.info("nextLinkJson contained no value object or the object was null");
                 }
+            } else {
+                LOG.info("Delta page contained no value object or the object was null");
             }
-            //values.put("value",value);
-            SyncToken nextLinkSyncToken = new SyncToken(nextDeltaLink);
-            int length = value.length();
-            LOG.info("User JSONArray length for SyncOp: {0}", length);
-
-            for (int i = 0; i < length; i++) {
-                JSONObject user = value.getJSONObject(i);
-
-                String userUID = userProcessor.getUIDIfExists(user);
-
-                LOG.info("Processing user json object, {0}", user);
 
-                ConnectorObjectBuilder userConnectorObjectBuilder;
-                SyncDeltaBuilder builder = new SyncDeltaBuilder();
-                builder.setObjectClass(ObjectClass.ACCOUNT);
+            SyncToken pageToken = new SyncToken(link);
+            SyncToken followingToken = new SyncToken(nextLink != null ? nextLink : deltaLink);
+            for (int i = 0; i < deltas.size(); i++) {
+                SyncDelta delta = deltas.get(i).setToken(i == deltas.size() - 1 ? followingToken : pageToken).build();
 
-                if (userProcessor.isDeleteDelta(user)){
+                LOG.ok("Sync operation -> Object handler execution for the object {0} ", delta.getUid());
+                if (!handler.handle(delta)) {
+                    LOG.info("Sync operation stopped by the handler");
+                    return;
+                }
+            }
+            // A page without deltas still advances the token, the sync interrupted later resumes after it
+            if (deltas.isEmpty() && nextLink != null && handler instanceof SyncTokenResultsHandler) {
+                ((SyncTokenResultsHandler) handler).handleResult(followingToken);
+            }
 
-                    LOG.info("Sync operation: Processing Delete delta for the User: {0} ", userUID);
+            link = nextLink;
+        }
 
-                    builder.setDeltaType(SyncDeltaType.DELETE);
-                    builder.setUid(new Uid(userUID));
+        if (handler instanceof SyncTokenResultsHandler) {
+            ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(deltaLink));
+        }
+    }
 
-                } else {
+    private SyncDeltaBuilder createUserSyncDelta(UserProcessing userProcessor, JSONObject user, OperationOptions oo,
+                                                 boolean hasToGetManager) {
+        String userUID = userProcessor.getUIDIfExists(user);
 
-                    LOG.info("Sync operation: Processing Create or Update delta for the User: {0} ", userUID);
-                    if (!userProcessor.isNamePresent(user)){
+        PayloadLog payloadLog = getGraphEndpoint().getPayloadLog();
+        if (payloadLog.sample(LOG)) {
+            LOG.ok("Processing user json object, {0}", payloadLog.format(user));
+        }
 
-                        continue;
-                    }
+        ConnectorObjectBuilder userConnectorObjectBuilder;
+        SyncDeltaBuilder builder = new SyncDeltaBuilder();
+        builder.setObjectClass(ObjectClass.ACCOUNT);
 
+        if (userProcessor.isDeleteDelta(user)){
 
-                    Set<String> deltableItems = userProcessor.getObjectDeltaItems();
-                    AtomicReference<Boolean> fetchedConainsDeltables = new AtomicReference<>(false);
-                    deltableItems.forEach(item -> fetchedConainsDeltables.set(user.has(item)));
+            LOG.ok("Sync operation: Processing Delete delta for the User: {0} ", userUID);
 
-                    Boolean hasToGetManager = userProcessor.getAttributesToGet(oo).contains("manager.id");
-                    if (hasToGetManager && !fetchedConainsDeltables.get()) {
+            builder.setDeltaType(SyncDeltaType.DELETE);
+            builder.setUid(new Uid(userUID));
+            getGraphEndpoint().getAttributeValueCache().invalidate(userUID);
 
-                        userConnectorObjectBuilder = userProcessor.
-                                evaluateAndFetchAttributesToGet(new Uid(userUID), oo);
-                    } else {
+        } else {
 
-                        userConnectorObjectBuilder = userProcessor.convertUserJSONObjectToConnectorObject(user);
-                        if (hasToGetManager) {
+            LOG.ok("Sync operation: Processing Create or Update delta for the User: {0} ", userUID);
+            if (!userProcessor.isNamePresent(user)){
 
-                            userProcessor.enhanceConnectorObjectWithDeltaItems(user, userConnectorObjectBuilder);
-                        }
-                    }
+                return null;
+            }
+            getGraphEndpoint().getAttributeValueCache().put(userUID, user,
+                    UserProcessing.UPDATABLE_MULTIPLE_VALUE_ATTRS_OF_USER);
 
-                    builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
-                    builder.setObject(userConnectorObjectBuilder.build());
 
-                }
+            Set<String> deltableItems = userProcessor.getObjectDeltaItems();
+            AtomicReference<Boolean> fetchedConainsDeltables = new AtomicReference<>(false);
+            deltableItems.forEach(item -> fetchedConainsDeltables.set(user.has(item)));
 
-                builder.setToken(nextLinkSyncToken);
+            if (hasToGetManager && !fetchedConainsDeltables.get()) {
 
-                LOG.ok("Sync operation -> Object handler execution for the User object {0} ", userUID);
+                userConnectorObjectBuilder = userProcessor.
+                        evaluateAndFetchAttributesToGet(new Uid(userUID), oo);
+            } else {
 
-                handler.handle(builder.build());
+                userConnectorObjectBuilder = userProcessor.convertUserJSONObjectToConnectorObject(user);
+                if (hasToGetManager) {
 
+                    userProcessor.enhanceConnectorObjectWithDeltaItems(user, userConnectorObjectBuilder);
+                }
             }
 
+            builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+            builder.setObject(userConnectorObjectBuilder.build());
 
-        } else {
-            LOG.error("Attribute of type ObjectClass is not supported. Only Account objectclass is supported for SyncOp currently.");
-            throw new UnsupportedOperationException("Attribute of type ObjectClass is not supported. Only Account objectclass is supported for SyncOp currently.");
         }
 
+        return builder;
     }
 
     //TODO remove
@@ -367,6 +437,12 @@ public class MSGraphConnector implements Connector,
 
     @Override
     public void executeQuery(ObjectClass objectClass, Filter query, ResultsHandler handler, OperationOptions options) {
+        try (RequestMetrics.Operation ignored = RequestMetrics.startOperation(OPERATION_SEARCH)) {
+            doExecuteQuery(objectClass, query, handler, options);
+        }
+    }
+
+    private void doExecuteQuery(ObjectClass objectClass, Filter query, ResultsHandler handler, OperationOptions options) {
         if (objectClass == null) {
             LOG.error("Attribute of type ObjectClass not provided.");
             throw new InvalidAttributeValueException("Attribute of type ObjectClass is not provided.");
@@ -492,6 +568,12 @@ public class MSGraphConnector implements Connector,
 
     @Override
     public void test() {
+        try (RequestMetrics.Operation ignored = RequestMetrics.startOperation(OPERATION_TEST)) {
+            doTest();
+        }
+    }
+
+    private void doTest() {
         final GraphEndpoint endpoint = getGraphEndpoint();
         LOG.info("Start test.");
         final URIBuilder uriBuilder = endpoint.createURIBuilder();
@@ -509,6 +591,12 @@ public class MSGraphConnector implements Connector,
 
     @Override
     public Set<AttributeDelta> updateDelta(ObjectClass objectClass, Uid uid, Set<AttributeDelta> attrsDelta, OperationOptions options) {
+        try (RequestMetrics.Operation ignored = RequestMetrics.startOperation(OPERATION_UPDATE)) {
+            return doUpdateDelta(objectClass, uid, attrsDelta, options);
+        }
+    }
+
+    private Set<AttributeDelta> doUpdateDelta(ObjectClass objectClass, Uid uid, Set<AttributeDelta> attrsDelta, OperationOptions options) {
         validateObjectClassAndUID(objectClass, uid);
 
         if (attrsDelta == null || attrsDelta.isEmpty()) {
@@ -520,7 +608,7 @@ public class MSGraphConnector implements Connector,
             LOG.error("Parameter of type OperationOptions not provided.");
             throw new InvalidAttributeValueException("Parameter of type OperationOptions not provided.");
         }
-        LOG.info("UpdateDelta with ObjectClass: {0} , uid: {1} , attrsDelta: {2} , options: {3}  ", objectClass, uid, attrsDelta, options);
+        LOG.info("UpdateDelta with ObjectClass: {0} , uid: {1} , options: {2}  ", objectClass, uid, options);
 
         if (objectClass.is(ObjectClass.ACCOUNT_NAME)) { // __ACCOUNT__
             UserProcessing userProcessing = new UserProcessing(getGraphEndpoint(), getSchemaTranslator());
@@ -565,6 +653,7 @@ public class MSGraphConnector implements Connector,
 
         LOG.info("Starting graph endpoint instance as part of Partial configuration test while leveraging default" +
                 " Java truststore in case of environment trustStore returns with exception");
+        releaseGraphEndpoint();
         graphEndpoint = new GraphEndpoint(configuration, true);
         LOG.info("Execution of default test method");
         test();
@@ -579,6 +668,7 @@ public class MSGraphConnector implements Connector,
             try {
 
             configuration.setValidateWithFailoverTrust(false);
+            releaseGraphEndpoint();
             graphEndpoint = new GraphEndpoint(configuration);
              } catch (ConnectionFailedException e){
 
@@ -0,0 +1,213 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mapping of the properties of a Graph API object to the attributes of a connector object: the attribute name,
+ * the JSON path of its value, the value type and the converter of the value. The mapping is compiled once for
+ * an object class, the conversion then visits only the properties present in the JSON object and skips
+ * the attributes which are not to be got.
+ */
+public final class ObjectMapping {
+
+    @FunctionalInterface
+    private interface Converter {
+        void convert(String attrName, JSONObject object, Object value, ConnectorObjectBuilder builder);
+    }
+
+    private static final class Mapping {
+        private final String attrName;
+        private final Converter converter;
+
+        private Mapping(String attrName, Converter converter) {
+            this.attrName = attrName;
+            this.converter = converter;
+        }
+    }
+
+    // Mappings by the top level property of the JSON object, one property may hold more attributes
+    private final Map<String, Mapping[]> mappings;
+
+    private ObjectMapping(Map<String, List<Mapping>> mappings) {
+        Map<String, Mapping[]> compiled = new HashMap<>();
+        mappings.forEach((key, list) -> compiled.put(key, list.toArray(new Mapping[0])));
+        this.mappings = Collections.unmodifiableMap(compiled);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Adds the attributes mapped from the properties of the object to the builder.
+     *
+     * @param plan attributes to get, all the mapped attributes are added when null or not restricted
+     */
+    public void convert(JSONObject object, AttributePlan plan, ConnectorObjectBuilder builder) {
+        final boolean all = plan == null || plan.getAttributesToGet().isEmpty();
+        for (String key : object.keySet()) {
+            Mapping[] keyMappings = mappings.get(key);
+            if (keyMappings == null) {
+                continue;
+            }
+            Object value = object.opt(key);
+            if (value == null) {
+                continue;
+            }
+            for (Mapping mapping : keyMappings) {
+                if (all || plan.contains(mapping.attrName)) {
+                    mapping.converter.convert(mapping.attrName, object, value, builder);
+                }
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        private final Map<String, List<Mapping>> mappings = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Single value of the property of the same name.
+         */
+        public Builder single(String attrName, Class<?> type) {
+            return single(attrName, attrName, type);
+        }
+
+        /**
+         * Single value of the property, String values are unescaped and byte arrays decoded from Base64.
+         */
+        public Builder single(String jsonKey, String attrName, Class<?> type) {
+            return add(jsonKey, attrName, (name, object, value, builder) -> {
+                if (isEmpty(value)) {
+                    return;
+                }
+                if (type.equals(String.class)) {
+                    addValue(builder, name, String.valueOf(value));
+                } else if (type.equals(byte[].class)) {
+                    addValue(builder, name, Base64.getDecoder().decode(String.valueOf(value)));
+                } else {
+                    addValue(builder, name, value);
+                }
+            });
+        }
+
+        /**
+         * Multiple values of the property of the same name, the property has to be an array.
+         */
+        public Builder multi(String attrName) {
+            return add(attrName, attrName, (name, object, value, builder) -> {
+                if (JSONObject.NULL.equals(value)) {
+                    return;
+                }
+                if (!(value instanceof JSONArray)) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("Unsupported value: ").append(value).append(" for attribute name:").append(name)
+                            .append(" from: ").append(object);
+                    throw new InvalidAttributeValueException(sb.toString());
+                }
+                JSONArray array = (JSONArray) value;
+                List<String> values = new ArrayList<>(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    values.add(String.valueOf(array.get(i)));
+                }
+                builder.addAttribute(name, values.toArray());
+            });
+        }
+
+        /**
+         * Value of the property of the nested object, e.g. "onPremisesExtensionAttributes.extensionAttribute1".
+         * The attribute is present, possibly without a value, whenever the nested object is.
+         */
+        public Builder item(String jsonKey, String subKey, Class<?> type) {
+            return add(jsonKey, jsonKey + "." + subKey, (name, object, value, builder) -> {
+                if (value instanceof JSONObject) {
+                    builder.addAttribute(name, getValue((JSONObject) value, subKey, type));
+                }
+            });
+        }
+
+        /**
+         * Value of the property of the nested object, e.g. "manager.id", the attribute is present only
+         * when the nested object has the value.
+         */
+        public Builder objectItem(String jsonKey, String subKey, Class<?> type) {
+            return add(jsonKey, jsonKey + "." + subKey, (name, object, value, builder) -> {
+                if (value instanceof JSONObject) {
+                    Object subValue = getValue((JSONObject) value, subKey, type);
+                    if (subValue != null) {
+                        builder.addAttribute(name, subValue);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Values of the property of the objects in the array, e.g. "assignedLicenses.skuId".
+         */
+        public Builder arrayItems(String jsonKey, String subKey, Class<?> type) {
+            return add(jsonKey, jsonKey + "." + subKey, (name, object, value, builder) -> {
+                if (value instanceof JSONArray) {
+                    JSONArray array = (JSONArray) value;
+                    List<Object> values = new ArrayList<>(array.length());
+                    for (int i = 0; i < array.length(); i++) {
+                        Object item = array.get(i);
+                        if (item instanceof JSONObject) {
+                            Object subValue = getValue((JSONObject) item, subKey, type);
+                            if (subValue != null) {
+                                values.add(subValue);
+                            }
+                        }
+                    }
+                    builder.addAttribute(name, values.toArray());
+                }
+            });
+        }
+
+        public ObjectMapping build() {
+            return new ObjectMapping(mappings);
+        }
+
+        private Builder add(String jsonKey, String attrName, Converter converter) {
+            List<Mapping> keyMappings = mappings.computeIfAbsent(jsonKey, key -> new ArrayList<>());
+            // the later mapping of the same attribute replaces the former one
+            keyMappings.removeIf(mapping -> mapping.attrName.equals(attrName));
+            keyMappings.add(new Mapping(attrName, converter));
+            return this;
+        }
+    }
+
+    private static boolean isEmpty(Object value) {
+        return JSONObject.NULL.equals(value) || String.valueOf(value).isEmpty();
+    }
+
+    private static Object getValue(JSONObject object, String key, Class<?> type) {
+        Object value = object.opt(key);
+        if (value == null || isEmpty(value)) {
+            return null;
+        }
+        return type.equals(String.class) ? String.valueOf(value) : value;
+    }
+
+    private static void addValue(ConnectorObjectBuilder builder, String attrName, Object value) {
+        if (value instanceof String) {
+            builder.addAttribute(attrName, StringEscapeUtils.unescapeXml((String) value));
+        } else {
+            builder.addAttribute(attrName, value);
+        }
+    }
+}
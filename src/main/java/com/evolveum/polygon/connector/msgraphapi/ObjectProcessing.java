@@ -1,10 +1,17 @@
 package com.evolveum.polygon.connector.msgraphapi;
 
+import com.evolveum.polygon.connector.msgraphapi.util.AttributeValueCache;
+import com.evolveum.polygon.connector.msgraphapi.util.PayloadLog;
+import com.evolveum.polygon.connector.msgraphapi.util.RequestMetrics;
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpPatch;
 import org.identityconnectors.common.CollectionUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.PreconditionFailedException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.AttributeFilter;
 import org.identityconnectors.framework.common.objects.filter.Filter;
@@ -12,7 +19,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.net.URI;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 abstract class ObjectProcessing {
@@ -30,6 +39,9 @@ abstract class ObjectProcessing {
     protected static final String TOP = "$top";
     protected static final String STARTSWITH = "startswith";
     protected static final String O_DELTA = "@delta";
+    protected static final String O_REMOVED = "@removed";
+    // Error code of a missing object or reference
+    private static final String ERROR_RESOURCE_NOT_FOUND = "Request_ResourceNotFound";
     private ICFPostMapper postMapper;
     private GraphEndpoint graphEndpoint;
 
@@ -52,6 +64,10 @@ abstract class ObjectProcessing {
         return graphEndpoint.getSchemaTranslator();
     }
 
+    protected PayloadLog getPayloadLog() {
+        return graphEndpoint.getPayloadLog();
+    }
+
     public MSGraphConfiguration getConfiguration() {
         return graphEndpoint.getConfiguration();
     }
@@ -130,7 +146,7 @@ abstract class ObjectProcessing {
 
     protected Object getIdFromAssignmentObject(JSONArray value, String attrName, Class<?> type) {
         int length = value.length();
-        LOG.info("JSON Object length: {0}", length);
+        LOG.ok("JSON Object length: {0}", length);
 
         if (length == 1) {
             JSONObject assignmentObject = value.getJSONObject(0);
@@ -143,7 +159,7 @@ abstract class ObjectProcessing {
                 return null;
             }
         } else {
-            LOG.info("JSON Object should have size exactly 1");
+            LOG.ok("JSON Object should have size exactly 1");
             return null;
         }
     }
@@ -350,7 +366,7 @@ abstract class ObjectProcessing {
             }
 
             boolean isMultiValue = isAttributeMultiValues(attribute.getName());
-            LOG.info("attribute {0} isMultiValue {1}", attribute, isMultiValue);
+            LOG.ok("attribute {0} isMultiValue {1}", attribute.getName(), isMultiValue);
 
             String key = attributePath[attributePath.length - 1];
 
@@ -372,6 +388,253 @@ abstract class ObjectProcessing {
         return json;
     }
 
+    /**
+     * Patches the object by the attribute deltas. Graph replaces the whole collection of a multi-valued attribute,
+     * so the values added or removed are merged with the current values. The current values are taken from
+     * the {@link AttributeValueCache} when fresh, otherwise they are read by a GET before the PATCH. When the cached
+     * values turn out to be outdated by a failed precondition, they are read and merged again.
+     * <p>
+     * The merged values equal to the current ones are not sent, and no PATCH is sent at all when the update
+     * would not change anything, e.g. for the deltas of a recompute adding the values already present. Only the values
+     * read by a GET are trusted for that, when the update would not change the cached values, they are read again.
+     *
+     * @param path        path of the object, e.g. "/users/{id}"
+     * @param mergedAttrs multi-valued attributes, whose values are added or removed by the deltas
+     */
+    protected void patchMerged(String path, Uid uid, Set<AttributeDelta> attrsDelta, List<String> mergedAttrs,
+                               Set<String> excludeAttrs, Set<String> separatedAttrs, OperationOptions options) {
+        final AttributeValueCache cache = getGraphEndpoint().getAttributeValueCache();
+        final String id = uid.getUidValue();
+
+        AttributeValueCache.Values cached = mergedAttrs.isEmpty() ? null : cache.get(id, mergedAttrs);
+        JSONObject oldJson = null;
+        if (cached != null) {
+            LOG.ok("Merging the values of {0} with the cached ones, object {1}", mergedAttrs, id);
+            oldJson = cached.getJson();
+        } else if (!mergedAttrs.isEmpty()) {
+            oldJson = readValuesToMerge(path, mergedAttrs, options);
+            cache.put(id, oldJson, mergedAttrs);
+        }
+
+        List<JSONObject> jsonObjects = buildLayeredAttribute(oldJson, attrsDelta, excludeAttrs, separatedAttrs);
+        if (cached != null && !jsonObjects.isEmpty() && wouldNotChange(jsonObjects, oldJson)) {
+            // The cached values are not verified by the server, the PATCH is suppressed only by the current ones
+            LOG.ok("Update of {0} does not change the cached values of {1}, reading them again", path, mergedAttrs);
+            cache.invalidate(id);
+            cached = null;
+            oldJson = readValuesToMerge(path, mergedAttrs, options);
+            cache.put(id, oldJson, mergedAttrs);
+            jsonObjects = buildLayeredAttribute(oldJson, attrsDelta, excludeAttrs, separatedAttrs);
+        }
+        if (cached == null && suppressUnchanged(path, jsonObjects, oldJson)) {
+            return;
+        }
+        try {
+            patch(path, jsonObjects, cached == null ? null : cached.getETag());
+        } catch (PreconditionFailedException e) {
+            cache.invalidate(id);
+            if (cached == null) {
+                throw e;
+            }
+            LOG.ok("Cached values of {0} are outdated, object {1}, reading them again", mergedAttrs, id);
+            oldJson = readValuesToMerge(path, mergedAttrs, options);
+            jsonObjects = buildLayeredAttribute(oldJson, attrsDelta, excludeAttrs, separatedAttrs);
+            if (suppressUnchanged(path, jsonObjects, oldJson)) {
+                cache.put(id, oldJson, mergedAttrs);
+                return;
+            }
+            patch(path, jsonObjects, null);
+        } catch (RuntimeException e) {
+            cache.invalidate(id);
+            throw e;
+        }
+
+        if (!jsonObjects.isEmpty()) {
+            // Graph does not return the new ETag, the merged values are cached without it
+            cache.invalidate(id);
+            for (JSONObject json : jsonObjects) {
+                cache.put(id, json, mergedAttrs);
+            }
+        }
+    }
+
+    /**
+     * Drops the merged values equal to the current ones from the payloads, and the payloads left empty.
+     *
+     * @return true when nothing is left to be sent, although there were values to be sent
+     */
+    private boolean suppressUnchanged(String path, List<JSONObject> jsonObjects, JSONObject current) {
+        if (current == null || jsonObjects.isEmpty()) {
+            return false;
+        }
+
+        List<String> unchanged = dropUnchanged(jsonObjects, current);
+        if (!unchanged.isEmpty()) {
+            LOG.ok("Values of {0} are not changed by the update of {1}, not sent", unchanged, path);
+        }
+        if (!jsonObjects.isEmpty()) {
+            return false;
+        }
+
+        LOG.info("Update of {0} does not change anything, PATCH suppressed", path);
+        getGraphEndpoint().getMetrics().getRouteMetrics(HttpPatch.METHOD_NAME, RequestMetrics.getRoute(path, null))
+                .suppressed();
+        return true;
+    }
+
+    /**
+     * Whether all the values in the payloads equal the current ones, the payloads are not modified.
+     */
+    private static boolean wouldNotChange(List<JSONObject> jsonObjects, JSONObject current) {
+        List<JSONObject> copies = new ArrayList<>();
+        for (JSONObject json : jsonObjects) {
+            copies.add(new JSONObject(json.toString()));
+        }
+        dropUnchanged(copies, current);
+        return copies.isEmpty();
+    }
+
+    /**
+     * Removes the values of the multi-valued attributes equal to the current ones, a missing or null current value
+     * equals an empty array. The payloads left empty are removed from the list.
+     *
+     * @param current current values of the multi-valued attributes
+     * @return names of the attributes removed
+     */
+    static List<String> dropUnchanged(List<JSONObject> jsonObjects, JSONObject current) {
+        List<String> unchanged = new ArrayList<>();
+        for (Iterator<JSONObject> iterator = jsonObjects.iterator(); iterator.hasNext(); ) {
+            JSONObject json = iterator.next();
+            for (String key : current.keySet()) {
+                Object value = json.opt(key);
+                if (value instanceof JSONArray && ((JSONArray) value).toList().equals(toList(current.opt(key)))) {
+                    json.remove(key);
+                    unchanged.add(key);
+                }
+            }
+            if (json.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        return unchanged;
+    }
+
+    private static List<Object> toList(Object value) {
+        return value instanceof JSONArray ? ((JSONArray) value).toList() : Collections.emptyList();
+    }
+
+    /**
+     * Ids of the referenced objects, e.g. the values of a delta of members, without the null values.
+     */
+    protected List<String> toIds(List<Object> values) {
+        List<String> ids = new ArrayList<>();
+        if (values != null) {
+            for (Object value : values) {
+                if (value != null) {
+                    ids.add((String) value);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Executes the requests in a batch and evaluates the results of all of them, a failure of one request
+     * does not prevent the others from being processed.
+     *
+     * @param requests batch sub-requests
+     * @param ignored  failures which mean the requested state is already in place, e.g. a reference which already exists
+     */
+    protected void processBatch(List<JSONObject> requests, Predicate<JSONObject> ignored) {
+        final GraphEndpoint endpoint = getGraphEndpoint();
+        List<JSONObject> responses = endpoint.executeBatchRequest(requests);
+
+        List<JSONObject> failedRequests = new ArrayList<>();
+        List<JSONObject> failedResponses = new ArrayList<>();
+        for (int i = 0; i < responses.size(); i++) {
+            JSONObject response = responses.get(i);
+            if (GraphEndpoint.isBatchResponseSuccessful(response)) {
+                continue;
+            }
+            if (ignored.test(response)) {
+                LOG.ok("Ignoring failure of request {0}, the requested state is already in place: {1}",
+                        requests.get(i).getString("url"), response);
+                continue;
+            }
+            failedRequests.add(requests.get(i));
+            failedResponses.add(response);
+        }
+        endpoint.processBatchResponseErrors(failedRequests, failedResponses);
+    }
+
+    /**
+     * Failures of the removal of references, e.g. of members, which are already removed. Graph answers 404
+     * "Request_ResourceNotFound" both for a missing reference and for the missing object the references belong to,
+     * e.g. the group itself. The object is therefore read once, at the first such failure of the batch, and the
+     * failures are ignored only when it exists.
+     *
+     * @param path path of the object the references belong to
+     */
+    protected Predicate<JSONObject> referenceNotFound(String path) {
+        final Boolean[] exists = new Boolean[1];
+        return response -> {
+            if (!isResourceNotFound(response)) {
+                return false;
+            }
+            if (exists[0] == null) {
+                exists[0] = exists(path);
+            }
+            return exists[0];
+        };
+    }
+
+    /**
+     * Whether the batch response is a 404 of a missing resource, not e.g. a malformed reference.
+     */
+    static boolean isResourceNotFound(JSONObject response) {
+        if (response.getInt("status") != 404) {
+            return false;
+        }
+        JSONObject body = response.optJSONObject("body");
+        JSONObject error = body == null ? null : body.optJSONObject("error");
+        return error != null && ERROR_RESOURCE_NOT_FOUND.equals(error.optString("code"));
+    }
+
+    private boolean exists(String path) {
+        try {
+            getGraphEndpoint().executeGetRequest(path, "$select=id", null);
+            return true;
+        } catch (UnknownUidException e) {
+            LOG.ok("Object {0} does not exist", path);
+            return false;
+        }
+    }
+
+    private JSONObject readValuesToMerge(String path, List<String> attrs, OperationOptions options) {
+        JSONObject object = getGraphEndpoint().executeGetRequest(path + "/", "$select=" + String.join(",", attrs), options);
+
+        // Only the values to merge, without the id and other keys returned
+        JSONObject values = new JSONObject();
+        for (String attr : attrs) {
+            if (object.has(attr)) {
+                values.put(attr, object.get(attr));
+            }
+        }
+        return values;
+    }
+
+    private void patch(String path, List<JSONObject> jsonObjects, String eTag) {
+        final GraphEndpoint endpoint = getGraphEndpoint();
+        URI uri = endpoint.getUri(endpoint.createURIBuilder().setPath(path));
+        LOG.info("Path: {0}", uri);
+        HttpEntityEnclosingRequestBase request = new HttpPatch(uri);
+        if (eTag != null && jsonObjects.size() == 1) {
+            // The first PATCH changes the ETag, so only a single PATCH can be conditional
+            request.setHeader("If-Match", eTag);
+        }
+        endpoint.callRequestNoContentNoJson(request, jsonObjects);
+    }
+
     protected List<JSONObject> buildLayeredAttribute(JSONObject oldJson, Set<AttributeDelta> modifications, Set<String> excludeAttrs, Set<String> separatedAttrs) {
         final JSONObject json = new JSONObject();
         final JSONObject separatedJson = new JSONObject();
@@ -414,7 +677,7 @@ abstract class ObjectProcessing {
             }
 
             boolean isMultiValue = isAttributeMultiValues(attributeDelta.getName());
-            LOG.info("attributeDelta {0} isMultiValue {1}", attributeDelta, isMultiValue);
+            LOG.ok("attributeDelta {0} isMultiValue {1}", attributeDelta.getName(), isMultiValue);
 
             String key = attributePath[attributePath.length - 1];
 
@@ -497,15 +760,36 @@ abstract class ObjectProcessing {
         return false;
     }
 
-    protected abstract boolean handleJSONObject(OperationOptions options, JSONObject object, ResultsHandler handler);
+    /**
+     * Attributes which may be listed in the $select clause of the object class, null when the object class
+     * is not queried by the attributes to get.
+     */
+    protected String[] selectableAttributes() {
+        return null;
+    }
+
+    /**
+     * The attributes to get of the object class, resolved once per operation.
+     */
+    protected AttributePlan getAttributePlan(OperationOptions options) {
+        return getSchemaTranslator().getAttributePlan(type(), options);
+    }
+
+    protected boolean handleJSONObject(OperationOptions options, JSONObject object, ResultsHandler handler) {
+        return handleJSONObject(options, getAttributePlan(options), object, handler);
+    }
+
+    protected abstract boolean handleJSONObject(OperationOptions options, AttributePlan plan, JSONObject object,
+                                                ResultsHandler handler);
 
     @FunctionalInterface
     protected interface JSONObjectHandler {
         boolean handle(OperationOptions options, JSONObject object);
     }
 
-    protected JSONObjectHandler createJSONObjectHandler(ResultsHandler handler) {
-        return (options, jsonObject) -> handleJSONObject(options, jsonObject, handler);
+    protected JSONObjectHandler createJSONObjectHandler(OperationOptions options, ResultsHandler handler) {
+        final AttributePlan plan = getAttributePlan(options);
+        return (opt, jsonObject) -> handleJSONObject(opt, plan, jsonObject, handler);
     }
 
     protected List<JSONObject> handleJSONArray(JSONArray value) {
@@ -538,12 +822,8 @@ abstract class ObjectProcessing {
         return "$select=" + String.join(",", fields);
     }
 
-    protected boolean shouldSaturate(OperationOptions options, String type, String attr) {
-        return !Boolean.TRUE.equals(options.getAllowPartialAttributeValues()) && getSchemaTranslator().containsToGet(type, options, attr);
-    }
-
-    protected void incompleteIfNecessary(OperationOptions options, String type, String attr, ConnectorObjectBuilder builder) {
-        if (Boolean.TRUE.equals(options.getAllowPartialAttributeValues()) && getSchemaTranslator().containsToGet(type, options, attr)) {
+    protected void incompleteIfNecessary(AttributePlan plan, String attr, ConnectorObjectBuilder builder) {
+        if (plan.isIncomplete(attr)) {
             AttributeBuilder attrBuilder = new AttributeBuilder();
             attrBuilder.setName(attr).setAttributeValueCompleteness(AttributeValueCompleteness.INCOMPLETE);
             attrBuilder.addValue(Collections.EMPTY_LIST);
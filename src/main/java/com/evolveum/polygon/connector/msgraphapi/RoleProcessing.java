@@ -1,7 +1,6 @@
 package com.evolveum.polygon.connector.msgraphapi;
 
-import org.apache.http.client.methods.*;
-import org.apache.http.client.utils.URIBuilder;
+import com.evolveum.polygon.connector.msgraphapi.util.RoleAssignmentIndex;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.ContainsAllValuesFilter;
 import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
@@ -10,7 +9,6 @@ import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.net.URI;
 import java.util.*;
 
 public class RoleProcessing extends ObjectProcessing {
@@ -38,6 +36,10 @@ public class RoleProcessing extends ObjectProcessing {
 
 
     private static final String ATTR_MEMBERS = "members";
+    // The members are assigned the role for the whole tenant, the assignments in other scopes are managed elsewhere
+    private static final String DIRECTORY_SCOPE_TENANT = "/";
+    // The members read are the ones which can be removed, the assignments in other scopes are not reported
+    static final String TENANT_SCOPE_FILTER = "directoryScopeId eq '" + DIRECTORY_SCOPE_TENANT + "'";
 
     public RoleProcessing(GraphEndpoint graphEndpoint) {
         super(graphEndpoint, ICFPostMapper.builder().build());
@@ -125,13 +127,20 @@ public class RoleProcessing extends ObjectProcessing {
     }
 
     protected Set<AttributeDelta> updateRole(Uid uid, Set<AttributeDelta> attrsDelta, OperationOptions options) {
-        LOG.info("Start updateRole, Uid: {0}, attrsDelta: {1}", uid, attrsDelta);
+        LOG.info("Start updateRole, Uid: {0}", uid);
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("updateRole attrsDelta: {0}", getPayloadLog().format(attrsDelta));
+        }
         for (AttributeDelta attrDelta : attrsDelta) {
-            LOG.info("attrDelta: {0}", attrDelta);
             // add or remove members to/from role
             if (attrDelta.getName().equalsIgnoreCase(ATTR_MEMBERS)) {
                 LOG.info("addMembersToRole");
-                addOrRemoveMember(uid, attrDelta, ROLE_ASSIGNMENT, options);
+                try {
+                    addOrRemoveMember(uid, attrDelta, ROLE_ASSIGNMENT, options);
+                } finally {
+                    // Even a partially applied change makes the index stale
+                    getGraphEndpoint().invalidateRoleAssignmentIndex();
+                }
             }
         }
         return null;
@@ -143,82 +152,70 @@ public class RoleProcessing extends ObjectProcessing {
 
     protected void addOrRemoveMember(Uid uid, AttributeDelta attrDelta, String path, OperationOptions options) {
         LOG.info("addOrRemoveMember {0} , {1} , {2}", uid, attrDelta, path);
-        StringBuilder sbPath = new StringBuilder();
-        sbPath.append(path);
         String roleDefinitionId = uid.getUidValue();
 
-        LOG.info("path: {0}", sbPath);
-
-        List<Object> removeValues = attrDelta.getValuesToRemove();
-
-        roleProcessRemove(sbPath, removeValues, roleDefinitionId, options);
+        LOG.info("path: {0}", path);
 
-        List<Object> addValues = attrDelta.getValuesToAdd();
-        if (addValues != null && !addValues.isEmpty()) {
-            for (Object addValue : addValues) {
-                if (addValue != null) {
+        roleProcessRemove(path, toIds(attrDelta.getValuesToRemove()), roleDefinitionId, options);
 
-                    JSONObject json = new JSONObject();
-                    String principalId = (String) addValue;
-                    String directoryScopeId = "/";
-
-                    json.put("principalId", principalId);
-                    json.put("directoryScopeId", directoryScopeId);
-                    json.put("roleDefinitionId", roleDefinitionId);
-
-                    LOG.ok("json: {0}", json);
-                    postRequestNoContent(sbPath.toString(), json);
-                }
-            }
+        List<String> addValues = toIds(attrDelta.getValuesToAdd());
+        if (addValues.isEmpty()) {
+            return;
         }
-    }
 
-    private void postRequestNoContent(String path, JSONObject json) {
-        LOG.info("path: {0} , json: {1}", path, json);
-        final GraphEndpoint endpoint = getGraphEndpoint();
-        final URIBuilder uriBuilder = endpoint.createURIBuilder().setPath(path);
-        final URI uri = endpoint.getUri(uriBuilder);
-        LOG.info("uri {0}", uri);
+        //POST https://graph.microsoft.com/v1.0/roleManagement/directory/roleAssignments, batched
+        List<JSONObject> requests = new ArrayList<>();
+        for (String principalId : addValues) {
+            JSONObject json = new JSONObject();
 
-        HttpEntityEnclosingRequestBase request;
-        LOG.info("HttpEntityEnclosingRequestBase request");
+            json.put("principalId", principalId);
+            json.put("directoryScopeId", DIRECTORY_SCOPE_TENANT);
+            json.put("roleDefinitionId", roleDefinitionId);
 
-        request = new HttpPost(uri);
-        LOG.info("create true - HTTP POST {0}", uri);
-        endpoint.callRequestNoContent(request, null, json);
+            LOG.ok("json: {0}", json);
+            requests.add(GraphEndpoint.createBatchRequest("POST", path, json));
+        }
+        processBatch(requests, response -> false);
     }
 
-    private void roleProcessRemove(StringBuilder sbPath, List<Object> removeValues, String roleDefinitionId, OperationOptions options) {
-        if (removeValues != null && !removeValues.isEmpty()) {
-            for (Object removeValue : removeValues) {
-                if (removeValue != null) {
+    /**
+     * Deletes the tenant-wide assignments of the role to the principals, batched. The ids of the assignments are taken
+     * from one listing of the assignments of the role. A principal without an assignment is not considered a failure,
+     * the assignments of the role in other directory scopes, e.g. administrative units, are kept.
+     */
+    private void roleProcessRemove(String path, List<String> principalIds, String roleDefinitionId, OperationOptions options) {
+        if (principalIds.isEmpty()) {
+            return;
+        }
 
-                    String principalId = (String) removeValue;
-                    String roleAssignmentId = getRoleAssignmentId(options, roleDefinitionId, principalId);
-                    LOG.info("executeDeleteOperation principalId: {0} , sbPath: {1}", principalId, sbPath);
-                    executeDeleteOperation(roleAssignmentId, sbPath.toString());
-                }
+        Map<String, List<String>> assignmentIds = getRoleAssignmentIds(options, roleDefinitionId);
+        List<JSONObject> requests = new ArrayList<>();
+        for (String principalId : principalIds) {
+            List<String> ids = assignmentIds.get(principalId);
+            if (ids == null) {
+                LOG.ok("Role {0} is not assigned to {1}, nothing to remove", roleDefinitionId, principalId);
+                continue;
+            }
+            for (String roleAssignmentId : ids) {
+                LOG.info("Delete object of roleAssignment, id: {0}, principalId: {1}, path: {2}", roleAssignmentId, principalId, path);
+                requests.add(GraphEndpoint.createBatchRequest("DELETE", path + "/" + roleAssignmentId, null));
             }
         }
-    }
-
-    private void executeDeleteOperation(String roleAssignmentId, String path) {
-        LOG.info("Delete object of roleAssignment, id: {0}, Path: {1}", roleAssignmentId, path);
-
-        final GraphEndpoint endpoint = getGraphEndpoint();
-        final URIBuilder uriBuilder = endpoint.createURIBuilder();
-        uriBuilder.setPath(path + "/" + roleAssignmentId);
-
-        LOG.info("Uri for delete: {0}", uriBuilder);
+        if (requests.isEmpty()) {
+            return;
+        }
 
-        final URI uri = endpoint.getUri(uriBuilder);
-        final HttpRequestBase request = new HttpDelete(uri);
-        endpoint.callRequest(request, false);
+        processBatch(requests, referenceNotFound(ROLES + "/" + roleDefinitionId));
     }
 
     public void executeQueryForRole(Filter query, ResultsHandler handler, OperationOptions options) {
         LOG.info("executeQueryForRole() Query: {0}", query);
         final GraphEndpoint endpoint = getGraphEndpoint();
+        // Loaded once for the search of all the roles, the other searches query the assignments of the roles found
+        final AttributePlan plan = getAttributePlan(options);
+        final RoleAssignmentIndex index = query == null && plan.shouldSaturate(ATTR_MEMBERS)
+                ? endpoint.getRoleAssignmentIndex() : null;
+        final JSONObjectHandler roleHandler = (opt, role) -> handleJSONObject(plan, role, handler, index);
 
         if (query instanceof EqualsFilter) {
             final EqualsFilter equalsFilter = (EqualsFilter) query;
@@ -235,7 +232,7 @@ public class RoleProcessing extends ObjectProcessing {
                 sbPath.append(ROLES).append("/").append(uid.getUidValue());
 
                 JSONObject role = endpoint.executeGetRequest(sbPath.toString(), null, options);
-                handleJSONObject(options, role, handler);
+                handleJSONObject(plan, role, handler, index);
             } else if (equalsFilter.getAttribute() instanceof Name) {
                 LOG.info("((EqualsFilter) query).getAttribute() instanceof Name");
 
@@ -246,12 +243,12 @@ public class RoleProcessing extends ObjectProcessing {
                 }
                 final String customQuery = "$filter=" + ATTR_ID + " eq '" + nameValue + "'";
                 // Paging is not supported
-                endpoint.executeListRequest(ROLES, customQuery, options, false, createJSONObjectHandler(handler));
+                endpoint.executeListRequest(ROLES, customQuery, options, false, roleHandler);
             } else if (ATTR_ID.equals(attributeName)) {
                 final String attributeValue = getAttributeFirstValue(equalsFilter);
                 final String customQuery = "$filter=" + attributeName + " eq '" + attributeValue + "'";
                 // Paging is not supported
-                endpoint.executeListRequest(ROLES, customQuery, options, false, createJSONObjectHandler(handler));
+                endpoint.executeListRequest(ROLES, customQuery, options, false, roleHandler);
             }
         } else if (query instanceof ContainsFilter) {
             LOG.info("Query is instance of ContainsFilter: {0}", query);
@@ -261,7 +258,7 @@ public class RoleProcessing extends ObjectProcessing {
             if (Arrays.asList(ATTR_ID).contains(attributeName)) {
                 String customQuery = "$filter=" + STARTSWITH + "(" + attributeName + ",'" + attributeValue + "')";
                 // Paging is not supported
-                endpoint.executeListRequest(ROLES, customQuery, options, false, createJSONObjectHandler(handler));
+                endpoint.executeListRequest(ROLES, customQuery, options, false, roleHandler);
             }
         } else if (query instanceof ContainsAllValuesFilter) {
             LOG.info("[QUERY] - ContainsAllValuesFilter - query: {0}", query);
@@ -277,30 +274,36 @@ public class RoleProcessing extends ObjectProcessing {
                 String getPath = ROLES + "/" + roleUID;
                 JSONObject role = endpoint.executeGetRequest(getPath, null, options);
 
-                return handleJSONObject(opt, role, handler);
+                return handleJSONObject(plan, role, handler, index);
             });
         } else if (query == null) {
             LOG.info("Query is null");
             // Paging is not supported
-            endpoint.executeListRequest(ROLES, null, options, false, createJSONObjectHandler(handler));
+            endpoint.executeListRequest(ROLES, null, options, false, roleHandler);
         }
     }
 
     /**
      * Query a role's members, add them to the group's JSON attributes (multivalue)
      *
-     * @param role Role to query for (JSON object resulting from previous API call)
+     * @param role  Role to query for (JSON object resulting from previous API call)
+     * @param index Role assignments to look the members up in, null to query them
      *
      * @return Original JSON, enriched with member information
      */
-    private JSONObject saturateRoleMembership(JSONObject role) {
+    private JSONObject saturateRoleMembership(JSONObject role, RoleAssignmentIndex index) {
         final GraphEndpoint endpoint = getGraphEndpoint();
         final String uid = role.getString(ATTR_ID);
 
+        if (index != null) {
+            role.put(ATTR_MEMBERS, new JSONArray(index.getPrincipalIds(uid)));
+            return role;
+        }
+
         LOG.info("[GET] - saturateRoleMembership(), for role with UID: {0}", uid);
 
         //get list of role members
-        final String customQuery = "$select=principalId&$filter=roleDefinitionId eq '" + uid + "'";
+        final String customQuery = "$select=principalId&$filter=roleDefinitionId eq '" + uid + "' and " + TENANT_SCOPE_FILTER;
         final JSONArray roleMembers = endpoint.executeListRequest(ROLE_ASSIGNMENT, customQuery, null, true);
         role.put(ATTR_MEMBERS, getJSONArray(roleMembers, "principalId"));
 
@@ -313,38 +316,55 @@ public class RoleProcessing extends ObjectProcessing {
         LOG.info("[GET] - listUserRoleMembership(), for user with UID: {0}", principalId);
 
         //get list of roles where the user is memberOf
-        final String customQuery = "$select=roleDefinitionId&$filter=principalId eq '" + principalId + "'";
+        final String customQuery = "$select=roleDefinitionId&$filter=principalId eq '" + principalId + "' and " + TENANT_SCOPE_FILTER;
         endpoint.executeListRequest(ROLE_ASSIGNMENT, customQuery, options, true, handler);
     }
 
-    private String getRoleAssignmentId(OperationOptions options, String roleDefinitionId, String principalId) {
+    /**
+     * Lists the tenant-wide assignments of the role once, instead of a query for every principal.
+     *
+     * @return ids of the assignments by the principal
+     */
+    private Map<String, List<String>> getRoleAssignmentIds(OperationOptions options, String roleDefinitionId) {
         final GraphEndpoint endpoint = getGraphEndpoint();
 
-        LOG.info("[GET] - getRoleAssignmentId(), for role with UID: {0}", roleDefinitionId);
-
-        //get exactly one roleAssignment by roleDefinitionId and principalId
-        final String customQuery = "$select=id&$filter=roleDefinitionId eq '" + roleDefinitionId + "' and principalId eq '" + principalId + "'";
-        final JSONArray roleMembers = endpoint.executeListRequest(ROLE_ASSIGNMENT, customQuery, options, true);
+        LOG.info("[GET] - getRoleAssignmentIds(), for role with UID: {0}", roleDefinitionId);
 
-        LOG.info("[GET] - roleMembers: {0}", roleMembers);
+        final Map<String, List<String>> assignmentIds = new HashMap<>();
+        final String customQuery = "$select=id,principalId&$filter=roleDefinitionId eq '" + roleDefinitionId
+                + "' and " + TENANT_SCOPE_FILTER;
+        endpoint.executeListRequest(ROLE_ASSIGNMENT, customQuery, options, true, (opt, assignment) -> {
+            assignmentIds.computeIfAbsent(assignment.getString("principalId"), k -> new ArrayList<>())
+                    .add(assignment.getString(ATTR_ID));
+            return true;
+        });
 
-        return (String) getIdFromAssignmentObject(roleMembers, "id", String.class);
+        LOG.info("[GET] - role {0} is assigned to {1} principals", roleDefinitionId, assignmentIds.size());
+        return assignmentIds;
     }
 
     @Override
-    protected boolean handleJSONObject(OperationOptions options, JSONObject role, ResultsHandler handler) {
+    protected boolean handleJSONObject(OperationOptions options, AttributePlan plan, JSONObject role, ResultsHandler handler) {
+        // A single role, its assignments are queried
+        return handleJSONObject(plan, role, handler, null);
+    }
+
+    private boolean handleJSONObject(AttributePlan plan, JSONObject role, ResultsHandler handler, RoleAssignmentIndex index) {
         LOG.info("processingRoleObjectFromGET (Object)");
 
-        if (shouldSaturate(options, RoleProcessing.ROLE_NAME, ATTR_MEMBERS)) {
-            role = saturateRoleMembership(role);
+        if (plan.shouldSaturate(ATTR_MEMBERS)) {
+            role = saturateRoleMembership(role, index);
         }
 
         ConnectorObjectBuilder builder = convertRoleJSONObjectToConnectorObject(role);
 
-        incompleteIfNecessary(options, RoleProcessing.ROLE_NAME, ATTR_MEMBERS, builder);
+        incompleteIfNecessary(plan, ATTR_MEMBERS, builder);
 
         final ConnectorObject connectorObject = builder.build();
-        LOG.info("processingRoleObjectFromGET, role: {0}, \n\tconnectorObject: {1}", role.get("id"), connectorObject);
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("processingRoleObjectFromGET, role: {0}, \n\tconnectorObject: {1}", role.get("id"),
+                    getPayloadLog().format(connectorObject));
+        }
         return handler.handle(connectorObject);
     }
 
@@ -6,12 +6,20 @@ import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.spi.operations.SearchOp;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 
 public class SchemaTranslator {
 
     private final Schema rawConnIdSchema;
     private final Map<String, Map<String, AttributeInfo>> connIdSchema;
+    private final Map<String, Set<String>> returnedByDefault;
+    private final Map<String, String[]> selectableAttributes = new HashMap<>();
+    // Plans by the object class and the options deciding the attributes to get
+    private final ConcurrentMap<List<Object>, AttributePlan> attributePlans = new ConcurrentHashMap<>();
+    // The options usually differ only by the object class, the cache is cleared when it grows over the limit
+    private static final int MAX_ATTRIBUTE_PLANS = 256;
     private static final Log LOG = Log.getLog(SchemaTranslator.class);
 
     public SchemaTranslator(GraphEndpoint graphEndpoint) {
@@ -26,12 +34,19 @@ public class SchemaTranslator {
         roleProcessing.buildRoleObjectClass(schemaBuilder);
         licenseProcessing.buildLicenseObjectClass(schemaBuilder);
 
+        for (ObjectProcessing processing : Arrays.asList(userProcessing, groupProcessing, roleProcessing, licenseProcessing)) {
+            if (processing.selectableAttributes() != null) {
+                selectableAttributes.put(processing.type(), processing.selectableAttributes());
+            }
+        }
+
         schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class);
         schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildReturnDefaultAttributes(), SearchOp.class);
 
         rawConnIdSchema = schemaBuilder.build();
 
         Map<String, Map<String, AttributeInfo>> objectClasses = new HashMap<>();
+        Map<String, Set<String>> defaults = new HashMap<>();
 
         for (ObjectClassInfo ocInfo : rawConnIdSchema.getObjectClassInfo()) {
             Map<String, AttributeInfo> attrs = new HashMap<>();
@@ -39,9 +54,11 @@ public class SchemaTranslator {
                 attrs.put(info.getName(), info);
             }
             objectClasses.put(ocInfo.getType(), Collections.unmodifiableMap(attrs));
+            defaults.put(ocInfo.getType(), Collections.unmodifiableSet(toReturnedByDefaultAttributesSet(attrs)));
         }
 
         connIdSchema = Collections.unmodifiableMap(objectClasses);
+        returnedByDefault = Collections.unmodifiableMap(defaults);
     }
 
     public Schema getConnIdSchema() {
@@ -53,43 +70,38 @@ public class SchemaTranslator {
     }
 
     public String[] filter(String type, OperationOptions options, String... attrs) {
-        Set<String> returnedAttributes = getAttributesToGet(type, options);
-
-        if (returnedAttributes.isEmpty()) {
-            return attrs;
-        }
+        return getAttributePlan(type, options).filter(attrs);
+    }
 
-        Set<String> returnedContainerAttributes = returnedAttributes.stream()
-                .filter(attr -> attr.contains("."))
-                .map(attr -> attr.substring(0, attr.indexOf(".")))
-                .collect(Collectors.toSet());
+    public Set<String> getAttributesToGet(String type, OperationOptions options) {
+        return getAttributePlan(type, options).getAttributesToGet();
+    }
 
-        return Arrays.stream(attrs)
-                .filter(attr -> returnedAttributes.contains(attr)
-                        || returnedContainerAttributes.contains(attr))
-                .toArray(String[]::new);
+    public boolean containsToGet(String type, OperationOptions options, String attr) {
+        return getAttributePlan(type, options).contains(attr);
     }
 
-    public Set<String> getAttributesToGet(String type, OperationOptions options) {
+    /**
+     * The attributes to get of the object class resolved from the options. The plan is resolved once for the same
+     * attributes to get, it should be resolved once per operation and passed along instead of the options.
+     */
+    public AttributePlan getAttributePlan(String type, OperationOptions options) {
         if (!connIdSchema.containsKey(type)) {
             throw new ConnectorException("Invalid ObjectClass type: " + type);
         }
 
-        Set<String> attributesToGet = new HashSet<>();
-        if (Boolean.TRUE.equals(options.getReturnDefaultAttributes())) {
-            attributesToGet.addAll(toReturnedByDefaultAttributesSet(connIdSchema.get(type)));
-        }
-        if (options.getAttributesToGet() != null) {
-            for (String a : options.getAttributesToGet()) {
-                attributesToGet.add(a);
+        String[] attributesToGet = options.getAttributesToGet();
+        List<Object> key = Arrays.asList(type, options.getReturnDefaultAttributes(),
+                options.getAllowPartialAttributeValues(), attributesToGet == null ? null : Arrays.asList(attributesToGet.clone()));
+        AttributePlan plan = attributePlans.get(key);
+        if (plan == null) {
+            plan = new AttributePlan(type, options, returnedByDefault.get(type), selectableAttributes.get(type));
+            if (attributePlans.size() >= MAX_ATTRIBUTE_PLANS) {
+                attributePlans.clear();
             }
+            attributePlans.put(key, plan);
         }
-        return attributesToGet;
-    }
-
-    public boolean containsToGet(String type, OperationOptions options, String attr) {
-        Set<String> returnedAttributes = getAttributesToGet(type, options);
-        return returnedAttributes.contains(attr);
+        return plan;
     }
 
     private static Set<String> toReturnedByDefaultAttributesSet(Map<String, AttributeInfo> attrs) {
@@ -1,12 +1,15 @@
 package com.evolveum.polygon.connector.msgraphapi;
 
 import com.evolveum.polygon.common.GuardedStringAccessor;
+import com.evolveum.polygon.connector.msgraphapi.util.GroupMembershipIndex;
 import com.evolveum.polygon.connector.msgraphapi.util.ResourceQuery;
+import com.evolveum.polygon.connector.msgraphapi.util.RoleAssignmentIndex;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ByteArrayEntity;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.objects.*;
 import org.json.JSONArray;
@@ -14,13 +17,19 @@ import org.json.JSONObject;
 
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
 public class UserProcessing extends ObjectProcessing {
 
-    private final static String API_ENDPOINT = "https://graph.microsoft.com/v1.0";
     private static final String USERS = "/users";
     private static final String MESSAGES = "messages";
     private static final String INVITATIONS = "/invitations";
@@ -157,7 +166,6 @@ public class UserProcessing extends ObjectProcessing {
     private static final String ATTR_ICF_PASSWORD = "__PASSWORD__";
     private static final String ATTR_ICF_ENABLED = "__ENABLE__";
 
-    private static final String O_REMOVED = "@removed";
 
     // extend
     private static final String ATTR_ONPREMISESEXTENSIONATTRIBUTES = "onPremisesExtensionAttributes";
@@ -181,6 +189,26 @@ public class UserProcessing extends ObjectProcessing {
             ATTR_SKILLS
     ).collect(Collectors.toSet());
 
+    // Attributes which may be selected when a single user is read, filtered by the attributes to get
+    private static final String[] SELECTABLE_ATTRS = {
+            ATTR_ACCOUNTENABLED, ATTR_DISPLAYNAME,
+            ATTR_ONPREMISESIMMUTABLEID, ATTR_MAILNICKNAME, ATTR_USERPRINCIPALNAME, ATTR_ABOUTME,
+            ATTR_BIRTHDAY, ATTR_BUSINESSPHONES, ATTR_CITY, ATTR_COMPANYNAME, ATTR_COUNTRY, ATTR_DEPARTMENT,
+            ATTR_GIVENNAME, ATTR_HIREDATE, ATTR_IMADDRESSES, ATTR_ID, ATTR_INTERESTS,
+            ATTR_JOBTITLE, ATTR_MAIL, ATTR_MOBILEPHONE, ATTR_MYSITE, ATTR_OFFICELOCATION,
+            ATTR_ONPREMISESLASTSYNCDATETIME, ATTR_ONPREMISESSECURITYIDENTIFIER,
+            ATTR_ONPREMISESSYNCENABLED, ATTR_PASSWORDPOLICIES, ATTR_PASTPROJECTS,
+            ATTR_POSTALCODE, ATTR_PREFERREDLANGUAGE, ATTR_PREFERREDNAME,
+            ATTR_PROXYADDRESSES, ATTR_RESPONSIBILITIES, ATTR_SCHOOLS,
+            ATTR_SKILLS, ATTR_STATE, ATTR_STREETADDRESS, ATTR_SURNAME,
+            ATTR_USAGELOCATION, ATTR_USERTYPE, ATTR_ASSIGNEDLICENSES,
+            ATTR_EXTERNALUSERSTATE, ATTR_EXTERNALUSERSTATECHANGEDATETIME, ATTR_MANAGER,
+            ATTR_EMPLOYEE_HIRE_DATE, ATTR_EMPLOYEE_LEAVE_DATE_TIME, ATTR_EMPLOYEE_TYPE,
+            ATTR_FAX_NUMBER, ATTR_EMPLOYEE_ID, ATTR_ONPREMISESEXTENSIONATTRIBUTES
+    };
+
+    private static final ObjectMapping USER_MAPPING = createUserMapping();
+
     protected static final Set<String> EXCLUDE_ATTRS_OF_USER = Stream.of(
             ATTR_MANAGER_ID,
             ATTR_ASSIGNEDLICENSES_SKUID,
@@ -721,13 +749,6 @@ public class UserProcessing extends ObjectProcessing {
         return list.toArray(new String[0]);
     }
 
-    private void assignLicenses(Uid uid, Attribute licenseAttribute) {
-        if (licenseAttribute == null) {
-            return;
-        }
-        assignLicenses(uid, licenseAttribute.getValue(), null);
-    }
-
     private void assignLicenses(Uid uid, AttributeDelta licenseDelta) {
         if (licenseDelta == null) {
             return;
@@ -766,14 +787,6 @@ public class UserProcessing extends ObjectProcessing {
         }
     }
 
-    private void assignManager(Uid uid, Attribute attribute) {
-        if (attribute == null) {
-            return;
-        }
-        String managerId = attribute.getValue().stream().map(Object::toString).findFirst().orElse(null);
-        assignManager(uid, managerId);
-    }
-
     private void assignManager(Uid uid, AttributeDelta attributeDelta) {
         if (attributeDelta == null) {
             return;
@@ -791,13 +804,13 @@ public class UserProcessing extends ObjectProcessing {
             URI uri = endpoint.getUri(uriBuilder);
             request = new HttpPut(uri);
 
-            String managerRef = API_ENDPOINT + USERS + "/" + managerId;
+            String managerRef = endpoint.getApiUrl() + USERS + "/" + managerId;
 
             JSONObject jsonObject = new JSONObject();
             jsonObject.put("@odata.id", managerRef);
 
             LOG.info("Assign Manager Path: {0}", uri);
-            LOG.info("Assign Manager JSON: {0}", jsonObject);
+            LOG.ok("Assign Manager JSON: {0}", jsonObject);
 
             endpoint.callRequestNoContent(request, null, jsonObject);
         } else {
@@ -812,8 +825,10 @@ public class UserProcessing extends ObjectProcessing {
     }
 
     public Set<AttributeDelta> updateUser(Uid uid, Set<AttributeDelta> attrsDelta, OperationOptions options) {
-        LOG.info("Start updateUser, Uid: {0}, attrsDelta: {1}", uid, attrsDelta);
-        final GraphEndpoint endpoint = getGraphEndpoint();
+        LOG.info("Start updateUser, Uid: {0}", uid);
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("updateUser attrsDelta: {0}", getPayloadLog().format(attrsDelta));
+        }
 
         AttributeDelta assignedLicensesDelta = null;
         AttributeDelta managerIdDelta = null;
@@ -837,30 +852,9 @@ public class UserProcessing extends ObjectProcessing {
             }
         }
 
-        // When updating multiple value of the user resource, we need to fetch the current JSON array and merge it with requested delta
-        // since Microsoft Graph API doesn't provide a way to patch the JSON array
-        JSONObject oldJson = null;
-        if (!oldSelectors.isEmpty()) {
-            final String select = "$select=" + String.join(",", oldSelectors);
-
-            oldJson = endpoint.executeGetRequest(USERS + "/" + uid.getUidValue() + "/", select, options);
-
-            // Remove unrelated keys
-            for (String key : oldJson.keySet()) {
-                if (!UPDATABLE_MULTIPLE_VALUE_ATTRS_OF_USER.contains(key)) {
-                    oldJson.remove(key);
-                }
-            }
-        }
-
-        // Update user resource
-        final URIBuilder uriBuilder = endpoint.createURIBuilder().setPath(USERS + "/" + uid.getUidValue());
-        URI uri = endpoint.getUri(uriBuilder);
+        // Update user resource, the values of the multi-valued attributes are merged with the current ones
         LOG.info("update user, PATCH");
-        LOG.info("Path: {0}", uri);
-        HttpEntityEnclosingRequestBase request = new HttpPatch(uri);
-        List<JSONObject> jsonObjectAccount = buildLayeredAttribute(oldJson, attrsDelta, EXCLUDE_ATTRS_OF_USER, SPO_ATTRS);
-        endpoint.callRequestNoContentNoJson(request, jsonObjectAccount);
+        patchMerged(USERS + "/" + uid.getUidValue(), uid, attrsDelta, oldSelectors, EXCLUDE_ATTRS_OF_USER, SPO_ATTRS, options);
 
         // Update other resources if necessary
         assignLicenses(uid, assignedLicensesDelta);
@@ -870,14 +864,6 @@ public class UserProcessing extends ObjectProcessing {
         return null;
     }
 
-    private void assignPhoto(Uid uid, Attribute attribute) {
-        if (attribute == null) {
-            return;
-        }
-        byte[] photoData = (byte[]) attribute.getValue().get(0);
-        assignPhoto(uid, photoData);
-    }
-
     private void assignPhoto(Uid uid, AttributeDelta attributeDelta) {
         if (attributeDelta == null) {
             return;
@@ -909,7 +895,10 @@ public class UserProcessing extends ObjectProcessing {
     }
 
     public Uid createUser(Set<Attribute> attributes) {
-        LOG.info("Start createUser, attributes: {0}", attributes);
+        LOG.info("Start createUser");
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("createUser attributes: {0}", getPayloadLog().format(attributes));
+        }
         final GraphEndpoint endpoint = getGraphEndpoint();
 
         String mail = null;
@@ -951,6 +940,7 @@ public class UserProcessing extends ObjectProcessing {
                 getConfiguration().isInviteGuests() &&
                 !hasUPN;
 
+        final long start = System.nanoTime();
         final Uid newUid;
         if (invite) {
             AttributesValidator.builder()
@@ -981,13 +971,66 @@ public class UserProcessing extends ObjectProcessing {
             newUid = new Uid(jsonRequest.getString(ATTR_ID));
         }
 
-        assignLicenses(newUid, assignedLicenses);
-        assignManager(newUid, managerId);
-        assignPhoto(newUid, photo);
+        final long created = System.nanoTime();
+
+        // The follow-up requests depend only on the new user, not on each other, they are sent in one batch
+        final List<String> stages = new ArrayList<>();
+        final List<JSONObject> followUps = new ArrayList<>();
+        addLicensesRequest(newUid, assignedLicenses, stages, followUps);
+        addManagerRequest(newUid, managerId, stages, followUps);
+        addPhotoRequest(newUid, photo, stages, followUps);
+        if (!followUps.isEmpty()) {
+            endpoint.processBatchResponseErrors(followUps, endpoint.executeBatchRequest(followUps));
+        }
+
+        final long done = System.nanoTime();
+        LOG.info("Created user {0} in {1} ms: {2} {3} ms, {4} {5} ms", newUid.getUidValue(),
+                TimeUnit.NANOSECONDS.toMillis(done - start), invite ? "invitation" : "create",
+                TimeUnit.NANOSECONDS.toMillis(created - start),
+                stages.isEmpty() ? "no follow-up requests" : "follow-up requests " + stages,
+                TimeUnit.NANOSECONDS.toMillis(done - created));
 
         return newUid;
     }
 
+    private void addLicensesRequest(Uid uid, Attribute licenses, List<String> stages, List<JSONObject> requests) {
+        if (licenses == null || licenses.getValue() == null || licenses.getValue().isEmpty()) {
+            return;
+        }
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("addLicenses", buildLicensesJSON(licenses.getValue()));
+        jsonObject.put("removeLicenses", new JSONArray());
+
+        stages.add("licenses");
+        requests.add(GraphEndpoint.createBatchRequest("POST", USERS + "/" + uid.getUidValue() + ASSIGN_LICENSES, jsonObject));
+    }
+
+    private void addManagerRequest(Uid uid, Attribute manager, List<String> stages, List<JSONObject> requests) {
+        // A new user has no manager to unassign
+        String managerId = manager == null ? null
+                : manager.getValue().stream().filter(Objects::nonNull).map(Object::toString).findFirst().orElse(null);
+        if (managerId == null) {
+            return;
+        }
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("@odata.id", getGraphEndpoint().getApiUrl() + USERS + "/" + managerId);
+
+        stages.add("manager");
+        requests.add(GraphEndpoint.createBatchRequest("PUT", USERS + "/" + uid.getUidValue() + MANAGER, jsonObject));
+    }
+
+    private void addPhotoRequest(Uid uid, Attribute photo, List<String> stages, List<JSONObject> requests) {
+        byte[] photoData = photo == null || photo.getValue() == null || photo.getValue().isEmpty()
+                ? null : (byte[]) photo.getValue().get(0);
+        if (photoData == null) {
+            return;
+        }
+
+        stages.add("photo");
+        requests.add(GraphEndpoint.createBatchRequest("PUT", USERS + "/" + uid.getUidValue() + "/" + ATTR_USERPHOTO + "/$value",
+                photoData, "image/jpeg"));
+    }
+
     public void delete(Uid uid) {
         if (uid == null) {
             throw new InvalidAttributeValueException("uid not provided");
@@ -999,6 +1042,7 @@ public class UserProcessing extends ObjectProcessing {
         URI uri = endpoint.getUri(uriBuilder);
         LOG.info("Delete: {0}", uri);
         request = new HttpDelete(uri);
+        endpoint.getAttributeValueCache().invalidate(uid.getUidValue());
         if (endpoint.callRequest(request, false) == null) {
             LOG.info("Deleted user with Uid {0}", uid.getUidValue());
         }
@@ -1115,14 +1159,137 @@ public class UserProcessing extends ObjectProcessing {
 
                 // final String filter = "$filter=" + translatedQuery;
                 LOG.ok("The constructed filter: {0}", query);
-                endpoint.executeListRequest(USERS, selectorList + '&' + query, options, true, createJSONObjectHandler(handler));
+                executeListRequest(selectorList + '&' + query, false, options, handler);
             }
 
         } else {
             LOG.info("Empty query, returning full list of objects for the {0} object class", ObjectClass.ACCOUNT_NAME);
 
-            endpoint.executeListRequest(USERS, selectorList, options, true, createJSONObjectHandler(handler));
+            executeListRequest(selectorList, true, options, handler);
+        }
+    }
+
+    /**
+     * Lists users. When the group or role memberships, group ownerships or photos are requested, the users
+     * are saturated concurrently: all the requests of one user run in parallel and the following users are saturated
+     * while the previous ones are waiting for their requests. At most {@link MSGraphConfiguration#getMaxConcurrentRequests()}
+     * requests are in flight and at most as many users are saturated ahead of the one which is handed out next.
+     * The users are handed to the results handler in the order in which they were listed.
+     * <p>
+     * When all the users are listed and {@link MSGraphConfiguration#isGroupMembershipIndex()} is enabled,
+     * memberOfGroup is looked up in the group membership index built up front instead.
+     * All the users are listed in partitions when {@link MSGraphConfiguration#getUserListPartitions()} is set.
+     *
+     * @param all whether all the users of the tenant are listed
+     */
+    private void executeListRequest(String query, boolean all, OperationOptions options, ResultsHandler handler) {
+        final GraphEndpoint endpoint = getGraphEndpoint();
+        final AttributePlan plan = getAttributePlan(options);
+        final List<String> saturated = getSaturatedAttributes(plan);
+        final int limit = getConfiguration().getMaxConcurrentRequests();
+
+        if (saturated.isEmpty()) {
+            listUsers(query, all, options, createJSONObjectHandler(options, handler), new Semaphore(limit));
+            return;
+        }
+
+        // Loaded once for the whole search of all the users, the other searches query the assignments of the users found
+        final RoleAssignmentIndex index = all && saturated.contains(ATTR_MEMBER_OF_ROLE) ? endpoint.getRoleAssignmentIndex() : null;
+        // Built for every search, a paged search would build it for every page
+        final GroupMembershipIndex groupIndex = all && saturated.contains(ATTR_MEMBER_OF_GROUP)
+                && getConfiguration().isGroupMembershipIndex() && !isPaged(options)
+                ? new GroupProcessing(endpoint).buildMembershipIndex() : null;
+        // Shared by the saturation and the partitions of the listing, at most "limit" requests are in flight
+        final Semaphore inFlight = new Semaphore(limit);
+        final Deque<SaturatedUser> ahead = new ArrayDeque<>();
+        final AtomicBoolean proceed = new AtomicBoolean(true);
+        try {
+            listUsers(query, all, options, (op, user) -> {
+                final String uid = user.getString(ATTR_ID);
+                final List<Future<Object>> values = new ArrayList<>(saturated.size());
+                for (String attr : saturated) {
+                    if (ATTR_MEMBER_OF_ROLE.equals(attr) && index != null) {
+                        values.add(CompletableFuture.completedFuture(new JSONArray(index.getRoleDefinitionIds(uid))));
+                    } else if (ATTR_MEMBER_OF_GROUP.equals(attr) && groupIndex != null) {
+                        values.add(CompletableFuture.completedFuture(new JSONArray(groupIndex.getGroupIds(uid))));
+                    } else {
+                        values.add(endpoint.submit(createSaturation(attr, plan, options, uid, index), inFlight));
+                    }
+                }
+                ahead.add(new SaturatedUser(user, saturated, values));
+
+                // Hand out the users which are ready, wait for the first one when too many are ahead
+                while (!ahead.isEmpty() && (ahead.size() > limit || ahead.peek().isDone())) {
+                    if (!handleSaturatedJSONObject(plan, ahead.poll().get(), handler)) {
+                        proceed.set(false);
+                        return false;
+                    }
+                }
+                return true;
+            }, inFlight);
+
+            while (proceed.get() && !ahead.isEmpty()) {
+                proceed.set(handleSaturatedJSONObject(plan, ahead.poll().get(), handler));
+            }
+        } finally {
+            for (SaturatedUser user : ahead) {
+                user.cancel();
+            }
+        }
+    }
+
+    private static boolean isPaged(OperationOptions options) {
+        return options != null && (options.getPageSize() != null || options.getPagedResultsOffset() != null
+                || options.getPagedResultsCookie() != null);
+    }
+
+    /**
+     * Lists the users page by page. All the users are listed in {@link MSGraphConfiguration#getUserListPartitions()}
+     * partitions concurrently when more than one is configured, the handler is still called by the calling thread.
+     *
+     * @param permits permits of the requests in flight, taken by the requests of the partitions
+     */
+    private void listUsers(String query, boolean all, OperationOptions options, JSONObjectHandler handler,
+                           Semaphore permits) {
+        final GraphEndpoint endpoint = getGraphEndpoint();
+        final Integer partitions = getConfiguration().getUserListPartitions();
+        if (!all || partitions == null || partitions <= 1) {
+            endpoint.executeListRequest(USERS, query, options, true, handler);
+            return;
+        }
+
+        List<String> queries = new ArrayList<>(partitions);
+        for (String filter : getPartitionFilters(partitions)) {
+            // The ranges are advanced queries, ConsistencyLevel is sent with every request
+            queries.add(query + "&$filter=" + filter + "&$count=true");
         }
+        LOG.info("Listing all users in {0} partitions", queries.size());
+        endpoint.executeListRequestPartitioned(USERS, queries, options, handler, permits);
+    }
+
+    /**
+     * Splits the users into the given number of ranges of userPrincipalName. The ranges are bounded by digits and
+     * letters, which are never equal to a userPrincipalName as it always contains "@", so every user falls into
+     * exactly one of them. The first and the last range are open, to include the names starting with other characters.
+     */
+    static List<String> getPartitionFilters(int partitions) {
+        final String boundaries = "0123456789abcdefghijklmnopqrstuvwxyz";
+        partitions = Math.min(partitions, boundaries.length());
+
+        List<String> filters = new ArrayList<>(partitions);
+        String lower = null;
+        for (int i = 1; i <= partitions; i++) {
+            String upper = i < partitions ? String.valueOf(boundaries.charAt(i * boundaries.length() / partitions)) : null;
+            if (lower == null) {
+                filters.add(ATTR_USERPRINCIPALNAME + " le '" + upper + "'");
+            } else if (upper == null) {
+                filters.add(ATTR_USERPRINCIPALNAME + " ge '" + lower + "'");
+            } else {
+                filters.add(ATTR_USERPRINCIPALNAME + " ge '" + lower + "' and " + ATTR_USERPRINCIPALNAME + " le '" + upper + "'");
+            }
+            lower = upper;
+        }
+        return filters;
     }
 
     protected Set<String> getAttributesToGet(OperationOptions options) {
@@ -1159,32 +1326,36 @@ public class UserProcessing extends ObjectProcessing {
     }
 
     @Override
-    protected boolean handleJSONObject(OperationOptions options, JSONObject user, ResultsHandler handler) {
+    protected boolean handleJSONObject(OperationOptions options, AttributePlan plan, JSONObject user, ResultsHandler handler) {
         LOG.ok("processingObjectFromGET (Object)");
-        if (shouldSaturate(options, ObjectClass.ACCOUNT_NAME, ATTR_MEMBER_OF_GROUP)) {
-            user = saturateGroupMembership(user);
-        }
-
-        if (shouldSaturate(options, ObjectClass.ACCOUNT_NAME, ATTR_OWNER_OF_GROUP)) {
-            user = saturateGroupOwnership(user);
-        }
-
-        if (shouldSaturate(options, ObjectClass.ACCOUNT_NAME, ATTR_MEMBER_OF_ROLE)) {
-            user = saturateRoleMembership(user);
+        final List<String> saturated = getSaturatedAttributes(plan);
+        if (!saturated.isEmpty()) {
+            // The requests of one user are independent of each other, the role assignments of a single user are queried
+            final String uid = user.getString(ATTR_ID);
+            final List<Callable<Object>> saturations = new ArrayList<>(saturated.size());
+            for (String attr : saturated) {
+                saturations.add(createSaturation(attr, plan, options, uid, null));
+            }
+            putSaturatedValues(user, saturated, getGraphEndpoint().executeConcurrently(saturations));
         }
 
-        if (shouldSaturate(options, ObjectClass.ACCOUNT_NAME, ATTR_USERPHOTO)) {
-            user = saturatePhoto(options, user);
-        }
+        return handleSaturatedJSONObject(plan, user, handler);
+    }
 
-        ConnectorObjectBuilder builder = convertUserJSONObjectToConnectorObject(user);
+    private boolean handleSaturatedJSONObject(AttributePlan plan, JSONObject user, ResultsHandler handler) {
+        getGraphEndpoint().getAttributeValueCache().put(user.optString(ATTR_ID, null), user,
+                UPDATABLE_MULTIPLE_VALUE_ATTRS_OF_USER);
+        ConnectorObjectBuilder builder = convertUserJSONObjectToConnectorObject(user, plan);
 
-        incompleteIfNecessary(options, ObjectClass.ACCOUNT_NAME, ATTR_MEMBER_OF_GROUP, builder);
-        incompleteIfNecessary(options, ObjectClass.ACCOUNT_NAME, ATTR_OWNER_OF_GROUP, builder);
-        incompleteIfNecessary(options, ObjectClass.ACCOUNT_NAME, ATTR_MEMBER_OF_ROLE, builder);
+        incompleteIfNecessary(plan, ATTR_MEMBER_OF_GROUP, builder);
+        incompleteIfNecessary(plan, ATTR_OWNER_OF_GROUP, builder);
+        incompleteIfNecessary(plan, ATTR_MEMBER_OF_ROLE, builder);
 
         ConnectorObject connectorObject = builder.build();
-        LOG.info("convertUserToConnectorObject, user: {0}, \n\tconnectorObject: {1}", user.get("id"), connectorObject);
+        if (getPayloadLog().sample(LOG)) {
+            LOG.ok("convertUserToConnectorObject, user: {0}, \n\tconnectorObject: {1}", user.get("id"),
+                    getPayloadLog().format(connectorObject));
+        }
         return handler.handle(connectorObject);
     }
 
@@ -1225,132 +1396,235 @@ public class UserProcessing extends ObjectProcessing {
         return invitation;
     }
 
-    private JSONObject saturateGroupMembership(JSONObject user) {
-        final String uid = user.getString(ATTR_ID);
+    /**
+     * Attributes which are fetched by separate requests for every user, in the order of the requests.
+     */
+    private List<String> getSaturatedAttributes(AttributePlan plan) {
+        final List<String> saturated = new ArrayList<>(4);
+        for (String attr : Arrays.asList(ATTR_MEMBER_OF_GROUP, ATTR_OWNER_OF_GROUP, ATTR_MEMBER_OF_ROLE, ATTR_USERPHOTO)) {
+            if (plan.shouldSaturate(attr)) {
+                saturated.add(attr);
+            }
+        }
+        return saturated;
+    }
+
+    /**
+     * Request of the value of the saturated attribute. The value is put to the user by the caller, JSON objects
+     * must not be modified concurrently.
+     *
+     * @param index role assignments to look the roles of the user up in, null to query them
+     */
+    private Callable<Object> createSaturation(String attr, AttributePlan plan, OperationOptions options, String uid,
+                                              RoleAssignmentIndex index) {
+        switch (attr) {
+            case ATTR_MEMBER_OF_GROUP:
+                return () -> listGroupMembership(uid);
+            case ATTR_OWNER_OF_GROUP:
+                return () -> listGroupOwnership(uid);
+            case ATTR_MEMBER_OF_ROLE:
+                return index != null ? () -> new JSONArray(index.getRoleDefinitionIds(uid)) : () -> listRoleMembership(uid);
+            case ATTR_USERPHOTO:
+                return () -> getPhoto(plan, options, uid);
+            default:
+                throw new IllegalArgumentException("Attribute " + attr + " is not saturated");
+        }
+    }
+
+    private static void putSaturatedValues(JSONObject user, List<String> attrs, List<Object> values) {
+        for (int i = 0; i < attrs.size(); i++) {
+            if (values.get(i) != null) {
+                user.put(attrs.get(i), values.get(i));
+            }
+        }
+    }
+
+    private JSONArray listGroupMembership(String uid) {
         final List<String> groups = getGraphEndpoint().executeListRequest(
                         String.format("/users/%s/memberOf", uid), "$select=id", null, true)
                 .toList().stream()
                 .filter(o -> TYPE_GROUP.equals(((Map) o).get(TYPE)))
                 .map(o -> (String) ((Map) o).get(ATTR_ID))
                 .collect(Collectors.toList());
-        user.put(ATTR_MEMBER_OF_GROUP, new JSONArray(groups));
-        return user;
+        return new JSONArray(groups);
     }
 
     // Saturate group ownership function
-    private JSONObject saturateGroupOwnership(JSONObject user) {
-        final String uid = user.getString(ATTR_ID);
+    private JSONArray listGroupOwnership(String uid) {
         final List<String> groups = getGraphEndpoint().executeListRequest(
                         String.format("/users/%s/ownedObjects", uid), "$select=id", null, true)
                 .toList().stream()
                 .filter(o -> TYPE_GROUP.equals(((Map) o).get(TYPE)))
                 .map(o -> (String) ((Map) o).get(ATTR_ID))
                 .collect(Collectors.toList());
-        user.put(ATTR_OWNER_OF_GROUP, new JSONArray(groups));
-        return user;
+        return new JSONArray(groups);
     }
 
-    private JSONObject saturateRoleMembership(JSONObject user) {
+    private JSONArray listRoleMembership(String uid) {
         final GraphEndpoint endpoint = getGraphEndpoint();
-        final String uid = user.getString(ATTR_ID);
 
-        LOG.info("[GET] - saturateRoleMembership(), for user with UID: {0}", uid);
+        LOG.ok("[GET] - saturateRoleMembership(), for user with UID: {0}", uid);
 
-        final String customQuery = "$select=roleDefinitionId&$filter=principalId eq '" + uid + "'";
+        final String customQuery = "$select=roleDefinitionId&$filter=principalId eq '" + uid + "' and "
+                + RoleProcessing.TENANT_SCOPE_FILTER;
         final JSONArray userMembership = endpoint.executeListRequest(ROLE_ASSIGNMENT, customQuery, null, true);
-        user.put(ATTR_MEMBER_OF_ROLE, getJSONArray(userMembership, "roleDefinitionId"));
-        return user;
+        return getJSONArray(userMembership, "roleDefinitionId");
     }
 
-    private JSONObject saturatePhoto(OperationOptions options, JSONObject user) {
+    // Null when the photo was not requested explicitly or the user has none
+    private Object getPhoto(AttributePlan plan, OperationOptions options, String uid) {
         final GraphEndpoint endpoint = getGraphEndpoint();
-        final String uid = user.getString(ATTR_ID);
 
-        if (getSchemaTranslator().containsToGet(ObjectClass.ACCOUNT_NAME, options, ATTR_USERPHOTO)) {
-            LOG.info("[GET] - /photo/$value, for user with UID: {0}", uid);
+        if (plan.contains(ATTR_USERPHOTO)) {
+            LOG.ok("[GET] - /photo/$value, for user with UID: {0}", uid);
             String photoPath = USERS + "/" + uid + "/" + ATTR_USERPHOTO + "/$value";
             final JSONObject userPhoto = endpoint.executeGetRequest(photoPath, null, options);
             if (userPhoto.length() != 0)
-                user.put(ATTR_USERPHOTO, userPhoto.get("data"));
+                return userPhoto.get("data");
         }
-        return user;
+        return null;
+    }
+
+    /**
+     * User listed by a search, with the requests of its saturated attributes in flight.
+     */
+    private static class SaturatedUser {
+
+        private final JSONObject user;
+        private final List<String> attrs;
+        private final List<Future<Object>> values;
+
+        SaturatedUser(JSONObject user, List<String> attrs, List<Future<Object>> values) {
+            this.user = user;
+            this.attrs = attrs;
+            this.values = values;
+        }
+
+        boolean isDone() {
+            for (Future<Object> value : values) {
+                if (!value.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Waits for all the requests, the first failure is rethrown
+        JSONObject get() {
+            final List<Object> results = new ArrayList<>(values.size());
+            try {
+                for (Future<Object> value : values) {
+                    results.add(value.get());
+                }
+            } catch (ExecutionException e) {
+                cancel();
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                        : new ConnectorException(e.getCause());
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new ConnectorException("Interrupted while saturating user " + user.opt(ATTR_ID), e);
+            }
+            putSaturatedValues(user, attrs, results);
+            return user;
+        }
+
+        void cancel() {
+            for (Future<Object> value : values) {
+                value.cancel(true);
+            }
+        }
+    }
+
+    private static ObjectMapping createUserMapping() {
+        ObjectMapping.Builder mapping = ObjectMapping.builder()
+                .single(ATTR_ACCOUNTENABLED, ATTR_ICF_ENABLED, Boolean.class)
+                .single(ATTR_ACCOUNTENABLED, Boolean.class)
+                .single(ATTR_ID, String.class)
+                .single(ATTR_USERPRINCIPALNAME, String.class)
+                .single(ATTR_DISPLAYNAME, String.class)
+                .single(ATTR_ONPREMISESIMMUTABLEID, String.class)
+                .single(ATTR_MAILNICKNAME, String.class)
+                .single(ATTR_ABOUTME, String.class)
+                .multi(ATTR_MEMBER_OF_GROUP)
+                .multi(ATTR_OWNER_OF_GROUP)
+                .multi(ATTR_MEMBER_OF_ROLE)
+                .single(ATTR_BIRTHDAY, String.class)
+                .single(ATTR_CITY, String.class)
+                .single(ATTR_COMPANYNAME, String.class)
+                .single(ATTR_COUNTRY, String.class)
+                .single(ATTR_DEPARTMENT, String.class)
+                .single(ATTR_GIVENNAME, String.class)
+                .single(ATTR_HIREDATE, String.class)
+                .multi(ATTR_IMADDRESSES)
+                .multi(ATTR_BUSINESSPHONES)
+                .multi(ATTR_INTERESTS)
+                .single(ATTR_JOBTITLE, String.class)
+                .single(ATTR_MAIL, String.class)
+                .single(ATTR_MOBILEPHONE, String.class)
+                .single(ATTR_MYSITE, String.class)
+                .single(ATTR_OFFICELOCATION, String.class)
+                .single(ATTR_ONPREMISESLASTSYNCDATETIME, String.class)
+                .single(ATTR_ONPREMISESSECURITYIDENTIFIER, String.class)
+                .single(ATTR_ONPREMISESSYNCENABLED, Boolean.class)
+                .single(ATTR_PASSWORDPOLICIES, String.class)
+                .multi(ATTR_PASTPROJECTS)
+                .single(ATTR_POSTALCODE, String.class)
+                .single(ATTR_PREFERREDLANGUAGE, String.class)
+                .single(ATTR_PREFERREDNAME, String.class)
+                .multi(ATTR_RESPONSIBILITIES)
+                .multi(ATTR_SCHOOLS)
+                .multi(ATTR_SKILLS)
+                .single(ATTR_STATE, String.class)
+                .single(ATTR_STREETADDRESS, String.class)
+                .single(ATTR_SURNAME, String.class)
+                .single(ATTR_USAGELOCATION, String.class)
+                .single(ATTR_USERTYPE, String.class)
+                .single(ATTR_SIGN_IN, String.class)
+                .single(ATTR_EXTERNALUSERSTATE, String.class)
+                .single(ATTR_EXTERNALUSERSTATECHANGEDATETIME, String.class)
+                .single(ATTR_EMPLOYEE_HIRE_DATE, String.class)
+                .single(ATTR_EMPLOYEE_LEAVE_DATE_TIME, String.class)
+                .single(ATTR_EMPLOYEE_TYPE, String.class)
+                .single(ATTR_FAX_NUMBER, String.class)
+                .single(ATTR_EMPLOYEE_ID, String.class)
+                .single(ATTR_USERPHOTO, byte[].class);
+
+        for (int i = 1; i <= NUMBER_OF_EXTENSIONS; i++) {
+            mapping.item(ATTR_ONPREMISESEXTENSIONATTRIBUTES, EXTENSION_ATTRIBUTE + i, String.class);
+        }
+
+        return mapping
+                .multi(ATTR_PROXYADDRESSES)
+                .arrayItems(ATTR_ASSIGNEDLICENSES, ATTR_SKUID, String.class)
+                .objectItem(ATTR_MANAGER, ATTR_ID, String.class)
+                .build();
     }
 
     public ConnectorObjectBuilder convertUserJSONObjectToConnectorObject(JSONObject user) {
-        LOG.info("convertUserJSONObjectToConnectorObject");
+        return convertUserJSONObjectToConnectorObject(user, null);
+    }
+
+    /**
+     * Converts the user to a connector object, only the attributes to get are converted.
+     *
+     * @param plan attributes to get, all the attributes are converted when null
+     */
+    public ConnectorObjectBuilder convertUserJSONObjectToConnectorObject(JSONObject user, AttributePlan plan) {
+        LOG.ok("convertUserJSONObjectToConnectorObject");
         ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
         builder.setObjectClass(ObjectClass.ACCOUNT);
 
         getUIDIfExists(user, ATTR_ID, builder);
         getNAMEIfExists(user, ATTR_USERPRINCIPALNAME, builder);
-        getAndRenameIfExists(user, ATTR_ACCOUNTENABLED, Boolean.class, ATTR_ICF_ENABLED, builder);
-
-        getIfExists(user, ATTR_ACCOUNTENABLED, Boolean.class, builder);
-        getIfExists(user, ATTR_ID, String.class, builder);
-        getIfExists(user, ATTR_USERPRINCIPALNAME, String.class, builder);
-        getIfExists(user, ATTR_ACCOUNTENABLED, Boolean.class, builder);
-        getIfExists(user, ATTR_DISPLAYNAME, String.class, builder);
-        getIfExists(user, ATTR_ONPREMISESIMMUTABLEID, String.class, builder);
-        getIfExists(user, ATTR_MAILNICKNAME, String.class, builder);
-        getIfExists(user, ATTR_ABOUTME, String.class, builder);
-        getMultiIfExists(user, ATTR_MEMBER_OF_GROUP, builder);
-        getMultiIfExists(user, ATTR_OWNER_OF_GROUP, builder);
-        getMultiIfExists(user, ATTR_MEMBER_OF_ROLE, builder);
-        getIfExists(user, ATTR_BIRTHDAY, String.class, builder);
-        getIfExists(user, ATTR_CITY, String.class, builder);
-        getIfExists(user, ATTR_COMPANYNAME, String.class, builder);
-        getIfExists(user, ATTR_COUNTRY, String.class, builder);
-        getIfExists(user, ATTR_DEPARTMENT, String.class, builder);
-        getIfExists(user, ATTR_GIVENNAME, String.class, builder);
-        getIfExists(user, ATTR_HIREDATE, String.class, builder);
-        getMultiIfExists(user, ATTR_IMADDRESSES, builder);
-        getIfExists(user, ATTR_ID, String.class, builder);
-        getMultiIfExists(user, ATTR_BUSINESSPHONES, builder);
-        getMultiIfExists(user, ATTR_INTERESTS, builder);
-        getIfExists(user, ATTR_JOBTITLE, String.class, builder);
-        getIfExists(user, ATTR_MAIL, String.class, builder);
-        getIfExists(user, ATTR_MOBILEPHONE, String.class, builder);
-        getIfExists(user, ATTR_MYSITE, String.class, builder);
-        getIfExists(user, ATTR_OFFICELOCATION, String.class, builder);
-        getIfExists(user, ATTR_ONPREMISESLASTSYNCDATETIME, String.class, builder);
-        getIfExists(user, ATTR_ONPREMISESSECURITYIDENTIFIER, String.class, builder);
-        getIfExists(user, ATTR_ONPREMISESSYNCENABLED, Boolean.class, builder);
-        getIfExists(user, ATTR_PASSWORDPOLICIES, String.class, builder);
-        getMultiIfExists(user, ATTR_PASTPROJECTS, builder);
-        getIfExists(user, ATTR_POSTALCODE, String.class, builder);
-        getIfExists(user, ATTR_PREFERREDLANGUAGE, String.class, builder);
-        getIfExists(user, ATTR_PREFERREDNAME, String.class, builder);
-        getMultiIfExists(user, ATTR_RESPONSIBILITIES, builder);
-        getMultiIfExists(user, ATTR_SCHOOLS, builder);
-        getMultiIfExists(user, ATTR_SKILLS, builder);
-        getIfExists(user, ATTR_STATE, String.class, builder);
-        getIfExists(user, ATTR_STREETADDRESS, String.class, builder);
-        getIfExists(user, ATTR_SURNAME, String.class, builder);
-        getIfExists(user, ATTR_USAGELOCATION, String.class, builder);
-        getIfExists(user, ATTR_USERTYPE, String.class, builder);
-        getIfExists(user, ATTR_SIGN_IN, String.class, builder);
-        getIfExists(user, ATTR_EXTERNALUSERSTATE, String.class, builder);
-        getIfExists(user, ATTR_EXTERNALUSERSTATECHANGEDATETIME, String.class, builder);
-        getIfExists(user, ATTR_EMPLOYEE_HIRE_DATE, String.class, builder);
-        getIfExists(user, ATTR_EMPLOYEE_LEAVE_DATE_TIME, String.class, builder);
-        getIfExists(user, ATTR_EMPLOYEE_TYPE, String.class, builder);
-        getIfExists(user, ATTR_FAX_NUMBER, String.class, builder);
-        getIfExists(user, ATTR_EMPLOYEE_ID, String.class, builder);
-        getIfExists(user, ATTR_USERPHOTO, byte[].class, builder);
-
-        for (int i = 1; i <= NUMBER_OF_EXTENSIONS; i++) {
-            getFromItemIfExists(user, ATTR_ONPREMISESEXTENSIONATTRIBUTES, EXTENSION_ATTRIBUTE + i, String.class, builder);
-        }
 
-        getMultiIfExists(user, ATTR_PROXYADDRESSES, builder);
-        getFromArrayIfExists(user, ATTR_ASSIGNEDLICENSES, ATTR_SKUID, String.class, builder);
-        getJSONObjectItemIfExists(user, ATTR_MANAGER, ATTR_ID, String.class, builder);
+        USER_MAPPING.convert(user, plan, builder);
         return builder;
     }
 
     public ConnectorObjectBuilder enhanceConnectorObjectWithDeltaItems(JSONObject user,
                                                                        ConnectorObjectBuilder builder) {
-        LOG.info("Evaluating Account delta items conversion.");
+        LOG.ok("Evaluating Account delta items conversion.");
 
         getFromArrayIfExists(user, ATTR_MANAGER, ATTR_ID, O_REMOVED, String.class, builder, true);
         return builder;
@@ -1368,26 +1642,16 @@ public class UserProcessing extends ObjectProcessing {
         }
     }
 
+    @Override
+    protected String[] selectableAttributes() {
+        return SELECTABLE_ATTRS;
+    }
+
     public String getSelectorSingle(OperationOptions options) {
 
         if (options != null) {
 
-            return selector(getSchemaTranslator().filter(ObjectClass.ACCOUNT_NAME, options,
-                    ATTR_ACCOUNTENABLED, ATTR_DISPLAYNAME,
-                    ATTR_ONPREMISESIMMUTABLEID, ATTR_MAILNICKNAME, ATTR_USERPRINCIPALNAME, ATTR_ABOUTME,
-                    ATTR_BIRTHDAY, ATTR_BUSINESSPHONES, ATTR_CITY, ATTR_COMPANYNAME, ATTR_COUNTRY, ATTR_DEPARTMENT,
-                    ATTR_GIVENNAME, ATTR_HIREDATE, ATTR_IMADDRESSES, ATTR_ID, ATTR_INTERESTS,
-                    ATTR_JOBTITLE, ATTR_MAIL, ATTR_MOBILEPHONE, ATTR_MYSITE, ATTR_OFFICELOCATION,
-                    ATTR_ONPREMISESLASTSYNCDATETIME, ATTR_ONPREMISESSECURITYIDENTIFIER,
-                    ATTR_ONPREMISESSYNCENABLED, ATTR_PASSWORDPOLICIES, ATTR_PASTPROJECTS,
-                    ATTR_POSTALCODE, ATTR_PREFERREDLANGUAGE, ATTR_PREFERREDNAME,
-                    ATTR_PROXYADDRESSES, ATTR_RESPONSIBILITIES, ATTR_SCHOOLS,
-                    ATTR_SKILLS, ATTR_STATE, ATTR_STREETADDRESS, ATTR_SURNAME,
-                    ATTR_USAGELOCATION, ATTR_USERTYPE, ATTR_ASSIGNEDLICENSES,
-                    ATTR_EXTERNALUSERSTATE, ATTR_EXTERNALUSERSTATECHANGEDATETIME, ATTR_MANAGER,
-                    ATTR_EMPLOYEE_HIRE_DATE, ATTR_EMPLOYEE_LEAVE_DATE_TIME, ATTR_EMPLOYEE_TYPE,
-                    ATTR_FAX_NUMBER, ATTR_EMPLOYEE_ID, ATTR_ONPREMISESEXTENSIONATTRIBUTES
-            ));
+            return getAttributePlan(options).getSelector();
         } else {
 
             return selector(
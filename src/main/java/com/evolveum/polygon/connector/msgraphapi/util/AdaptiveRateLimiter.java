@@ -0,0 +1,213 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side rate limiter shared by all threads using one endpoint. It learns the sustainable request rate of every
+ * Graph resource (users, groups, roleManagement, ...) from the throttling responses, in the AIMD fashion:
+ * <ul>
+ * <li>Until the first throttling response, requests to the resource are not limited.</li>
+ * <li>A 429 response halves the rate and, for the "Retry-After" period, blocks all requests to the resource,
+ * so the threads back off together.</li>
+ * <li>"x-ms-throttle-limit-percentage" close to the limit lowers the rate slightly, before requests get throttled.</li>
+ * <li>Every successful request raises the rate, by about one request per second each second. The limit is lifted
+ * when the rate gets to twice the rate at which the resource was throttled the first time.</li>
+ * </ul>
+ */
+public class AdaptiveRateLimiter {
+
+    private static final Log LOG = Log.getLog(AdaptiveRateLimiter.class);
+
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double SOFT_DECREASE_FACTOR = 0.9;
+    // "x-ms-throttle-limit-percentage" above which the rate is lowered
+    private static final double SOFT_LIMIT_PERCENTAGE = 0.95;
+    // Requests per second
+    private static final double MIN_RATE = 1.0;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    /**
+     * Resource of the request, i.e. the first segment of the path after the API version,
+     * e.g. "users" for "/v1.0/users/{id}/memberOf".
+     */
+    public static String getResource(String path) {
+        if (path == null) {
+            return "";
+        }
+        String[] segments = path.split("/");
+        int index = 0;
+        while (index < segments.length && segments[index].isEmpty()) {
+            index++;
+        }
+        if (index < segments.length && (segments[index].equals("v1.0") || segments[index].equals("beta"))) {
+            index++;
+        }
+        return index < segments.length ? segments[index] : "";
+    }
+
+    /**
+     * Waits until a request to the resource may be sent.
+     */
+    public void acquire(String resource) throws InterruptedException {
+        long wait = getBucket(resource).reserve(System.nanoTime());
+        if (wait > 0) {
+            LOG.ok("Request to {0} delayed by the rate limiter for {1} ms", resource, TimeUnit.NANOSECONDS.toMillis(wait));
+            totalWaitNanos.addAndGet(wait);
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Request to the resource was throttled by the service.
+     *
+     * @param retryAfter value of the "Retry-After" header in milliseconds
+     */
+    public void throttled(String resource, long retryAfter) {
+        Bucket bucket = getBucket(resource);
+        bucket.throttled(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(retryAfter));
+        LOG.info("Requests to {0} throttled, rate limited to {1} requests per second", resource, bucket.getRate());
+    }
+
+    /**
+     * Request to the resource was not throttled.
+     *
+     * @param limitPercentage value of the "x-ms-throttle-limit-percentage" header, null if not returned
+     */
+    public void succeeded(String resource, Double limitPercentage) {
+        Bucket bucket = buckets.get(resource);
+        if (bucket != null) {
+            bucket.succeeded(System.nanoTime(), limitPercentage);
+        }
+    }
+
+    /**
+     * Current rate limit of the resource in requests per second, 0 when not limited.
+     */
+    public double getRate(String resource) {
+        Bucket bucket = buckets.get(resource);
+        return bucket == null ? 0 : bucket.getRate();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    /**
+     * Summary of the throttled resources, e.g. "waited: 1500 ms; users: [rate: 12.0/s; throttled: 2]".
+     */
+    public String getStatistics() {
+        StringBuilder sb = new StringBuilder("waited: ").append(getTotalWaitMillis()).append(" ms");
+        for (Map.Entry<String, Bucket> entry : new TreeMap<>(buckets).entrySet()) {
+            if (entry.getValue().getThrottledCount() > 0) {
+                sb.append("; ").append(entry.getKey()).append(": [rate: ")
+                        .append(String.format("%.1f", entry.getValue().getRate())).append("/s; throttled: ")
+                        .append(entry.getValue().getThrottledCount()).append("]");
+            }
+        }
+        return sb.toString();
+    }
+
+    private Bucket getBucket(String resource) {
+        return buckets.computeIfAbsent(resource, r -> new Bucket(System.nanoTime()));
+    }
+
+    private static class Bucket {
+
+        // 0 when the requests are not limited
+        private double rate;
+        private double ceiling;
+        private long nextPermit;
+        private long blockedUntil;
+
+        private long windowStart;
+        private int windowCount;
+        private double observedRate;
+
+        private long lastDecrease;
+        private long throttledCount;
+
+        Bucket(long now) {
+            this.windowStart = now;
+            this.lastDecrease = now - SECOND;
+        }
+
+        synchronized long reserve(long now) {
+            observe(now);
+
+            long start = Math.max(now, blockedUntil);
+            if (rate > 0) {
+                start = Math.max(start, nextPermit);
+                nextPermit = start + (long) (SECOND / rate);
+            }
+            return start - now;
+        }
+
+        synchronized void throttled(long now, long retryAfter) {
+            throttledCount++;
+            if (rate == 0) {
+                // The rate which got throttled
+                rate = Math.max(observedRate, windowCount * (double) SECOND / Math.max(now - windowStart, SECOND));
+                ceiling = Math.max(2 * rate, 2 * MIN_RATE);
+            }
+            // Requests which were already in flight are throttled too, the rate is lowered once per back-off
+            if (now >= blockedUntil) {
+                decrease(now, DECREASE_FACTOR);
+            }
+            blockedUntil = Math.max(blockedUntil, now + retryAfter);
+        }
+
+        synchronized void succeeded(long now, Double limitPercentage) {
+            if (limitPercentage != null && limitPercentage >= SOFT_LIMIT_PERCENTAGE) {
+                if (rate == 0) {
+                    rate = Math.max(observedRate, MIN_RATE);
+                    ceiling = Math.max(2 * rate, 2 * MIN_RATE);
+                }
+                // The header comes with every response, lower the rate once per second at most
+                if (now - lastDecrease >= SECOND) {
+                    decrease(now, SOFT_DECREASE_FACTOR);
+                }
+                return;
+            }
+
+            if (rate > 0) {
+                rate += 1.0 / rate;
+                if (rate >= ceiling) {
+                    rate = 0;
+                }
+            }
+        }
+
+        private void decrease(long now, double factor) {
+            rate = Math.max(MIN_RATE, rate * factor);
+            lastDecrease = now;
+        }
+
+        private void observe(long now) {
+            windowCount++;
+            long elapsed = now - windowStart;
+            if (elapsed >= SECOND) {
+                observedRate = windowCount * (double) SECOND / elapsed;
+                windowStart = now;
+                windowCount = 0;
+            }
+        }
+
+        synchronized double getRate() {
+            return rate;
+        }
+
+        synchronized long getThrottledCount() {
+            return throttledCount;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recently read values of the multi-valued attributes of users and groups, so that an update adding or removing
+ * values can merge them without reading the object again. The values are taken from the search and sync results
+ * and from the updates themselves, and they are used only until they are older than the time to live.
+ * The ETag of the object is kept with the values, so that an update can be made conditional when Graph provides it.
+ * The cache holds at most the given number of objects, the least recently used ones are dropped first.
+ */
+public class AttributeValueCache {
+
+    public static final String ETAG = "@odata.etag";
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Cached values of an object.
+     */
+    public static class Values {
+
+        private final JSONObject json;
+        private final String eTag;
+
+        private Values(JSONObject json, String eTag) {
+            this.json = json;
+            this.eTag = eTag;
+        }
+
+        /**
+         * Copy of the cached values of the requested attributes.
+         */
+        public JSONObject getJson() {
+            return json;
+        }
+
+        /**
+         * ETag of the object when the values were read, null if Graph did not provide it.
+         */
+        public String getETag() {
+            return eTag;
+        }
+    }
+
+    private static class Entry {
+        private final JSONObject json = new JSONObject();
+        private final long timestamp;
+        private String eTag;
+
+        private Entry(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * @param ttlMillis  time to live of the values, nothing is cached when zero
+     * @param maxObjects maximum number of the objects held
+     */
+    public AttributeValueCache(long ttlMillis, final int maxObjects) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxObjects;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * Remembers the values of the attributes present in the object, the values of the other attributes cached
+     * for the object are kept while they are fresh.
+     */
+    public void put(String id, JSONObject object, Collection<String> attributes) {
+        if (!isEnabled() || id == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(id);
+            if (entry == null || isExpired(entry, now)) {
+                entry = new Entry(now);
+            }
+            boolean cached = false;
+            for (String attribute : attributes) {
+                Object value = object.opt(attribute);
+                if (value instanceof JSONArray) {
+                    // Copied, the object is going to be modified by the caller
+                    entry.json.put(attribute, new JSONArray(((JSONArray) value).toList()));
+                    cached = true;
+                }
+            }
+            if (!cached) {
+                return;
+            }
+            if (object.has(ETAG)) {
+                entry.eTag = object.optString(ETAG, null);
+            }
+            entries.put(id, entry);
+        }
+    }
+
+    /**
+     * @return values of all the requested attributes, null when some of them are not cached or are too old
+     */
+    public Values get(String id, Collection<String> attributes) {
+        if (!isEnabled()) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                return null;
+            }
+            if (isExpired(entry, now)) {
+                entries.remove(id);
+                return null;
+            }
+            JSONObject json = new JSONObject();
+            for (String attribute : attributes) {
+                JSONArray value = entry.json.optJSONArray(attribute);
+                if (value == null) {
+                    return null;
+                }
+                json.put(attribute, new JSONArray(value.toList()));
+            }
+            return new Values(json, entry.eTag);
+        }
+    }
+
+    /**
+     * The object was modified in a way the cached values do not reflect, or it was deleted.
+     */
+    public void invalidate(String id) {
+        synchronized (entries) {
+            entries.remove(id);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.timestamp > ttlMillis;
+    }
+}
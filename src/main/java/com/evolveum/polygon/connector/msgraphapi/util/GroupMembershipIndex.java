@@ -0,0 +1,102 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups of every member, inverted from the members of all the groups of the tenant. Every group id is held once
+ * and referenced by its ordinal, the groups of a member are a growable array of the ordinals, whose first item
+ * is the number of the groups. Every member id is held once too, as the key of the index.
+ * The index is filled by one thread and only read afterwards.
+ */
+public class GroupMembershipIndex {
+
+    // Rough sizes of the entries, for the estimates: a 36 characters long id, a hash map entry, an array
+    private static final long ID_BYTES = 40 + 2 * 36;
+    private static final long MEMBER_BYTES = ID_BYTES + 48 + 16;
+    private static final long GROUP_BYTES = ID_BYTES + 8;
+
+    private final List<String> groupIds = new ArrayList<>();
+    private final Map<String, int[]> groupsByMember = new HashMap<>();
+    private long memberships;
+
+    /**
+     * Rough size of the index in bytes.
+     *
+     * @param memberships expected number of the group memberships of all the members
+     */
+    public static long estimateBytes(long members, long groups, long memberships) {
+        return members * MEMBER_BYTES + groups * GROUP_BYTES + memberships * Integer.BYTES * 3 / 2;
+    }
+
+    /**
+     * @return ordinal of the group
+     */
+    public int addGroup(String groupId) {
+        groupIds.add(groupId);
+        return groupIds.size() - 1;
+    }
+
+    public void addMember(String memberId, int group) {
+        int[] groups = groupsByMember.get(memberId);
+        if (groups == null) {
+            groups = new int[3];
+            groupsByMember.put(memberId, groups);
+        } else if (groups[0] + 1 == groups.length) {
+            int[] grown = new int[groups.length * 2];
+            System.arraycopy(groups, 0, grown, 0, groups.length);
+            groups = grown;
+            groupsByMember.put(memberId, groups);
+        }
+        groups[++groups[0]] = group;
+        memberships++;
+    }
+
+    /**
+     * Groups the user, group, device, ... is a direct member of.
+     */
+    public List<String> getGroupIds(String memberId) {
+        final int[] groups = groupsByMember.get(memberId);
+        if (groups == null) {
+            return Collections.emptyList();
+        }
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                if (index < 0 || index >= groups[0]) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + groups[0]);
+                }
+                return groupIds.get(groups[index + 1]);
+            }
+
+            @Override
+            public int size() {
+                return groups[0];
+            }
+        };
+    }
+
+    public int getGroupCount() {
+        return groupIds.size();
+    }
+
+    public int getMemberCount() {
+        return groupsByMember.size();
+    }
+
+    public long getMembershipCount() {
+        return memberships;
+    }
+
+    public long estimateBytes() {
+        long bytes = estimateBytes(groupsByMember.size(), groupIds.size(), 0);
+        for (int[] groups : groupsByMember.values()) {
+            bytes += (long) groups.length * Integer.BYTES;
+        }
+        return bytes;
+    }
+}
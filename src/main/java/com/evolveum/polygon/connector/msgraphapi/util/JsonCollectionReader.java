@@ -0,0 +1,93 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.Reader;
+import java.util.function.Predicate;
+
+/**
+ * Reads a collection response of the Graph API, e.g. {"@odata.nextLink": "...", "value": [{...}, {...}]},
+ * as it arrives. The items of the "value" array are parsed and handed to the consumer one at a time,
+ * so only the current item is held in memory instead of the whole page.
+ */
+public final class JsonCollectionReader {
+
+    private static final String VALUE = "value";
+
+    private JsonCollectionReader() {
+    }
+
+    /**
+     * Reads the response and passes every item of its "value" array to the consumer.
+     *
+     * @param consumer returns false to stop reading
+     * @return the other properties of the response, e.g. "@odata.nextLink"; null when the consumer stopped reading
+     */
+    public static JSONObject read(Reader reader, Predicate<JSONObject> consumer) {
+        JSONTokener tokener = new JSONTokener(reader);
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A JSONObject text must begin with '{'");
+        }
+
+        JSONObject properties = new JSONObject();
+        if (tokener.nextClean() == '}') {
+            return properties;
+        }
+        tokener.back();
+
+        while (true) {
+            String key = tokener.nextValue().toString();
+            if (tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+
+            if (VALUE.equals(key) && tokener.nextClean() == '[') {
+                if (!readItems(tokener, consumer)) {
+                    return null;
+                }
+            } else {
+                if (VALUE.equals(key)) {
+                    tokener.back();
+                }
+                properties.put(key, tokener.nextValue());
+            }
+
+            switch (tokener.nextClean()) {
+                case ',':
+                    break;
+                case '}':
+                    return properties;
+                default:
+                    throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+        }
+    }
+
+    private static boolean readItems(JSONTokener tokener, Predicate<JSONObject> consumer) {
+        if (tokener.nextClean() == ']') {
+            return true;
+        }
+        tokener.back();
+
+        for (int index = 0; ; index++) {
+            Object item = tokener.nextValue();
+            if (!(item instanceof JSONObject)) {
+                throw new JSONException("JSONArray[" + index + "] is not a JSONObject.");
+            }
+            if (!consumer.test((JSONObject) item)) {
+                return false;
+            }
+
+            switch (tokener.nextClean()) {
+                case ',':
+                    break;
+                case ']':
+                    return true;
+                default:
+                    throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+}
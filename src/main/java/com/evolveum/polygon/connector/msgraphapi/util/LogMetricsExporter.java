@@ -0,0 +1,20 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.List;
+
+/**
+ * Exporter writing the metrics of every route to the connector log.
+ */
+public class LogMetricsExporter implements MetricsExporter {
+
+    private static final Log LOG = Log.getLog(LogMetricsExporter.class);
+
+    @Override
+    public void export(String endpoint, List<RequestMetrics.RouteStatistics> routes) {
+        for (RequestMetrics.RouteStatistics route : routes) {
+            LOG.info("Request metrics of {0}, {1}", endpoint, route);
+        }
+    }
+}
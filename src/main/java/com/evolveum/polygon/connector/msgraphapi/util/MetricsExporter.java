@@ -0,0 +1,24 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import java.util.List;
+
+/**
+ * Receives the request metrics of an endpoint periodically, every "metricsExportInterval" seconds, and once more
+ * when the endpoint is closed. An implementation is configured by its class name in the "metricsExporter"
+ * configuration property and needs a public constructor without arguments. The metrics are cumulative,
+ * from the creation of the endpoint.
+ */
+public interface MetricsExporter {
+
+    /**
+     * @param endpoint identification of the endpoint, e.g. the tenant id
+     * @param routes   metrics of the requests by the connector operation, method and route
+     */
+    void export(String endpoint, List<RequestMetrics.RouteStatistics> routes);
+
+    /**
+     * The endpoint was closed, no more metrics are going to be exported.
+     */
+    default void close() {
+    }
+}
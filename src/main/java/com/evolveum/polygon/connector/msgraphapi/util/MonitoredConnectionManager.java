@@ -0,0 +1,94 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Pooling connection manager which keeps track of how many connections were leased from the pool
+ * and how long the callers had to wait for them. The numbers are meant for sizing of the pool under load.
+ */
+public class MonitoredConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private final AtomicLong leaseCount = new AtomicLong();
+    private final AtomicLong failedLeaseCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0L);
+
+    public MonitoredConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+
+        super(socketFactoryRegistry);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+
+        final long start = System.nanoTime();
+        final ConnectionRequest request = super.requestConnection(route, state);
+
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit timeUnit) throws InterruptedException,
+                    ExecutionException, ConnectionPoolTimeoutException {
+                try {
+                    HttpClientConnection connection = request.get(timeout, timeUnit);
+                    recordLease(System.nanoTime() - start);
+
+                    return connection;
+                } catch (InterruptedException | ExecutionException | ConnectionPoolTimeoutException e) {
+                    failedLeaseCount.incrementAndGet();
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    private void recordLease(long waitNanos) {
+        leaseCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulate(waitNanos);
+    }
+
+    public long getLeaseCount() {
+        return leaseCount.get();
+    }
+
+    public long getFailedLeaseCount() {
+        return failedLeaseCount.get();
+    }
+
+    public long getAverageWaitMillis() {
+        long leases = leaseCount.get();
+        return leases == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / leases);
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /**
+     * Summary of the lease statistics together with the current state of the pool,
+     * e.g. "leases: 120; failed leases: 0; avg wait: 1 ms; max wait: 35 ms; pool: [leased: 4; pending: 0; available: 6; max: 20]".
+     */
+    public String getStatistics() {
+        PoolStats stats = getTotalStats();
+
+        return "leases: " + getLeaseCount() + "; failed leases: " + getFailedLeaseCount()
+                + "; avg wait: " + getAverageWaitMillis() + " ms; max wait: " + getMaxWaitMillis() + " ms; pool: " + stats;
+    }
+}
@@ -0,0 +1,125 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import org.identityconnectors.common.logging.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Guards the logging of the payloads, i.e. the bodies of the requests and responses and the converted objects.
+ * A payload is logged only on the OK level and only every n-th one, its text is cut off at the maximum length,
+ * so that the dumps neither flood the log nor cost the serialization of every object when they are enabled.
+ * <p>
+ * Usage: {@code if (payloadLog.sample(LOG)) { LOG.ok("Response: {0}", payloadLog.format(json)); }}
+ */
+public class PayloadLog {
+
+    private final int sampling;
+    private final int maxLength;
+    private final AtomicLong payloads = new AtomicLong();
+
+    /**
+     * @param sampling  every n-th payload is logged, 1 logs all of them and 0 none
+     * @param maxLength maximum number of characters of a logged payload, 0 does not limit the length
+     */
+    public PayloadLog(int sampling, int maxLength) {
+        this.sampling = sampling;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Decides whether the next payload is logged by the given log. The check is cheap when the OK level is disabled.
+     */
+    public boolean sample(Log log) {
+        return log.isOk() && sample();
+    }
+
+    /**
+     * Decides whether the next payload is logged, regardless of the log level.
+     */
+    public boolean sample() {
+        if (sampling <= 0) {
+            return false;
+        }
+        return sampling == 1 || payloads.getAndIncrement() % sampling == 0;
+    }
+
+    /**
+     * Text of the payload cut off at the maximum length. A JSON payload is serialized only up to the maximum length.
+     */
+    public String format(Object payload) {
+        if (maxLength <= 0) {
+            return String.valueOf(payload);
+        }
+
+        if (payload instanceof JSONObject || payload instanceof JSONArray) {
+            LimitedWriter writer = new LimitedWriter(maxLength);
+            try {
+                if (payload instanceof JSONObject) {
+                    ((JSONObject) payload).write(writer);
+                } else {
+                    ((JSONArray) payload).write(writer);
+                }
+            } catch (JSONException e) {
+                if (!writer.full) {
+                    throw e;
+                }
+            }
+            return writer.full ? writer.text + "... (cut off at " + maxLength + " characters)" : writer.text.toString();
+        }
+
+        String text = String.valueOf(payload);
+        if (text.length() <= maxLength) {
+            return text;
+        }
+        return text.substring(0, maxLength) + "... (" + (text.length() - maxLength) + " more characters)";
+    }
+
+    /**
+     * Writer stopping the serialization of a JSON payload by a failure once it has the maximum length.
+     */
+    private static final class LimitedWriter extends Writer {
+
+        private final int maxLength;
+        private final StringBuilder text = new StringBuilder();
+        private boolean full;
+
+        private LimitedWriter(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            int remaining = maxLength - text.length();
+            if (length > remaining) {
+                text.append(buffer, offset, remaining);
+                full = true;
+                throw new IOException("Payload cut off");
+            }
+            text.append(buffer, offset, length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            int remaining = maxLength - text.length();
+            if (length > remaining) {
+                text.append(string, offset, offset + remaining);
+                full = true;
+                throw new IOException("Payload cut off");
+            }
+            text.append(string, offset, offset + length);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One line summary of a request sent to the Graph API, e.g. {@code search GET /users -> 200 in 153 ms, 100 items}.
+ * The summary holds no payload, so that it is cheap enough to be left on in production. It is logged on the INFO
+ * level by its own logger, which can be configured apart from the rest of the connector log.
+ */
+public class RequestLog {
+
+    private static final Log LOG = Log.getLog(RequestLog.class);
+
+    private final String operation = RequestMetrics.getOperation();
+    private final String method;
+    private final long start = System.nanoTime();
+    private String route;
+    private int status;
+    private int retries;
+    private int items = -1;
+    private Long responded;
+
+    public RequestLog(String method) {
+        this.method = method;
+    }
+
+    public void setRoute(String route) {
+        this.route = route;
+    }
+
+    /**
+     * Status of the final response, 0 when the request failed without a response.
+     */
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Number of the repetitions of the throttled request.
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Number of the objects read from the response, not logged when not set.
+     */
+    public void setItems(int items) {
+        this.items = items;
+    }
+
+    public void countItem() {
+        items = items < 0 ? 1 : items + 1;
+    }
+
+    /**
+     * The response was received, its body is going to be streamed to a consumer. The time of the request is measured
+     * up to now, the time of reading the items, which includes their processing by the consumer, is logged apart.
+     */
+    public void responded() {
+        responded = System.nanoTime();
+    }
+
+    /**
+     * Logs the summary, the time is measured from the creation of the summary.
+     */
+    public void log() {
+        if (!LOG.isInfo()) {
+            return;
+        }
+
+        final long end = System.nanoTime();
+        StringBuilder sb = new StringBuilder();
+        sb.append(operation).append(' ').append(method).append(' ').append(route)
+                .append(" -> ").append(status)
+                .append(" in ").append(TimeUnit.NANOSECONDS.toMillis((responded == null ? end : responded) - start))
+                .append(" ms");
+        if (items >= 0) {
+            sb.append(", ").append(items).append(" items");
+            if (responded != null) {
+                sb.append(" read in ").append(TimeUnit.NANOSECONDS.toMillis(end - responded)).append(" ms");
+            }
+        }
+        if (retries > 0) {
+            sb.append(", retries: ").append(retries);
+        }
+        // The route contains braces, it must not be the format of the message
+        LOG.info("{0}", sb);
+    }
+}
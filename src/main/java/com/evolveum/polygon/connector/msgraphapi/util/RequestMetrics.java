@@ -0,0 +1,564 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.ToLongFunction;
+
+/**
+ * Metrics of the requests sent to the Graph API by one endpoint: counts, latency histograms, transferred bytes,
+ * status codes, throttling waits and retries, and the writes suppressed as they would not change anything.
+ * The metrics are kept per connector operation (search, sync, update, ...), HTTP method and normalised route,
+ * e.g. "/users/{id}/memberOf". The connector operation is the one started by {@link #startOperation(String)}
+ * on the thread sending the request, tasks executed on behalf of the operation by other threads are wrapped
+ * by {@link #propagate(Callable)}.
+ * The counters are cumulative, from the creation of the endpoint.
+ */
+public class RequestMetrics implements RequestMetricsMXBean {
+
+    public static final String OPERATION_OTHER = "other";
+    public static final String ROUTE_OTHER = "{other}";
+    private static final String ID = "{id}";
+
+    // Upper bounds of the latency buckets in milliseconds, the last bucket is not bounded
+    static final long[] LATENCY_BOUNDS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+    // Routes of the paths not normalised well enough do not grow the metrics without limit
+    private static final int MAX_ROUTES = 500;
+
+    private static final ThreadLocal<String> OPERATION = new ThreadLocal<>();
+
+    private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Tags the requests sent by the current thread with the connector operation, until the returned scope is closed.
+     */
+    public static Operation startOperation(String name) {
+        Operation operation = new Operation(OPERATION.get());
+        OPERATION.set(name);
+        return operation;
+    }
+
+    public static String getOperation() {
+        String operation = OPERATION.get();
+        return operation == null ? OPERATION_OTHER : operation;
+    }
+
+    /**
+     * Wraps the task, so that its requests are tagged with the connector operation of the current thread.
+     */
+    public static <T> Callable<T> propagate(final Callable<T> task) {
+        final String name = OPERATION.get();
+        if (name == null) {
+            return task;
+        }
+        return () -> {
+            try (Operation ignored = startOperation(name)) {
+                return task.call();
+            }
+        };
+    }
+
+    /**
+     * Wraps the task, so that its requests are tagged with the connector operation of the current thread.
+     */
+    public static Runnable propagate(final Runnable task) {
+        final String name = OPERATION.get();
+        if (name == null) {
+            return task;
+        }
+        return () -> {
+            try (Operation ignored = startOperation(name)) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * Path of the request relative to the API URL with the ids of the objects replaced, e.g. "/users/{id}/memberOf".
+     * A segment is taken for an id when it contains other characters than letters, digits, dots and parentheses,
+     * e.g. a GUID or a user principal name, or when it consists of digits only.
+     *
+     * @param path     raw path of the request
+     * @param basePath raw path of the API URL, e.g. "/v1.0"
+     */
+    public static String getRoute(String path, String basePath) {
+        if (path == null || path.isEmpty()) {
+            return "/";
+        }
+        if (basePath != null && !basePath.isEmpty() && path.startsWith(basePath)) {
+            path = path.substring(basePath.length());
+        }
+
+        StringBuilder route = new StringBuilder(path.length());
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            route.append('/').append(isIdentifier(segment) ? ID : segment);
+        }
+        return route.length() == 0 ? "/" : route.toString();
+    }
+
+    private static boolean isIdentifier(String segment) {
+        if (segment.charAt(0) == '$') {
+            return false;
+        }
+        boolean digits = true;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '.' && c != '(' && c != ')') {
+                return true;
+            }
+            digits &= Character.isDigit(c);
+        }
+        return digits;
+    }
+
+    /**
+     * Metrics of the requests of the current connector operation to the route.
+     */
+    public RouteMetrics getRouteMetrics(String method, String route) {
+        String operation = getOperation();
+        String key = operation + ' ' + method + ' ' + route;
+        RouteMetrics metrics = routes.get(key);
+        if (metrics != null) {
+            return metrics;
+        }
+        if (routes.size() >= MAX_ROUTES) {
+            return routes.computeIfAbsent(operation + ' ' + method + ' ' + ROUTE_OTHER,
+                    k -> new RouteMetrics(operation, method, ROUTE_OTHER));
+        }
+        return routes.computeIfAbsent(key, k -> new RouteMetrics(operation, method, route));
+    }
+
+    @Override
+    public List<RouteStatistics> getRoutes() {
+        List<RouteStatistics> statistics = new ArrayList<>(routes.size());
+        for (RouteMetrics metrics : new TreeMap<>(routes).values()) {
+            statistics.add(metrics.getStatistics());
+        }
+        return statistics;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return sum(m -> m.requests.get());
+    }
+
+    @Override
+    public long getFailedRequestCount() {
+        return sum(m -> m.failures.get());
+    }
+
+    @Override
+    public long getThrottledCount() {
+        return sum(m -> m.throttled.get());
+    }
+
+    @Override
+    public long getThrottleWaitMillis() {
+        return sum(m -> m.throttleWaitMillis.get());
+    }
+
+    @Override
+    public long getRetryCount() {
+        return sum(m -> m.retries.get());
+    }
+
+    @Override
+    public long getBytesSent() {
+        return sum(m -> m.bytesSent.get());
+    }
+
+    @Override
+    public long getSuppressedCount() {
+        return sum(m -> m.suppressed.get());
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return sum(m -> m.bytesReceived.get());
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (RouteMetrics metrics : routes.values()) {
+            for (Map.Entry<Integer, AtomicLong> entry : metrics.statuses.entrySet()) {
+                counts.merge(String.valueOf(entry.getKey()), entry.getValue().get(), Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        routes.clear();
+    }
+
+    /**
+     * Summary of all the requests, e.g. "requests: 1200; failed: 0; throttled: 3; throttle wait: 3000 ms;
+     * retries: 1; suppressed: 5; sent: 20480 B; received: 5242880 B; statuses: {200=1196, 429=3, 503=1}".
+     */
+    public String getStatistics() {
+        return "requests: " + getRequestCount() + "; failed: " + getFailedRequestCount()
+                + "; throttled: " + getThrottledCount() + "; throttle wait: " + getThrottleWaitMillis()
+                + " ms; retries: " + getRetryCount() + "; suppressed: " + getSuppressedCount() + "; sent: "
+                + getBytesSent() + " B; received: " + getBytesReceived() + " B; statuses: " + getStatusCounts();
+    }
+
+    private long sum(ToLongFunction<RouteMetrics> value) {
+        long sum = 0;
+        for (RouteMetrics metrics : routes.values()) {
+            sum += value.applyAsLong(metrics);
+        }
+        return sum;
+    }
+
+    /**
+     * Scope of a connector operation started by {@link #startOperation(String)}, closing it restores the operation
+     * which was in progress before.
+     */
+    public static class Operation implements AutoCloseable {
+
+        private final String previous;
+
+        private Operation(String previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                OPERATION.remove();
+            } else {
+                OPERATION.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Metrics of the requests of one connector operation, method and route.
+     */
+    public static class RouteMetrics {
+
+        private final String operation;
+        private final String method;
+        private final String route;
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private final AtomicLong throttleWaitMillis = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong retryWaitMillis = new AtomicLong();
+        private final AtomicLong suppressed = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+        private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+        private final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+
+        RouteMetrics(String operation, String method, String route) {
+            this.operation = operation;
+            this.method = method;
+            this.route = route;
+        }
+
+        /**
+         * The response of the request was received.
+         *
+         * @param nanos     time from sending the request to receiving the response headers, including the retries
+         *                  of the HTTP client
+         * @param bytesSent length of the request body, negative when not known
+         */
+        public void responded(int status, long nanos, long bytesSent) {
+            requests.incrementAndGet();
+            status(status);
+            latency(nanos);
+            if (bytesSent > 0) {
+                this.bytesSent.addAndGet(bytesSent);
+            }
+        }
+
+        /**
+         * The request failed without a response, e.g. on a timeout.
+         */
+        public void failed(long nanos) {
+            requests.incrementAndGet();
+            failures.incrementAndGet();
+            latency(nanos);
+        }
+
+        /**
+         * The request was throttled by the service, with the status 429.
+         */
+        public void throttled() {
+            throttled.incrementAndGet();
+        }
+
+        /**
+         * The throttled request is going to be sent again after waiting as asked by the "Retry-After" header.
+         */
+        public void waited(long millis) {
+            throttleWaitMillis.addAndGet(millis);
+        }
+
+        /**
+         * The HTTP client is going to send the request again after the response with the status.
+         */
+        public void retried(int status, long waitMillis) {
+            retries.incrementAndGet();
+            retryWaitMillis.addAndGet(waitMillis);
+            status(status);
+        }
+
+        /**
+         * The request was not sent, as it would not change anything, e.g. a PATCH of the values already set.
+         */
+        public void suppressed() {
+            suppressed.incrementAndGet();
+        }
+
+        /**
+         * Wraps the entity of the response, so that the bytes read from it are counted. The bytes are counted
+         * after the content decoding, e.g. after gunzipping.
+         */
+        public HttpEntity countReceived(HttpEntity entity) {
+            if (entity == null) {
+                return null;
+            }
+            return new HttpEntityWrapper(entity) {
+                @Override
+                public InputStream getContent() throws IOException {
+                    return new CountingInputStream(super.getContent(), bytesReceived);
+                }
+            };
+        }
+
+        private void status(int status) {
+            statuses.computeIfAbsent(status, s -> new AtomicLong()).incrementAndGet();
+        }
+
+        private void latency(long nanos) {
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulate(nanos);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < LATENCY_BOUNDS.length && millis > LATENCY_BOUNDS[bucket]) {
+                bucket++;
+            }
+            latencies.incrementAndGet(bucket);
+        }
+
+        /**
+         * Upper bound of the latency bucket containing the percentile, the maximum for the last bucket.
+         */
+        private long percentileMillis(double percentile, long[] counts, long total) {
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank && counts[bucket] > 0) {
+                    return bucket < LATENCY_BOUNDS.length ? LATENCY_BOUNDS[bucket]
+                            : TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+                }
+            }
+            return 0;
+        }
+
+        RouteStatistics getStatistics() {
+            long[] counts = new long[latencies.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = latencies.get(i);
+                total += counts[i];
+            }
+            Map<String, Long> statusCounts = new TreeMap<>();
+            for (Map.Entry<Integer, AtomicLong> entry : statuses.entrySet()) {
+                statusCounts.put(String.valueOf(entry.getKey()), entry.getValue().get());
+            }
+
+            RouteStatistics statistics = new RouteStatistics();
+            statistics.operation = operation;
+            statistics.method = method;
+            statistics.route = route;
+            statistics.requestCount = requests.get();
+            statistics.failedRequestCount = failures.get();
+            statistics.throttledCount = throttled.get();
+            statistics.throttleWaitMillis = throttleWaitMillis.get();
+            statistics.retryCount = retries.get();
+            statistics.retryWaitMillis = retryWaitMillis.get();
+            statistics.suppressedCount = suppressed.get();
+            statistics.bytesSent = bytesSent.get();
+            statistics.bytesReceived = bytesReceived.get();
+            statistics.averageMillis = total == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / total);
+            statistics.p50Millis = percentileMillis(0.5, counts, total);
+            statistics.p99Millis = percentileMillis(0.99, counts, total);
+            statistics.maxMillis = TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+            statistics.statusCounts = Collections.unmodifiableMap(statusCounts);
+            return statistics;
+        }
+    }
+
+    /**
+     * Snapshot of the metrics of one connector operation, method and route. The percentiles are the upper bounds
+     * of the latency buckets of 5, 10, 25, 50, 100, 250, 500 ms, 1, 2.5, 5, 10 and 30 s.
+     */
+    public static class RouteStatistics {
+
+        private String operation;
+        private String method;
+        private String route;
+        private long requestCount;
+        private long failedRequestCount;
+        private long throttledCount;
+        private long throttleWaitMillis;
+        private long retryCount;
+        private long retryWaitMillis;
+        private long suppressedCount;
+        private long bytesSent;
+        private long bytesReceived;
+        private long averageMillis;
+        private long p50Millis;
+        private long p99Millis;
+        private long maxMillis;
+        private Map<String, Long> statusCounts;
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getRoute() {
+            return route;
+        }
+
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        public long getFailedRequestCount() {
+            return failedRequestCount;
+        }
+
+        public long getThrottledCount() {
+            return throttledCount;
+        }
+
+        public long getThrottleWaitMillis() {
+            return throttleWaitMillis;
+        }
+
+        public long getRetryCount() {
+            return retryCount;
+        }
+
+        public long getRetryWaitMillis() {
+            return retryWaitMillis;
+        }
+
+        /**
+         * Requests not sent, as they would not change anything.
+         */
+        public long getSuppressedCount() {
+            return suppressedCount;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public long getAverageMillis() {
+            return averageMillis;
+        }
+
+        public long getP50Millis() {
+            return p50Millis;
+        }
+
+        public long getP99Millis() {
+            return p99Millis;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public Map<String, Long> getStatusCounts() {
+            return statusCounts;
+        }
+
+        /**
+         * E.g. "sync GET /users/delta: [requests: 12; failed: 0; avg: 80 ms; p50: 100 ms; p99: 250 ms; max: 180 ms;
+         * throttled: 1; throttle wait: 1000 ms; retries: 0; suppressed: 0; sent: 0 B; received: 524288 B;
+         * statuses: {200=12, 429=1}]".
+         */
+        @Override
+        public String toString() {
+            return operation + " " + method + " " + route + ": [requests: " + requestCount + "; failed: "
+                    + failedRequestCount + "; avg: " + averageMillis + " ms; p50: " + p50Millis + " ms; p99: "
+                    + p99Millis + " ms; max: " + maxMillis + " ms; throttled: " + throttledCount + "; throttle wait: "
+                    + throttleWaitMillis + " ms; retries: " + retryCount + "; suppressed: " + suppressedCount
+                    + "; sent: " + bytesSent + " B; received: " + bytesReceived + " B; statuses: " + statusCounts + "]";
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count.addAndGet(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface of {@link RequestMetrics}, registered in the platform MBean server when enabled
+ * by the "metricsJmx" configuration property.
+ */
+public interface RequestMetricsMXBean {
+
+    List<RequestMetrics.RouteStatistics> getRoutes();
+
+    long getRequestCount();
+
+    long getFailedRequestCount();
+
+    long getThrottledCount();
+
+    long getThrottleWaitMillis();
+
+    long getRetryCount();
+
+    /**
+     * Number of the writes not sent, as they would not change anything.
+     */
+    long getSuppressedCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /**
+     * Number of the responses by the status code, including the responses retried by the HTTP client.
+     */
+    Map<String, Long> getStatusCounts();
+
+    void reset();
+}
@@ -0,0 +1,55 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Directory role assignments of the whole tenant, indexed by the principal and by the role definition.
+ * A tenant has far less role assignments than users, so listing all of them once is cheaper than a filtered
+ * query for every user or role. The index is filled while the assignments are listed and only read afterwards.
+ */
+public class RoleAssignmentIndex {
+
+    private final long created;
+    private final Map<String, List<String>> roleDefinitionIds = new HashMap<>();
+    private final Map<String, List<String>> principalIds = new HashMap<>();
+    private int size;
+
+    /**
+     * @param created when the listing of the assignments started, in milliseconds since the epoch
+     */
+    public RoleAssignmentIndex(long created) {
+        this.created = created;
+    }
+
+    public void add(String principalId, String roleDefinitionId) {
+        roleDefinitionIds.computeIfAbsent(principalId, k -> new ArrayList<>()).add(roleDefinitionId);
+        principalIds.computeIfAbsent(roleDefinitionId, k -> new ArrayList<>()).add(principalId);
+        size++;
+    }
+
+    /**
+     * Roles assigned to the user, group or service principal.
+     */
+    public List<String> getRoleDefinitionIds(String principalId) {
+        return Collections.unmodifiableList(roleDefinitionIds.getOrDefault(principalId, Collections.emptyList()));
+    }
+
+    /**
+     * Users, groups and service principals the role is assigned to.
+     */
+    public List<String> getPrincipalIds(String roleDefinitionId) {
+        return Collections.unmodifiableList(principalIds.getOrDefault(roleDefinitionId, Collections.emptyList()));
+    }
+
+    public boolean isExpired(long now, long ttl) {
+        return now - created >= ttl;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,229 @@
+package com.evolveum.polygon.connector.msgraphapi.util;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps an access token fresh. The token is renewed in the background ahead of its expiry, so the callers
+ * get the current token without locking and without waiting for the authority. Only when the token already expired,
+ * e.g. because the background renewal failed, the caller renews it. There is never more than one renewal running,
+ * concurrent callers wait for the running one.
+ *
+ * @param <T> type of the token
+ */
+public class TokenRefresher<T> {
+
+    private static final Log LOG = Log.getLog(TokenRefresher.class);
+
+    // Delay before the next attempt when the background renewal failed
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+    // Shortest delay of the next renewal, the authority is not asked again and again for short-lived tokens
+    private static final long MIN_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+    private final Supplier<T> authenticator;
+    private final ToLongFunction<T> expiration;
+    private final long skew;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile T token;
+    private CompletableFuture<T> inFlight;
+    private ScheduledFuture<?> scheduled;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong totalRefreshNanos = new AtomicLong();
+    private final LongAccumulator maxRefreshNanos = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * @param authenticator acquires a new token from the authority
+     * @param expiration    expiration time of the token, in milliseconds since the epoch
+     * @param skew          how many milliseconds before the expiration the token is renewed
+     */
+    public TokenRefresher(Supplier<T> authenticator, ToLongFunction<T> expiration, long skew) {
+        this.authenticator = authenticator;
+        this.expiration = expiration;
+        this.skew = skew;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = delegate.newThread(r);
+                thread.setName("msgraph-token-refresh-" + thread.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = executor;
+    }
+
+    /**
+     * Acquires the first token, the failure of the authentication is thrown to the caller.
+     */
+    public void start() {
+        try {
+            refresh();
+        } catch (RuntimeException | Error e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Current token. Lock-free unless the token expired.
+     */
+    public T get() {
+        T current = token;
+        if (current != null && expiration.applyAsLong(current) > System.currentTimeMillis()) {
+            return current;
+        }
+
+        LOG.info("Access token expired, renewing it in the request thread");
+        return refresh();
+    }
+
+    private T refresh() {
+        CompletableFuture<T> future;
+        boolean owner = false;
+        synchronized (this) {
+            future = inFlight;
+            if (future == null) {
+                future = new CompletableFuture<>();
+                inFlight = future;
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            renew(future);
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void renew(CompletableFuture<T> future) {
+        final long start = System.nanoTime();
+        try {
+            T renewed = authenticator.get();
+            recordRefresh(System.nanoTime() - start);
+
+            token = renewed;
+            // The renewal must not be in flight anymore when the next one is scheduled, it could start right away
+            completed(future);
+            future.complete(renewed);
+            schedule(getRenewalDelay(expiration.applyAsLong(renewed) - System.currentTimeMillis(), skew));
+        } catch (Throwable e) {
+            failureCount.incrementAndGet();
+            LOG.warn(e, "Renewal of the access token failed, next attempt in {0} ms", RETRY_DELAY);
+
+            completed(future);
+            // Completed whatever is thrown, the waiting requests would be blocked forever otherwise
+            future.completeExceptionally(e);
+            schedule(RETRY_DELAY);
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+        } finally {
+            completed(future);
+        }
+    }
+
+    /**
+     * Delay of the renewal of a token, "skew" milliseconds ahead of its expiry. A token which does not live longer
+     * than the skew, e.g. a short-lived one or one issued by an authority with a skewed clock, is renewed in the half
+     * of its remaining lifetime, a token issued already expired after {@link #RETRY_DELAY}. Never less than
+     * {@link #MIN_DELAY}.
+     *
+     * @param remaining milliseconds until the token expires
+     */
+    static long getRenewalDelay(long remaining, long skew) {
+        if (remaining <= 0) {
+            return RETRY_DELAY;
+        }
+        long delay = remaining > skew ? remaining - skew : remaining / 2;
+        return Math.max(delay, MIN_DELAY);
+    }
+
+    private synchronized void completed(CompletableFuture<T> future) {
+        // A renewal started meanwhile by the scheduler is not cleared
+        if (inFlight == future) {
+            inFlight = null;
+        }
+    }
+
+    private synchronized void schedule(long delay) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        LOG.ok("Next renewal of the access token in {0} ms", delay);
+        scheduled = scheduler.schedule(() -> {
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                // Already logged, the next attempt is scheduled
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void recordRefresh(long nanos) {
+        refreshCount.incrementAndGet();
+        totalRefreshNanos.addAndGet(nanos);
+        maxRefreshNanos.accumulate(nanos);
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getAverageRefreshMillis() {
+        long refreshes = refreshCount.get();
+        return refreshes == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalRefreshNanos.get() / refreshes);
+    }
+
+    public long getMaxRefreshMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxRefreshNanos.get());
+    }
+
+    /**
+     * Summary of the renewals, e.g. "refreshes: 12; failures: 0; avg refresh: 230 ms; max refresh: 910 ms".
+     */
+    public String getStatistics() {
+        return "refreshes: " + getRefreshCount() + "; failures: " + getFailureCount()
+                + "; avg refresh: " + getAverageRefreshMillis() + " ms; max refresh: " + getMaxRefreshMillis() + " ms";
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,83 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.AdaptiveRateLimiter;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link AdaptiveRateLimiter}
+ */
+@Test(groups = "unit")
+public class AdaptiveRateLimiterTest extends BasicConfigurationForTests {
+
+    @Test
+    public void testGetResource() {
+        assertEquals("users", AdaptiveRateLimiter.getResource("/v1.0/users/123/memberOf"));
+        assertEquals("groups", AdaptiveRateLimiter.getResource("/groups"));
+        assertEquals("roleManagement", AdaptiveRateLimiter.getResource("/beta/roleManagement/directory/roleAssignments"));
+        assertEquals("$batch", AdaptiveRateLimiter.getResource("/v1.0/$batch"));
+        assertEquals("", AdaptiveRateLimiter.getResource("/"));
+    }
+
+    @Test
+    public void testThrottledResourceIsSlowedDown() throws Exception {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+        for (int i = 0; i < 40; i++) {
+            limiter.acquire("users");
+            limiter.succeeded("users", null);
+        }
+        assertEquals(0.0, limiter.getRate("users"), 0.0);
+
+        limiter.throttled("users", 200);
+        double rate = limiter.getRate("users");
+        assertTrue(rate >= 1.0);
+
+        // requests in flight throttled within the same back-off don't lower the rate again
+        limiter.throttled("users", 200);
+        assertEquals(rate, limiter.getRate("users"), 0.0);
+
+        // all requests to the resource wait for the back-off, other resources are not affected
+        long start = System.nanoTime();
+        limiter.acquire("groups");
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+        limiter.acquire("users");
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+        assertEquals(0.0, limiter.getRate("groups"), 0.0);
+
+        // the rate recovers with successful requests
+        limiter.succeeded("users", null);
+        assertTrue(limiter.getRate("users") > rate || limiter.getRate("users") == 0.0);
+        assertTrue(limiter.getStatistics().contains("users: [rate: "));
+    }
+
+    @Test
+    public void testLimitIsLiftedAfterRecovery() throws Exception {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+        limiter.acquire("groups");
+        limiter.throttled("groups", 0);
+        assertTrue(limiter.getRate("groups") > 0);
+
+        for (int i = 0; i < 100 && limiter.getRate("groups") > 0; i++) {
+            limiter.succeeded("groups", null);
+        }
+        assertEquals(0.0, limiter.getRate("groups"), 0.0);
+    }
+
+    @Test
+    public void testThrottleLimitPercentageLimitsRate() throws Exception {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+        limiter.acquire("users");
+        limiter.succeeded("users", 0.85);
+        assertEquals(0.0, limiter.getRate("users"), 0.0);
+
+        // close to the limit, the requests get limited before they are throttled
+        limiter.succeeded("users", 1.2);
+        assertTrue(limiter.getRate("users") > 0);
+        // no request was throttled yet
+        assertFalse(limiter.getStatistics().contains("users"));
+    }
+}
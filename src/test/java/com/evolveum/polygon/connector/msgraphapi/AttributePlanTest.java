@@ -0,0 +1,69 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link AttributePlan}
+ */
+@Test(groups = "unit")
+public class AttributePlanTest extends BasicConfigurationForTests {
+
+    private final SchemaTranslator schemaTranslator = new MockGraphEndpoint(null).getSchemaTranslator();
+
+    @Test
+    public void testCachedByAttributesToGet() {
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "memberOfGroup").build();
+        OperationOptions sameAttributes = new OperationOptionsBuilder().setAttributesToGet("displayName", "memberOfGroup").build();
+        OperationOptions otherAttributes = new OperationOptionsBuilder().setAttributesToGet("displayName").build();
+
+        AttributePlan plan = schemaTranslator.getAttributePlan(ObjectClass.ACCOUNT_NAME, options);
+        assertSame(plan, schemaTranslator.getAttributePlan(ObjectClass.ACCOUNT_NAME, sameAttributes));
+        assertNotSame(plan, schemaTranslator.getAttributePlan(ObjectClass.ACCOUNT_NAME, otherAttributes));
+        assertNotSame(plan, schemaTranslator.getAttributePlan(ObjectClass.GROUP_NAME, options));
+    }
+
+    @Test
+    public void testAttributesToGet() {
+        OperationOptions options = new OperationOptionsBuilder().setReturnDefaultAttributes(true)
+                .setAttributesToGet("memberOfGroup").build();
+        AttributePlan plan = schemaTranslator.getAttributePlan(ObjectClass.ACCOUNT_NAME, options);
+
+        assertTrue(plan.getAttributesToGet().containsAll(plan.getReturnedByDefault()));
+        assertTrue(plan.contains("memberOfGroup"));
+        assertTrue(plan.shouldSaturate("memberOfGroup"));
+        assertFalse(plan.isIncomplete("memberOfGroup"));
+        assertFalse(plan.shouldSaturate("memberOfRole"));
+        assertEquals(plan.getAttributesToGet(), schemaTranslator.getAttributesToGet(ObjectClass.ACCOUNT_NAME, options));
+
+        AttributePlan partial = schemaTranslator.getAttributePlan(ObjectClass.ACCOUNT_NAME, new OperationOptionsBuilder()
+                .setAttributesToGet("memberOfGroup").setAllowPartialAttributeValues(true).build());
+        assertFalse(partial.shouldSaturate("memberOfGroup"));
+        assertTrue(partial.isIncomplete("memberOfGroup"));
+    }
+
+    @Test
+    public void testSelector() {
+        UserProcessing userProcessing = new UserProcessing(new MockGraphEndpoint(null), schemaTranslator);
+        OperationOptions options = new OperationOptionsBuilder()
+                .setAttributesToGet("id", "displayName", "manager.id", "memberOfGroup").build();
+
+        AttributePlan plan = schemaTranslator.getAttributePlan(ObjectClass.ACCOUNT_NAME, options);
+        assertEquals("$select=displayName,id,manager", plan.getSelector());
+        assertEquals(plan.getSelector(), userProcessing.getSelectorSingle(options));
+
+        // the object classes without selectable attributes have no selector
+        AttributePlan groups = schemaTranslator.getAttributePlan(ObjectClass.GROUP_NAME, options);
+        try {
+            groups.getSelector();
+            fail("Selector of groups built");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+}
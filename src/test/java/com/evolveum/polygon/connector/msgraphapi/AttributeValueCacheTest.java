@@ -0,0 +1,90 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.AttributeValueCache;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link AttributeValueCache}
+ */
+@Test(groups = "unit")
+public class AttributeValueCacheTest extends BasicConfigurationForTests {
+
+    private static final List<String> ATTRS = Arrays.asList("businessPhones", "skills");
+
+    private static JSONObject user(String id) {
+        return new JSONObject().put("id", id).put("displayName", "User " + id)
+                .put("businessPhones", new JSONArray().put("+1 555 0100"))
+                .put("skills", new JSONArray().put("java").put("sql"));
+    }
+
+    @Test
+    public void testCachedValues() {
+        AttributeValueCache cache = new AttributeValueCache(60000, 10);
+        JSONObject user = user("1").put(AttributeValueCache.ETAG, "W/\"1\"");
+        cache.put("1", user, ATTRS);
+        // the values are copied, the changes of the object do not affect them
+        user.getJSONArray("skills").put("go");
+
+        AttributeValueCache.Values values = cache.get("1", ATTRS);
+        assertNotNull(values);
+        assertEquals(Arrays.asList("java", "sql"), values.getJson().getJSONArray("skills").toList());
+        assertFalse(values.getJson().has("displayName"));
+        assertEquals("W/\"1\"", values.getETag());
+
+        // all the requested attributes have to be cached
+        assertNull(cache.get("1", Arrays.asList("businessPhones", "interests")));
+        assertNull(cache.get("2", ATTRS));
+
+        cache.invalidate("1");
+        assertNull(cache.get("1", ATTRS));
+    }
+
+    @Test
+    public void testPartialObjects() {
+        AttributeValueCache cache = new AttributeValueCache(60000, 10);
+        cache.put("1", new JSONObject().put("id", "1").put("displayName", "User 1"), ATTRS);
+        assertEquals(0, cache.size());
+
+        cache.put("1", new JSONObject().put("businessPhones", new JSONArray()), ATTRS);
+        cache.put("1", new JSONObject().put("skills", new JSONArray().put("java")), ATTRS);
+        AttributeValueCache.Values values = cache.get("1", ATTRS);
+        assertNotNull(values);
+        assertTrue(values.getJson().getJSONArray("businessPhones").isEmpty());
+        assertNull(values.getETag());
+    }
+
+    @Test
+    public void testDisabledAndExpired() throws InterruptedException {
+        AttributeValueCache disabled = new AttributeValueCache(0, 10);
+        disabled.put("1", user("1"), ATTRS);
+        assertNull(disabled.get("1", ATTRS));
+
+        AttributeValueCache cache = new AttributeValueCache(20, 10);
+        cache.put("1", user("1"), ATTRS);
+        Thread.sleep(50);
+        assertNull(cache.get("1", ATTRS));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedDropped() {
+        AttributeValueCache cache = new AttributeValueCache(60000, 2);
+        cache.put("1", user("1"), ATTRS);
+        cache.put("2", user("2"), ATTRS);
+        assertNotNull(cache.get("1", Collections.singletonList("skills")));
+        cache.put("3", user("3"), ATTRS);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("1", ATTRS));
+        assertNull(cache.get("2", ATTRS));
+        assertNotNull(cache.get("3", ATTRS));
+    }
+}
@@ -0,0 +1,223 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.common.MockGraphServer;
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.RequestMetrics;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.identityconnectors.framework.common.objects.AttributeDeltaBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Load test of the connector against {@link MockGraphServer}, reporting the throughput and the latency percentiles
+ * of searches, syncs and group membership updates, together with the {@link RequestMetrics} of the endpoint. It is not a part of the unit tests, run it by the "load-tests"
+ * profile. The directory and the behaviour of the server are set by system properties, e.g.
+ * <pre>
+ * mvn test -P load-tests -Dload.users=20000 -Dload.latency=50 -Dload.throttleEvery=100
+ * </pre>
+ */
+@Test(groups = "load")
+public class ConnectorLoadTest extends BasicConfigurationForTests {
+
+    private static final Log LOG = Log.getLog(ConnectorLoadTest.class);
+
+    private static final int USERS = Integer.getInteger("load.users", 5000);
+    private static final int GROUPS = Integer.getInteger("load.groups", 200);
+    private static final int MEMBERS_PER_GROUP = Integer.getInteger("load.membersPerGroup", 50);
+    private static final int THREADS = Integer.getInteger("load.threads", 4);
+    private static final int OPERATIONS = Integer.getInteger("load.operations", 40);
+    private static final long LATENCY = Long.getLong("load.latency", 20);
+    private static final int PAGE_SIZE = Integer.getInteger("load.pageSize", 100);
+    private static final int THROTTLE_EVERY = Integer.getInteger("load.throttleEvery", 0);
+    private static final int UNAVAILABLE_EVERY = Integer.getInteger("load.unavailableEvery", 0);
+    private static final String RETRY_AFTER = System.getProperty("load.retryAfter", "0.1");
+    // Users changed before every sync, members added and removed by every update
+    private static final int SYNC_CHANGES = Integer.getInteger("load.syncChanges", 100);
+    private static final int MEMBER_CHANGES = Integer.getInteger("load.memberChanges", 10);
+
+    private MockGraphServer server;
+    private GraphEndpoint endpoint;
+    private MSGraphConnector connector;
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        server = new MockGraphServer();
+        server.populate(USERS, GROUPS, MEMBERS_PER_GROUP);
+        server.setPageSize(PAGE_SIZE);
+        server.setLatency(LATENCY);
+        server.setThrottleEvery(THROTTLE_EVERY);
+        server.setUnavailableEvery(UNAVAILABLE_EVERY);
+        server.setRetryAfter(RETRY_AFTER);
+
+        MSGraphConfiguration configuration = MockGraphServerTest.createConfiguration(server.getApiUrl());
+        configuration.setPageSize(String.valueOf(PAGE_SIZE));
+        endpoint = new LocalGraphEndpoint(configuration);
+        connector = new MSGraphConnector() {
+            @Override
+            public GraphEndpoint getGraphEndpoint() {
+                return endpoint;
+            }
+        };
+        connector.init(configuration);
+
+        LOG.info("Load test of {0} users, {1} groups with {2} members, {3} threads, {4} ms latency, page size {5}, "
+                        + "throttling every {6}th and 503 every {7}th request", USERS, GROUPS, MEMBERS_PER_GROUP, THREADS,
+                LATENCY, PAGE_SIZE, THROTTLE_EVERY, UNAVAILABLE_EVERY);
+    }
+
+    @AfterClass
+    public void stopServer() {
+        connector.dispose();
+        endpoint.close();
+        server.close();
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        final OperationOptions options = new OperationOptionsBuilder()
+                .setAttributesToGet("displayName", "userPrincipalName", "mail", "jobTitle").build();
+
+        run("search", () -> {
+            AtomicInteger users = new AtomicInteger();
+            connector.executeQuery(ObjectClass.ACCOUNT, null, user -> users.incrementAndGet() > 0, options);
+            assertEquals(USERS, users.get());
+            return users.get();
+        });
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        final OperationOptions options = new OperationOptionsBuilder()
+                .setAttributesToGet("displayName", "userPrincipalName", "jobTitle").build();
+        final ThreadLocal<SyncToken> tokens = new ThreadLocal<>();
+
+        run("sync", () -> {
+            SyncToken token = tokens.get();
+            if (token == null) {
+                token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+            }
+            server.touchUsers(SYNC_CHANGES);
+
+            AtomicReference<SyncToken> last = new AtomicReference<>(token);
+            AtomicInteger deltas = new AtomicInteger();
+            connector.sync(ObjectClass.ACCOUNT, token, delta -> {
+                deltas.incrementAndGet();
+                last.set(delta.getToken());
+                return true;
+            }, options);
+            tokens.set(last.get());
+
+            // the users touched by the other threads in the meantime are reported as well
+            assertTrue(deltas.get() >= SYNC_CHANGES);
+            return deltas.get();
+        });
+    }
+
+    @Test
+    public void testMembershipUpdates() throws Exception {
+        final List<String> groupIds = server.getGroupIds();
+        final List<String> userIds = server.getUserIds();
+        final AtomicInteger next = new AtomicInteger();
+
+        run("membership update", () -> {
+            // every operation updates another group, the operations of the threads do not interfere
+            int operation = next.getAndIncrement();
+            String groupId = groupIds.get(operation % groupIds.size());
+            Set<String> members = server.getMemberIds(groupId);
+
+            List<Object> added = new ArrayList<>();
+            for (int i = 0; added.size() < MEMBER_CHANGES && i < userIds.size(); i++) {
+                String userId = userIds.get((operation * 31 + i) % userIds.size());
+                if (!members.contains(userId)) {
+                    added.add(userId);
+                }
+            }
+            List<Object> removed = new ArrayList<>(new ArrayList<>(members)
+                    .subList(0, Math.min(MEMBER_CHANGES, members.size())));
+
+            AttributeDelta delta = AttributeDeltaBuilder.build("members", added, removed);
+            connector.updateDelta(ObjectClass.GROUP, new Uid(groupId), Collections.singleton(delta),
+                    new OperationOptionsBuilder().build());
+            return added.size() + removed.size();
+        });
+    }
+
+    /**
+     * Runs the operations on the threads and reports the throughput, the latency percentiles and the requests
+     * served by the server.
+     *
+     * @param operation returns the number of the objects it processed
+     */
+    private void run(String name, Callable<Integer> operation) throws Exception {
+        final long[] latencies = new long[OPERATIONS];
+        final AtomicLong objects = new AtomicLong();
+        server.resetCounters();
+        endpoint.getMetrics().reset();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < OPERATIONS; i++) {
+                final int index = i;
+                futures.add(executor.submit(() -> {
+                    long operationStart = System.nanoTime();
+                    objects.addAndGet(operation.call());
+                    latencies[index] = System.nanoTime() - operationStart;
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        LOG.info(String.format("%s: %d operations in %.2f s, %.1f operations/s, %.1f objects/s, "
+                        + "latency p50 %.1f ms, p99 %.1f ms, max %.1f ms, %.1f requests/operation, %d throttled, %d unavailable",
+                name, OPERATIONS, seconds, OPERATIONS / seconds, objects.get() / seconds,
+                millis(percentile(latencies, 0.5)), millis(percentile(latencies, 0.99)),
+                millis(latencies[latencies.length - 1]), (double) server.getRequestCount() / OPERATIONS,
+                server.getThrottledCount(), server.getUnavailableCount()));
+        LOG.info("{0} requests: {1}", name, server.getRequestCounts());
+        for (RequestMetrics.RouteStatistics route : endpoint.getMetrics().getRoutes()) {
+            LOG.info("{0} request metrics: {1}", name, route);
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
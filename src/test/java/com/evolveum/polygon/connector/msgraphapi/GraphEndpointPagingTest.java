@@ -0,0 +1,161 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.JsonCollectionReader;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for paging of the list requests, with and without prefetching of the pages.
+ */
+@Test(groups = "unit")
+public class GraphEndpointPagingTest extends BasicConfigurationForTests {
+
+    private static final String LINK = "https://graph.microsoft.com/v1.0/users?page=";
+    private static final int PAGES = 5;
+    private static final int PAGE_SIZE = 3;
+
+    @Test
+    public void testPagesWithoutPrefetch() {
+        PagesEndpoint endpoint = new PagesEndpoint(0, -1);
+        List<String> ids = new ArrayList<>();
+        endpoint.continueListRequest(LINK + 0, null, (options, object) -> {
+            // the next page is requested only after the current one was processed
+            assertEquals(ids.size() / PAGE_SIZE + 1, endpoint.fetched.get());
+            ids.add(object.getString("id"));
+            return true;
+        });
+
+        assertEquals(expectedIds(PAGES), ids);
+    }
+
+    @Test
+    public void testPagesAreFetchedAhead() throws Exception {
+        PagesEndpoint endpoint = new PagesEndpoint(2, -1);
+        List<String> ids = new ArrayList<>();
+        endpoint.continueListRequest(LINK + 0, null, (options, object) -> {
+            int page = ids.size() / PAGE_SIZE;
+            if (ids.size() % PAGE_SIZE == 0 && page + 2 < PAGES) {
+                // two pages ahead are fetched while the handler works on the current page
+                assertTrue("Page " + (page + 2) + " not prefetched", waitForFetched(endpoint, page + 3));
+            }
+            assertTrue(endpoint.fetched.get() <= page + 3);
+            ids.add(object.getString("id"));
+            return true;
+        });
+
+        assertEquals(expectedIds(PAGES), ids);
+    }
+
+    @Test
+    public void testStoppedSearchStopsPrefetching() throws Exception {
+        PagesEndpoint endpoint = new PagesEndpoint(1, -1);
+        List<String> ids = new ArrayList<>();
+        endpoint.continueListRequest(LINK + 0, null, (options, object) -> {
+            ids.add(object.getString("id"));
+            return ids.size() < PAGE_SIZE + 1;
+        });
+
+        assertEquals(expectedIds(2).subList(0, PAGE_SIZE + 1), ids);
+        // no more than one page ahead of the page processed last
+        Thread.sleep(200);
+        assertTrue(endpoint.fetched.get() <= 3);
+    }
+
+    @Test
+    public void testPrefetchFailureIsRethrown() {
+        PagesEndpoint endpoint = new PagesEndpoint(1, 2);
+        List<String> ids = new ArrayList<>();
+        try {
+            endpoint.continueListRequest(LINK + 0, null, (options, object) -> {
+                ids.add(object.getString("id"));
+                return true;
+            });
+            fail("Expected ConnectorIOException");
+        } catch (ConnectorIOException e) {
+            // expected
+        }
+
+        assertEquals(expectedIds(2), ids);
+    }
+
+    private static boolean waitForFetched(PagesEndpoint endpoint, int pages) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (endpoint.fetched.get() < pages) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> expectedIds(int pages) {
+        String[] ids = new String[pages * PAGE_SIZE];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = String.valueOf(i);
+        }
+        return Arrays.asList(ids);
+    }
+
+    private static class PagesEndpoint extends MockGraphEndpoint {
+
+        private final AtomicInteger fetched = new AtomicInteger();
+        private final int failingPage;
+
+        PagesEndpoint(int prefetchPages, int failingPage) {
+            super(createConfiguration(prefetchPages));
+            this.failingPage = failingPage;
+        }
+
+        private static MSGraphConfiguration createConfiguration(int prefetchPages) {
+            MSGraphConfiguration configuration = new MSGraphConfiguration();
+            configuration.setPrefetchPages(prefetchPages);
+            return configuration;
+        }
+
+        @Override
+        protected JSONObject callRequest(HttpRequestBase request, boolean parseResult) {
+            String uri = request.getURI().toString();
+            assertTrue("Unexpected request " + uri, uri.startsWith(LINK));
+            int page = Integer.parseInt(uri.substring(LINK.length()));
+            fetched.incrementAndGet();
+            if (page == failingPage) {
+                throw new ConnectorIOException("Failed to fetch page " + page);
+            }
+
+            JSONArray value = new JSONArray();
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                value.put(new JSONObject().put("id", String.valueOf(page * PAGE_SIZE + i)));
+            }
+            JSONObject response = new JSONObject().put("value", value);
+            if (page + 1 < PAGES) {
+                response.put("@odata.nextLink", LINK + (page + 1));
+            }
+            return response;
+        }
+
+        @Override
+        protected JSONObject callListRequest(HttpRequestBase request, Predicate<JSONObject> consumer) {
+            return JsonCollectionReader.read(new StringReader(callRequest(request, true).toString()), consumer);
+        }
+    }
+}
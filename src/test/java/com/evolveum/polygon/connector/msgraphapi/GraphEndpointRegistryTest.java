@@ -0,0 +1,145 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link GraphEndpointRegistry}
+ */
+@Test(groups = "unit")
+public class GraphEndpointRegistryTest extends BasicConfigurationForTests {
+
+    @Test
+    public void testEndpointIsSharedByIdenticalConfigurations() {
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        GraphEndpointRegistry registry = new GraphEndpointRegistry(configuration -> {
+            created.incrementAndGet();
+            return new MockGraphEndpoint(configuration) {
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                }
+            };
+        });
+
+        GraphEndpoint first = registry.acquire(configuration("secret"));
+        GraphEndpoint second = registry.acquire(configuration("secret"));
+        GraphEndpoint other = registry.acquire(configuration("other secret"));
+
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertEquals(2, created.get());
+        assertEquals(2, registry.getReferences(first));
+        // the endpoint keeps its own copy of the configuration
+        assertEquals("tenant", first.getConfiguration().getTenantId());
+        assertEquals(Integer.valueOf(7), first.getConfiguration().getMaxConcurrentRequests());
+
+        registry.release(first);
+        assertEquals(0, closed.get());
+        registry.release(second);
+        assertEquals(1, closed.get());
+        assertEquals(0, registry.getReferences(first));
+
+        // released endpoint is not handed out again
+        GraphEndpoint third = registry.acquire(configuration("secret"));
+        assertNotSame(first, third);
+        assertEquals(3, created.get());
+    }
+
+    @Test
+    public void testSlowCreationDoesNotBlockOtherConfigurations() throws Exception {
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger created = new AtomicInteger();
+        // the first endpoint created is the slow one
+        GraphEndpointRegistry registry = new GraphEndpointRegistry(configuration -> {
+            if (created.incrementAndGet() == 1) {
+                creating.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new MockGraphEndpoint(configuration);
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<GraphEndpoint> slow = executor.submit(() -> registry.acquire(configuration("slow")));
+            assertTrue(creating.await(5, TimeUnit.SECONDS));
+            // the same configuration waits for the endpoint being created
+            Future<GraphEndpoint> sameSlow = executor.submit(() -> registry.acquire(configuration("slow")));
+
+            // the other configuration is neither blocked when acquired nor when released
+            GraphEndpoint other = executor.submit(() -> registry.acquire(configuration("secret"))).get(5, TimeUnit.SECONDS);
+            registry.release(other);
+            assertFalse(slow.isDone());
+
+            proceed.countDown();
+            assertSame(slow.get(5, TimeUnit.SECONDS), sameSlow.get(5, TimeUnit.SECONDS));
+            assertEquals(2, registry.getReferences(slow.get()));
+            assertEquals(2, created.get());
+        } finally {
+            proceed.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedCreationIsRetried() {
+        final AtomicInteger created = new AtomicInteger();
+        GraphEndpointRegistry registry = new GraphEndpointRegistry(configuration -> {
+            if (created.incrementAndGet() == 1) {
+                throw new ConnectionFailedException("Authority not reachable");
+            }
+            return new MockGraphEndpoint(configuration);
+        });
+
+        try {
+            registry.acquire(configuration("secret"));
+            fail("Expected ConnectionFailedException");
+        } catch (ConnectionFailedException e) {
+            // expected
+        }
+        GraphEndpoint endpoint = registry.acquire(configuration("secret"));
+        assertEquals(2, created.get());
+        assertEquals(1, registry.getReferences(endpoint));
+    }
+
+    @Test
+    public void testCreateKey() {
+        assertEquals(GraphEndpointRegistry.createKey(configuration("secret")),
+                GraphEndpointRegistry.createKey(configuration("secret")));
+        assertFalse(GraphEndpointRegistry.createKey(configuration("secret"))
+                .equals(GraphEndpointRegistry.createKey(configuration("other secret"))));
+        assertFalse(GraphEndpointRegistry.createKey(configuration("secret")).contains("secret"));
+
+        MSGraphConfiguration differentTrust = configuration("secret");
+        differentTrust.setValidateWithFailoverTrust(false);
+        assertFalse(GraphEndpointRegistry.createKey(configuration("secret"))
+                .equals(GraphEndpointRegistry.createKey(differentTrust)));
+    }
+
+    private static MSGraphConfiguration configuration(String secret) {
+        MSGraphConfiguration configuration = new MSGraphConfiguration();
+        configuration.setTenantId("tenant");
+        configuration.setClientId("client");
+        configuration.setClientSecret(new GuardedString(secret.toCharArray()));
+        configuration.setMaxConcurrentRequests(7);
+        configuration.setDisabledPlans(new String[]{"sku:plan"});
+        return configuration;
+    }
+}
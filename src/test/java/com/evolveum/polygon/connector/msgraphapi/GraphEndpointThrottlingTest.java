@@ -0,0 +1,127 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.json.JSONObject;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Drives one {@link GraphEndpoint} from many threads against a local server which throttles some of the requests.
+ * Every request has to be retried exactly as many times as it was throttled, no matter what the other threads do.
+ */
+@Test(groups = "unit")
+public class GraphEndpointThrottlingTest extends BasicConfigurationForTests {
+
+    private static final int THREADS = 16;
+    private static final int REQUESTS_PER_THREAD = 25;
+
+    private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/v1.0/users/", this::handle);
+        serverExecutor = Executors.newFixedThreadPool(THREADS);
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    @AfterClass
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * Users with id divisible by 2 are throttled once, users with id divisible by 4 twice.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        int id = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+        int attempt = attempts.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+
+        int throttledAttempts = id % 4 == 0 ? 2 : id % 2 == 0 ? 1 : 0;
+        byte[] body;
+        if (attempt <= throttledAttempts) {
+            exchange.getResponseHeaders().add("Retry-After", "0.01");
+            body = "{\"error\":{\"code\":\"TooManyRequests\"}}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(429, body.length);
+        } else {
+            body = new JSONObject().put("id", String.valueOf(id)).put("attempt", attempt).toString()
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+        }
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    @Test
+    public void testConcurrentThrottledRequests() throws Exception {
+        MSGraphConfiguration configuration = new MSGraphConfiguration();
+        configuration.setValidateWithFailoverTrust(false);
+        configuration.setAdaptiveRateLimiting(false);
+        configuration.setThrottlingRetryCount(3);
+        GraphEndpoint endpoint = new LocalGraphEndpoint(configuration);
+        final String base = "http://localhost:" + server.getAddress().getPort() + "/v1.0/users/";
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<JSONObject>> calls = new ArrayList<>();
+            for (int i = 0; i < THREADS * REQUESTS_PER_THREAD; i++) {
+                final URI uri = URI.create(base + i);
+                calls.add(() -> endpoint.callRequest(new HttpGet(uri), true));
+            }
+            List<Future<JSONObject>> results = executor.invokeAll(calls);
+
+            for (int i = 0; i < results.size(); i++) {
+                JSONObject user = results.get(i).get();
+                int expectedAttempts = i % 4 == 0 ? 3 : i % 2 == 0 ? 2 : 1;
+
+                assertEquals(String.valueOf(i), user.getString("id"));
+                assertEquals("Attempt of user " + i, expectedAttempts, user.getInt("attempt"));
+                assertEquals("Requests of user " + i, expectedAttempts, attempts.get("/v1.0/users/" + i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testRetryAfterParsing() {
+        assertEquals(1000, GraphEndpoint.parseRetryAfter(null));
+        assertEquals(2500, GraphEndpoint.parseRetryAfter("2.5"));
+        assertEquals(1000, GraphEndpoint.parseRetryAfter("soon"));
+
+        // the HTTP-date to retry after, with the precision of one second
+        long retryAfter = GraphEndpoint.parseRetryAfter(DateUtils.formatDate(new Date(System.currentTimeMillis() + 10000)));
+        assertTrue(retryAfter > 8000 && retryAfter <= 10000);
+        assertEquals(0, GraphEndpoint.parseRetryAfter(DateUtils.formatDate(new Date(System.currentTimeMillis() - 10000))));
+    }
+}
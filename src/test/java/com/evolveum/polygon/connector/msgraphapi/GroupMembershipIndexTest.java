@@ -0,0 +1,49 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.GroupMembershipIndex;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link GroupMembershipIndex}
+ */
+@Test(groups = "unit")
+public class GroupMembershipIndexTest extends BasicConfigurationForTests {
+
+    @Test
+    public void testGroupsOfMembers() {
+        GroupMembershipIndex index = new GroupMembershipIndex();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int group = index.addGroup("g" + i);
+            // the groups of u1 outgrow the initial capacity
+            index.addMember("u1", group);
+            expected.add("g" + i);
+            if (i % 3 == 0) {
+                index.addMember(new String("u2"), group);
+            }
+        }
+
+        assertEquals(expected, index.getGroupIds("u1"));
+        assertEquals(Arrays.asList("g0", "g3", "g6", "g9"), index.getGroupIds("u2"));
+        assertEquals(Collections.emptyList(), index.getGroupIds("u3"));
+        assertEquals(10, index.getGroupCount());
+        assertEquals(2, index.getMemberCount());
+        assertEquals(14, index.getMembershipCount());
+        assertTrue(index.estimateBytes() > GroupMembershipIndex.estimateBytes(2, 10, 0));
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void testGroupIdsOutOfBounds() {
+        GroupMembershipIndex index = new GroupMembershipIndex();
+        index.addMember("u1", index.addGroup("g1"));
+        index.getGroupIds("u1").get(1);
+    }
+}
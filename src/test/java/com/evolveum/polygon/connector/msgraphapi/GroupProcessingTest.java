@@ -2,24 +2,37 @@ package com.evolveum.polygon.connector.msgraphapi;
 
 import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
 import org.apache.commons.io.IOUtils;
+import org.identityconnectors.framework.common.exceptions.PermissionDeniedException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
 import org.identityconnectors.framework.common.objects.AttributeDelta;
 import org.identityconnectors.framework.common.objects.AttributeDeltaBuilder;
+import org.identityconnectors.framework.common.objects.AttributeValueCompleteness;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.Uid;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.evolveum.polygon.connector.msgraphapi.GroupProcessing.EXCLUDE_ATTRS_OF_GROUP;
 import static com.evolveum.polygon.connector.msgraphapi.GroupProcessing.UPDATABLE_MULTIPLE_VALUE_ATTRS_OF_GROUP;
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
 
 /**
  * Test case for {@link GroupProcessing}
@@ -102,4 +115,227 @@ public class GroupProcessingTest extends BasicConfigurationForTests {
         assertEquals(1, groupTypes.length());
         assertEquals("DynamicMembership", groupTypes.getString(0));
     }
+
+    /**
+     * Endpoint which records the batch requests and answers them with the given status codes.
+     */
+    private static class BatchRecordingEndpoint extends MockGraphEndpoint {
+
+        final List<JSONObject> requests = new ArrayList<>();
+        final Function<JSONObject, JSONObject> responder;
+
+        BatchRecordingEndpoint(Function<JSONObject, JSONObject> responder) {
+            super(new MSGraphConfiguration());
+            this.responder = responder;
+        }
+
+        @Override
+        protected List<JSONObject> executeBatchRequest(List<JSONObject> batch) {
+            requests.addAll(batch);
+            return batch.stream().map(responder).collect(Collectors.toList());
+        }
+    }
+
+    private static JSONObject status(int status) {
+        return new JSONObject().put("status", status);
+    }
+
+    private static JSONObject error(int status, String message) {
+        return status(status).put("body", new JSONObject().put("error", new JSONObject().put("message", message)));
+    }
+
+    private static List<Object> ids(int count) {
+        List<Object> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add("member-" + i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testAddMembersByBindInChunks() {
+        BatchRecordingEndpoint endpoint = new BatchRecordingEndpoint(request -> status(204));
+        GroupProcessing processing = new GroupProcessing(endpoint);
+
+        processing.addOrRemoveMember(new Uid("group-1"), AttributeDeltaBuilder.build("members", ids(45), null), "/groups");
+
+        assertEquals(3, endpoint.requests.size());
+        for (JSONObject request : endpoint.requests) {
+            assertEquals("PATCH", request.getString("method"));
+            assertEquals("/groups/group-1", request.getString("url"));
+        }
+        assertEquals(20, endpoint.requests.get(0).getJSONObject("body").getJSONArray("members@odata.bind").length());
+        assertEquals(20, endpoint.requests.get(1).getJSONObject("body").getJSONArray("members@odata.bind").length());
+        assertEquals(5, endpoint.requests.get(2).getJSONObject("body").getJSONArray("members@odata.bind").length());
+        assertEquals("https://graph.microsoft.com/v1.0/directoryObjects/member-0",
+                endpoint.requests.get(0).getJSONObject("body").getJSONArray("members@odata.bind").getString(0));
+    }
+
+    @Test
+    public void testAddMembersFallbackIgnoresExistingMember() {
+        BatchRecordingEndpoint endpoint = new BatchRecordingEndpoint(request -> {
+            if ("PATCH".equals(request.getString("method"))) {
+                return error(400, "One or more added object references already exist for the following modified properties: 'members'.");
+            }
+            if (request.getJSONObject("body").getString("@odata.id").endsWith("member-1")) {
+                return error(400, "One or more added object references already exist for the following modified properties: 'members'.");
+            }
+            return status(204);
+        });
+        GroupProcessing processing = new GroupProcessing(endpoint);
+
+        processing.addOrRemoveMember(new Uid("group-1"), AttributeDeltaBuilder.build("members", ids(3), null), "/groups");
+
+        assertEquals(4, endpoint.requests.size());
+        for (JSONObject request : endpoint.requests.subList(1, 4)) {
+            assertEquals("POST", request.getString("method"));
+            assertEquals("/groups/group-1/members/$ref", request.getString("url"));
+        }
+    }
+
+    @Test
+    public void testRemoveMembersProcessesAllBeforeFailing() {
+        BatchRecordingEndpoint endpoint = new BatchRecordingEndpoint(request ->
+                request.getString("url").contains("member-0") ? error(403, "Insufficient privileges") :
+                        request.getString("url").contains("member-1") ? error(404, "Resource does not exist") : status(204));
+        GroupProcessing processing = new GroupProcessing(endpoint);
+
+        try {
+            processing.addOrRemoveMember(new Uid("group-1"), AttributeDeltaBuilder.build("members", null, ids(3)), "/groups");
+            fail("Expected failure of the member removal");
+        } catch (PermissionDeniedException e) {
+            assertTrue(e.getMessage().contains("1 batch request(s) failed"));
+        }
+
+        assertEquals(3, endpoint.requests.size());
+        assertEquals("DELETE", endpoint.requests.get(2).getString("method"));
+        assertEquals("/groups/group-1/members/member-2/$ref", endpoint.requests.get(2).getString("url"));
+    }
+
+    @Test
+    public void testAddAndRemoveOwners() {
+        BatchRecordingEndpoint endpoint = new BatchRecordingEndpoint(request -> status(204));
+        GroupProcessing processing = new GroupProcessing(endpoint);
+
+        processing.addOrRemoveOwner(new Uid("group-1"), AttributeDeltaBuilder.build("owners", list("owner-1"), list("owner-2")), "/groups");
+
+        assertEquals(2, endpoint.requests.size());
+        assertEquals("POST", endpoint.requests.get(0).getString("method"));
+        assertEquals("/groups/group-1/owners/$ref", endpoint.requests.get(0).getString("url"));
+        assertEquals("https://graph.microsoft.com/v1.0/users/owner-1",
+                endpoint.requests.get(0).getJSONObject("body").getString("@odata.id"));
+        assertEquals("DELETE", endpoint.requests.get(1).getString("method"));
+        assertEquals("/groups/group-1/owners/owner-2/$ref", endpoint.requests.get(1).getString("url"));
+    }
+
+    private static JSONObject group(String id, int expandedMembers) {
+        JSONObject group = new JSONObject().put("id", id);
+        if (expandedMembers >= 0) {
+            JSONArray members = new JSONArray();
+            for (int i = 0; i < expandedMembers; i++) {
+                members.put(new JSONObject().put("@odata.type", "#microsoft.graph.user").put("id", id + "-member-" + i));
+            }
+            group.put("members", members);
+        }
+        return group;
+    }
+
+    private static JSONObject page(String... ids) {
+        JSONArray value = new JSONArray();
+        for (String id : ids) {
+            value.put(new JSONObject().put("id", id));
+        }
+        return status(200).put("body", new JSONObject().put("value", value));
+    }
+
+    @Test
+    public void testSaturateGroupsInBulk() {
+        final List<String> listed = Collections.synchronizedList(new ArrayList<>());
+        BatchRecordingEndpoint endpoint = new BatchRecordingEndpoint(request -> {
+            String url = request.getString("url");
+            if (url.startsWith("/groups/g2/members")) {
+                JSONObject response = page("g2-member-a");
+                response.getJSONObject("body").put("@odata.nextLink", "https://graph.microsoft.com/v1.0/groups/g2/members?$skiptoken=x");
+                return response;
+            }
+            if (url.startsWith("/groups/g3/owners")) {
+                return error(503, "Service unavailable");
+            }
+            return page(url.substring(8, 10) + "-" + (url.contains("owners") ? "owner" : "member"));
+        }) {
+            @Override
+            protected void continueListRequest(String nextLink, OperationOptions options, ObjectProcessing.JSONObjectHandler handler) {
+                listed.add(nextLink);
+                handler.handle(options, new JSONObject().put("id", "g2-member-b"));
+            }
+
+            @Override
+            protected JSONArray executeListRequest(String path, String customQuery, OperationOptions options, boolean paging) {
+                listed.add(path);
+                return new JSONArray().put(new JSONObject().put("id", "g3-owner"));
+            }
+        };
+        GroupProcessing processing = new GroupProcessing(endpoint);
+        List<JSONObject> groups = new ArrayList<>();
+        groups.add(group("g1", 2));
+        groups.add(group("g2", 20));
+        groups.add(group("g3", -1));
+
+        processing.saturateGroups(groups, true, true, true);
+
+        // g1 members come from $expand, g2 members were truncated by $expand, g3 members were not expanded
+        assertEquals(5, endpoint.requests.size());
+        assertEquals(2, listed.size());
+        assertEquals(list("g1-member-0", "g1-member-1"), groups.get(0).getJSONArray("members").toList());
+        assertEquals(list("g1-owner"), groups.get(0).getJSONArray("owners").toList());
+        assertEquals(list("g2-member-a", "g2-member-b"), groups.get(1).getJSONArray("members").toList());
+        assertEquals(list("g2-owner"), groups.get(1).getJSONArray("owners").toList());
+        assertEquals(list("g3-member"), groups.get(2).getJSONArray("members").toList());
+        assertEquals(list("g3-owner"), groups.get(2).getJSONArray("owners").toList());
+    }
+
+    @Test
+    public void testCreateSyncDeltaFromMembersDelta() {
+        final List<String> listed = new ArrayList<>();
+        MockGraphEndpoint endpoint = new MockGraphEndpoint(null) {
+            @Override
+            protected JSONArray executeListRequest(String path, String customQuery, OperationOptions options, boolean paging) {
+                listed.add(path);
+                return new JSONArray().put(new JSONObject().put("id", "member-1"));
+            }
+        };
+        GroupProcessing processing = new GroupProcessing(endpoint);
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "members").build();
+
+        assertEquals("$select=id,displayName,members", processing.getDeltaSelector(options));
+        assertFalse(processing.getDeltaSelector(new OperationOptionsBuilder().build()).endsWith(",members"));
+
+        // added members are reported as incomplete values, without listing the group
+        JSONObject added = new JSONObject().put("id", "group-1").put("displayName", "Group 1")
+                .put("members@delta", new JSONArray().put(new JSONObject().put("id", "member-2")));
+        SyncDelta delta = processing.createSyncDelta(added, options).build();
+
+        assertEquals(SyncDeltaType.CREATE_OR_UPDATE, delta.getDeltaType());
+        Attribute members = delta.getObject().getAttributeByName("members");
+        assertEquals(list("member-2"), members.getValue());
+        assertEquals(AttributeValueCompleteness.INCOMPLETE, members.getAttributeValueCompleteness());
+        assertTrue(listed.isEmpty());
+
+        // a removed member can't be reported incrementally, the membership of the group is listed
+        JSONObject removed = new JSONObject().put("id", "group-1")
+                .put("members@delta", new JSONArray().put(new JSONObject().put("id", "member-2")
+                        .put("@removed", new JSONObject().put("reason", "deleted"))));
+        delta = processing.createSyncDelta(removed, options).build();
+
+        members = delta.getObject().getAttributeByName("members");
+        assertEquals(list("member-1"), members.getValue());
+        assertEquals(AttributeValueCompleteness.COMPLETE, members.getAttributeValueCompleteness());
+        assertEquals(list("/groups/group-1/members"), listed);
+
+        JSONObject deleted = new JSONObject().put("id", "group-2").put("@removed", new JSONObject().put("reason", "changed"));
+        delta = processing.createSyncDelta(deleted, options).build();
+
+        assertEquals(SyncDeltaType.DELETE, delta.getDeltaType());
+        assertEquals("group-2", delta.getUid().getUidValue());
+    }
 }
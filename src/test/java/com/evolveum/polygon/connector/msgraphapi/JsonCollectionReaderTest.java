@@ -0,0 +1,106 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.JsonCollectionReader;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link JsonCollectionReader}
+ */
+@Test(groups = "unit")
+public class JsonCollectionReaderTest extends BasicConfigurationForTests {
+
+    private static final String PAGE = "{\"@odata.context\":\"https://graph.microsoft.com/v1.0/$metadata#users\","
+            + "\"@odata.nextLink\":\"https://graph.microsoft.com/v1.0/users?$skiptoken=X\","
+            + "\"value\":[{\"id\":\"1\",\"businessPhones\":[\"123\"],\"manager\":{\"id\":\"9\"}},"
+            + " {\"id\":\"2\",\"businessPhones\":[]},\n {\"id\":\"3\",\"displayName\":\"Doe, \\\"John\\\"\"}]}";
+
+    @Test
+    public void testReadItems() {
+        List<JSONObject> items = new ArrayList<>();
+        JSONObject properties = JsonCollectionReader.read(new StringReader(PAGE), items::add);
+
+        assertNotNull(properties);
+        assertEquals("https://graph.microsoft.com/v1.0/users?$skiptoken=X", properties.getString("@odata.nextLink"));
+        assertFalse(properties.has("value"));
+        assertEquals(3, items.size());
+        assertEquals("1", items.get(0).getString("id"));
+        assertEquals("9", items.get(0).getJSONObject("manager").getString("id"));
+        assertEquals(0, items.get(1).getJSONArray("businessPhones").length());
+        assertEquals("Doe, \"John\"", items.get(2).getString("displayName"));
+    }
+
+    @Test
+    public void testPropertiesAfterItems() {
+        List<JSONObject> items = new ArrayList<>();
+        JSONObject properties = JsonCollectionReader.read(new StringReader(
+                "{ \"value\" : [ ] , \"@odata.deltaLink\" : \"https://graph.microsoft.com/v1.0/users/delta?$deltatoken=Y\" }"),
+                items::add);
+
+        assertTrue(items.isEmpty());
+        assertEquals("https://graph.microsoft.com/v1.0/users/delta?$deltatoken=Y", properties.getString("@odata.deltaLink"));
+    }
+
+    @Test
+    public void testStopReading() {
+        CountingReader reader = new CountingReader(PAGE);
+        List<JSONObject> items = new ArrayList<>();
+        JSONObject properties = JsonCollectionReader.read(reader, item -> {
+            items.add(item);
+            return false;
+        });
+
+        assertNull(properties);
+        assertEquals(1, items.size());
+        // the rest of the response was not read
+        assertTrue(reader.count < PAGE.length());
+    }
+
+    @Test(expectedExceptions = JSONException.class)
+    public void testItemIsNotObject() {
+        JsonCollectionReader.read(new StringReader("{\"value\":[\"a\",\"b\"]}"), item -> true);
+    }
+
+    @Test(expectedExceptions = JSONException.class)
+    public void testTruncatedResponse() {
+        JsonCollectionReader.read(new StringReader("{\"value\":[{\"id\":\"1\"},"), item -> true);
+    }
+
+    private static class CountingReader extends FilterReader {
+
+        private int count;
+
+        CountingReader(String value) {
+            super(new StringReader(value));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) {
+                count++;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            // one character at a time, like a response arriving slowly
+            int read = super.read(buffer, offset, Math.min(length, 1));
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
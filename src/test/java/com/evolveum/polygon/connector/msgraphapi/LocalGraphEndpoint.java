@@ -0,0 +1,21 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+/**
+ * Endpoint talking to a local server over HTTP, without the authentication.
+ */
+public class LocalGraphEndpoint extends GraphEndpoint {
+
+    LocalGraphEndpoint(MSGraphConfiguration configuration) {
+        super(configuration);
+    }
+
+    @Override
+    protected void authenticate() {
+        // Do nothing
+    }
+
+    @Override
+    protected String getAuthorization() {
+        return "Bearer test";
+    }
+}
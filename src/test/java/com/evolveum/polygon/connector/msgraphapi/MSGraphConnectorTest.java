@@ -0,0 +1,154 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link MSGraphConnector}
+ */
+@Test(groups = "unit")
+public class MSGraphConnectorTest extends BasicConfigurationForTests {
+
+    private static final String PAGE_1 = "https://graph.microsoft.com/v1.0/users/delta?$deltatoken=first";
+    private static final String PAGE_2 = "https://graph.microsoft.com/v1.0/users/delta?$skiptoken=second";
+    private static final String DELTA_LINK = "https://graph.microsoft.com/v1.0/users/delta?$deltatoken=final";
+
+    @Test
+    public void testSyncHandsOutDeltasPageByPage() {
+        DeltaPagesEndpoint endpoint = new DeltaPagesEndpoint();
+        endpoint.pages.put(PAGE_1, page(PAGE_2, null, removed("1"), removed("2")));
+        endpoint.pages.put(PAGE_2, page(null, DELTA_LINK, removed("3"), new JSONObject().put("id", "4")));
+
+        RecordingHandler handler = new RecordingHandler(endpoint, Integer.MAX_VALUE);
+        connector(endpoint).sync(ObjectClass.ACCOUNT, new SyncToken(PAGE_1), handler, null);
+
+        // user 4 has no name and is skipped
+        assertEquals(3, handler.deltas.size());
+        assertEquals(SyncDeltaType.DELETE, handler.deltas.get(0).getDeltaType());
+        assertEquals("1", handler.deltas.get(0).getUid().getUidValue());
+        assertEquals(PAGE_1, handler.deltas.get(0).getToken().getValue());
+        assertEquals(PAGE_2, handler.deltas.get(1).getToken().getValue());
+        assertEquals(DELTA_LINK, handler.deltas.get(2).getToken().getValue());
+
+        // the first page was handed out before the second one was requested
+        assertEquals(Integer.valueOf(1), handler.requestsSeen.get(0));
+        assertEquals(Integer.valueOf(1), handler.requestsSeen.get(1));
+        assertEquals(Integer.valueOf(2), handler.requestsSeen.get(2));
+
+        assertEquals(DELTA_LINK, handler.finalToken.getValue());
+    }
+
+    @Test
+    public void testSyncStopsWhenHandlerReturnsFalse() {
+        DeltaPagesEndpoint endpoint = new DeltaPagesEndpoint();
+        endpoint.pages.put(PAGE_1, page(PAGE_2, null, removed("1"), removed("2")));
+        endpoint.pages.put(PAGE_2, page(null, DELTA_LINK, removed("3")));
+
+        RecordingHandler handler = new RecordingHandler(endpoint, 1);
+        connector(endpoint).sync(ObjectClass.ACCOUNT, new SyncToken(PAGE_1), handler, null);
+
+        assertEquals(1, handler.deltas.size());
+        assertEquals(1, endpoint.requests.size());
+        assertNull(handler.finalToken);
+    }
+
+    @Test
+    public void testSyncAdvancesTokenOfEmptyPage() {
+        DeltaPagesEndpoint endpoint = new DeltaPagesEndpoint();
+        endpoint.pages.put(PAGE_1, page(PAGE_2, null));
+        endpoint.pages.put(PAGE_2, page(null, DELTA_LINK, removed("1")));
+
+        RecordingHandler handler = new RecordingHandler(endpoint, 1);
+        connector(endpoint).sync(ObjectClass.ACCOUNT, new SyncToken(PAGE_1), handler, null);
+
+        // the empty page is not requested again when the sync is resumed
+        assertEquals(1, handler.deltas.size());
+        assertEquals(PAGE_2, handler.finalToken.getValue());
+    }
+
+    private static MSGraphConnector connector(GraphEndpoint endpoint) {
+        return new MSGraphConnector() {
+            @Override
+            public GraphEndpoint getGraphEndpoint() {
+                return endpoint;
+            }
+        };
+    }
+
+    private static JSONObject removed(String id) {
+        return new JSONObject().put("id", id).put("@removed", new JSONObject().put("reason", "changed"));
+    }
+
+    private static JSONObject page(String nextLink, String deltaLink, JSONObject... values) {
+        JSONObject page = new JSONObject().put("value", new JSONArray(Arrays.asList(values)));
+        if (nextLink != null) {
+            page.put("@odata.nextLink", nextLink);
+        }
+        if (deltaLink != null) {
+            page.put("@odata.deltaLink", deltaLink);
+        }
+        return page;
+    }
+
+    private static class DeltaPagesEndpoint extends MockGraphEndpoint {
+
+        private final Map<String, JSONObject> pages = new HashMap<>();
+        private final List<String> requests = new ArrayList<>();
+
+        DeltaPagesEndpoint() {
+            super(new MSGraphConfiguration());
+        }
+
+        @Override
+        protected JSONObject callRequest(HttpRequestBase request, boolean parseResult) {
+            String uri = request.getURI().toString();
+            requests.add(uri);
+
+            String link = uri.substring(0, uri.indexOf('&'));
+            assertTrue("Unexpected request " + uri, pages.containsKey(link));
+            return pages.get(link);
+        }
+    }
+
+    private static class RecordingHandler implements SyncTokenResultsHandler {
+
+        private final DeltaPagesEndpoint endpoint;
+        private final int limit;
+        private final List<SyncDelta> deltas = new ArrayList<>();
+        private final List<Integer> requestsSeen = new ArrayList<>();
+        private SyncToken finalToken;
+
+        RecordingHandler(DeltaPagesEndpoint endpoint, int limit) {
+            this.endpoint = endpoint;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean handle(SyncDelta delta) {
+            deltas.add(delta);
+            requestsSeen.add(endpoint.requests.size());
+            return deltas.size() < limit;
+        }
+
+        @Override
+        public void handleResult(SyncToken result) {
+            finalToken = result;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.common.MockGraphServer;
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.identityconnectors.framework.common.objects.AttributeDeltaBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.json.JSONArray;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for the connector configured with the URL of {@link MockGraphServer} instead of the Microsoft Graph API.
+ */
+@Test(groups = "unit")
+public class MockGraphServerTest extends BasicConfigurationForTests {
+
+    private static final int USERS = 250;
+    private static final int GROUPS = 10;
+
+    private MockGraphServer server;
+    private GraphEndpoint endpoint;
+    private MSGraphConnector connector;
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        server = new MockGraphServer();
+        server.setPageSize(40);
+        server.populate(USERS, GROUPS, 30);
+
+        MSGraphConfiguration configuration = createConfiguration(server.getApiUrl());
+        configuration.setAttributeValueCacheTtl(60);
+        endpoint = new LocalGraphEndpoint(configuration);
+        connector = new MSGraphConnector() {
+            @Override
+            public GraphEndpoint getGraphEndpoint() {
+                return endpoint;
+            }
+        };
+        connector.init(configuration);
+    }
+
+    @AfterClass
+    public void stopServer() {
+        connector.dispose();
+        endpoint.close();
+        server.close();
+    }
+
+    static MSGraphConfiguration createConfiguration(String apiUrl) {
+        MSGraphConfiguration configuration = new MSGraphConfiguration();
+        configuration.setClientId("client");
+        configuration.setClientSecret(new GuardedString("secret".toCharArray()));
+        configuration.setTenantId("tenant");
+        configuration.setValidateWithFailoverTrust(false);
+        configuration.setApiUrl(apiUrl);
+        return configuration;
+    }
+
+    @Test
+    public void testApiUrl() {
+        assertEquals(server.getApiUrl(), endpoint.getApiUrl());
+        assertEquals(server.getApiUrl() + "/users",
+                endpoint.getUri(endpoint.createURIBuilder().setPath("/users")).toString());
+
+        GraphEndpoint defaultEndpoint = new MockGraphEndpoint(new MSGraphConfiguration());
+        assertEquals("https://graph.microsoft.com/v1.0", defaultEndpoint.getApiUrl());
+        assertEquals("https://graph.microsoft.com/v1.0/users?$top=1",
+                defaultEndpoint.getUri(defaultEndpoint.createURIBuilder().setPath("/users").setCustomQuery("$top=1")).toString());
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testInvalidApiUrl() {
+        createConfiguration("ftp://localhost/v1.0").validate();
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testInvalidAuthorityUrl() {
+        MSGraphConfiguration configuration = createConfiguration(server.getApiUrl());
+        configuration.setAuthorityUrl("login.microsoftonline.us");
+        configuration.validate();
+    }
+
+    @Test
+    public void testSearchUsers() {
+        List<ConnectorObject> users = new ArrayList<>();
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "userPrincipalName").build();
+        connector.executeQuery(ObjectClass.ACCOUNT, null, users::add, options);
+
+        // the users created by the other tests are found too
+        assertEquals(server.getUserIds().size(), users.size());
+        Set<String> uids = new HashSet<>();
+        for (ConnectorObject user : users) {
+            uids.add(user.getUid().getUidValue());
+        }
+        assertEquals(new HashSet<>(server.getUserIds()), uids);
+    }
+
+    @Test
+    public void testSearchUsersPartitioned() {
+        MSGraphConfiguration configuration = createConfiguration(server.getApiUrl());
+        configuration.setUserListPartitions(4);
+        configuration.setMaxConcurrentRequests(2);
+        GraphEndpoint partitionedEndpoint = new LocalGraphEndpoint(configuration);
+        MSGraphConnector partitioned = new MSGraphConnector() {
+            @Override
+            public GraphEndpoint getGraphEndpoint() {
+                return partitionedEndpoint;
+            }
+        };
+        partitioned.init(configuration);
+        try {
+            List<String> uids = new ArrayList<>();
+            OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "userPrincipalName").build();
+            Map<String, Long> before = server.getRequestCounts();
+            partitioned.executeQuery(ObjectClass.ACCOUNT, null, user -> uids.add(user.getUid().getUidValue()), options);
+            Map<String, Long> after = server.getRequestCounts();
+
+            // every user is found exactly once
+            assertEquals(server.getUserIds().size(), uids.size());
+            assertEquals(new HashSet<>(server.getUserIds()), new HashSet<>(uids));
+            // every partition is listed, the 7 pages of the generated users "user.N@example.com" are in the last one
+            assertEquals(10, after.getOrDefault("GET /users", 0L) - before.getOrDefault("GET /users", 0L));
+
+            // stopped by the handler, the other partitions are cancelled
+            List<String> first = new ArrayList<>();
+            partitioned.executeQuery(ObjectClass.ACCOUNT, null, user -> first.add(user.getUid().getUidValue()) && first.size() < 10, options);
+            assertEquals(10, first.size());
+        } finally {
+            partitioned.dispose();
+            partitionedEndpoint.close();
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void testSearchUsersPartitionedWithSaturation() {
+        MSGraphConfiguration configuration = createConfiguration(server.getApiUrl());
+        configuration.setUserListPartitions(4);
+        // the partitions and the saturation share the permits, one connection per permit is enough
+        configuration.setMaxConcurrentRequests(2);
+        configuration.setMaxConnectionsPerRoute(2);
+        GraphEndpoint partitionedEndpoint = new LocalGraphEndpoint(configuration);
+        MSGraphConnector partitioned = new MSGraphConnector() {
+            @Override
+            public GraphEndpoint getGraphEndpoint() {
+                return partitionedEndpoint;
+            }
+        };
+        partitioned.init(configuration);
+        try {
+            Set<String> uids = new HashSet<>();
+            OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "memberOfGroup").build();
+            partitioned.executeQuery(ObjectClass.ACCOUNT, null, user -> uids.add(user.getUid().getUidValue()), options);
+
+            assertEquals(new HashSet<>(server.getUserIds()), uids);
+        } finally {
+            partitioned.dispose();
+            partitionedEndpoint.close();
+        }
+    }
+
+    @Test
+    public void testSyncUsers() {
+        SyncToken token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+        server.touchUsers(50);
+
+        List<SyncDelta> deltas = new ArrayList<>();
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "userPrincipalName", "jobTitle").build();
+        connector.sync(ObjectClass.ACCOUNT, token, delta -> deltas.add(delta), options);
+
+        assertEquals(50, deltas.size());
+        assertEquals(server.getUserIds().get(0), deltas.get(0).getUid().getUidValue());
+    }
+
+    @Test
+    public void testUpdateMembersWithThrottling() {
+        String groupId = server.getGroupIds().get(0);
+        Set<String> members = server.getMemberIds(groupId);
+        List<Object> removed = new ArrayList<>(new ArrayList<>(members).subList(0, 5));
+        List<Object> added = new ArrayList<>();
+        for (String userId : server.getUserIds()) {
+            if (added.size() < 25 && !members.contains(userId)) {
+                added.add(userId);
+            }
+        }
+
+        server.setRetryAfter("0.01");
+        server.setThrottleEvery(3);
+        try {
+            AttributeDelta delta = AttributeDeltaBuilder.build("members", added, removed);
+            connector.updateDelta(ObjectClass.GROUP, new Uid(groupId), Collections.singleton(delta),
+                    new OperationOptionsBuilder().build());
+        } finally {
+            server.setThrottleEvery(0);
+        }
+
+        Set<String> updated = server.getMemberIds(groupId);
+        assertTrue(updated.containsAll(added));
+        assertTrue(Collections.disjoint(updated, removed));
+        assertEquals(30 - 5 + 25, updated.size());
+        assertTrue(server.getThrottledCount() > 0);
+    }
+
+    @Test
+    public void testCreateUserWithFollowUps() {
+        String managerId = server.getUserIds().get(1);
+        String skuId = server.getSkuIds().get(0);
+        byte[] photo = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F'};
+
+        Set<Attribute> attributes = new HashSet<>();
+        attributes.add(AttributeBuilder.build("userPrincipalName", "new.hire@example.com"));
+        attributes.add(AttributeBuilder.build("displayName", "New Hire"));
+        attributes.add(AttributeBuilder.build("mailNickname", "new.hire"));
+        attributes.add(AttributeBuilder.build("accountEnabled", true));
+        attributes.add(AttributeBuilder.build("__PASSWORD__", new GuardedString("Secret.123".toCharArray())));
+        attributes.add(AttributeBuilder.build("assignedLicenses.skuId", skuId));
+        attributes.add(AttributeBuilder.build("manager.id", managerId));
+        attributes.add(AttributeBuilder.build("photo", (Object) photo));
+
+        Map<String, Long> before = server.getRequestCounts();
+        Uid uid = connector.create(ObjectClass.ACCOUNT, attributes, new OperationOptionsBuilder().build());
+        Map<String, Long> after = server.getRequestCounts();
+
+        JSONArray licenses = server.getUser(uid.getUidValue()).getJSONArray("assignedLicenses");
+        assertEquals(1, licenses.length());
+        assertEquals(skuId, licenses.getJSONObject(0).getString("skuId"));
+        assertEquals(managerId, server.getManagerId(uid.getUidValue()));
+        assertTrue(Arrays.equals(photo, server.getPhoto(uid.getUidValue())));
+
+        // the user is created first, the licenses, the manager and the photo follow in one batch
+        assertEquals(1, after.getOrDefault("POST /$batch", 0L) - before.getOrDefault("POST /$batch", 0L));
+        assertEquals(2, after.getOrDefault("POST /users", 0L) - before.getOrDefault("POST /users", 0L));
+        assertEquals(2, after.getOrDefault("PUT /users", 0L) - before.getOrDefault("PUT /users", 0L));
+    }
+
+    @Test
+    public void testUpdateMergedWithCachedValues() {
+        String userId = server.getUserIds().get(2);
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("businessPhones").build();
+        connector.executeQuery(ObjectClass.ACCOUNT, null, user -> true, options);
+
+        Map<String, Long> before = server.getRequestCounts();
+        AttributeDelta add = AttributeDeltaBuilder.build("businessPhones", Collections.singletonList("+1 555 0101"), null);
+        connector.updateDelta(ObjectClass.ACCOUNT, new Uid(userId), Collections.singleton(add), new OperationOptionsBuilder().build());
+        AttributeDelta remove = AttributeDeltaBuilder.build("businessPhones", null, Collections.singletonList("+1 555 0100"));
+        connector.updateDelta(ObjectClass.ACCOUNT, new Uid(userId), Collections.singleton(remove), new OperationOptionsBuilder().build());
+        Map<String, Long> after = server.getRequestCounts();
+
+        assertEquals(Collections.singletonList("+1 555 0101"), server.getUser(userId).getJSONArray("businessPhones").toList());
+        // the values found by the search and merged by the first update are not read again
+        assertEquals(before.getOrDefault("GET /users", 0L), after.getOrDefault("GET /users", 0L));
+        assertEquals(2, after.getOrDefault("PATCH /users", 0L) - before.getOrDefault("PATCH /users", 0L));
+    }
+
+    @Test
+    public void testUnchangedUpdateSuppressed() {
+        String userId = server.getUserIds().get(3);
+        List<Object> phones = server.getUser(userId).getJSONArray("businessPhones").toList();
+        assertFalse(phones.isEmpty());
+        // the values may be cached by the searches of the other tests
+        endpoint.getAttributeValueCache().invalidate(userId);
+
+        Map<String, Long> before = server.getRequestCounts();
+        long suppressed = endpoint.getMetrics().getSuppressedCount();
+        AttributeDelta add = AttributeDeltaBuilder.build("businessPhones", phones, null);
+        connector.updateDelta(ObjectClass.ACCOUNT, new Uid(userId), Collections.singleton(add), new OperationOptionsBuilder().build());
+        AttributeDelta remove = AttributeDeltaBuilder.build("businessPhones", null, Collections.singletonList("+1 555 0199"));
+        connector.updateDelta(ObjectClass.ACCOUNT, new Uid(userId), Collections.singleton(remove), new OperationOptionsBuilder().build());
+        Map<String, Long> after = server.getRequestCounts();
+
+        assertEquals(phones, server.getUser(userId).getJSONArray("businessPhones").toList());
+        // neither update changes the values so nothing is sent, the cached values are read again before suppressing
+        assertEquals(2, after.getOrDefault("GET /users", 0L) - before.getOrDefault("GET /users", 0L));
+        assertEquals(before.getOrDefault("PATCH /users", 0L), after.getOrDefault("PATCH /users", 0L));
+        assertEquals(suppressed + 2, endpoint.getMetrics().getSuppressedCount());
+    }
+
+    @Test(expectedExceptions = UnknownUidException.class)
+    public void testRemoveMembersOfMissingGroup() {
+        AttributeDelta members = AttributeDeltaBuilder.build("members", null, Collections.singletonList(server.getUserIds().get(0)));
+        connector.updateDelta(ObjectClass.GROUP, new Uid(UUID.randomUUID().toString()), Collections.singleton(members),
+                new OperationOptionsBuilder().build());
+    }
+
+    @Test
+    public void testUpdateRoleMembersBatched() {
+        String roleId = server.getRoleIds().get(4);
+        List<String> assigned = server.getRolePrincipalIds(roleId);
+        assertTrue(assigned.size() >= 2);
+        List<Object> remove = Arrays.asList(assigned.get(0), assigned.get(1), server.getUserIds().get(1));
+        List<Object> add = Arrays.asList(server.getUserIds().get(3), server.getUserIds().get(5));
+
+        Map<String, Long> before = server.getRequestCounts();
+        AttributeDelta members = AttributeDeltaBuilder.build("members", add, remove);
+        connector.updateDelta(RoleProcessing.ROLE, new Uid(roleId), Collections.singleton(members), new OperationOptionsBuilder().build());
+        Map<String, Long> after = server.getRequestCounts();
+
+        List<String> expected = new ArrayList<>(assigned.subList(2, assigned.size()));
+        expected.add(server.getUserIds().get(3));
+        expected.add(server.getUserIds().get(5));
+        assertEquals(new HashSet<>(expected), new HashSet<>(server.getRolePrincipalIds(roleId)));
+
+        // one listing of the assignments of the role, the removals and the additions follow in a batch each
+        assertEquals(1, after.getOrDefault("GET /roleManagement", 0L) - before.getOrDefault("GET /roleManagement", 0L));
+        assertEquals(2, after.getOrDefault("POST /$batch", 0L) - before.getOrDefault("POST /$batch", 0L));
+        assertEquals(2, after.getOrDefault("DELETE /roleManagement", 0L) - before.getOrDefault("DELETE /roleManagement", 0L));
+        assertEquals(2, after.getOrDefault("POST /roleManagement", 0L) - before.getOrDefault("POST /roleManagement", 0L));
+    }
+
+    @Test
+    public void testRemoveRoleMemberKeepsScopedAssignments() {
+        String roleId = server.getRoleIds().get(5);
+        String principalId = server.getUserIds().get(7);
+        String tenantWide = server.addRoleAssignment(principalId, roleId, "/");
+        String scoped = server.addRoleAssignment(principalId, roleId, "/administrativeUnits/unit");
+        try {
+            AttributeDelta members = AttributeDeltaBuilder.build("members", null, Collections.singletonList(principalId));
+            connector.updateDelta(RoleProcessing.ROLE, new Uid(roleId), Collections.singleton(members), new OperationOptionsBuilder().build());
+
+            // only the tenant-wide assignment is removed
+            List<String> principalIds = server.getRolePrincipalIds(roleId);
+            assertEquals(1, Collections.frequency(principalIds, principalId));
+        } finally {
+            server.removeRoleAssignment(tenantWide);
+            server.removeRoleAssignment(scoped);
+        }
+    }
+
+    @Test
+    public void testScopedOnlyRoleAssignmentIsNotMembership() {
+        String roleId = server.getRoleIds().get(6);
+        String principalId = server.getUserIds().get(8);
+        String scoped = server.addRoleAssignment(principalId, roleId, "/administrativeUnits/unit");
+        try {
+            endpoint.invalidateRoleAssignmentIndex();
+            OperationOptions roleOptions = new OperationOptionsBuilder().setAttributesToGet("displayName", "members").build();
+
+            // neither the single role, nor the search of all the roles reports the member which could not be removed
+            List<ConnectorObject> roles = new ArrayList<>();
+            connector.executeQuery(RoleProcessing.ROLE, new EqualsFilter(new Uid(roleId)), roles::add, roleOptions);
+            connector.executeQuery(RoleProcessing.ROLE, null, role -> {
+                if (roleId.equals(role.getUid().getUidValue())) {
+                    roles.add(role);
+                }
+                return true;
+            }, roleOptions);
+            assertEquals(2, roles.size());
+            for (ConnectorObject role : roles) {
+                Attribute members = role.getAttributeByName("members");
+                assertTrue(members == null || !members.getValue().contains(principalId));
+            }
+
+            List<ConnectorObject> users = new ArrayList<>();
+            connector.executeQuery(ObjectClass.ACCOUNT, new EqualsFilter(new Uid(principalId)), users::add,
+                    new OperationOptionsBuilder().setAttributesToGet("displayName", "memberOfRole").build());
+            Attribute memberOfRole = users.get(0).getAttributeByName("memberOfRole");
+            assertTrue(memberOfRole == null || !memberOfRole.getValue().contains(roleId));
+
+            // removal of the member is consistent with the reads, the scoped assignment is kept
+            AttributeDelta members = AttributeDeltaBuilder.build("members", null, Collections.singletonList(principalId));
+            connector.updateDelta(RoleProcessing.ROLE, new Uid(roleId), Collections.singleton(members), new OperationOptionsBuilder().build());
+            assertTrue(server.getRolePrincipalIds(roleId).contains(principalId));
+        } finally {
+            server.removeRoleAssignment(scoped);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link ObjectMapping}
+ */
+@Test(groups = "unit")
+public class ObjectMappingTest extends BasicConfigurationForTests {
+
+    private final MockGraphEndpoint endpoint = new MockGraphEndpoint(null);
+    private final UserProcessing userProcessing = new UserProcessing(endpoint, endpoint.getSchemaTranslator());
+
+    private static JSONObject user() {
+        JSONObject user = new JSONObject();
+        user.put("id", "6e7b768e-07e2-4810-8459-485f84f8f204");
+        user.put("userPrincipalName", "jdoe@example.onmicrosoft.com");
+        user.put("accountEnabled", true);
+        user.put("displayName", "John &amp; Jane Doe");
+        user.put("mail", "");
+        user.put("jobTitle", JSONObject.NULL);
+        user.put("businessPhones", new JSONArray().put("+421 900 000 001").put("+421 900 000 002"));
+        user.put("onPremisesExtensionAttributes", new JSONObject().put("extensionAttribute1", "Engineering"));
+        user.put("assignedLicenses", new JSONArray().put(new JSONObject().put("skuId", "c7df2760-2c81-4ef7-b578-5b5392b571df")));
+        user.put("manager", new JSONObject().put("id", "4562bcc8-c436-4f95-b7c0-4f8ce89dca5e"));
+        user.put("@odata.etag", "W/\"1\"");
+        return user;
+    }
+
+    @Test
+    public void testUserConversion() {
+        ConnectorObject object = userProcessing.convertUserJSONObjectToConnectorObject(user()).build();
+
+        assertEquals("6e7b768e-07e2-4810-8459-485f84f8f204", object.getUid().getUidValue());
+        assertEquals("jdoe@example.onmicrosoft.com", object.getName().getNameValue());
+        assertEquals(Boolean.TRUE, AttributeUtil.getSingleValue(object.getAttributeByName("__ENABLE__")));
+        assertEquals(Boolean.TRUE, AttributeUtil.getSingleValue(object.getAttributeByName("accountEnabled")));
+        assertEquals("John & Jane Doe", AttributeUtil.getSingleValue(object.getAttributeByName("displayName")));
+        assertEquals(Arrays.asList("+421 900 000 001", "+421 900 000 002"),
+                object.getAttributeByName("businessPhones").getValue());
+        assertEquals("Engineering", AttributeUtil.getSingleValue(
+                object.getAttributeByName("onPremisesExtensionAttributes.extensionAttribute1")));
+        assertEquals("c7df2760-2c81-4ef7-b578-5b5392b571df", AttributeUtil.getSingleValue(
+                object.getAttributeByName("assignedLicenses.skuId")));
+        assertEquals("4562bcc8-c436-4f95-b7c0-4f8ce89dca5e", AttributeUtil.getSingleValue(
+                object.getAttributeByName("manager.id")));
+
+        // empty and null values are not converted
+        assertNull(object.getAttributeByName("mail"));
+        assertNull(object.getAttributeByName("jobTitle"));
+        assertNull(object.getAttributeByName("@odata.etag"));
+    }
+
+    @Test
+    public void testSelectedAttributes() {
+        AttributePlan plan = endpoint.getSchemaTranslator().getAttributePlan(ObjectClass.ACCOUNT_NAME,
+                new OperationOptionsBuilder().setAttributesToGet("displayName", "manager.id").build());
+        ConnectorObject object = userProcessing.convertUserJSONObjectToConnectorObject(user(), plan).build();
+
+        assertEquals("6e7b768e-07e2-4810-8459-485f84f8f204", object.getUid().getUidValue());
+        assertEquals("jdoe@example.onmicrosoft.com", object.getName().getNameValue());
+        assertNotNull(object.getAttributeByName("displayName"));
+        assertNotNull(object.getAttributeByName("manager.id"));
+        assertNull(object.getAttributeByName("__ENABLE__"));
+        assertNull(object.getAttributeByName("businessPhones"));
+        assertNull(object.getAttributeByName("assignedLicenses.skuId"));
+    }
+
+    @Test
+    public void testMappingOfOneProperty() {
+        ObjectMapping mapping = ObjectMapping.builder()
+                .single("unseenCount", Integer.class)
+                .single("mailEnabled", "__ENABLE__", Boolean.class)
+                .single("mailEnabled", Boolean.class)
+                .build();
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder().setObjectClass(ObjectClass.GROUP)
+                .setUid("1").setName("1");
+        mapping.convert(new JSONObject().put("unseenCount", 3).put("mailEnabled", false), null, builder);
+        ConnectorObject object = builder.build();
+
+        assertEquals(3, AttributeUtil.getSingleValue(object.getAttributeByName("unseenCount")));
+        assertEquals(Boolean.FALSE, AttributeUtil.getSingleValue(object.getAttributeByName("__ENABLE__")));
+        assertEquals(Boolean.FALSE, AttributeUtil.getSingleValue(object.getAttributeByName("mailEnabled")));
+    }
+
+    @Test(expectedExceptions = InvalidAttributeValueException.class)
+    public void testUnsupportedMultiValue() {
+        JSONObject user = user().put("businessPhones", "+421 900 000 001");
+        userProcessing.convertUserJSONObjectToConnectorObject(user);
+    }
+}
@@ -1,11 +1,20 @@
 package com.evolveum.polygon.connector.msgraphapi;
 
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.testng.Assert;
 import org.testng.AssertJUnit;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
 import static org.testng.AssertJUnit.*;
 
 /**
@@ -33,4 +42,66 @@ public class ObjectProcessingTest {
 	public void testSelector_valid() {
 		assertEquals("$select=foo,bar,baz", ObjectProcessing.selector("foo", "bar", "baz"));
 	}
+
+	@Test
+	public void testDropUnchanged() {
+		JSONObject current = new JSONObject()
+				.put("businessPhones", new JSONArray().put("+1 555 0100"))
+				.put("otherMails", new JSONArray().put("jdoe@example.com"))
+				.put("proxyAddresses", JSONObject.NULL);
+		List<JSONObject> jsonObjects = new ArrayList<>(Arrays.asList(
+				new JSONObject().put("businessPhones", new JSONArray().put("+1 555 0100")).put("jobTitle", "Engineer"),
+				new JSONObject().put("otherMails", new JSONArray().put("jdoe@example.com").put("john@example.com")),
+				new JSONObject().put("proxyAddresses", new JSONArray())));
+
+		List<String> unchanged = ObjectProcessing.dropUnchanged(jsonObjects, current);
+
+		assertEquals(Arrays.asList("businessPhones", "proxyAddresses"), unchanged);
+		assertEquals(2, jsonObjects.size());
+		assertEquals(Collections.singleton("jobTitle"), jsonObjects.get(0).keySet());
+		assertEquals(2, jsonObjects.get(1).getJSONArray("otherMails").length());
+	}
+
+	@Test
+	public void testIsResourceNotFound() {
+		assertTrue(ObjectProcessing.isResourceNotFound(batchResponse(404, "Request_ResourceNotFound",
+				"One or more removed object references do not exist for the following modified properties: 'members'.")));
+		assertTrue(ObjectProcessing.isResourceNotFound(batchResponse(404, "Request_ResourceNotFound",
+				"Resource '6f2c1b8e-4d5a-4a3b-9c7d-2e1f0a9b8c7d' does not exist or one of its queried reference-property objects are not present.")));
+		assertFalse(ObjectProcessing.isResourceNotFound(batchResponse(400, "Request_BadRequest",
+				"Invalid object identifier 'member'.")));
+		assertFalse(ObjectProcessing.isResourceNotFound(new JSONObject().put("status", 404)));
+	}
+
+	@Test
+	public void testReferenceNotFound() {
+		StubGraphEndpoint endpoint = new StubGraphEndpoint(new MSGraphConfiguration())
+				.route("/groups/group", new JSONObject().put("id", "group"))
+				.route("/groups/missing", (path, query) -> {
+					throw new UnknownUidException("Resource 'missing' does not exist or one of its queried reference-property objects are not present.");
+				});
+		GroupProcessing processing = new GroupProcessing(endpoint);
+		JSONObject missingReference = batchResponse(404, "Request_ResourceNotFound",
+				"One or more removed object references do not exist for the following modified properties: 'members'.");
+
+		// the group is read once for the whole batch
+		Predicate<JSONObject> ofGroup = processing.referenceNotFound("/groups/group");
+		assertTrue(ofGroup.test(missingReference));
+		assertTrue(ofGroup.test(missingReference));
+		assertFalse(ofGroup.test(batchResponse(400, "Request_BadRequest", "Invalid object identifier 'member'.")));
+		assertEquals(1, endpoint.getRequests().size());
+
+		assertFalse(processing.referenceNotFound("/groups/missing").test(missingReference));
+	}
+
+	// Batch response of a failed request, with the error body as returned by Graph
+	private static JSONObject batchResponse(int status, String code, String message) {
+		JSONObject error = new JSONObject().put("code", code).put("message", message)
+				.put("innerError", new JSONObject().put("date", "2024-03-12T09:41:27")
+						.put("request-id", "0f3a7c2e-5b1d-4e8a-9f6c-3d2b1a0e9c8f")
+						.put("client-request-id", "0f3a7c2e-5b1d-4e8a-9f6c-3d2b1a0e9c8f"));
+		return new JSONObject().put("id", "1").put("status", status)
+				.put("headers", new JSONObject().put("Content-Type", "application/json"))
+				.put("body", new JSONObject().put("error", error));
+	}
 }
@@ -0,0 +1,69 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.PayloadLog;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link PayloadLog}
+ */
+@Test(groups = "unit")
+public class PayloadLogTest extends BasicConfigurationForTests {
+
+    @Test
+    public void testSampling() {
+        PayloadLog everyThird = new PayloadLog(3, 0);
+        int sampled = 0;
+        for (int i = 0; i < 30; i++) {
+            if (everyThird.sample()) {
+                sampled++;
+            }
+        }
+        assertEquals(10, sampled);
+
+        PayloadLog all = new PayloadLog(1, 0);
+        assertTrue(all.sample());
+        assertTrue(all.sample());
+
+        PayloadLog none = new PayloadLog(0, 0);
+        assertFalse(none.sample());
+    }
+
+    @Test
+    public void testFormat() {
+        JSONObject user = new JSONObject();
+        JSONArray phones = new JSONArray();
+        for (int i = 0; i < 100; i++) {
+            phones.put("+421 900 000 " + i);
+        }
+        user.put("id", "6e7b768e-07e2-4810-8459-485f84f8f204");
+        user.put("businessPhones", phones);
+
+        String unlimited = new PayloadLog(1, 0).format(user);
+        assertEquals(user.toString(), unlimited);
+
+        String formatted = new PayloadLog(1, 100).format(user);
+        assertTrue(formatted, formatted.startsWith(unlimited.substring(0, 100)));
+        assertTrue(formatted, formatted.endsWith("... (cut off at 100 characters)"));
+
+        String array = new PayloadLog(1, 20).format(phones);
+        assertTrue(array, array.startsWith(phones.toString().substring(0, 20) + "..."));
+
+        String text = new PayloadLog(1, 5).format("0123456789");
+        assertEquals("01234... (5 more characters)", text);
+        assertEquals("short", new PayloadLog(1, 5).format("short"));
+        assertEquals("null", new PayloadLog(1, 5).format(null));
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testNegativeSampling() {
+        MSGraphConfiguration configuration = MockGraphServerTest.createConfiguration("http://localhost/v1.0");
+        configuration.setPayloadLogSampling(-1);
+        configuration.validate();
+    }
+}
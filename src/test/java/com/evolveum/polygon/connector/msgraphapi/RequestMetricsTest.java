@@ -0,0 +1,215 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.common.MockGraphServer;
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.MetricsExporter;
+import com.evolveum.polygon.connector.msgraphapi.util.RequestMetrics;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.identityconnectors.framework.common.objects.AttributeDeltaBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link RequestMetrics}
+ */
+@Test(groups = "unit")
+public class RequestMetricsTest extends BasicConfigurationForTests {
+
+    private static final int USERS = 120;
+
+    private MockGraphServer server;
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        server = new MockGraphServer();
+        server.setPageSize(50);
+        server.populate(USERS, 3, 10);
+    }
+
+    @AfterClass
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void testGetRoute() {
+        assertEquals("/users", RequestMetrics.getRoute("/v1.0/users", "/v1.0"));
+        assertEquals("/users/{id}/memberOf",
+                RequestMetrics.getRoute("/v1.0/users/6e7b768e-07e2-4810-8459-485f84f8f204/memberOf", "/v1.0"));
+        assertEquals("/users/{id}", RequestMetrics.getRoute("/v1.0/users/john.doe%40contoso.com", "/v1.0"));
+        assertEquals("/groups/{id}/members/{id}/$ref", RequestMetrics.getRoute(
+                "/v1.0/groups/02bd9fd6-8f93-4758-87c3-1fb73740a315/members/48d31887-5fad-4d73-a9f5-3c356e68a038/$ref", "/v1.0"));
+        assertEquals("/users/microsoft.graph.delta()", RequestMetrics.getRoute("/v1.0/users/microsoft.graph.delta()", "/v1.0"));
+        assertEquals("/oauth2PermissionGrants", RequestMetrics.getRoute("/v1.0/oauth2PermissionGrants", "/v1.0"));
+        assertEquals("/$batch", RequestMetrics.getRoute("/$batch", null));
+        assertEquals("/", RequestMetrics.getRoute("/v1.0", "/v1.0"));
+    }
+
+    @Test
+    public void testOperationPropagation() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (RequestMetrics.Operation ignored = RequestMetrics.startOperation("search")) {
+            assertEquals("search", executor.submit(RequestMetrics.propagate(RequestMetrics::getOperation)).get());
+            try (RequestMetrics.Operation nested = RequestMetrics.startOperation("sync")) {
+                assertEquals("sync", RequestMetrics.getOperation());
+            }
+            assertEquals("search", RequestMetrics.getOperation());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(RequestMetrics.OPERATION_OTHER, RequestMetrics.getOperation());
+    }
+
+    @Test
+    public void testSearchAndUpdateMetrics() {
+        MSGraphConfiguration configuration = MockGraphServerTest.createConfiguration(server.getApiUrl());
+        final GraphEndpoint endpoint = new LocalGraphEndpoint(configuration);
+        MSGraphConnector connector = createConnector(configuration, endpoint);
+        String groupId = server.getGroupIds().get(0);
+        try {
+            OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "userPrincipalName").build();
+            AtomicInteger users = new AtomicInteger();
+            connector.executeQuery(ObjectClass.ACCOUNT, null, user -> users.incrementAndGet() > 0, options);
+            assertEquals(USERS, users.get());
+
+            List<Object> added = new ArrayList<>();
+            Set<String> members = server.getMemberIds(groupId);
+            for (String userId : server.getUserIds()) {
+                if (added.size() < 10 && !members.contains(userId)) {
+                    added.add(userId);
+                }
+            }
+            server.setRetryAfter("0.01");
+            server.setThrottleEvery(4);
+            try {
+                AttributeDelta delta = AttributeDeltaBuilder.build("members", added, null);
+                connector.updateDelta(ObjectClass.GROUP, new Uid(groupId), Collections.singleton(delta),
+                        new OperationOptionsBuilder().build());
+            } finally {
+                server.setThrottleEvery(0);
+            }
+        } finally {
+            connector.dispose();
+            endpoint.close();
+        }
+
+        RequestMetrics metrics = endpoint.getMetrics();
+        RequestMetrics.RouteStatistics search = getRoute(metrics, "search", "GET", "/users");
+        assertEquals(3, search.getRequestCount());
+        assertEquals(Long.valueOf(3), search.getStatusCounts().get("200"));
+        assertTrue(search.getBytesReceived() > 0);
+        assertTrue(search.getMaxMillis() >= search.getAverageMillis());
+        assertTrue(search.getP99Millis() >= search.getP50Millis());
+
+        for (RequestMetrics.RouteStatistics route : metrics.getRoutes()) {
+            assertTrue(route.toString(), route.getOperation().equals("search") || route.getOperation().equals("update"));
+            assertFalse(route.toString(), route.getRoute().contains(groupId));
+        }
+        assertTrue(metrics.getThrottledCount() > 0);
+        assertTrue(metrics.getThrottleWaitMillis() > 0);
+        assertTrue(metrics.getBytesSent() > 0);
+        assertEquals(metrics.getRequestCount(), (long) metrics.getStatusCounts().values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        MSGraphConfiguration configuration = MockGraphServerTest.createConfiguration(server.getApiUrl());
+        configuration.setMetricsJmx(true);
+        GraphEndpoint endpoint = new LocalGraphEndpoint(configuration);
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("com.evolveum.polygon.connector.msgraphapi:type=RequestMetrics,*");
+        try {
+            createConnector(configuration, endpoint).test();
+
+            Set<ObjectName> names = mBeanServer.queryNames(pattern, null);
+            assertEquals(1, names.size());
+            ObjectName name = names.iterator().next();
+            assertEquals(1L, mBeanServer.getAttribute(name, "RequestCount"));
+            assertNotNull(mBeanServer.getAttribute(name, "Routes"));
+        } finally {
+            endpoint.close();
+        }
+        assertTrue(mBeanServer.queryNames(pattern, null).isEmpty());
+    }
+
+    @Test
+    public void testExporter() {
+        MSGraphConfiguration configuration = MockGraphServerTest.createConfiguration(server.getApiUrl());
+        configuration.setMetricsExporter(TestExporter.class.getName());
+        configuration.setMetricsExportInterval(0);
+        TestExporter.exported.clear();
+
+        GraphEndpoint endpoint = new LocalGraphEndpoint(configuration);
+        try {
+            createConnector(configuration, endpoint).test();
+            assertTrue(TestExporter.exported.isEmpty());
+        } finally {
+            endpoint.close();
+        }
+
+        // exported once when closed
+        assertEquals(1, TestExporter.exported.size());
+        assertEquals("test GET /users", TestExporter.exported.get(0));
+    }
+
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testInvalidExporter() {
+        MSGraphConfiguration configuration = MockGraphServerTest.createConfiguration(server.getApiUrl());
+        configuration.setMetricsExporter(String.class.getName());
+        new LocalGraphEndpoint(configuration);
+    }
+
+    private static MSGraphConnector createConnector(MSGraphConfiguration configuration, final GraphEndpoint endpoint) {
+        MSGraphConnector connector = new MSGraphConnector() {
+            @Override
+            public GraphEndpoint getGraphEndpoint() {
+                return endpoint;
+            }
+        };
+        connector.init(configuration);
+        return connector;
+    }
+
+    private static RequestMetrics.RouteStatistics getRoute(RequestMetrics metrics, String operation, String method, String route) {
+        for (RequestMetrics.RouteStatistics statistics : metrics.getRoutes()) {
+            if (statistics.getOperation().equals(operation) && statistics.getMethod().equals(method)
+                    && statistics.getRoute().equals(route)) {
+                return statistics;
+            }
+        }
+        fail("No metrics of " + operation + " " + method + " " + route + " in " + metrics.getRoutes());
+        return null;
+    }
+
+    public static class TestExporter implements MetricsExporter {
+
+        static final List<String> exported = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void export(String endpoint, List<RequestMetrics.RouteStatistics> routes) {
+            for (RequestMetrics.RouteStatistics route : routes) {
+                exported.add(route.getOperation() + " " + route.getMethod() + " " + route.getRoute());
+            }
+        }
+    }
+}
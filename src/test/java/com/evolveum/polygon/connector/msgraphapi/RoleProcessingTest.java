@@ -1,14 +1,30 @@
 package com.evolveum.polygon.connector.msgraphapi;
 
 import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.RoleAssignmentIndex;
 import org.apache.commons.io.IOUtils;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.testng.AssertJUnit.*;
 
@@ -35,4 +51,94 @@ public class RoleProcessingTest extends BasicConfigurationForTests {
         assertEquals("9639bcbc-0089-4855-a793-44b940e52286", ids.get(0));
         assertEquals("f034f71e-22a8-489b-8492-f5f7133559c1", ids.get(1));
     }
+
+    @Test
+    public void testRoleMembersFromAssignmentIndex() {
+        StubGraphEndpoint endpoint = new StubGraphEndpoint(new MSGraphConfiguration())
+                .route("/roleManagement/directory/roleDefinitions",
+                        new JSONObject().put("id", "r1"), new JSONObject().put("id", "r2"), new JSONObject().put("id", "r3"))
+                .route("/roleManagement/directory/roleAssignments",
+                        assignment("u1", "r1"), assignment("g1", "r1"), assignment("u1", "r2"));
+        RoleProcessing processing = new RoleProcessing(endpoint);
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "members").build();
+
+        List<ConnectorObject> roles = new ArrayList<>();
+        processing.executeQueryForRole(null, roles::add, options);
+        processing.executeQueryForRole(null, roles::add, options);
+
+        // the assignments were listed once, not queried for every role
+        assertEquals(Arrays.asList(
+                "/roleManagement/directory/roleAssignments?$select=principalId,roleDefinitionId&$filter=directoryScopeId eq '/'",
+                "/roleManagement/directory/roleDefinitions?null",
+                "/roleManagement/directory/roleDefinitions?null"), endpoint.getRequests());
+        assertEquals(6, roles.size());
+        assertEquals(Arrays.asList("u1", "g1"), roles.get(0).getAttributeByName("members").getValue());
+        assertEquals(Collections.singletonList("u1"), roles.get(1).getAttributeByName("members").getValue());
+        Attribute members = roles.get(2).getAttributeByName("members");
+        assertTrue(members == null || members.getValue().isEmpty());
+        assertEquals(Arrays.asList("u1"), endpoint.getRoleAssignmentIndex().getPrincipalIds("r2"));
+        assertEquals(Arrays.asList("r1", "r2"), endpoint.getRoleAssignmentIndex().getRoleDefinitionIds("u1"));
+
+        endpoint.invalidateRoleAssignmentIndex();
+        processing.executeQueryForRole(null, roles::add, options);
+        assertEquals(5, endpoint.getRequests().size());
+    }
+
+    @Test
+    public void testSingleRoleDoesNotLoadAssignmentIndex() {
+        StubGraphEndpoint endpoint = new StubGraphEndpoint(new MSGraphConfiguration())
+                .route("/roleManagement/directory/roleDefinitions/{id}", new JSONObject().put("id", "r1"))
+                .route("/roleManagement/directory/roleAssignments", assignment("u1", "r1"));
+        RoleProcessing processing = new RoleProcessing(endpoint);
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "members").build();
+
+        List<ConnectorObject> roles = new ArrayList<>();
+        processing.executeQueryForRole(new EqualsFilter(new Uid("r1")), roles::add, options);
+
+        // only the assignments of the role were queried, not all of the tenant
+        assertEquals(2, endpoint.getRequests().size());
+        assertTrue(endpoint.getRequests().get(1).contains("$filter=roleDefinitionId eq 'r1'"));
+        assertEquals(Collections.singletonList("u1"), roles.get(0).getAttributeByName("members").getValue());
+    }
+
+    @Test
+    public void testExpiredAssignmentIndexUsedWhileListed() throws Exception {
+        MSGraphConfiguration configuration = new MSGraphConfiguration();
+        configuration.setRoleAssignmentIndexTtl(1);
+        final AtomicInteger listings = new AtomicInteger();
+        final CountDownLatch listing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        StubGraphEndpoint endpoint = new StubGraphEndpoint(configuration)
+                .route("/roleManagement/directory/roleAssignments", (path, query) -> {
+                    if (listings.incrementAndGet() == 1) {
+                        return Collections.singletonList(assignment("u1", "r1"));
+                    }
+                    listing.countDown();
+                    assertTrue(proceed.await(5, TimeUnit.SECONDS));
+                    return Collections.singletonList(assignment("u2", "r1"));
+                });
+        RoleAssignmentIndex previous = endpoint.getRoleAssignmentIndex();
+        // the index expires
+        Thread.sleep(1100);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<RoleAssignmentIndex> loaded = executor.submit(endpoint::getRoleAssignmentIndex);
+            assertTrue(listing.await(5, TimeUnit.SECONDS));
+            // the other callers are not blocked by the listing in progress
+            assertSame(previous, endpoint.getRoleAssignmentIndex());
+
+            proceed.countDown();
+            assertEquals(Collections.singletonList("u2"), loaded.get(5, TimeUnit.SECONDS).getPrincipalIds("r1"));
+            assertSame(loaded.get(), endpoint.getRoleAssignmentIndex());
+            assertEquals(2, listings.get());
+        } finally {
+            proceed.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static JSONObject assignment(String principalId, String roleDefinitionId) {
+        return new JSONObject().put("principalId", principalId).put("roleDefinitionId", roleDefinitionId);
+    }
 }
@@ -0,0 +1,104 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Endpoint answering the GET and list requests by the responders routed to their paths, without any HTTP.
+ * The requests are recorded as "path?query" in the order they were made, the most requests answered at the same time
+ * are tracked.
+ */
+public class StubGraphEndpoint extends MockGraphEndpoint {
+
+    /**
+     * Objects of the response to the request, the GET request is answered by the first one.
+     */
+    @FunctionalInterface
+    public interface Responder {
+        List<JSONObject> respond(String path, String query) throws Exception;
+    }
+
+    private final Map<Pattern, Responder> routes = new LinkedHashMap<>();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    StubGraphEndpoint(MSGraphConfiguration configuration) {
+        super(configuration);
+    }
+
+    /**
+     * Answers the requests of the path by the responder, "{id}" in the path matches any single segment.
+     * The first route matching the path is used.
+     */
+    public StubGraphEndpoint route(String path, Responder responder) {
+        String regex = Arrays.stream(path.split("\\{id}", -1))
+                .map(Pattern::quote)
+                .reduce((a, b) -> a + "[^/]+" + b)
+                .orElse("");
+        routes.put(Pattern.compile(regex), responder);
+        return this;
+    }
+
+    /**
+     * Answers the requests of the path by the same objects.
+     */
+    public StubGraphEndpoint route(String path, JSONObject... objects) {
+        return route(path, (p, q) -> Arrays.asList(objects));
+    }
+
+    public List<String> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    @Override
+    protected JSONObject executeGetRequest(String path, String customQuery, OperationOptions options) {
+        List<JSONObject> objects = respond(path, customQuery);
+        return objects.isEmpty() ? new JSONObject() : objects.get(0);
+    }
+
+    @Override
+    protected void executeListRequest(String path, String customQuery, OperationOptions options,
+                                      boolean paging, ObjectProcessing.JSONObjectHandler handler) {
+        // handed out after the response is complete, a request made by the handler is not in flight meanwhile
+        for (JSONObject object : respond(path, customQuery)) {
+            if (!handler.handle(options, object)) {
+                return;
+            }
+        }
+    }
+
+    private List<JSONObject> respond(String path, String query) {
+        requests.add(path + "?" + query);
+        for (Map.Entry<Pattern, Responder> route : routes.entrySet()) {
+            if (route.getKey().matcher(path).matches()) {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    return route.getValue().respond(path, query);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        }
+        throw new IllegalStateException("No route for " + path);
+    }
+}
@@ -0,0 +1,174 @@
+package com.evolveum.polygon.connector.msgraphapi;
+
+import com.evolveum.polygon.connector.msgraphapi.integration.BasicConfigurationForTests;
+import com.evolveum.polygon.connector.msgraphapi.util.TokenRefresher;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test case for {@link TokenRefresher}
+ */
+@Test(groups = "unit")
+public class TokenRefresherTest extends BasicConfigurationForTests {
+
+    @Test
+    public void testTokenIsRenewedInBackground() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        // tokens are valid for one minute, renewed 59.8 seconds ahead
+        TokenRefresher<Long> refresher = new TokenRefresher<>(() -> {
+            calls.incrementAndGet();
+            return System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        }, token -> token, TimeUnit.MINUTES.toMillis(1) - 200);
+        try {
+            refresher.start();
+            Long first = refresher.get();
+            assertEquals(first, refresher.get());
+            assertEquals(1, calls.get());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (refresher.getRefreshCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(refresher.getRefreshCount() >= 2);
+            assertTrue(refresher.get() > first);
+            assertEquals(0, refresher.getFailureCount());
+        } finally {
+            refresher.close();
+        }
+    }
+
+    @Test
+    public void testExpiredTokenIsRenewedOnce() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch renewing = new CountDownLatch(1);
+        // first token is expired right away, the renewal takes a while
+        TokenRefresher<Long> refresher = new TokenRefresher<>(() -> {
+            if (calls.getAndIncrement() == 0) {
+                return System.currentTimeMillis() - 1;
+            }
+            renewing.countDown();
+            sleep(300);
+            return System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        }, token -> token, 0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            refresher.start();
+
+            // the token issued expired is not renewed in the background right away, the first caller renews it
+            List<Future<Long>> tokens = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tokens.add(executor.submit(refresher::get));
+            }
+            assertTrue(renewing.await(5, TimeUnit.SECONDS));
+            Long token = tokens.get(0).get();
+            for (Future<Long> other : tokens) {
+                assertEquals(token, other.get());
+            }
+            assertEquals(2, calls.get());
+        } finally {
+            executor.shutdownNow();
+            refresher.close();
+        }
+    }
+
+    @Test
+    public void testShortLivedTokenIsNotRenewedContinuously() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        // tokens live 2 seconds, shorter than the skew of 5 minutes
+        TokenRefresher<Long> refresher = new TokenRefresher<>(() -> {
+            calls.incrementAndGet();
+            return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(2);
+        }, token -> token, TimeUnit.MINUTES.toMillis(5));
+        try {
+            refresher.start();
+            Thread.sleep(1500);
+
+            // renewed in the half of the lifetime, not in a loop
+            assertTrue("Renewals: " + calls.get(), calls.get() <= 2);
+            assertTrue(refresher.get() > System.currentTimeMillis());
+        } finally {
+            refresher.close();
+        }
+    }
+
+    @Test
+    public void testFailedRenewal() {
+        final AtomicInteger calls = new AtomicInteger();
+        TokenRefresher<Long> refresher = new TokenRefresher<>(() -> {
+            if (calls.getAndIncrement() == 0) {
+                return System.currentTimeMillis() - 1;
+            }
+            throw new ConnectionFailedException("Failed to authenticate");
+        }, token -> token, 0);
+        try {
+            refresher.start();
+            try {
+                refresher.get();
+                fail("Expected ConnectionFailedException");
+            } catch (ConnectionFailedException e) {
+                // expected
+            }
+            assertTrue(refresher.getFailureCount() >= 1);
+            assertTrue(refresher.getStatistics().startsWith("refreshes: 1; failures: "));
+        } finally {
+            refresher.close();
+        }
+    }
+
+    @Test
+    public void testRenewalFailedByError() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        TokenRefresher<Long> refresher = new TokenRefresher<>(() -> {
+            if (calls.getAndIncrement() == 0) {
+                return System.currentTimeMillis() - 1;
+            }
+            if (failing.get()) {
+                throw new LinkageError("Failed to load the authentication library");
+            }
+            return System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        }, token -> token, 0);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            refresher.start();
+            try {
+                executor.submit(refresher::get).get(5, TimeUnit.SECONDS);
+                fail("Expected LinkageError");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof LinkageError);
+            }
+
+            // the failed renewal is not left in flight, the next one does not wait for it
+            failing.set(false);
+            Long token = executor.submit(refresher::get).get(5, TimeUnit.SECONDS);
+            assertTrue(token > System.currentTimeMillis());
+            assertTrue(refresher.getFailureCount() >= 1);
+        } finally {
+            executor.shutdownNow();
+            refresher.close();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
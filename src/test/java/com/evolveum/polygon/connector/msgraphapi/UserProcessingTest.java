@@ -6,16 +6,21 @@ import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
 import org.identityconnectors.framework.common.objects.AttributeDelta;
 import org.identityconnectors.framework.common.objects.AttributeDeltaBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static com.evolveum.polygon.connector.msgraphapi.UserProcessing.EXCLUDE_ATTRS_OF_USER;
 import static com.evolveum.polygon.connector.msgraphapi.UserProcessing.SPO_ATTRS;
@@ -227,4 +232,163 @@ public class UserProcessingTest extends BasicConfigurationForTests {
         assertEquals("a", interests.getString(0));
         assertEquals("b", interests.getString(1));
     }
+
+    @Test
+    public void testSaturateUsersConcurrently() throws Exception {
+        MSGraphConfiguration configuration = new MSGraphConfiguration();
+        configuration.setMaxConcurrentRequests(3);
+        // the role assignments are queried for every user
+        configuration.setRoleAssignmentIndexTtl(0);
+        // the first requests are held until as many are in flight as allowed
+        final CountDownLatch allInFlight = new CountDownLatch(3);
+        // the first user is saturated only after a later one
+        final CountDownLatch laterSaturated = new CountDownLatch(2);
+        StubGraphEndpoint endpoint = new StubGraphEndpoint(configuration)
+                .route("/users", users(10))
+                .route("/users/{id}/memberOf", (path, query) -> {
+                    String uid = path.split("/")[2];
+                    awaitSaturation(uid, allInFlight, laterSaturated);
+                    return Collections.singletonList(new JSONObject().put("@odata.type", "#microsoft.graph.group").put("id", "g-" + uid));
+                })
+                .route("/roleManagement/directory/roleAssignments", (path, query) -> {
+                    String uid = query.replaceAll(".*principalId eq '([^']*)'.*", "$1");
+                    awaitSaturation(uid, allInFlight, laterSaturated);
+                    return Collections.singletonList(new JSONObject().put("roleDefinitionId", "r-" + uid));
+                });
+        UserProcessing userProcessing = new UserProcessing(endpoint, endpoint.getSchemaTranslator());
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "memberOfGroup", "memberOfRole").build();
+
+        List<ConnectorObject> users = new ArrayList<>();
+        userProcessing.executeQueryForUser(null, false, user -> users.add(user) && users.size() < 8, options);
+
+        // handed out in the listed order until the handler stopped the search
+        assertEquals(8, users.size());
+        for (int i = 0; i < users.size(); i++) {
+            ConnectorObject user = users.get(i);
+            assertEquals("u" + i, user.getUid().getUidValue());
+            assertEquals(Collections.singletonList("g-u" + i), user.getAttributeByName("memberOfGroup").getValue());
+            assertEquals(Collections.singletonList("r-u" + i), user.getAttributeByName("memberOfRole").getValue());
+        }
+        assertEquals(0, laterSaturated.getCount());
+        // the limit was reached and never exceeded
+        assertEquals(3, endpoint.getMaxInFlight());
+    }
+
+    private static void awaitSaturation(String uid, CountDownLatch allInFlight, CountDownLatch laterSaturated)
+            throws InterruptedException {
+        allInFlight.countDown();
+        assertTrue(allInFlight.await(5, TimeUnit.SECONDS));
+        if ("u0".equals(uid)) {
+            assertTrue(laterSaturated.await(5, TimeUnit.SECONDS));
+        } else if ("u3".equals(uid)) {
+            laterSaturated.countDown();
+        }
+    }
+
+    @Test
+    public void testRoleMembershipFromAssignmentIndex() {
+        StubGraphEndpoint endpoint = new StubGraphEndpoint(new MSGraphConfiguration())
+                .route("/users", users(3))
+                .route("/roleManagement/directory/roleAssignments",
+                        new JSONObject().put("principalId", "u0").put("roleDefinitionId", "r1"),
+                        new JSONObject().put("principalId", "u2").put("roleDefinitionId", "r1"),
+                        new JSONObject().put("principalId", "u2").put("roleDefinitionId", "r2"));
+        UserProcessing userProcessing = new UserProcessing(endpoint, endpoint.getSchemaTranslator());
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "memberOfRole").build();
+
+        List<ConnectorObject> users = new ArrayList<>();
+        userProcessing.executeQueryForUser(null, false, users::add, options);
+
+        // one listing of the assignments instead of a query for every user
+        List<String> requests = endpoint.getRequests();
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(0).startsWith("/roleManagement/directory/roleAssignments?"));
+        assertEquals(Collections.singletonList("r1"), users.get(0).getAttributeByName("memberOfRole").getValue());
+        Attribute roles = users.get(1).getAttributeByName("memberOfRole");
+        assertTrue(roles == null || roles.getValue().isEmpty());
+        assertEquals(Arrays.asList("r1", "r2"), users.get(2).getAttributeByName("memberOfRole").getValue());
+    }
+
+    @Test
+    public void testGroupMembershipFromIndex() {
+        MSGraphConfiguration configuration = new MSGraphConfiguration();
+        configuration.setGroupMembershipIndex(true);
+        List<JSONObject> groups = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            // g0 has no members, g1 has u1, g2 has u1 and u2
+            JSONArray members = new JSONArray();
+            for (int j = 1; j <= i; j++) {
+                members.put(new JSONObject().put("id", "u" + j));
+            }
+            groups.add(new JSONObject().put("id", "g" + i).put("members", members));
+        }
+        StubGraphEndpoint endpoint = new StubGraphEndpoint(configuration)
+                .route("/users", users(3))
+                .route("/groups", (path, query) -> query.startsWith("$count")
+                        ? Collections.singletonList(new JSONObject().put("@odata.count", groups.size())) : groups);
+        UserProcessing userProcessing = new UserProcessing(endpoint, endpoint.getSchemaTranslator());
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "memberOfGroup").build();
+
+        List<ConnectorObject> users = new ArrayList<>();
+        userProcessing.executeQueryForUser(null, false, users::add, options);
+
+        // the groups were listed once with their members, not the groups of every user
+        List<String> requests = endpoint.getRequests();
+        assertEquals(4, requests.size());
+        assertEquals("/groups?$select=id&$expand=members($select=id)", requests.get(2));
+        assertTrue(requests.get(3).startsWith("/users?"));
+        Attribute memberOf = users.get(0).getAttributeByName("memberOfGroup");
+        assertTrue(memberOf == null || memberOf.getValue().isEmpty());
+        assertEquals(Arrays.asList("g1", "g2"), users.get(1).getAttributeByName("memberOfGroup").getValue());
+        assertEquals(Collections.singletonList("g2"), users.get(2).getAttributeByName("memberOfGroup").getValue());
+    }
+
+    @Test
+    public void testPagedSearchDoesNotBuildGroupMembershipIndex() {
+        MSGraphConfiguration configuration = new MSGraphConfiguration();
+        configuration.setGroupMembershipIndex(true);
+        StubGraphEndpoint endpoint = new StubGraphEndpoint(configuration)
+                .route("/users", users(2))
+                .route("/users/{id}/memberOf", (path, query) -> Collections.singletonList(
+                        new JSONObject().put("@odata.type", "#microsoft.graph.group").put("id", "g-" + path.split("/")[2])));
+        UserProcessing userProcessing = new UserProcessing(endpoint, endpoint.getSchemaTranslator());
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("displayName", "memberOfGroup")
+                .setPageSize(2).setPagedResultsOffset(1).build();
+
+        List<ConnectorObject> users = new ArrayList<>();
+        userProcessing.executeQueryForUser(null, false, users::add, options);
+
+        // the groups of every user of the page, not all the groups of the tenant
+        for (String request : endpoint.getRequests()) {
+            assertFalse(request.startsWith("/groups"));
+        }
+        assertEquals(Collections.singletonList("g-u1"), users.get(1).getAttributeByName("memberOfGroup").getValue());
+    }
+
+    // Users u0, u1, ... listed or counted
+    private static StubGraphEndpoint.Responder users(int count) {
+        return (path, query) -> {
+            if (query != null && query.startsWith("$count")) {
+                return Collections.singletonList(new JSONObject().put("@odata.count", count));
+            }
+            List<JSONObject> users = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                users.add(new JSONObject().put("id", "u" + i).put("userPrincipalName", "u" + i + "@example.com"));
+            }
+            return users;
+        };
+    }
+
+    @Test
+    public void testPartitionFilters() {
+        assertEquals(Arrays.asList(
+                "userPrincipalName le 'c'",
+                "userPrincipalName ge 'c' and userPrincipalName le 'o'",
+                "userPrincipalName ge 'o'"), UserProcessing.getPartitionFilters(3));
+
+        List<String> filters = UserProcessing.getPartitionFilters(100);
+        assertEquals(36, filters.size());
+        assertEquals("userPrincipalName le '1'", filters.get(0));
+        assertEquals("userPrincipalName ge 'z'", filters.get(35));
+    }
 }
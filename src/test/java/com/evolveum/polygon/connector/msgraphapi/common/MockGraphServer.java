@@ -0,0 +1,1160 @@
+package com.evolveum.polygon.connector.msgraphapi.common;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.identityconnectors.common.logging.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the Microsoft Graph API, serving an in-memory directory on http://localhost, so that the connector
+ * can be measured without a tenant. It covers the requests issued by the connector: users, groups with their members
+ * and owners, delta queries, JSON batching, role definitions and assignments, subscribed SKUs, and user licenses,
+ * managers and photos.
+ * Lists are paged and support $select, $top, $count and simple $filter conditions ("eq", "ge", "le", "startswith", "and").
+ * <p>
+ * Latency of every request, the maximum page size, and 429 or 503 responses to every n-th request, with the configured
+ * "Retry-After" header, can be set at any time. Batch sub-requests are throttled independently, like by the real API.
+ * Point the connector to {@link #getApiUrl()} and skip the authentication, the server does not check the token.
+ */
+public class MockGraphServer implements Closeable {
+
+    private static final Log LOG = Log.getLog(MockGraphServer.class);
+
+    public static final String VERSION = "/v1.0";
+    private static final String ROLE_ASSIGNMENTS = "roleAssignments";
+    private static final String ROLE_DEFINITIONS = "roleDefinitions";
+    private static final String USER_TYPE = "#microsoft.graph.user";
+    private static final String GROUP_TYPE = "#microsoft.graph.group";
+    // Maximum number of objects returned by $expand of a relationship
+    private static final int EXPAND_LIMIT = 20;
+    private static final Pattern EQUALS = Pattern.compile("(\\w+) eq '([^']*)'");
+    private static final Pattern COMPARE = Pattern.compile("(\\w+) (ge|le) '([^']*)'");
+    private static final Pattern STARTS_WITH = Pattern.compile("startswith\\((\\w+), ?'([^']*)'\\)");
+    private static final String ALREADY_EXISTS = "One or more added object references already exist for the following "
+            + "modified properties: '%s'.";
+    private static final byte[] PHOTO = new byte[1024];
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String apiUrl;
+
+    private volatile long latency;
+    private volatile int pageSize = 100;
+    private volatile int throttleEvery;
+    private volatile int unavailableEvery;
+    private volatile String retryAfter = "1";
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong unavailableCount = new AtomicLong();
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+
+    // The directory, guarded by this
+    private final Map<String, JSONObject> users = new LinkedHashMap<>();
+    private final Map<String, JSONObject> groups = new LinkedHashMap<>();
+    private final Map<String, Set<String>> members = new HashMap<>();
+    private final Map<String, Set<String>> owners = new HashMap<>();
+    private final Map<String, JSONObject> roleDefinitions = new LinkedHashMap<>();
+    private final Map<String, JSONObject> roleAssignments = new LinkedHashMap<>();
+    private final Map<String, JSONObject> subscribedSkus = new LinkedHashMap<>();
+    private final Map<String, byte[]> photos = new HashMap<>();
+    private final Map<String, String> managers = new HashMap<>();
+
+    // Changes for the delta queries, the version of the last change of every object in ascending order
+    private long version;
+    private final Map<String, Long> userChanges = new LinkedHashMap<>();
+    private final Map<String, Long> groupChanges = new LinkedHashMap<>();
+    private final Map<String, List<MemberChange>> memberChanges = new HashMap<>();
+    private int touchedUsers;
+
+    public MockGraphServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 256);
+        server.createContext(VERSION + "/", this::handle);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "mock-graph-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+        apiUrl = "http://localhost:" + server.getAddress().getPort() + VERSION;
+        LOG.info("Mock Graph API listening on {0}", apiUrl);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * The URL to be configured as the API URL of the connector.
+     */
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    /**
+     * @param latency milliseconds every HTTP request is delayed by, before it is processed
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param pageSize maximum number of objects in one page, larger $top is cut down to it
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param throttleEvery every n-th request or batch sub-request is rejected with 429, 0 throttles none
+     */
+    public void setThrottleEvery(int throttleEvery) {
+        this.throttleEvery = throttleEvery;
+    }
+
+    /**
+     * @param unavailableEvery every n-th request or batch sub-request is rejected with 503, 0 rejects none
+     */
+    public void setUnavailableEvery(int unavailableEvery) {
+        this.unavailableEvery = unavailableEvery;
+    }
+
+    /**
+     * @param retryAfter value of the "Retry-After" header of the rejected requests, in seconds
+     */
+    public void setRetryAfter(String retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Requests served, including the batch sub-requests and the rejected ones.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    public long getUnavailableCount() {
+        return unavailableCount.get();
+    }
+
+    /**
+     * Requests served by the method and the collection, e.g. "GET /users".
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        requestCounts.forEach((key, count) -> counts.put(key, count.get()));
+        return counts;
+    }
+
+    public void resetCounters() {
+        requestCount.set(0);
+        throttledCount.set(0);
+        unavailableCount.set(0);
+        requestCounts.clear();
+    }
+
+    /**
+     * Fills the directory with generated users and groups, every group gets the given number of members and one
+     * owner. Every tenth user is assigned one of the directory roles, and every user has a photo.
+     */
+    public synchronized void populate(int userCount, int groupCount, int membersPerGroup) {
+        for (String name : Arrays.asList("Global Administrator", "User Administrator", "Groups Administrator",
+                "Helpdesk Administrator", "Global Reader")) {
+            String id = id("role", name);
+            roleDefinitions.put(id, new JSONObject().put("id", id).put("displayName", name)
+                    .put("description", name).put("isBuiltIn", true).put("isEnabled", true)
+                    .put("templateId", id).put("rolePermissions", new JSONArray()));
+        }
+        for (String name : Arrays.asList("ENTERPRISEPACK", "EMS")) {
+            String id = id("sku", name);
+            subscribedSkus.put(id, new JSONObject().put("id", id).put("skuId", id).put("skuPartNumber", name)
+                    .put("capabilityStatus", "Enabled").put("consumedUnits", userCount)
+                    .put("prepaidUnits", new JSONObject().put("enabled", userCount))
+                    .put("servicePlans", new JSONArray().put(new JSONObject().put("servicePlanId", id("plan", name))
+                            .put("servicePlanName", name + "_PLAN").put("provisioningStatus", "Success"))));
+        }
+
+        List<String> userIds = new ArrayList<>();
+        List<String> roleIds = new ArrayList<>(roleDefinitions.keySet());
+        for (int i = 0; i < userCount; i++) {
+            String id = id("user", String.valueOf(i));
+            users.put(id, new JSONObject().put("id", id).put("displayName", "User " + i)
+                    .put("givenName", "Given" + i).put("surname", "Surname" + i)
+                    .put("userPrincipalName", "user." + i + "@example.com").put("mail", "user." + i + "@example.com")
+                    .put("mailNickname", "user." + i).put("accountEnabled", true).put("jobTitle", "Engineer")
+                    .put("department", "Department " + i % 10).put("usageLocation", "US")
+                    .put("businessPhones", new JSONArray().put("+1 555 0100")).put("otherMails", new JSONArray())
+                    .put("proxyAddresses", new JSONArray()).put("createdDateTime", "2020-01-01T00:00:00Z"));
+            photos.put(id, PHOTO);
+            touch(userChanges, id);
+            userIds.add(id);
+
+            if (i % 10 == 0) {
+                String assignmentId = UUID.randomUUID().toString();
+                roleAssignments.put(assignmentId, new JSONObject().put("id", assignmentId).put("principalId", id)
+                        .put("roleDefinitionId", roleIds.get(i / 10 % roleIds.size())).put("directoryScopeId", "/"));
+            }
+        }
+
+        for (int i = 0; i < groupCount; i++) {
+            String id = id("group", String.valueOf(i));
+            groups.put(id, new JSONObject().put("id", id).put("displayName", "Group " + i)
+                    .put("description", "Group " + i).put("mailNickname", "group." + i).put("mailEnabled", false)
+                    .put("securityEnabled", true).put("groupTypes", new JSONArray()).put("visibility", "Private")
+                    .put("proxyAddresses", new JSONArray()).put("createdDateTime", "2020-01-01T00:00:00Z"));
+            Set<String> groupMembers = new LinkedHashSet<>();
+            for (int j = 0; j < membersPerGroup && j < userCount; j++) {
+                groupMembers.add(userIds.get((i * 7 + j) % userCount));
+            }
+            members.put(id, groupMembers);
+            owners.put(id, userCount > 0
+                    ? new LinkedHashSet<>(Collections.singleton(userIds.get(i % userCount))) : new LinkedHashSet<>());
+            touch(groupChanges, id);
+        }
+        LOG.info("Mock Graph API populated with {0} users, {1} groups and {2} role assignments",
+                users.size(), groups.size(), roleAssignments.size());
+    }
+
+    public synchronized List<String> getUserIds() {
+        return new ArrayList<>(users.keySet());
+    }
+
+    public synchronized List<String> getGroupIds() {
+        return new ArrayList<>(groups.keySet());
+    }
+
+    public synchronized Set<String> getMemberIds(String groupId) {
+        return new HashSet<>(members.getOrDefault(groupId, Collections.emptySet()));
+    }
+
+    public synchronized List<String> getRoleIds() {
+        return new ArrayList<>(roleDefinitions.keySet());
+    }
+
+    /**
+     * Principals the role is assigned to, once for every assignment.
+     */
+    public synchronized List<String> getRolePrincipalIds(String roleId) {
+        List<String> principalIds = new ArrayList<>();
+        for (JSONObject assignment : roleAssignments.values()) {
+            if (roleId.equals(assignment.getString("roleDefinitionId"))) {
+                principalIds.add(assignment.getString("principalId"));
+            }
+        }
+        return principalIds;
+    }
+
+    /**
+     * Assigns the role to the principal in the directory scope.
+     *
+     * @return id of the assignment
+     */
+    public synchronized String addRoleAssignment(String principalId, String roleId, String directoryScopeId) {
+        String id = UUID.randomUUID().toString();
+        roleAssignments.put(id, new JSONObject().put("id", id).put("principalId", principalId)
+                .put("roleDefinitionId", roleId).put("directoryScopeId", directoryScopeId));
+        return id;
+    }
+
+    public synchronized void removeRoleAssignment(String id) {
+        roleAssignments.remove(id);
+    }
+
+    public synchronized List<String> getSkuIds() {
+        return new ArrayList<>(subscribedSkus.keySet());
+    }
+
+    /**
+     * Copy of the user, null if there is no such user.
+     */
+    public synchronized JSONObject getUser(String id) {
+        JSONObject user = users.get(id);
+        return user == null ? null : copy(user);
+    }
+
+    public synchronized String getManagerId(String userId) {
+        return managers.get(userId);
+    }
+
+    public synchronized byte[] getPhoto(String userId) {
+        return photos.get(userId);
+    }
+
+    /**
+     * Changes the job title of the given number of users, the next call changes the users following them,
+     * so that they are reported by the next delta query.
+     */
+    public synchronized void touchUsers(int count) {
+        List<String> ids = new ArrayList<>(users.keySet());
+        for (int i = 0; i < count && !ids.isEmpty(); i++) {
+            String id = ids.get(touchedUsers++ % ids.size());
+            users.get(id).put("jobTitle", "Engineer " + version);
+            touch(userChanges, id);
+        }
+    }
+
+    private static String id(String type, String name) {
+        return UUID.nameUUIDFromBytes((type + ":" + name).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private long touch(Map<String, Long> changes, String id) {
+        version++;
+        // re-inserted, so that the changes stay ordered by the version
+        changes.remove(id);
+        changes.put(id, version);
+        return version;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getRawPath().substring(VERSION.length());
+            byte[] body = readBody(exchange.getRequestBody());
+
+            Response response = inject();
+            if (response == null) {
+                response = "/$batch".equals(path) && "POST".equals(method)
+                        ? batch(parseJson(body))
+                        : dispatch(method, path, exchange.getRequestURI().getRawQuery(), body);
+            }
+            count(method, path);
+            send(exchange, response);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error(e, "Mock Graph API failed to process {0}", exchange.getRequestURI());
+            send(exchange, Response.error(500, "InternalServerError", String.valueOf(e)));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void count(String method, String path) {
+        requestCount.incrementAndGet();
+        int end = path.indexOf('/', 1);
+        String key = method + " " + (end < 0 ? path : path.substring(0, end));
+        requestCounts.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Rejects the request when it is its turn to be throttled or to find the service unavailable.
+     */
+    private Response inject() {
+        long n = sequence.incrementAndGet();
+        int throttle = throttleEvery;
+        int unavailable = unavailableEvery;
+        if (throttle > 0 && n % throttle == 0) {
+            throttledCount.incrementAndGet();
+            return Response.error(429, "TooManyRequests", "Too many requests.").header("Retry-After", retryAfter);
+        }
+        if (unavailable > 0 && n % unavailable == 0) {
+            unavailableCount.incrementAndGet();
+            return Response.error(503, "ServiceUnavailable", "Service unavailable.").header("Retry-After", retryAfter);
+        }
+        return null;
+    }
+
+    private Response batch(JSONObject batch) {
+        JSONArray requests = batch == null ? new JSONArray() : batch.optJSONArray("requests");
+        if (requests == null || requests.length() > 20) {
+            return Response.error(400, "BadRequest", "A batch has to contain at most 20 requests.");
+        }
+
+        JSONArray responses = new JSONArray();
+        for (int i = 0; i < requests.length(); i++) {
+            JSONObject request = requests.getJSONObject(i);
+            String method = request.getString("method");
+            String url = request.getString("url");
+            if (url.startsWith(apiUrl)) {
+                url = url.substring(apiUrl.length());
+            }
+            int query = url.indexOf('?');
+            String path = query < 0 ? url : url.substring(0, query);
+            // Bodies of the content types other than JSON are Base64 encoded
+            Object requestBody = request.opt("body");
+            byte[] body = requestBody == null ? new byte[0] : requestBody instanceof JSONObject
+                    ? requestBody.toString().getBytes(StandardCharsets.UTF_8) : Base64.getDecoder().decode(requestBody.toString());
+
+            Response response = inject();
+            if (response == null) {
+                response = dispatch(method, path, query < 0 ? null : url.substring(query + 1), body);
+            }
+            count(method, path);
+
+            JSONObject subResponse = new JSONObject().put("id", request.getString("id")).put("status", response.status);
+            JSONObject headers = new JSONObject(response.headers);
+            if (response.json != null) {
+                subResponse.put("body", response.json);
+                headers.put("Content-Type", "application/json");
+            }
+            responses.put(subResponse.put("headers", headers));
+        }
+        return Response.json(200, new JSONObject().put("responses", responses));
+    }
+
+    private synchronized Response dispatch(String method, String path, String rawQuery, byte[] body) {
+        Map<String, String> params = parseQuery(rawQuery);
+        String[] segments = path.substring(1).split("/");
+        try {
+            switch (segments[0]) {
+                case "users":
+                    return users(method, segments, params, body);
+                case "groups":
+                    return groups(method, segments, params, body);
+                case "roleManagement":
+                    if (segments.length >= 3 && "directory".equals(segments[1])) {
+                        return roles(method, segments, params, body);
+                    }
+                    break;
+                case "subscribedSkus":
+                    if ("GET".equals(method) && segments.length == 1) {
+                        return list(path, new ArrayList<>(subscribedSkus.values()), params);
+                    } else if ("GET".equals(method) && segments.length == 2) {
+                        return get(subscribedSkus, segments[1], params);
+                    }
+                    break;
+            }
+        } catch (JSONException e) {
+            return Response.error(400, "BadRequest", "Invalid request: " + e.getMessage());
+        }
+        return unsupported(method, path);
+    }
+
+    private Response users(String method, String[] segments, Map<String, String> params, byte[] body) {
+        if (segments.length == 1) {
+            if ("GET".equals(method)) {
+                return list("/users", new ArrayList<>(users.values()), params);
+            } else if ("POST".equals(method)) {
+                return createUser(parseJson(body));
+            }
+        } else if (isDelta(segments) && "GET".equals(method)) {
+            return delta("/users/delta", users, userChanges, params, false);
+        }
+        if (segments.length < 2) {
+            return unsupported(method, String.join("/", segments));
+        }
+
+        final String id = segments[1];
+        JSONObject user = users.get(id);
+        if (user == null) {
+            return notFound(id);
+        }
+
+        if (segments.length == 2) {
+            switch (method) {
+                case "GET":
+                    return Response.json(200, view(user, params, null));
+                case "PATCH":
+                    JSONObject changes = parseJson(body);
+                    for (String key : changes.keySet()) {
+                        if (!key.contains("@") && !"passwordProfile".equals(key)) {
+                            user.put(key, changes.get(key));
+                        }
+                    }
+                    touch(userChanges, id);
+                    return Response.noContent();
+                case "DELETE":
+                    users.remove(id);
+                    photos.remove(id);
+                    managers.remove(id);
+                    managers.values().removeIf(id::equals);
+                    members.forEach((group, ids) -> {
+                        if (ids.remove(id)) {
+                            recordMemberChange(group, id, true);
+                        }
+                    });
+                    owners.values().forEach(ids -> ids.remove(id));
+                    roleAssignments.values().removeIf(assignment -> id.equals(assignment.getString("principalId")));
+                    touch(userChanges, id);
+                    return Response.noContent();
+            }
+        } else if ("GET".equals(method) && segments.length == 3 && "memberOf".equals(segments[2])) {
+            return list("/users/" + id + "/memberOf", groupsOf(members, id), params);
+        } else if ("GET".equals(method) && segments.length == 3 && "ownedObjects".equals(segments[2])) {
+            return list("/users/" + id + "/ownedObjects", groupsOf(owners, id), params);
+        } else if ("POST".equals(method) && segments.length == 3 && "assignLicense".equals(segments[2])) {
+            return assignLicense(user, parseJson(body));
+        } else if ("GET".equals(method) && segments.length == 3 && "manager".equals(segments[2])) {
+            String managerId = managers.get(id);
+            return managerId == null ? Response.error(404, "Request_ResourceNotFound", "Resource 'manager' does not "
+                    + "exist or one of its queried reference-property objects are not present.")
+                    : Response.json(200, view(directoryObject(managerId), params, null));
+        } else if (segments.length == 4 && "manager".equals(segments[2]) && "$ref".equals(segments[3])) {
+            if ("PUT".equals(method)) {
+                String managerId = referencedId(parseJson(body).getString("@odata.id"));
+                if (!users.containsKey(managerId)) {
+                    return notFound(managerId);
+                }
+                managers.put(id, managerId);
+                touch(userChanges, id);
+                return Response.noContent();
+            } else if ("DELETE".equals(method)) {
+                if (managers.remove(id) == null) {
+                    return notFound(id);
+                }
+                touch(userChanges, id);
+                return Response.noContent();
+            }
+        } else if (segments.length == 4 && "photo".equals(segments[2]) && "$value".equals(segments[3])) {
+            if ("GET".equals(method)) {
+                byte[] photo = photos.get(id);
+                return photo == null ? Response.error(404, "ImageNotFound", "Exception of type "
+                        + "'Microsoft.Fast.Profile.Core.Exception.ImageNotFoundException' was thrown.")
+                        : Response.bytes(photo, "image/jpeg");
+            } else if ("PUT".equals(method)) {
+                photos.put(id, body);
+                return Response.noContent();
+            }
+        }
+        return unsupported(method, String.join("/", segments));
+    }
+
+    private Response assignLicense(JSONObject user, JSONObject changes) {
+        Set<Object> removed = new HashSet<>(changes.getJSONArray("removeLicenses").toList());
+        JSONArray licenses = new JSONArray();
+        JSONArray assigned = user.optJSONArray("assignedLicenses");
+        for (int i = 0; assigned != null && i < assigned.length(); i++) {
+            if (!removed.contains(assigned.getJSONObject(i).getString("skuId"))) {
+                licenses.put(assigned.getJSONObject(i));
+            }
+        }
+        JSONArray added = changes.getJSONArray("addLicenses");
+        for (int i = 0; i < added.length(); i++) {
+            if (!subscribedSkus.containsKey(added.getJSONObject(i).getString("skuId"))) {
+                return Response.error(400, "Request_BadRequest", "License " + added.getJSONObject(i).getString("skuId")
+                        + " does not correspond to a valid company License.");
+            }
+            licenses.put(added.getJSONObject(i));
+        }
+        user.put("assignedLicenses", licenses);
+        touch(userChanges, user.getString("id"));
+        return Response.json(200, copy(user));
+    }
+
+    private Response createUser(JSONObject user) {
+        if (!user.has("userPrincipalName")) {
+            return Response.error(400, "Request_BadRequest", "Property userPrincipalName is required.");
+        }
+        for (JSONObject existing : users.values()) {
+            if (user.getString("userPrincipalName").equalsIgnoreCase(existing.optString("userPrincipalName"))) {
+                return Response.error(400, "Request_BadRequest",
+                        "Another object with the same value for property userPrincipalName already exists.");
+            }
+        }
+        String id = UUID.randomUUID().toString();
+        user.remove("passwordProfile");
+        user.put("id", id);
+        users.put(id, user);
+        touch(userChanges, id);
+        return Response.json(201, user);
+    }
+
+    private Response groups(String method, String[] segments, Map<String, String> params, byte[] body) {
+        if (segments.length == 1) {
+            if ("GET".equals(method)) {
+                return list("/groups", new ArrayList<>(groups.values()), params);
+            } else if ("POST".equals(method)) {
+                JSONObject group = parseJson(body);
+                String id = UUID.randomUUID().toString();
+                group.put("id", id);
+                members.put(id, new LinkedHashSet<>());
+                owners.put(id, new LinkedHashSet<>());
+                Response response = bind(id, group);
+                if (response != null) {
+                    return response;
+                }
+                groups.put(id, group);
+                touch(groupChanges, id);
+                return Response.json(201, group);
+            }
+        } else if (isDelta(segments) && "GET".equals(method)) {
+            return delta("/groups/delta", groups, groupChanges, params, true);
+        }
+        if (segments.length < 2) {
+            return unsupported(method, String.join("/", segments));
+        }
+
+        final String id = segments[1];
+        JSONObject group = groups.get(id);
+        if (group == null) {
+            return notFound(id);
+        }
+
+        if (segments.length == 2) {
+            switch (method) {
+                case "GET":
+                    return Response.json(200, view(group, params, id));
+                case "PATCH":
+                    JSONObject changes = parseJson(body);
+                    Response response = bind(id, changes);
+                    if (response != null) {
+                        return response;
+                    }
+                    for (String key : changes.keySet()) {
+                        if (!key.contains("@")) {
+                            group.put(key, changes.get(key));
+                        }
+                    }
+                    touch(groupChanges, id);
+                    return Response.noContent();
+                case "DELETE":
+                    groups.remove(id);
+                    members.remove(id);
+                    owners.remove(id);
+                    memberChanges.remove(id);
+                    members.forEach((other, ids) -> {
+                        if (ids.remove(id)) {
+                            recordMemberChange(other, id, true);
+                        }
+                    });
+                    touch(groupChanges, id);
+                    return Response.noContent();
+            }
+            return unsupported(method, String.join("/", segments));
+        }
+
+        final boolean isMembers = "members".equals(segments[2]);
+        if (!isMembers && !"owners".equals(segments[2])) {
+            return unsupported(method, String.join("/", segments));
+        }
+        final Set<String> references = (isMembers ? members : owners).get(id);
+
+        if (segments.length == 3 && "GET".equals(method)) {
+            List<JSONObject> objects = new ArrayList<>();
+            for (String reference : references) {
+                objects.add(directoryObject(reference));
+            }
+            return list("/groups/" + id + "/" + segments[2], objects, params);
+        } else if (segments.length == 4 && "$ref".equals(segments[3]) && "POST".equals(method)) {
+            String reference = referencedId(parseJson(body).getString("@odata.id"));
+            if (!users.containsKey(reference) && !groups.containsKey(reference)) {
+                return notFound(reference);
+            }
+            if (!references.add(reference)) {
+                return Response.error(400, "Request_BadRequest", String.format(ALREADY_EXISTS, segments[2]));
+            }
+            if (isMembers) {
+                recordMemberChange(id, reference, false);
+            }
+            return Response.noContent();
+        } else if (segments.length == 5 && "$ref".equals(segments[4]) && "DELETE".equals(method)) {
+            if (!references.remove(segments[3])) {
+                // The same code as of the missing object, unlike its message
+                return Response.error(404, "Request_ResourceNotFound", "One or more removed object references do not exist "
+                        + "for the following modified properties: '" + segments[2] + "'.");
+            }
+            if (isMembers) {
+                recordMemberChange(id, segments[3], true);
+            }
+            return Response.noContent();
+        }
+        return unsupported(method, String.join("/", segments));
+    }
+
+    /**
+     * Adds the members and owners of "members@odata.bind" and "owners@odata.bind", all of them or none.
+     *
+     * @return the error response, null when the references were added
+     */
+    private Response bind(String groupId, JSONObject changes) {
+        Map<String, List<String>> bindings = new LinkedHashMap<>();
+        for (String property : Arrays.asList("members", "owners")) {
+            JSONArray binds = changes.optJSONArray(property + "@odata.bind");
+            if (binds == null) {
+                continue;
+            }
+            if (binds.length() > 20) {
+                return Response.error(400, "Request_BadRequest", "Up to 20 references can be added in one request.");
+            }
+            Set<String> existing = ("members".equals(property) ? members : owners).get(groupId);
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < binds.length(); i++) {
+                String reference = referencedId(binds.getString(i));
+                if (!users.containsKey(reference) && !groups.containsKey(reference)) {
+                    return notFound(reference);
+                }
+                if (existing.contains(reference)) {
+                    return Response.error(400, "Request_BadRequest", String.format(ALREADY_EXISTS, property));
+                }
+                ids.add(reference);
+            }
+            bindings.put(property, ids);
+        }
+
+        bindings.forEach((property, ids) -> {
+            boolean isMembers = "members".equals(property);
+            (isMembers ? members : owners).get(groupId).addAll(ids);
+            if (isMembers) {
+                ids.forEach(id -> recordMemberChange(groupId, id, false));
+            }
+        });
+        return null;
+    }
+
+    private void recordMemberChange(String groupId, String memberId, boolean removed) {
+        long changed = touch(groupChanges, groupId);
+        memberChanges.computeIfAbsent(groupId, k -> new ArrayList<>()).add(new MemberChange(memberId, removed, changed));
+    }
+
+    private Response roles(String method, String[] segments, Map<String, String> params, byte[] body) {
+        final String path = "/roleManagement/directory/" + segments[2];
+        if (ROLE_DEFINITIONS.equals(segments[2]) && "GET".equals(method)) {
+            if (segments.length == 3) {
+                return list(path, new ArrayList<>(roleDefinitions.values()), params);
+            } else if (segments.length == 4) {
+                return get(roleDefinitions, segments[3], params);
+            }
+        } else if (ROLE_ASSIGNMENTS.equals(segments[2])) {
+            if (segments.length == 3 && "GET".equals(method)) {
+                return list(path, new ArrayList<>(roleAssignments.values()), params);
+            } else if (segments.length == 3 && "POST".equals(method)) {
+                JSONObject assignment = parseJson(body);
+                if (!roleDefinitions.containsKey(assignment.optString("roleDefinitionId"))) {
+                    return notFound(assignment.optString("roleDefinitionId"));
+                }
+                String id = UUID.randomUUID().toString();
+                roleAssignments.put(id, assignment.put("id", id));
+                return Response.json(201, assignment);
+            } else if (segments.length == 4 && "GET".equals(method)) {
+                return get(roleAssignments, segments[3], params);
+            } else if (segments.length == 4 && "DELETE".equals(method)) {
+                return roleAssignments.remove(segments[3]) == null ? notFound(segments[3]) : Response.noContent();
+            }
+        }
+        return unsupported(method, path);
+    }
+
+    private Response get(Map<String, JSONObject> objects, String id, Map<String, String> params) {
+        JSONObject object = objects.get(id);
+        return object == null ? notFound(id) : Response.json(200, view(object, params, null));
+    }
+
+    /**
+     * One page of the objects, the following pages are linked by "@odata.nextLink" with the offset as the skip token.
+     */
+    private Response list(String path, List<JSONObject> objects, Map<String, String> params) {
+        if (params.containsKey("$search")) {
+            return Response.error(400, "Request_UnsupportedQuery", "$search is not supported by the mock.");
+        }
+        List<JSONObject> matching = objects;
+        if (params.containsKey("$filter")) {
+            Predicate<JSONObject> filter = parseFilter(params.get("$filter"));
+            if (filter == null) {
+                return Response.error(400, "Request_UnsupportedQuery", "Unsupported filter: " + params.get("$filter"));
+            }
+            matching = new ArrayList<>();
+            for (JSONObject object : objects) {
+                if (filter.test(object)) {
+                    matching.add(object);
+                }
+            }
+        }
+
+        int size = pageSize;
+        if (params.containsKey("$top")) {
+            size = Math.min(size, Integer.parseInt(params.get("$top")));
+        }
+        int offset = params.containsKey("$skiptoken") ? Integer.parseInt(params.get("$skiptoken")) : 0;
+
+        JSONArray value = new JSONArray();
+        for (int i = offset; i < Math.min(offset + size, matching.size()); i++) {
+            JSONObject object = matching.get(i);
+            value.put(view(object, params, groups.containsKey(object.optString("id")) ? object.getString("id") : null));
+        }
+
+        JSONObject page = new JSONObject().put("@odata.context", apiUrl + "/$metadata#" + path.substring(1));
+        if ("true".equals(params.get("$count"))) {
+            page.put("@odata.count", matching.size());
+        }
+        if (offset + size < matching.size()) {
+            Map<String, String> next = new LinkedHashMap<>(params);
+            next.put("$skiptoken", String.valueOf(offset + size));
+            page.put("@odata.nextLink", link(path, next));
+        }
+        return Response.json(200, page.put("value", value));
+    }
+
+    /**
+     * Changes of the objects since the version in the delta token. The skip token of the following pages carries the
+     * versions the delta started from and ends at, and the version of the last object returned so far.
+     */
+    private Response delta(String path, Map<String, JSONObject> objects, Map<String, Long> changes,
+                           Map<String, String> params, boolean groupDelta) {
+        String deltaToken = params.get("$deltatoken");
+        if ("latest".equals(deltaToken)) {
+            return Response.json(200, new JSONObject().put("value", new JSONArray())
+                    .put("@odata.deltaLink", link(path, Collections.singletonMap("$deltatoken", String.valueOf(version)))));
+        }
+
+        long from;
+        long to;
+        long last;
+        try {
+            if (params.containsKey("$skiptoken")) {
+                String[] token = params.get("$skiptoken").split("\\.");
+                from = Long.parseLong(token[0]);
+                to = Long.parseLong(token[1]);
+                last = Long.parseLong(token[2]);
+            } else {
+                from = deltaToken == null ? 0 : Long.parseLong(deltaToken);
+                to = version;
+                last = from;
+            }
+        } catch (RuntimeException e) {
+            return Response.error(400, "BadRequest", "Invalid delta or skip token.");
+        }
+
+        String select = params.get("$select");
+        boolean withMembers = groupDelta && select != null && Arrays.asList(select.split(",")).contains("members");
+        JSONArray value = new JSONArray();
+        long pageEnd = last;
+        for (Iterator<Map.Entry<String, Long>> it = changes.entrySet().iterator(); it.hasNext() && value.length() < pageSize; ) {
+            Map.Entry<String, Long> change = it.next();
+            if (change.getValue() <= last || change.getValue() > to) {
+                continue;
+            }
+            JSONObject object = objects.get(change.getKey());
+            if (object != null) {
+                JSONObject item = view(object, params, null);
+                if (withMembers) {
+                    item.put("members@delta", memberDelta(change.getKey(), from, to));
+                }
+                value.put(item);
+            } else if (from > 0) {
+                value.put(new JSONObject().put("id", change.getKey())
+                        .put("@removed", new JSONObject().put("reason", "deleted")));
+            }
+            pageEnd = change.getValue();
+        }
+
+        JSONObject page = new JSONObject().put("@odata.context", apiUrl + "/$metadata#" + path.substring(1))
+                .put("value", value);
+        boolean more = false;
+        for (Long changed : changes.values()) {
+            if (changed > pageEnd && changed <= to) {
+                more = true;
+                break;
+            }
+        }
+        if (more) {
+            page.put("@odata.nextLink", link(path,
+                    Collections.singletonMap("$skiptoken", from + "." + to + "." + pageEnd)));
+        } else {
+            page.put("@odata.deltaLink", link(path, Collections.singletonMap("$deltatoken", String.valueOf(to))));
+        }
+        return Response.json(200, page);
+    }
+
+    private JSONArray memberDelta(String groupId, long from, long to) {
+        Map<String, Boolean> delta = new LinkedHashMap<>();
+        if (from == 0) {
+            for (String member : members.get(groupId)) {
+                delta.put(member, false);
+            }
+        } else {
+            for (MemberChange change : memberChanges.getOrDefault(groupId, Collections.emptyList())) {
+                if (change.version > from && change.version <= to) {
+                    delta.remove(change.memberId);
+                    delta.put(change.memberId, change.removed);
+                }
+            }
+        }
+
+        JSONArray value = new JSONArray();
+        delta.forEach((member, removed) -> {
+            JSONObject item = new JSONObject().put("@odata.type", groups.containsKey(member) ? GROUP_TYPE : USER_TYPE)
+                    .put("id", member);
+            if (removed) {
+                item.put("@removed", new JSONObject().put("reason", "deleted"));
+            }
+            value.put(item);
+        });
+        return value;
+    }
+
+    private List<JSONObject> groupsOf(Map<String, Set<String>> references, String id) {
+        List<JSONObject> result = new ArrayList<>();
+        references.forEach((group, ids) -> {
+            if (ids.contains(id)) {
+                result.add(copy(groups.get(group)).put("@odata.type", GROUP_TYPE));
+            }
+        });
+        return result;
+    }
+
+    private JSONObject directoryObject(String id) {
+        JSONObject user = users.get(id);
+        if (user != null) {
+            return copy(user).put("@odata.type", USER_TYPE);
+        }
+        return copy(groups.get(id)).put("@odata.type", GROUP_TYPE);
+    }
+
+    /**
+     * Copy of the object with the properties in $select only, and the members expanded when requested.
+     *
+     * @param groupId id of the group, whose members can be expanded
+     */
+    private JSONObject view(JSONObject object, Map<String, String> params, String groupId) {
+        JSONObject result;
+        String select = params.get("$select");
+        if (select == null) {
+            result = copy(object);
+        } else {
+            result = new JSONObject();
+            for (String property : select.split(",")) {
+                if (object.has(property)) {
+                    result.put(property, object.get(property));
+                }
+            }
+            result.put("id", object.get("id"));
+            if (object.has("@odata.type")) {
+                result.put("@odata.type", object.get("@odata.type"));
+            }
+        }
+
+        String expand = params.get("$expand");
+        if (groupId != null && expand != null && expand.startsWith("members")) {
+            JSONArray expanded = new JSONArray();
+            for (String member : members.get(groupId)) {
+                if (expanded.length() == EXPAND_LIMIT) {
+                    break;
+                }
+                expanded.put(new JSONObject().put("@odata.type", groups.containsKey(member) ? GROUP_TYPE : USER_TYPE)
+                        .put("id", member));
+            }
+            result.put("members", expanded);
+        }
+        return result;
+    }
+
+    // The values are shared, the directory replaces them but never modifies them
+    private static JSONObject copy(JSONObject object) {
+        JSONObject copy = new JSONObject();
+        for (String key : object.keySet()) {
+            copy.put(key, object.get(key));
+        }
+        return copy;
+    }
+
+    private static boolean isDelta(String[] segments) {
+        return segments.length == 2 && ("delta".equals(segments[1]) || "microsoft.graph.delta".equals(segments[1]));
+    }
+
+    // The id is the last segment of a reference, e.g. https://graph.microsoft.com/v1.0/directoryObjects/{id}
+    private static String referencedId(String reference) {
+        return reference.substring(reference.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Conditions joined by "and", every one of them either "property eq|ge|le 'value'" or "startswith(property,'value')".
+     * The values are compared ignoring the case.
+     *
+     * @return null when the filter is not supported
+     */
+    private static Predicate<JSONObject> parseFilter(String filter) {
+        Predicate<JSONObject> predicate = object -> true;
+        for (String condition : filter.split(" and ")) {
+            Matcher equals = EQUALS.matcher(condition.trim());
+            Matcher compare = COMPARE.matcher(condition.trim());
+            Matcher startsWith = STARTS_WITH.matcher(condition.trim());
+            if (equals.matches()) {
+                final String property = equals.group(1);
+                final String value = equals.group(2);
+                predicate = predicate.and(object -> value.equalsIgnoreCase(object.optString(property, null)));
+            } else if (compare.matches()) {
+                final String property = compare.group(1);
+                final int sign = "ge".equals(compare.group(2)) ? 1 : -1;
+                final String value = compare.group(3);
+                predicate = predicate.and(object -> object.has(property)
+                        && sign * object.getString(property).compareToIgnoreCase(value) >= 0);
+            } else if (startsWith.matches()) {
+                final String property = startsWith.group(1);
+                final String value = startsWith.group(2).toLowerCase(Locale.ROOT);
+                predicate = predicate.and(object ->
+                        object.optString(property, "").toLowerCase(Locale.ROOT).startsWith(value));
+            } else {
+                return null;
+            }
+        }
+        return predicate;
+    }
+
+    private String link(String path, Map<String, String> params) {
+        StringBuilder link = new StringBuilder(apiUrl).append(path);
+        char separator = '?';
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            link.append(separator).append(param.getKey()).append('=').append(encode(param.getValue()));
+            separator = '&';
+        }
+        return link.toString();
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String param : rawQuery.split("&")) {
+            if (param.isEmpty()) {
+                continue;
+            }
+            int separator = param.indexOf('=');
+            String name = separator < 0 ? param : param.substring(0, separator);
+            String value = separator < 0 ? "" : param.substring(separator + 1);
+            // the names are case insensitive, e.g. both $deltaToken and $deltatoken are accepted
+            params.put(decode(name).toLowerCase(Locale.ROOT), decode(value));
+        }
+        return params;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JSONObject parseJson(byte[] body) {
+        return body == null || body.length == 0 ? new JSONObject() : new JSONObject(new String(body, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static Response notFound(String id) {
+        return Response.error(404, "Request_ResourceNotFound",
+                "Resource '" + id + "' does not exist or one of its queried reference-property objects are not present.");
+    }
+
+    private static Response unsupported(String method, String path) {
+        return Response.error(400, "BadRequest", "Unsupported request: " + method + " " + path);
+    }
+
+    private static void send(HttpExchange exchange, Response response) throws IOException {
+        response.headers.forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+        byte[] body = response.json != null ? response.json.toString().getBytes(StandardCharsets.UTF_8) : response.bytes;
+        if (body == null) {
+            exchange.sendResponseHeaders(response.status, -1);
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", response.json != null
+                ? "application/json; charset=utf-8" : response.contentType);
+        exchange.sendResponseHeaders(response.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static class MemberChange {
+
+        private final String memberId;
+        private final boolean removed;
+        private final long version;
+
+        MemberChange(String memberId, boolean removed, long version) {
+            this.memberId = memberId;
+            this.removed = removed;
+            this.version = version;
+        }
+    }
+
+    private static class Response {
+
+        private final int status;
+        private final JSONObject json;
+        private final byte[] bytes;
+        private final String contentType;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+
+        private Response(int status, JSONObject json, byte[] bytes, String contentType) {
+            this.status = status;
+            this.json = json;
+            this.bytes = bytes;
+            this.contentType = contentType;
+        }
+
+        static Response json(int status, JSONObject json) {
+            return new Response(status, json, null, null);
+        }
+
+        static Response bytes(byte[] bytes, String contentType) {
+            return new Response(200, null, bytes, contentType);
+        }
+
+        static Response noContent() {
+            return new Response(204, null, null, null);
+        }
+
+        static Response error(int status, String code, String message) {
+            return json(status, new JSONObject().put("error", new JSONObject().put("code", code).put("message", message)
+                    .put("innerError", new JSONObject().put("request-id", UUID.randomUUID().toString()))));
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+}